@@ -6,4 +6,6 @@ javac -d "./../out/" -cp "./../libraries/*:." "./waddington/kai/main/Main.java"
 
 javac -d "./../out/" -cp "./../libraries/*:." "./waddington/kai/tests/TestSuite.java"
 
+javac -d "./../out/" -cp "./../libraries/*:." ./waddington/kai/benchmarks/*.java
+
 cd ..
\ No newline at end of file
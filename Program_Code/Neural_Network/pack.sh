@@ -0,0 +1,7 @@
+#!/bin/bash
+
+cd out
+
+java -cp "./../libraries/*:." -Xmx8G waddington.kai.main.knnf.data.DatasetShard "$@"
+
+cd ..
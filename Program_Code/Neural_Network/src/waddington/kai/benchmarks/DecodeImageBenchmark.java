@@ -0,0 +1,83 @@
+package waddington.kai.benchmarks;
+
+import org.jblas.DoubleMatrix;
+import waddington.kai.main.knnf.data.ImageDecoder;
+
+import java.awt.image.BufferedImage;
+import java.util.Random;
+
+/**
+ * Times copying the pixels of a decoded 256x256 image into a {@link DoubleMatrix}, comparing the old loop that reads each pixel with
+ * {@link java.awt.image.Raster#getPixel(int, int, int[])} with the bulk read of {@link ImageDecoder#toMatrix(BufferedImage)}.
+ */
+public class DecodeImageBenchmark {
+    /**
+     * The number of copies timed for each case, after the same number of warm-up copies.
+     */
+    private static final int ITERATIONS = 500;
+
+    public static void main(String[] args) {
+        int[] types = new int[] {BufferedImage.TYPE_BYTE_GRAY, BufferedImage.TYPE_3BYTE_BGR, BufferedImage.TYPE_USHORT_GRAY};
+        String[] names = new String[] {"greyscale", "RGB", "16-bit greyscale"};
+
+        for (int t=0; t<types.length; t++) {
+            BufferedImage img = createImage(types[t]);
+
+            double perPixel = time(() -> readPerPixel(img));
+            double bulk = time(() -> ImageDecoder.toMatrix(img));
+
+            System.out.println(String.format("%s: getPixel %.4f ms, bulk %.4f ms (%.1fx)", names[t], perPixel, bulk, perPixel / bulk));
+        }
+    }
+
+    /**
+     * Creates a 256x256 image with random samples in every band.
+     */
+    private static BufferedImage createImage(int type) {
+        Random random = new Random(13081996);
+        BufferedImage img = new BufferedImage(256, 256, type);
+
+        for (int y=0; y<img.getHeight(); y++) {
+            for (int x=0; x<img.getWidth(); x++) {
+                for (int b=0; b<img.getRaster().getNumBands(); b++) {
+                    img.getRaster().setSample(x, y, b, random.nextInt(256));
+                }
+            }
+        }
+
+        return img;
+    }
+
+    /**
+     * The previous implementation of {@link ImageDecoder#toMatrix(BufferedImage)}, which reads each pixel into a new array.
+     */
+    private static DoubleMatrix readPerPixel(BufferedImage img) {
+        int width = img.getWidth();
+        int height = img.getHeight();
+
+        DoubleMatrix imgData = new DoubleMatrix(height, width);
+
+        for (int y=0; y<height; y++) {
+            for (int x=0; x<width; x++) {
+                int[] pixel = img.getRaster().getPixel(x, y, new int[4]);
+                imgData.put(y,x, pixel[0]);
+            }
+        }
+
+        return imgData;
+    }
+
+    /**
+     * Runs a copy enough times to warm up, then returns the mean time of one copy in milliseconds.
+     */
+    private static double time(Runnable copy) {
+        for (int i=0; i<ITERATIONS; i++)
+            copy.run();
+
+        long start = System.nanoTime();
+        for (int i=0; i<ITERATIONS; i++)
+            copy.run();
+
+        return (System.nanoTime() - start) / 1e6 / ITERATIONS;
+    }
+}
\ No newline at end of file
@@ -0,0 +1,76 @@
+package waddington.kai.benchmarks;
+
+import org.jblas.DoubleMatrix;
+import waddington.kai.main.knnf.InferenceNetwork;
+import waddington.kai.main.knnf.NetworkManager;
+import waddington.kai.main.knnf.inference.InferencePlan;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+/**
+ * Times predicting a 128x128 image layer by layer with an {@link InferenceNetwork}, and with the fused kernels of an {@link InferencePlan}.
+ */
+public class InferencePlanBenchmark {
+    /**
+     * The number of predictions timed for each case, after the same number of warm-up predictions.
+     */
+    private static final int ITERATIONS = 200;
+
+    public static void main(String[] args) {
+        NetworkManager network = new NetworkManager();
+        network.setMaximumInitialWeights(0.1f);
+        network.addInput(128, 128, 1);
+        network.addConv(16, 5, 1, "lrelu", "im2col");
+        network.addPool(2, 2, "max");
+        network.addConv(16, 5, 1, "lrelu", "im2col");
+        network.addPool(2, 2, "max");
+        network.addFlatten();
+        network.addFC(128, "tanh");
+        network.addOutput(3);
+        network.setDenseWeights(true);
+        network.networkValidityCheck();
+
+        List<DoubleMatrix> image = createImage();
+        InferenceNetwork layers = network.createInferenceNetwork();
+        InferencePlan plan = network.compileForInference();
+        InferencePlan.Workspace workspace = plan.createWorkspace();
+        System.out.println(plan);
+
+        double layered = time(() -> layers.predict(image));
+        double compiled = time(() -> plan.predict(image, workspace));
+
+        System.out.println(String.format("Layers %.3f ms, compiled plan %.3f ms (%.1fx)", layered, compiled, layered / compiled));
+    }
+
+    /**
+     * Creates an image with random pixel values in [0, 255].
+     */
+    private static List<DoubleMatrix> createImage() {
+        Random random = new Random(13081996);
+        DoubleMatrix channel = new DoubleMatrix(128, 128);
+
+        for (int i=0; i<channel.length; i++)
+            channel.data[i] = random.nextInt(256);
+
+        List<DoubleMatrix> image = new ArrayList<>();
+        image.add(channel);
+
+        return image;
+    }
+
+    /**
+     * Runs a prediction enough times to warm up, then returns the mean time of one prediction in milliseconds.
+     */
+    private static double time(Runnable prediction) {
+        for (int i=0; i<ITERATIONS; i++)
+            prediction.run();
+
+        long start = System.nanoTime();
+        for (int i=0; i<ITERATIONS; i++)
+            prediction.run();
+
+        return (System.nanoTime() - start) / 1e6 / ITERATIONS;
+    }
+}
\ No newline at end of file
@@ -0,0 +1,82 @@
+package waddington.kai.benchmarks;
+
+import org.jblas.DoubleMatrix;
+import waddington.kai.main.knnf.NetworkHelper;
+import waddington.kai.main.knnf.layers.neurons.Neuron;
+import waddington.kai.main.knnf.layers.neurons.NeuronFactory;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Times joining the outputs of a layer into the input of a fully-connected or output layer, comparing the old repeated
+ * {@link DoubleMatrix#concatHorizontally(DoubleMatrix, DoubleMatrix)} with {@link NetworkHelper#joinInputVectors(List, DoubleMatrix)} into a reused buffer.
+ */
+public class JoinInputsBenchmark {
+    /**
+     * The number of joins timed for each case, after the same number of warm-up joins.
+     */
+    private static final int ITERATIONS = 200;
+
+    public static void main(String[] args) {
+        // {neurons, values per neuron}
+        int[][] cases = new int[][] {
+            {128, 16},    // flatten layer of the network in Main, one neuron per channel
+            {1024, 1},    // fully-connected layer into the output layer
+            {12544, 1}    // flatten layer with one neuron per value
+        };
+
+        for (int[] c: cases) {
+            List<Neuron> neurons = createNeurons(c[0], c[1]);
+
+            double concatenated = time(() -> concatenate(neurons));
+            DoubleMatrix[] buffer = new DoubleMatrix[1];
+            double joined = time(() -> buffer[0] = NetworkHelper.joinInputVectors(neurons, buffer[0]));
+
+            System.out.println(String.format("%d neurons x %d values: concatHorizontally %.4f ms, buffer %.4f ms (%.1fx)",
+                    c[0], c[1], concatenated, joined, concatenated / joined));
+        }
+    }
+
+    /**
+     * Creates neurons that each output a row of random values.
+     */
+    private static List<Neuron> createNeurons(int number, int values) {
+        List<Neuron> neurons = new ArrayList<>();
+
+        for (int i=0; i<number; i++) {
+            Neuron neuron = NeuronFactory.getInputNeuron(i, new int[] {1, 1, values}, new int[] {1, 1, values});
+            neuron.setInputData(DoubleMatrix.rand(1, values));
+            neurons.add(neuron);
+        }
+
+        return neurons;
+    }
+
+    /**
+     * The previous implementation of {@link NetworkHelper#joinInputVectors(List)}, which copies everything joined so far for each neuron.
+     */
+    private static DoubleMatrix concatenate(List<Neuron> inputNeurons) {
+        DoubleMatrix output = inputNeurons.get(0).getOutputData();
+
+        for (int i=1; i<inputNeurons.size(); i++) {
+            output = DoubleMatrix.concatHorizontally(output, inputNeurons.get(i).getOutputData());
+        }
+
+        return output;
+    }
+
+    /**
+     * Runs a join enough times to warm up, then returns the mean time of one join in milliseconds.
+     */
+    private static double time(Runnable join) {
+        for (int i=0; i<ITERATIONS; i++)
+            join.run();
+
+        long start = System.nanoTime();
+        for (int i=0; i<ITERATIONS; i++)
+            join.run();
+
+        return (System.nanoTime() - start) / 1e6 / ITERATIONS;
+    }
+}
\ No newline at end of file
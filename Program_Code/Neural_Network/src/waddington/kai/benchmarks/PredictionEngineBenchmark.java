@@ -0,0 +1,79 @@
+package waddington.kai.benchmarks;
+
+import org.jblas.DoubleMatrix;
+import waddington.kai.main.knnf.NetworkManager;
+import waddington.kai.main.knnf.PredictionEngine;
+import waddington.kai.main.knnf.layers.Layer;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+/**
+ * Times predicting a batch of 64x64 images with the {@link PredictionEngine} on 1 thread up to the number of cores, reporting the throughput and the p50/p99 latency of each.
+ */
+public class PredictionEngineBenchmark {
+    /**
+     * The number of images predicted for each number of threads, after the same number of warm-up predictions.
+     */
+    private static final int IMAGES = 256;
+
+    public static void main(String[] args) {
+        List<Layer> layers = createNetwork();
+        List<List<DoubleMatrix>> images = createImages();
+        int cores = Runtime.getRuntime().availableProcessors();
+        double singleThread = 0;
+
+        for (int threads=1; threads<=cores; threads*=2) {
+            PredictionEngine engine = new PredictionEngine(layers, threads);
+            engine.predict(images);
+            engine.shutdown();
+
+            // A new engine so the warm-up is not in the metrics
+            engine = new PredictionEngine(layers, threads);
+            engine.predict(images);
+            engine.shutdown();
+
+            if (threads == 1)
+                singleThread = engine.getThroughput();
+
+            System.out.println(String.format("%d threads: %.1f images/s (%.1fx), p50 %.2f ms, p99 %.2f ms", threads, engine.getThroughput(),
+                    engine.getThroughput() / singleThread, engine.getLatencyPercentile(50), engine.getLatencyPercentile(99)));
+        }
+    }
+
+    private static List<Layer> createNetwork() {
+        NetworkManager network = new NetworkManager();
+        network.setMaximumInitialWeights(0.1f);
+        network.addInput(64, 64, 1);
+        network.addConv(8, 5, 1, "lrelu", "im2col");
+        network.addPool(2, 2, "max");
+        network.addConv(8, 3, 1, "lrelu", "im2col");
+        network.addFlatten();
+        network.addFC(64, "tanh");
+        network.addOutput(3);
+        network.setDenseWeights(true);
+
+        return network.getLayers();
+    }
+
+    /**
+     * Creates images with random pixel values in [0, 255].
+     */
+    private static List<List<DoubleMatrix>> createImages() {
+        Random random = new Random(13081996);
+        List<List<DoubleMatrix>> images = new ArrayList<>();
+
+        for (int i=0; i<IMAGES; i++) {
+            DoubleMatrix image = new DoubleMatrix(64, 64);
+            for (int p=0; p<image.length; p++)
+                image.data[p] = random.nextInt(256);
+
+            List<DoubleMatrix> channels = new ArrayList<>();
+            channels.add(image);
+            images.add(channels);
+        }
+
+        return images;
+    }
+}
\ No newline at end of file
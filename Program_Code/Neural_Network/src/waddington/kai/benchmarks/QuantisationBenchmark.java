@@ -0,0 +1,76 @@
+package waddington.kai.benchmarks;
+
+import org.jblas.DoubleMatrix;
+import waddington.kai.main.knnf.NetworkManager;
+import waddington.kai.main.knnf.inference.InferencePlan;
+import waddington.kai.main.knnf.inference.QuantisationReport;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+/**
+ * Compares predicting 128x128 images with an {@link InferencePlan} and with the same plan quantised to int8.
+ * The network is untrained, so each image is labelled with the class the double plan predicts, making the accuracy of the quantised plan the share of predictions it kept.
+ */
+public class QuantisationBenchmark {
+    private static final int CALIBRATION_IMAGES = 16;
+    /**
+     * The number of images evaluated, after the same number of warm-up predictions.
+     */
+    private static final int ITERATIONS = 200;
+
+    public static void main(String[] args) {
+        NetworkManager network = new NetworkManager();
+        network.setMaximumInitialWeights(0.1f);
+        network.addInput(128, 128, 1);
+        network.addConv(16, 5, 1, "lrelu", "im2col");
+        network.addPool(2, 2, "max");
+        network.addConv(16, 5, 1, "lrelu", "im2col");
+        network.addPool(2, 2, "max");
+        network.addFlatten();
+        network.addFC(128, "tanh");
+        network.addOutput(3);
+        network.setDenseWeights(true);
+        network.networkValidityCheck();
+
+        Random random = new Random(13081996);
+        InferencePlan plan = network.compileForInference();
+
+        List<List<DoubleMatrix>> calibration = new ArrayList<>();
+        for (int i=0; i<CALIBRATION_IMAGES; i++)
+            calibration.add(createImage(random));
+
+        InferencePlan quantised = plan.quantise(calibration);
+        System.out.println(quantised);
+
+        // Warm up both plans, then evaluate new images
+        QuantisationReport warmUp = new QuantisationReport(plan, quantised, CALIBRATION_IMAGES);
+        QuantisationReport report = new QuantisationReport(plan, quantised, CALIBRATION_IMAGES);
+
+        for (QuantisationReport run: new QuantisationReport[] {warmUp, report}) {
+            for (int i=0; i<ITERATIONS; i++) {
+                List<DoubleMatrix> image = createImage(random);
+                run.evaluate(image, plan.predict(image).argmax());
+            }
+        }
+
+        System.out.println(report);
+        System.out.println(String.format("Speed-up %.1fx, weights %.1fx smaller with one workspace", report.getPredictionTime() / report.getQuantisedPredictionTime(), (double) (plan.getWeightBytes() + plan.getWorkspaceWeightBytes()) / (quantised.getWeightBytes() + quantised.getWorkspaceWeightBytes())));
+    }
+
+    /**
+     * Creates an image with random pixel values in [0, 255].
+     */
+    private static List<DoubleMatrix> createImage(Random random) {
+        DoubleMatrix channel = new DoubleMatrix(128, 128);
+
+        for (int i=0; i<channel.length; i++)
+            channel.data[i] = random.nextInt(256);
+
+        List<DoubleMatrix> image = new ArrayList<>();
+        image.add(channel);
+
+        return image;
+    }
+}
\ No newline at end of file
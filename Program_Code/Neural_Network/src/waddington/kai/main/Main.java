@@ -32,6 +32,11 @@ public class Main {
         network.setLearningRate(0.0001f);
         network.setMaximumInitialWeights(0.0001f);
         network.setMomentum(0.001f);
+        // network.setOptimiser(new AdamOptimiser());
+        // network.setLearningRateSchedule(LearningRateSchedule.warmup(100, LearningRateSchedule.cosine(10000, 0.00001)));
+
+        // Run the neurons of each layer across all cores
+        network.setParallelism(Runtime.getRuntime().availableProcessors());
 
         // Add layers to network
         System.out.println("Building network...");
@@ -39,16 +44,16 @@ public class Main {
         network.addInput(256, 256, 1);
         network.addPool(2, 2, "max");
 
-        network.addConv(64, 9, 1, "lrelu");
-        network.addConv(128, 9, 1, "lrelu");
+        network.addConv(64, 9, 1, "lrelu", "im2col");
+        network.addConv(128, 9, 1, "lrelu", "im2col");
         network.addPool(2, 2, "max");
 
-        network.addConv(64, 9, 1, "lrelu");
-        network.addConv(128, 9, 1, "lrelu");
+        network.addConv(64, 9, 1, "lrelu", "im2col");
+        network.addConv(128, 9, 1, "lrelu", "im2col");
         network.addPool(2, 2, "max");
 
-        network.addConv(64, 9, 1, "lrelu");
-        network.addConv(128, 5, 1, "lrelu");
+        network.addConv(64, 9, 1, "lrelu", "im2col");
+        network.addConv(128, 5, 1, "lrelu", "im2col");
         network.addPool(2, 2, "max");
 
         network.addFlatten();
@@ -72,6 +77,8 @@ public class Main {
         network.setTrainingData("./../mri-png/");
         // network.setTerminationConditions(-1, -1, (long) (1000*60*60*11));
         network.setTerminationConditions(1, -1, -1); // 1 epoch
+        // network.setCheckpointing("./../NetworkSaves/", -1, (long) (1000*60*30)); // Checkpoint every 30 minutes
+        // network.resumeFromCheckpoint("./../NetworkSaves/"); // Carry on from the latest checkpoint
         network.startTraining("./../mri-png/");
     }
 
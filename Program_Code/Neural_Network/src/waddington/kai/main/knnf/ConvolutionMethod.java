@@ -0,0 +1,10 @@
+package waddington.kai.main.knnf;
+
+/**
+ * Used to track the method that a convolution layer uses to perform its convolutions.
+ */
+public enum ConvolutionMethod {
+    direct,
+    im2col,
+    fft
+}
\ No newline at end of file
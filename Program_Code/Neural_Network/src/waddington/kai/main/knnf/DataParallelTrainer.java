@@ -0,0 +1,279 @@
+package waddington.kai.main.knnf;
+
+import org.jblas.DoubleMatrix;
+import waddington.kai.main.knnf.layers.ExecutionPolicy;
+import waddington.kai.main.knnf.layers.Layer;
+import waddington.kai.main.knnf.layers.LayerInput;
+import waddington.kai.main.knnf.layers.LayerOutput;
+import waddington.kai.main.knnf.layers.neurons.Neuron;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Trains a network on mini-batches by splitting each batch between a number of workers.
+ * <p>
+ * Each worker has its own replica of the layers, see {@link Layer#createReplica()}, which shares the weights of the network but has its own neurons.
+ * The workers run the forward and backward passes for their share of the batch at the same time, then the deltas of each replica are added to the network
+ * in worker order before they are applied once. Every example in a batch is therefore trained with the same weights, and the result only depends on the seed and the number of workers.
+ * <p>
+ * When stacked, each worker keeps a replica of the layers for every example of its share of the batch, and runs the forward pass one layer at a time for all of them,
+ * see {@link Layer#setStackedInputData(List, List)}. The dense fully-connected and output layers and the im2col convolution layers then multiply their weights with every example at once.
+ * Each example keeps its own activations for the backward pass, so this needs memory for the activations of the whole batch.
+ */
+public class DataParallelTrainer {
+    /**
+     * The layers of the network, which apply the deltas.
+     */
+    private final List<Layer> layers;
+    /**
+     * The layers used by each worker. With a single worker this is just the layers of the network.
+     */
+    private final List<List<Layer>> workerLayers;
+    /**
+     * True to run the forward pass of each worker for its whole share of the batch at once.
+     */
+    private final boolean stacked;
+    /**
+     * The replicas of the layers used by each worker for each example of its share when {@link #stacked}, the first being {@link #workerLayers}. Created as they are needed.
+     */
+    private final List<List<List<Layer>>> workerLanes;
+    /**
+     * Runs the workers.
+     */
+    private final ExecutionPolicy executionPolicy;
+
+    /**
+     * The MSE of each example of the last batch.
+     */
+    private double[] errors;
+    /**
+     * The outputs of the network for each example of the last batch.
+     */
+    private DoubleMatrix[] outputs;
+
+    /**
+     * Creates the replicas for each worker.
+     * @param layers The layers of the network.
+     * @param workers The number of workers. 1 or less trains on the layers of the network directly.
+     */
+    public DataParallelTrainer(List<Layer> layers, int workers) {
+        this(layers, workers, false);
+    }
+
+    /**
+     * Creates the replicas for each worker.
+     * @param layers The layers of the network.
+     * @param workers The number of workers. 1 or less trains on the layers of the network directly.
+     * @param stacked True to run the forward pass for the share of the batch of each worker at once, see {@link Layer#setStackedInputData(List, List)}.
+     */
+    public DataParallelTrainer(List<Layer> layers, int workers, boolean stacked) {
+        this.layers = layers;
+        this.workerLayers = new ArrayList<>();
+        this.stacked = stacked;
+        this.workerLanes = new ArrayList<>();
+
+        if (workers <= 1) {
+            workerLayers.add(layers);
+        } else {
+            for (int w=0; w<workers; w++) {
+                List<Layer> replica = new ArrayList<>();
+                for (Layer layer: layers)
+                    replica.add(layer.createReplica());
+
+                workerLayers.add(replica);
+            }
+        }
+
+        for (List<Layer> replica: workerLayers) {
+            List<List<Layer>> lanes = new ArrayList<>();
+            lanes.add(replica);
+            workerLanes.add(lanes);
+        }
+
+        executionPolicy = ExecutionPolicy.parallel(workers);
+    }
+
+    public int getNumberOfWorkers() {
+        return workerLayers.size();
+    }
+
+    /**
+     * Runs the forward and backward passes for every example of a batch, leaving the deltas of the batch in the layers of the network ready for {@link #applyDeltas()}.
+     * Worker w trains on the examples [w*n/workers, (w+1)*n/workers) of the batch.
+     * @param inputs The image data of each example.
+     * @param labels The class of each example.
+     */
+    public void train(List<List<DoubleMatrix>> inputs, List<Integer> labels) {
+        int batchSize = inputs.size();
+        int workers = workerLayers.size();
+
+        errors = new double[batchSize];
+        outputs = new DoubleMatrix[batchSize];
+
+        executionPolicy.forEach(workers, w -> {
+            List<Layer> replica = workerLayers.get(w);
+            int start = (w * batchSize) / workers;
+            int end = ((w+1) * batchSize) / workers;
+
+            if (stacked) {
+                trainStacked(workerLanes.get(w), inputs, labels, start, end);
+                return;
+            }
+
+            for (int k=start; k<end; k++) {
+                errors[k] = trainExample(replica, inputs.get(k), labels.get(k));
+                outputs[k] = ((LayerOutput) replica.get(replica.size()-1)).getOutputs();
+            }
+        });
+
+        // Reduce in worker order so the sums are always added up the same way
+        for (List<List<Layer>> lanes: workerLanes) {
+            for (List<Layer> replica: lanes) {
+                if (replica == layers)
+                    continue;
+
+                for (int j=1; j<layers.size(); j++) {
+                    layers.get(j).addReplicaDeltas(replica.get(j));
+                }
+            }
+        }
+    }
+
+    /**
+     * Runs the forward pass for a workers share of the batch one layer at a time for every example, then the backward pass for each example in turn.
+     * @param lanes The replicas of the layers of the worker, added to if there are fewer than examples.
+     * @param inputs The image data of each example of the batch.
+     * @param labels The class of each example of the batch.
+     * @param start The first example of the share of the worker.
+     * @param end The example after the last example of the share of the worker.
+     */
+    private void trainStacked(List<List<Layer>> lanes, List<List<DoubleMatrix>> inputs, List<Integer> labels, int start, int end) {
+        int examples = end - start;
+        if (examples == 0)
+            return;
+
+        while (lanes.size() < examples) {
+            List<Layer> replica = new ArrayList<>();
+            for (Layer layer: layers)
+                replica.add(layer.createReplica());
+
+            lanes.add(replica);
+        }
+
+        for (int b=0; b<examples; b++)
+            ((LayerInput) lanes.get(b).get(0)).setInput(inputs.get(start+b));
+
+        // Forward pass through entire network, every example at once
+        for (int j=1; j<layers.size(); j++) {
+            List<Layer> replicas = new ArrayList<>();
+            List<List<Neuron>> inputNeurons = new ArrayList<>();
+            for (int b=0; b<examples; b++) {
+                replicas.add(lanes.get(b).get(j));
+                inputNeurons.add(lanes.get(b).get(j-1).getNeurons());
+            }
+
+            replicas.get(0).setStackedInputData(replicas, inputNeurons);
+        }
+
+        for (int b=0; b<examples; b++) {
+            List<Layer> replica = lanes.get(b);
+            LayerOutput outputLayer = (LayerOutput) replica.get(replica.size()-1);
+
+            errors[start+b] = outputLayer.getError(labels.get(start+b));
+            outputs[start+b] = outputLayer.getOutputs();
+            backPropagate(replica);
+        }
+    }
+
+    /**
+     * Gets the MSE of an example of the last batch.
+     * @param example The index of the example in the batch.
+     * @return The MSE of the example.
+     */
+    public double getError(int example) {
+        return errors[example];
+    }
+
+    /**
+     * Gets the outputs of the network for an example of the last batch.
+     * @param example The index of the example in the batch.
+     * @return A 1xN matrix of the outputs, see {@link LayerOutput#getOutputs()}.
+     */
+    public DoubleMatrix getOutputs(int example) {
+        return outputs[example];
+    }
+
+    /**
+     * Applies the deltas of the batch to the layers of the network, then copies the parameters that are not shared to each replica.
+     */
+    public void applyDeltas() {
+        for (int j=layers.size()-1; j>0; j--) {
+            layers.get(j).applyDeltas();
+        }
+
+        for (List<List<Layer>> lanes: workerLanes) {
+            for (List<Layer> replica: lanes) {
+                if (replica == layers)
+                    continue;
+
+                for (int j=1; j<layers.size(); j++) {
+                    layers.get(j).syncReplica(replica.get(j));
+                }
+            }
+        }
+    }
+
+    /**
+     * Stops the worker threads.
+     */
+    public void shutdown() {
+        executionPolicy.shutdown();
+    }
+
+    /**
+     * Runs the forward and backward passes for one example, calculating the deltas of every layer without applying them.
+     * @param layers The layers to train, either those of the network or a replica.
+     * @param input The image data of the example.
+     * @param label The class of the example.
+     * @return The MSE of the example.
+     */
+    public static double trainExample(List<Layer> layers, List<DoubleMatrix> input, int label) {
+        // Set input layer input data
+        ((LayerInput) layers.get(0)).setInput(input);
+
+        // Forward pass through entire network
+        // Start at 1 because input layer handled differently above
+        for (int j=1; j<layers.size(); j++) {
+            layers.get(j).setInputData(layers.get(j-1).getNeurons());
+        }
+
+        // Get current total MSE
+        double error = ((LayerOutput) layers.get(layers.size()-1)).getError(label);
+
+        backPropagate(layers);
+
+        return error;
+    }
+
+    /**
+     * Runs the backward pass for the example the layers last ran forward, adding its deltas to those of the batch.
+     * The errors and gradients are calculated into buffers kept by the layers and neurons, so after the first example this does not allocate.
+     * @param layers The layers to train, either those of the network or a replica, after the forward pass and {@link LayerOutput#getError(int)}.
+     */
+    public static void backPropagate(List<Layer> layers) {
+        // Backwards pass through entire network
+        List<Neuron> lowerNeurons = layers.get(layers.size()-2).getNeurons();
+        List<Neuron> upperNeurons = null;
+
+        layers.get(layers.size()-1).calculateDeltas(lowerNeurons, upperNeurons);
+
+        // Don't need to do anything to input layer
+        // Loop starts at penultimate layer as output layer is handled differently
+        for (int j=layers.size()-2; j>0; j--) {
+            lowerNeurons = layers.get(j-1).getNeurons();
+            upperNeurons = layers.get(j+1).getNeurons();
+            layers.get(j).calculateDeltas(lowerNeurons, upperNeurons);
+        }
+    }
+}
\ No newline at end of file
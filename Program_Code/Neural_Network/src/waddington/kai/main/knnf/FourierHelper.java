@@ -0,0 +1,321 @@
+package waddington.kai.main.knnf;
+
+import org.jblas.DoubleMatrix;
+
+import java.util.Arrays;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Static utilities class for performing convolutions in the frequency domain.
+ * <p>
+ * Uses a radix-2 fast Fourier transform, so all spectra are zero-padded to sizes that are a power of two.
+ * All data is stored column-major to match {@link DoubleMatrix}.
+ */
+public class FourierHelper {
+
+    /**
+     * Cached twiddle factors for each transform length, stored as {cos, sin}.
+     */
+    private static final Map<Integer, double[][]> twiddles = new ConcurrentHashMap<>();
+
+    /**
+     * The frequency domain representation of a zero-padded matrix.
+     */
+    public static class Spectrum {
+        /**
+         * The number of rows after padding.
+         */
+        public final int rows;
+        /**
+         * The number of columns after padding.
+         */
+        public final int columns;
+        /**
+         * The real parts, column-major.
+         */
+        public final double[] real;
+        /**
+         * The imaginary parts, column-major.
+         */
+        public final double[] imaginary;
+        /**
+         * Workspace that each row is gathered into while transforming, so that it is reused along with the spectrum.
+         */
+        private final double[] rowReal;
+        private final double[] rowImaginary;
+
+        /**
+         * Creates an empty spectrum.
+         * @param rows The number of rows, must be a power of two.
+         * @param columns The number of columns, must be a power of two.
+         */
+        public Spectrum(int rows, int columns) {
+            this.rows = rows;
+            this.columns = columns;
+            this.real = new double[rows * columns];
+            this.imaginary = new double[rows * columns];
+            this.rowReal = new double[columns];
+            this.rowImaginary = new double[columns];
+        }
+    }
+
+    /**
+     * Finds the smallest power of two that is not smaller than a value.
+     * @param n The value.
+     * @return The smallest power of two that is greater than or equal to n.
+     */
+    public static int nextPowerOfTwo(int n) {
+        int power = 1;
+
+        while (power < n)
+            power <<= 1;
+
+        return power;
+    }
+
+    /**
+     * Zero-pads a matrix and transforms it into the frequency domain.
+     * @param matrix The {@link DoubleMatrix} to transform.
+     * @param rows The number of rows to pad to, must be a power of two.
+     * @param columns The number of columns to pad to, must be a power of two.
+     * @param spectrum A {@link Spectrum} to reuse for the output. A new one is created if this is null or the wrong shape.
+     * @return The {@link Spectrum} of the matrix.
+     */
+    public static Spectrum transform(DoubleMatrix matrix, int rows, int columns, Spectrum spectrum) {
+        return transform(matrix, 1, rows, columns, spectrum);
+    }
+
+    /**
+     * Dilates a matrix by a stride, spreading its values out with stride-1 zeros between each, then zero-pads it and transforms it into the frequency domain.
+     * This is how the error of a strided convolution is laid back over its input.
+     * @param matrix The {@link DoubleMatrix} to transform.
+     * @param stride The stride to dilate by, 1 for no dilation.
+     * @param rows The number of rows to pad to, must be a power of two.
+     * @param columns The number of columns to pad to, must be a power of two.
+     * @param spectrum A {@link Spectrum} to reuse for the output. A new one is created if this is null or the wrong shape.
+     * @return The {@link Spectrum} of the dilated matrix.
+     */
+    public static Spectrum transform(DoubleMatrix matrix, int stride, int rows, int columns, Spectrum spectrum) {
+        if (spectrum == null || spectrum.rows != rows || spectrum.columns != columns)
+            spectrum = new Spectrum(rows, columns);
+
+        Arrays.fill(spectrum.real, 0.0);
+        Arrays.fill(spectrum.imaginary, 0.0);
+
+        for (int x=0; x<matrix.columns; x++) {
+            if (stride == 1) {
+                System.arraycopy(matrix.data, x*matrix.rows, spectrum.real, x*rows, matrix.rows);
+                continue;
+            }
+
+            int columnStart = (x*stride) * rows;
+            for (int y=0; y<matrix.rows; y++) {
+                spectrum.real[columnStart + (y*stride)] = matrix.data[(x*matrix.rows)+y];
+            }
+        }
+
+        fft2d(spectrum, false);
+
+        return spectrum;
+    }
+
+    /**
+     * Calculates the valid cross-correlation of an input with a filter, which is the operation the convolution layers perform, using the spectrum of the input.
+     * The spectrum of the input can be shared by any number of filters.
+     * @param inputSpectrum The {@link Spectrum} of the input, see {@link #transform(DoubleMatrix, int, int, Spectrum)}.
+     * @param filter The filter to correlate with the input.
+     * @param workspace A {@link Spectrum} to reuse for the filter spectrum. A new one is created if this is null or the wrong shape.
+     * @return The workspace, containing the spatial correlation of the input and filter. Use {@link #extract(Spectrum, int, int, int)} to read the output.
+     */
+    public static Spectrum correlate(Spectrum inputSpectrum, DoubleMatrix filter, Spectrum workspace) {
+        workspace = transform(filter, inputSpectrum.rows, inputSpectrum.columns, workspace);
+
+        // Correlation is multiplication by the complex conjugate of the filter spectrum
+        return multiply(inputSpectrum, workspace, true, workspace);
+    }
+
+    /**
+     * Multiplies two spectra of the same shape and transforms the product back into the spatial domain.
+     * The product is the circular convolution of the two matrices, or their circular correlation if the second is conjugated, so the spectra must be padded enough that the result does not wrap around.
+     * @param a The first {@link Spectrum}.
+     * @param b The second {@link Spectrum}.
+     * @param conjugate True to multiply by the complex conjugate of b, which gives the correlation of a with b.
+     * @param output A {@link Spectrum} to write to, which can be a or b. A new one is created if this is null or the wrong shape.
+     * @return The output, containing the spatial result. Use {@link #extract(Spectrum, int, int, int, DoubleMatrix)} to read it.
+     */
+    public static Spectrum multiply(Spectrum a, Spectrum b, boolean conjugate, Spectrum output) {
+        if (output == null || output.rows != a.rows || output.columns != a.columns)
+            output = new Spectrum(a.rows, a.columns);
+
+        double[] aRe = a.real;
+        double[] aIm = a.imaginary;
+        double[] bRe = b.real;
+        double[] bIm = b.imaginary;
+        double[] re = output.real;
+        double[] im = output.imaginary;
+        double sign = conjugate ? -1.0 : 1.0;
+
+        for (int i=0; i<re.length; i++) {
+            double bImaginary = sign * bIm[i];
+            double productRe = (aRe[i] * bRe[i]) - (aIm[i] * bImaginary);
+            double productIm = (aIm[i] * bRe[i]) + (aRe[i] * bImaginary);
+            re[i] = productRe;
+            im[i] = productIm;
+        }
+
+        fft2d(output, true);
+
+        return output;
+    }
+
+    /**
+     * Reads the output of a correlation out of a spatial domain {@link Spectrum}.
+     * @param spatial The {@link Spectrum} after {@link #correlate(Spectrum, DoubleMatrix, Spectrum)}.
+     * @param stride The stride used.
+     * @param outputRows The number of rows in the output.
+     * @param outputCols The number of columns in the output.
+     * @return A {@link DoubleMatrix} of the output.
+     */
+    public static DoubleMatrix extract(Spectrum spatial, int stride, int outputRows, int outputCols) {
+        return extract(spatial, stride, outputRows, outputCols, null);
+    }
+
+    /**
+     * Reads the output of a correlation or convolution out of a spatial domain {@link Spectrum} into a reusable matrix.
+     * @param spatial The {@link Spectrum} after {@link #correlate(Spectrum, DoubleMatrix, Spectrum)} or {@link #multiply(Spectrum, Spectrum, boolean, Spectrum)}.
+     * @param stride The stride used.
+     * @param outputRows The number of rows in the output.
+     * @param outputCols The number of columns in the output.
+     * @param output A {@link DoubleMatrix} to write to. A new one is created if this is null or the wrong shape.
+     * @return A {@link DoubleMatrix} of the output.
+     */
+    public static DoubleMatrix extract(Spectrum spatial, int stride, int outputRows, int outputCols, DoubleMatrix output) {
+        if (output == null || output.rows != outputRows || output.columns != outputCols)
+            output = new DoubleMatrix(outputRows, outputCols);
+
+        for (int ox=0; ox<outputCols; ox++) {
+            int columnStart = (ox*stride) * spatial.rows;
+
+            for (int oy=0; oy<outputRows; oy++) {
+                output.data[(ox*outputRows)+oy] = spatial.real[columnStart + (oy*stride)];
+            }
+        }
+
+        return output;
+    }
+
+    /**
+     * Performs an in-place two dimensional FFT by transforming each column and then each row.
+     * @param spectrum The data to transform.
+     * @param inverse True for the inverse transform, which is also scaled so that it undoes the forward transform.
+     */
+    private static void fft2d(Spectrum spectrum, boolean inverse) {
+        int rows = spectrum.rows;
+        int columns = spectrum.columns;
+        double[] re = spectrum.real;
+        double[] im = spectrum.imaginary;
+
+        // Columns are contiguous
+        for (int x=0; x<columns; x++) {
+            fft(re, im, x*rows, rows, inverse);
+        }
+
+        // Rows are gathered into a contiguous buffer
+        double[] rowRe = spectrum.rowReal;
+        double[] rowIm = spectrum.rowImaginary;
+        for (int y=0; y<rows; y++) {
+            for (int x=0; x<columns; x++) {
+                rowRe[x] = re[(x*rows)+y];
+                rowIm[x] = im[(x*rows)+y];
+            }
+
+            fft(rowRe, rowIm, 0, columns, inverse);
+
+            for (int x=0; x<columns; x++) {
+                re[(x*rows)+y] = rowRe[x];
+                im[(x*rows)+y] = rowIm[x];
+            }
+        }
+
+        if (inverse) {
+            double scale = 1.0 / (rows * columns);
+            for (int i=0; i<re.length; i++) {
+                re[i] *= scale;
+                im[i] *= scale;
+            }
+        }
+    }
+
+    /**
+     * Performs an in-place iterative radix-2 FFT on a contiguous section of an array.
+     * @param re The real parts.
+     * @param im The imaginary parts.
+     * @param offset The index the section starts at.
+     * @param n The length of the section, must be a power of two.
+     * @param inverse True for the (unscaled) inverse transform.
+     */
+    private static void fft(double[] re, double[] im, int offset, int n, boolean inverse) {
+        // Bit reversal permutation
+        for (int i=1, j=0; i<n; i++) {
+            int bit = n >> 1;
+            for (; (j & bit) != 0; bit >>= 1)
+                j ^= bit;
+            j ^= bit;
+
+            if (i < j) {
+                double t = re[offset+i]; re[offset+i] = re[offset+j]; re[offset+j] = t;
+                t = im[offset+i]; im[offset+i] = im[offset+j]; im[offset+j] = t;
+            }
+        }
+
+        double[][] table = getTwiddles(n);
+        double[] cos = table[0];
+        double[] sin = table[1];
+        double sign = inverse ? 1.0 : -1.0;
+
+        // Butterflies
+        for (int length=2; length<=n; length<<=1) {
+            int half = length >> 1;
+            int step = n / length;
+
+            for (int i=0; i<n; i+=length) {
+                for (int j=0; j<half; j++) {
+                    double wRe = cos[j*step];
+                    double wIm = sign * sin[j*step];
+                    int a = offset + i + j;
+                    int b = a + half;
+
+                    double tRe = (re[b] * wRe) - (im[b] * wIm);
+                    double tIm = (re[b] * wIm) + (im[b] * wRe);
+
+                    re[b] = re[a] - tRe;
+                    im[b] = im[a] - tIm;
+                    re[a] += tRe;
+                    im[a] += tIm;
+                }
+            }
+        }
+    }
+
+    /**
+     * Gets (creating if needed) the twiddle factors for a transform length.
+     * @param n The transform length.
+     * @return The {cos, sin} tables of 2*pi*k/n for k in [0, n/2).
+     */
+    private static double[][] getTwiddles(int n) {
+        return twiddles.computeIfAbsent(n, length -> {
+            int half = Math.max(1, length / 2);
+            double[] cos = new double[half];
+            double[] sin = new double[half];
+
+            for (int k=0; k<half; k++) {
+                double angle = (2 * Math.PI * k) / length;
+                cos[k] = Math.cos(angle);
+                sin[k] = Math.sin(angle);
+            }
+
+            return new double[][] {cos, sin};
+        });
+    }
+}
\ No newline at end of file
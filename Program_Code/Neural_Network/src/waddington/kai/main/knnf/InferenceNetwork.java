@@ -0,0 +1,77 @@
+package waddington.kai.main.knnf;
+
+import org.jblas.DoubleMatrix;
+import waddington.kai.main.knnf.layers.Layer;
+import waddington.kai.main.knnf.layers.LayerInput;
+import waddington.kai.main.knnf.layers.LayerOutput;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * A network that can only make predictions, created from a trained or loaded network with {@link NetworkManager#createInferenceNetwork()}.
+ * <p>
+ * The layers are replicas of those of the network, see {@link Layer#createReplica(NetworkContext)}, so they share its filters and weights but none of its training state.
+ * No errors, gradients or optimiser state are ever created, and the activations of each layer are released as soon as the layer above has consumed them, see {@link Layer#releaseActivations()}.
+ * Only the weights and the activations of two layers at a time are held, so once the {@link NetworkManager} it was created from is no longer referenced several networks fit in the memory that training one needs.
+ * <p>
+ * An inference network makes one prediction at a time, use a {@link PredictionEngine} to predict on several threads.
+ */
+public class InferenceNetwork {
+    /**
+     * The replicas of the layers of the network.
+     */
+    private final List<Layer> layers;
+
+    /**
+     * Creates the replicas of the layers of a network, without their activations.
+     * @param network The layers of the network, with their weights trained or loaded.
+     */
+    public InferenceNetwork(List<Layer> network) {
+        layers = new ArrayList<>();
+
+        // A context of its own, as the context of the network holds its layers and would keep them in memory
+        NetworkContext context = new NetworkContext();
+        for (Layer layer: network) {
+            Layer replica = layer.createReplica(context);
+            replica.releaseActivations();
+            layers.add(replica);
+        }
+
+        context.setLayers(layers);
+    }
+
+    public List<Layer> getLayers() {
+        return layers;
+    }
+
+    /**
+     * Runs the forward pass for an image, releasing the activations of each layer once the layer above has consumed them.
+     * @param image The image data, see {@link waddington.kai.main.knnf.data.ImageDecoder#decode(String, String)}.
+     * @return The outputs of the network, a 1xN matrix, see {@link LayerOutput#getOutputs()}.
+     */
+    public DoubleMatrix predict(List<DoubleMatrix> image) {
+        ((LayerInput) layers.get(0)).setInput(image);
+
+        for (int j=1; j<layers.size(); j++) {
+            layers.get(j).setInputData(layers.get(j-1).getNeurons());
+            layers.get(j-1).releaseActivations();
+        }
+
+        LayerOutput outputLayer = (LayerOutput) layers.get(layers.size()-1);
+        DoubleMatrix outputs = outputLayer.getOutputs();
+        outputLayer.releaseActivations();
+
+        return outputs;
+    }
+
+    /**
+     * Copies the parameters that the replicas do not share with the network, such as the biases, after the network has been trained further.
+     * @param network The layers of the network this was created from.
+     */
+    public void syncWeights(List<Layer> network) {
+        for (int j=1; j<layers.size(); j++) {
+            network.get(j).syncReplica(layers.get(j));
+        }
+    }
+}
\ No newline at end of file
@@ -0,0 +1,182 @@
+package waddington.kai.main.knnf;
+
+import waddington.kai.main.knnf.layers.Layer;
+import waddington.kai.main.knnf.optimisers.LearningRateSchedule;
+import waddington.kai.main.knnf.optimisers.Optimiser;
+import waddington.kai.main.knnf.optimisers.SgdOptimiser;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+/**
+ * The state that belongs to one network: its hyper-parameters, random number generator and layers.
+ * Each {@link NetworkManager} has its own context, which it passes to the layers and neurons it creates, so several networks can be built and trained in the same JVM at the same time.
+ */
+public class NetworkContext {
+    /**
+     * The default filter size above which convolution layers switch to {@link ConvolutionMethod#fft}.
+     * On a 256x256 input, the size of the data-set images, {@link ConvolutionMethod#im2col} is faster up to 15x15 filters and the FFT from 17x17.
+     */
+    public static final int DEFAULT_FFT_FILTER_SIZE_THRESHOLD = 15;
+
+    /**
+     * The learning rate of the network.
+     */
+    private float learningRate;
+    /**
+     * The momentum of the network.
+     */
+    private float momentum;
+    /**
+     * The optimiser that updates the weights of the network.
+     */
+    private Optimiser optimiser;
+    /**
+     * The schedule that changes the learning rate as the network trains.
+     */
+    private LearningRateSchedule learningRateSchedule;
+    /**
+     * The absolute value of the range that weights are initialised within.
+     */
+    private float maximumInitialWeights;
+    /**
+     * Used to initialise the weights of the network.
+     */
+    private Random random;
+    /**
+     * The filter size above which convolution layers use {@link ConvolutionMethod#fft}, given to each convolution layer when it is created.
+     */
+    private int fftFilterSizeThreshold;
+
+    /**
+     * The layers of the network.
+     */
+    private List<Layer> layers;
+    /**
+     * The number of layers created for the network, used to generate the layer ID's.
+     */
+    private int numberOfLayers;
+
+    /**
+     * Creates a context with no layers, seeding the random number generator so that recreated networks are consistent.
+     */
+    public NetworkContext() {
+        random = new Random(13081996);
+        optimiser = new SgdOptimiser();
+        learningRateSchedule = LearningRateSchedule.constant();
+        fftFilterSizeThreshold = DEFAULT_FFT_FILTER_SIZE_THRESHOLD;
+        layers = new ArrayList<>();
+        numberOfLayers = 0;
+    }
+
+    public float getLearningRate() {
+        return learningRate;
+    }
+
+    public void setLearningRate(float learningRate) {
+        this.learningRate = learningRate;
+    }
+
+    public float getMomentum() {
+        return momentum;
+    }
+
+    public void setMomentum(float momentum) {
+        this.momentum = momentum;
+    }
+
+    public Optimiser getOptimiser() {
+        return optimiser;
+    }
+
+    /**
+     * Sets the optimiser that updates the weights of the network. The state of the previous optimiser, such as the momentum, is discarded the next time the weights are updated.
+     * @param optimiser The {@link Optimiser}, {@link SgdOptimiser} by default.
+     */
+    public void setOptimiser(Optimiser optimiser) {
+        this.optimiser = optimiser;
+    }
+
+    public LearningRateSchedule getLearningRateSchedule() {
+        return learningRateSchedule;
+    }
+
+    /**
+     * Sets the schedule that changes the learning rate as the network trains.
+     * @param learningRateSchedule The {@link LearningRateSchedule}, {@link LearningRateSchedule#constant()} by default.
+     */
+    public void setLearningRateSchedule(LearningRateSchedule learningRateSchedule) {
+        this.learningRateSchedule = learningRateSchedule;
+    }
+
+    /**
+     * Gets the learning rate for an update of the weights from the schedule of the network.
+     * @param step The number of the update, starting at 1.
+     * @return The learning rate.
+     */
+    public double getScheduledLearningRate(long step) {
+        return learningRateSchedule.getLearningRate(learningRate, step);
+    }
+
+    public float getMaximumInitialWeights() {
+        return maximumInitialWeights;
+    }
+
+    public void setMaximumInitialWeights(float maximumInitialWeights) {
+        this.maximumInitialWeights = maximumInitialWeights;
+    }
+
+    public int getFFTFilterSizeThreshold() {
+        return fftFilterSizeThreshold;
+    }
+
+    public void setFFTFilterSizeThreshold(int fftFilterSizeThreshold) {
+        this.fftFilterSizeThreshold = fftFilterSizeThreshold;
+    }
+
+    public Random getRandom() {
+        return random;
+    }
+
+    /**
+     * Replaces the random number generator, for example with one restored from a checkpoint so that it continues the same sequence.
+     * @param random The random number generator.
+     */
+    public void setRandom(Random random) {
+        this.random = random;
+    }
+
+    public List<Layer> getLayers() {
+        return layers;
+    }
+
+    /**
+     * Replaces the layers of the network, for example with those of a loaded model. New layers are numbered after them.
+     * @param layers The layers of the network.
+     */
+    public void setLayers(List<Layer> layers) {
+        this.layers = layers;
+        numberOfLayers = layers.size();
+    }
+
+    /**
+     * Gets the ID for a new layer.
+     * @return The ID, which is the position the layer will have in the network.
+     */
+    public int nextLayerId() {
+        return numberOfLayers++;
+    }
+
+    /**
+     * Gets the shape of the input to a specified layer.
+     * @param layerId The ID of the layer that you wish to find the input shape for.
+     * @return An int[] containing the {Z,Y,X} dimensions of the input data to the specified layer.
+     */
+    public int[] getLayerInputSize(int layerId) {
+        if (layerId > layers.size())
+            return new int[3];
+
+        return layers.get(layerId-1).getOutputSize();
+    }
+}
\ No newline at end of file
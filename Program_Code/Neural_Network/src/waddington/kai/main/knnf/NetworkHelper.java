@@ -1,15 +1,23 @@
 package waddington.kai.main.knnf;
 
 import org.jblas.DoubleMatrix;
+import org.jblas.NativeBlas;
+import org.jblas.SimpleBlas;
+import waddington.kai.main.knnf.exceptions.InvalidInputSizeException;
 import waddington.kai.main.knnf.exceptions.InvalidLayerOrderException;
 import waddington.kai.main.knnf.exceptions.MissingActivationMethodException;
 import waddington.kai.main.knnf.exceptions.UnknownActivationTypeException;
+import waddington.kai.main.knnf.exceptions.UnknownConvolutionMethodException;
 import waddington.kai.main.knnf.exceptions.UnknownPoolTypeException;
 import waddington.kai.main.knnf.layers.neurons.Neuron;
+import waddington.kai.main.knnf.layers.neurons.NeuronFullyConnected;
+import waddington.kai.main.knnf.layers.neurons.NeuronOutput;
 
+import java.util.Arrays;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.function.DoubleUnaryOperator;
 
 /**
  * Static utilities class that contains mostly mathematics operations.
@@ -125,6 +133,21 @@ public class NetworkHelper {
         return type;
     }
 
+    /**
+     * Takes a string and matches it to a {@link ConvolutionMethod}.
+     * @param method The string that the user specifies as the convolution method.
+     * @return A {@link ConvolutionMethod} that matches the specified string.
+     * @throws UnknownConvolutionMethodException if passed String cannot be matched to a ConvolutionMethod.
+     */
+    public static ConvolutionMethod matchConvolutionMethod(String method) {
+        for (ConvolutionMethod method2: ConvolutionMethod.values()) {
+            if (method.equals(method2.toString()))
+                return method2;
+        }
+
+        throw new UnknownConvolutionMethodException(("\r\nUnknown convolution method: \"" + method + "\"\r\n"));
+    }
+
 	/**
 	 * Uses {@link LayerOrder} instances to set up a data structure used to check that layers are in a valid order.
 	 * @return A Map between all {@link LayerType}'s and their {@link LayerOrder} instances.
@@ -244,6 +267,142 @@ public class NetworkHelper {
         return output;
     }
 
+    /**
+     * Lays out every receptive field of a matrix as the columns of a new matrix (im2col).
+     * <p>
+     * Each column holds one receptive field in the same column-major order as the data of a filter, and the columns are in the column-major order of the output cells.
+     * This means a filter (as a 1xN row) multiplied by this matrix gives the whole convolution output in a single matrix multiply, which only needs reshaping to the output size.
+     * @param input The {@link DoubleMatrix} to take the receptive fields from.
+     * @param filterSize The size of the receptive field.
+     * @param stride The stride used by the calling layer.
+     * @param patches A {@link DoubleMatrix} to reuse for the output. A new one is created if this is null or the wrong shape.
+     * @return A {@link DoubleMatrix} of size {filterSize*filterSize, outputRows*outputCols} containing the receptive fields.
+     */
+    public static DoubleMatrix im2col(DoubleMatrix input, int filterSize, int stride, DoubleMatrix patches) {
+        int outputRows = calculateConvolutionOutputSize(filterSize, stride, input.rows);
+        int outputCols = calculateConvolutionOutputSize(filterSize, stride, input.columns);
+        int patchSize = filterSize * filterSize;
+
+        if (patches == null || patches.rows != patchSize || patches.columns != outputRows * outputCols)
+            patches = new DoubleMatrix(patchSize, outputRows * outputCols);
+
+        im2col(input, filterSize, stride, patches.data, 0);
+
+        return patches;
+    }
+
+    /**
+     * Lays out every receptive field of a matrix into part of an array, see {@link #im2col(DoubleMatrix, int, int, DoubleMatrix)}.
+     * Used to lay out the receptive fields of several examples one after another, so that they can all be multiplied by the filters at once.
+     * @param input The {@link DoubleMatrix} to take the receptive fields from.
+     * @param filterSize The size of the receptive field.
+     * @param stride The stride used by the calling layer.
+     * @param patchData The array to write to, with room for filterSize*filterSize*outputRows*outputCols values after the offset.
+     * @param offset The index to write the first receptive field at.
+     */
+    public static void im2col(DoubleMatrix input, int filterSize, int stride, double[] patchData, int offset) {
+        int outputRows = calculateConvolutionOutputSize(filterSize, stride, input.rows);
+        int outputCols = calculateConvolutionOutputSize(filterSize, stride, input.columns);
+
+        double[] inputData = input.data;
+        int index = offset;
+
+        for (int ox=0; ox<outputCols; ox++) {
+            for (int oy=0; oy<outputRows; oy++) {
+                // Each column of the receptive field is contiguous in the input
+                for (int fx=0; fx<filterSize; fx++) {
+                    int inputIndex = (((ox*stride)+fx) * input.rows) + (oy*stride);
+                    System.arraycopy(inputData, inputIndex, patchData, index, filterSize);
+                    index += filterSize;
+                }
+            }
+        }
+    }
+
+    /**
+     * Calculates the valid cross-correlation of an input with a kernel whose elements are spaced a stride apart in the input.
+     * Correlating the input of a convolution with the error of its output gives the gradient of each filter cell.
+     * @param input A {@link DoubleMatrix} containing the input data.
+     * @param kernel A {@link DoubleMatrix} to correlate with the input, such as the error of a convolution output.
+     * @param size The size of the result in both dimensions, such as the filter size of a convolution.
+     * @param stride The spacing of the kernel elements in the input, such as the stride of a convolution.
+     * @param result A {size, size} {@link DoubleMatrix} to write to. A new one is created if this is null or the wrong shape.
+     * @return The {size, size} result of the correlation.
+     */
+    public static DoubleMatrix correlate(DoubleMatrix input, DoubleMatrix kernel, int size, int stride, DoubleMatrix result) {
+        if (result == null || result.rows != size || result.columns != size)
+            result = new DoubleMatrix(size, size);
+
+        double[] inputData = input.data;
+        double[] kernelData = kernel.data;
+        int inputRows = input.rows;
+        int kernelRows = kernel.rows;
+        int kernelCols = kernel.columns;
+
+        for (int fx=0; fx<size; fx++) {
+            for (int fy=0; fy<size; fy++) {
+                double sum = 0;
+
+                for (int kx=0; kx<kernelCols; kx++) {
+                    int inputIndex = (((kx*stride)+fx) * inputRows) + fy;
+                    int kernelIndex = kx * kernelRows;
+
+                    for (int ky=0; ky<kernelRows; ky++) {
+                        sum += kernelData[kernelIndex+ky] * inputData[inputIndex+(ky*stride)];
+                    }
+                }
+
+                result.data[(fx*size)+fy] = sum;
+            }
+        }
+
+        return result;
+    }
+
+    /**
+     * Calculates the transposed convolution of an error with a filter, which spreads the error of each output cell back over the input cells of its receptive field.
+     * This is the same as multiplying the filter (as a column) by the error (as a row) and scattering the columns back with col2im, the reverse of {@link #im2col(DoubleMatrix, int, int, DoubleMatrix)}, but done in one pass without the intermediate matrix.
+     * @param error A {@link DoubleMatrix} containing the error of each output cell.
+     * @param filter The filter used to produce the output.
+     * @param stride The stride used to produce the output.
+     * @param inputRows The number of rows in the input.
+     * @param inputCols The number of columns in the input.
+     * @param result A {inputRows, inputCols} {@link DoubleMatrix} to write to. A new one is created if this is null or the wrong shape.
+     * @return The {inputRows, inputCols} error of each input cell.
+     */
+    public static DoubleMatrix convolveTranspose(DoubleMatrix error, DoubleMatrix filter, int stride, int inputRows, int inputCols, DoubleMatrix result) {
+        if (result == null || result.rows != inputRows || result.columns != inputCols)
+            result = new DoubleMatrix(inputRows, inputCols);
+        else
+            Arrays.fill(result.data, 0.0);
+
+        double[] errorData = error.data;
+        double[] filterData = filter.data;
+        double[] resultData = result.data;
+        int filterSize = filter.rows;
+
+        for (int ox=0; ox<error.columns; ox++) {
+            for (int oy=0; oy<error.rows; oy++) {
+                double value = errorData[(ox*error.rows)+oy];
+                if (value == 0)
+                    continue;
+
+                int fieldStart = ((ox*stride) * inputRows) + (oy*stride);
+
+                for (int fx=0; fx<filterSize; fx++) {
+                    int inputIndex = fieldStart + (fx*inputRows);
+                    int filterIndex = fx * filterSize;
+
+                    for (int fy=0; fy<filterSize; fy++) {
+                        resultData[inputIndex+fy] += value * filterData[filterIndex+fy];
+                    }
+                }
+            }
+        }
+
+        return result;
+    }
+
     /**
      * Applies a specified {@link LayerActivation} type to a matrix ({@link DoubleMatrix}) in an element-wise manner.
      * @param activation The {@link LayerActivation} activation type.
@@ -293,6 +452,34 @@ public class NetworkHelper {
         }
     }
 
+    /**
+     * Gets a {@link LayerActivation} as a function, so that it is chosen once and then applied to many values without the switch in {@link #applyActivation(LayerActivation, double)}.
+     * @param activation The activation type.
+     * @return A function giving the same values as {@link #applyActivation(LayerActivation, double)}.
+     */
+    public static DoubleUnaryOperator getActivationFunction(LayerActivation activation) {
+        switch (activation) {
+            case linear: {
+                return value -> value;
+            }
+            case sigmoid: {
+                return NetworkHelper::sigmoid;
+            }
+            case tanh: {
+                return NetworkHelper::tanh;
+            }
+            case relu: {
+                return value -> relu(value, 0.0);
+            }
+            case lrelu: {
+                return value -> relu(value, 0.01);
+            }
+            default: {
+                throw new MissingActivationMethodException(activation.toString());
+            }
+        }
+    }
+
     /**
      * Applies the derivative of a specified {@link LayerActivation} type to a matrix ({@link DoubleMatrix}) in an element-wise manner.
      * @param activation The {@link LayerActivation} activation type.
@@ -417,68 +604,40 @@ public class NetworkHelper {
     }
 
     /**
-     * Encodes a cells location in a matrix as a number.
-     * <p>
-     * The number of rows and columns is required because the X and Y cell locations are zero-padded to be the length of the number of digits in the number of rows/cols.
-     * This allows for the splitting of the number in the correct location to separate the X and Y locations.
-     * The resulting number begins and ends with a 1 to preserve the zeros from the padding.
-     * @param y The Y location of the cell.
-     * @param x The X location of the cell.
-     * @param inputRows The number of rows in the matrix that the cell is in.
-     * @param inputCols The number of columns in the matrix that the cell is in.
-     * @return An encoded version of the cells location.
-     */
-    public static int poolEncodeLocation(int y, int x, int inputRows, int inputCols) {
-        StringBuilder sb = new StringBuilder();
-
-        // Leading and trailing 1's to keep any 0's
-        sb.append(1);
-
-        sb.append(String.format("%0" + String.valueOf(inputRows).length() + "d", (y)));
-        sb.append(String.format("%0" + String.valueOf(inputCols).length() + "d", (x)));
-
-        sb.append(1);
-
-        return Integer.valueOf(sb.toString());
-    }
-
-    /**
-     * Decodes an encoded cell location.
-     * @param encodedValue The encoded cell location generated from the {@link waddington.kai.main.knnf.NetworkHelper#poolEncodeLocation(int, int, int, int)} method.
-     * @param inputRows The number of rows in the matrix that the cell belongs to.
-     * @return The {Y, X} locations that the cell references.
+     * Joins the data from a List of Neurons into a single flat list.
+     * @param inputNeurons The List of Neurons that data should be joined from.
+     * @return A {@link DoubleMatrix} containing the data from all of the neurons.
      */
-    public static int[] poolDecodeLocation(int encodedValue, int inputRows) {
-        String encodedVal = Integer.toString(encodedValue);
-        int ySize = String.valueOf(inputRows).length();
-
-        // Trim the leading and trailing 1's
-        encodedVal = encodedVal.substring(1, encodedVal.length()-1);
-
-        String decodedY = encodedVal.substring(0, ySize);
-        String decodedX = encodedVal.substring(ySize, encodedVal.length());
-
-        return new int[] {Integer.valueOf(decodedY), Integer.valueOf(decodedX)};
+    public static DoubleMatrix joinInputVectors(List<Neuron> inputNeurons) {
+        return joinInputVectors(inputNeurons, null);
     }
 
     /**
-     * Joins the data from a List of Neurons into a single flat list.
+     * Joins the data from a List of Neurons into a single flat list, copying each neurons data once.
      * @param inputNeurons The List of Neurons that data should be joined from.
-     * @return A {@link DoubleMatrix} containing the data from all of the neurons.
+     * @param buffer A 1xN {@link DoubleMatrix} to write to, N being the total number of values. A new one is created if this is null.
+     * @return A 1xN {@link DoubleMatrix} containing the data from all of the neurons.
+     * @throws InvalidInputSizeException If the buffer is not the length of the data, i.e. the layer was given data of a different size to the data it was created for.
      */
-    public static DoubleMatrix joinInputVectors(List<Neuron> inputNeurons) {
-        // Get the first neurons' data
-        DoubleMatrix output = inputNeurons.get(0).getOutputData();
+    public static DoubleMatrix joinInputVectors(List<Neuron> inputNeurons, DoubleMatrix buffer) {
+        int length = 0;
+        for (Neuron neuron: inputNeurons) {
+            length += neuron.getOutputData().length;
+        }
 
-        // Start at 1 because we already have the first neurons data
-        for (int i=1; i<inputNeurons.size(); i++) {
-            Neuron neuron = inputNeurons.get(i);
-            DoubleMatrix data = neuron.getOutputData();
+        if (buffer == null)
+            buffer = new DoubleMatrix(1, length);
+        else if (buffer.length != length)
+            throw new InvalidInputSizeException("\r\nExpected " + buffer.length + " input values but was given " + length + ". ");
 
-            output = DoubleMatrix.concatHorizontally(output, data);
+        int offset = 0;
+        for (Neuron neuron: inputNeurons) {
+            DoubleMatrix data = neuron.getOutputData();
+            System.arraycopy(data.data, 0, buffer.data, offset, data.length);
+            offset += data.length;
         }
 
-        return output;
+        return buffer;
     }
 
     /**
@@ -510,18 +669,19 @@ public class NetworkHelper {
      * @param neuron The neuron that is calling this method.
      * @param lowerNeurons A list of neurons in the layer below.
      * @param upperNeurons A list of neurons in the layer above.
-     * @return A {@link DoubleMatrix} containing the backpropagated error from the layer above.
+     * @param result A {@link DoubleMatrix} the shape of the neurons output to write the error from a flatten or convolution layer to, kept by the neuron between examples. A new one is created if this is null or the wrong shape.
+     * @return A {@link DoubleMatrix} containing the backpropagated error from the layer above. From a pooling layer this is the error of the pooling neuron itself.
      */
-    public static DoubleMatrix getUpperError(Neuron neuron, List<Neuron> lowerNeurons, List<Neuron> upperNeurons) {
+    public static DoubleMatrix getUpperError(Neuron neuron, List<Neuron> lowerNeurons, List<Neuron> upperNeurons, DoubleMatrix result) {
         LayerType upperType = upperNeurons.get(0).getType();
 
         // Get error from upper layers
         switch (upperType) {
             case flatten: {
-                return NetworkHelper.getErrorFromFlatten(upperNeurons, neuron.getId(), neuron.getOutputData().rows, neuron.getOutputData().columns);
+                return NetworkHelper.getErrorFromFlatten(upperNeurons, neuron.getId(), neuron.getOutputData().rows, neuron.getOutputData().columns, result);
             }
             case conv: {
-                return NetworkHelper.getErrorFromConv(neuron, lowerNeurons, upperNeurons);
+                return NetworkHelper.getErrorFromConv(neuron, lowerNeurons, upperNeurons, result);
             }
             case minPool: {
                 return NetworkHelper.getErrorFromPool(upperNeurons, neuron.getId());
@@ -541,22 +701,101 @@ public class NetworkHelper {
      * @param id The ID of the current neuron.
      * @param rows The rows in the input data. Used to shape the output of this function.
      * @param cols The columns in the input data. Used to shape the output of this function.
-     * @return A {@link DoubleMatrix} containing the backpropagated error from a flattening layer.
+     * @return A new {@link DoubleMatrix} containing the backpropagated error from a flattening layer.
      */
     public static DoubleMatrix getErrorFromFlatten(List<Neuron> upperNeurons, int id, int rows, int cols) {
-        // Create the matrix
-        DoubleMatrix errors = new DoubleMatrix(rows, cols);
-
-        // Translate neuron ID to range of neurons from upper layer
-        // and add the errors to a matrix
-        int startingIndex = id * errors.length;
-        for (int i=0; i<errors.length; i++) {
-            int index = startingIndex + i;
-            double data = upperNeurons.get(index).getError().get(0,0);
-            errors.put(i, data);
+        return getErrorFromFlatten(upperNeurons, id, rows, cols, null);
+    }
+
+    /**
+     * Gets the backpropagated error from a flatten layer, copying it into an existing matrix.
+     * @param upperNeurons The list of neurons in the layer above.
+     * @param id The ID of the current neuron.
+     * @param rows The rows in the input data. Used to shape the output of this function.
+     * @param cols The columns in the input data. Used to shape the output of this function.
+     * @param result A {rows, cols} {@link DoubleMatrix} to write to. A new one is created if this is null or the wrong shape.
+     * @return The {rows, cols} backpropagated error from a flattening layer.
+     */
+    public static DoubleMatrix getErrorFromFlatten(List<Neuron> upperNeurons, int id, int rows, int cols, DoubleMatrix result) {
+        if (result == null || result.rows != rows || result.columns != cols)
+            result = new DoubleMatrix(rows, cols);
+
+        // The flattening neuron with the same ID holds the flat error of this channel in column-major order
+        DoubleMatrix flatError = upperNeurons.get(id).getError();
+        System.arraycopy(flatError.data, 0, result.data, 0, result.length);
+
+        return result;
+    }
+
+    /**
+     * Back-propagates the errors of a fully-connected or output layer through its weights, giving the error of every value input to that layer.
+     * This is the matrix-vector product W^T * errors, accumulated one scaled row of W at a time with BLAS so the weights of each neuron are read once.
+     * When the layer above stores its weights as one matrix, see {@link waddington.kai.main.knnf.layers.DenseWeights}, this is a single transposed GEMV instead.
+     * @param upperNeurons The list of {@link NeuronFullyConnected} or {@link NeuronOutput} neurons in the layer above.
+     * @param result A 1xN {@link DoubleMatrix} to write to, N being the number of weights per neuron. A new one is created if this is null or the wrong length.
+     * @return The 1xN error of each input value.
+     */
+    public static DoubleMatrix getWeightedUpperError(List<Neuron> upperNeurons, DoubleMatrix result) {
+        return getWeightedUpperError(upperNeurons, result, null);
+    }
+
+    /**
+     * See {@link #getWeightedUpperError(List, DoubleMatrix)}, gathering the errors of the layer above into an existing array when it stores its weights as one matrix.
+     * @param upperNeurons The list of {@link NeuronFullyConnected} or {@link NeuronOutput} neurons in the layer above.
+     * @param result A 1xN {@link DoubleMatrix} to write to, N being the number of weights per neuron. A new one is created if this is null or the wrong length.
+     * @param errors An array of at least one value per neuron in the layer above, kept by the caller between examples. A new one is used if this is null or too short.
+     * @return The 1xN error of each input value.
+     */
+    public static DoubleMatrix getWeightedUpperError(List<Neuron> upperNeurons, DoubleMatrix result, double[] errors) {
+        DoubleMatrix weightMatrix = getWeightMatrix(upperNeurons.get(0));
+        int length = weightMatrix != null ? weightMatrix.columns : getWeights(upperNeurons.get(0)).length;
+
+        if (result == null || result.length != length)
+            result = new DoubleMatrix(1, length);
+        else
+            Arrays.fill(result.data, 0.0);
+
+        if (weightMatrix != null) {
+            if (errors == null || errors.length < upperNeurons.size())
+                errors = new double[upperNeurons.size()];
+
+            for (int i=0; i<upperNeurons.size(); i++) {
+                errors[i] = upperNeurons.get(i).getError().get(0);
+            }
+
+            NativeBlas.dgemv('T', weightMatrix.rows, weightMatrix.columns, 1.0, weightMatrix.data, 0, weightMatrix.rows, errors, 0, 1, 0.0, result.data, 0, 1);
+            return result;
+        }
+
+        for (Neuron upper: upperNeurons) {
+            SimpleBlas.axpy(upper.getError().get(0), getWeights(upper), result);
         }
 
-        return errors;
+        return result;
+    }
+
+    /**
+     * Gets the weights of a neuron that has them.
+     * @param neuron A {@link NeuronFullyConnected} or {@link NeuronOutput}.
+     * @return The weights of the neuron.
+     */
+    private static DoubleMatrix getWeights(Neuron neuron) {
+        if (neuron.getType() == LayerType.output)
+            return ((NeuronOutput) neuron).getWeights();
+
+        return ((NeuronFullyConnected) neuron).getWeights();
+    }
+
+    /**
+     * Gets the layer weight matrix that a neuron is bound to.
+     * @param neuron A {@link NeuronFullyConnected} or {@link NeuronOutput}.
+     * @return The {neurons, inputs} weight matrix, or null if the neuron holds its own weights.
+     */
+    private static DoubleMatrix getWeightMatrix(Neuron neuron) {
+        if (neuron.getType() == LayerType.output)
+            return ((NeuronOutput) neuron).getWeightMatrix();
+
+        return ((NeuronFullyConnected) neuron).getWeightMatrix();
     }
 
     /**
@@ -564,25 +803,42 @@ public class NetworkHelper {
      * @param neuron The neuron calling this method.
      * @param lowerNeurons A list containing references to the neurons in the layer below.
      * @param upperNeurons A list containing references to the neurons in the layer above.
-     * @return A {@link DoubleMatrix} containing the backpropagated error from a convolution layer.
+     * @return A new {@link DoubleMatrix} containing the backpropagated error from a convolution layer.
      */
     public static DoubleMatrix getErrorFromConv(Neuron neuron, List<Neuron> lowerNeurons, List<Neuron> upperNeurons) {
-        // Sum all upper errors
-        DoubleMatrix sumUpperError = upperNeurons.get(0).getError();
+        return getErrorFromConv(neuron, lowerNeurons, upperNeurons, null);
+    }
+
+    /**
+     * Gets the backpropagated error from a convolution layer, calculating it in an existing matrix.
+     * @param neuron The neuron calling this method.
+     * @param lowerNeurons A list containing references to the neurons in the layer below.
+     * @param upperNeurons A list containing references to the neurons in the layer above.
+     * @param result A {@link DoubleMatrix} the shape of the neurons output to write to. A new one is created if this is null or the wrong shape.
+     * @return A {@link DoubleMatrix} containing the backpropagated error from a convolution layer.
+     */
+    public static DoubleMatrix getErrorFromConv(Neuron neuron, List<Neuron> lowerNeurons, List<Neuron> upperNeurons, DoubleMatrix result) {
+        DoubleMatrix firstError = upperNeurons.get(0).getError();
+        if (result == null || result.rows != firstError.rows || result.columns != firstError.columns)
+            result = new DoubleMatrix(firstError.rows, firstError.columns);
+
+        // Sum all upper errors, each is the transposed convolution of that neurons error
+        System.arraycopy(firstError.data, 0, result.data, 0, result.length);
         for (int i=1; i<upperNeurons.size(); i++) {
-            sumUpperError.addi(upperNeurons.get(i).getError());
+            result.addi(upperNeurons.get(i).getError());
         }
 
         // Each conv. neuron holds a copy of merged input data
-        DoubleMatrix sumOfInputLayer = upperNeurons.get(0).getInputData();
-
-        // Calculate percentage that this neuron is of all input neurons
-        DoubleMatrix inputEffect = neuron.getOutputData().div(sumOfInputLayer);
+        double[] sumOfInputLayer = upperNeurons.get(0).getInputData().data;
+        double[] outputData = neuron.getOutputData().data;
 
-        // Get proportion of upper error
-        DoubleMatrix proportionalisedUpperError = sumUpperError.mul(inputEffect);
+        // Get proportion of upper error, by the percentage that this neuron is of all input neurons
+        double[] resultData = result.data;
+        for (int i=0; i<resultData.length; i++) {
+            resultData[i] *= outputData[i] / sumOfInputLayer[i];
+        }
 
-        return proportionalisedUpperError;
+        return result;
     }
 
     /**
@@ -1,21 +1,31 @@
 package waddington.kai.main.knnf;
 
 import org.jblas.DoubleMatrix;
+import waddington.kai.main.knnf.data.DataLoader;
+import waddington.kai.main.knnf.data.DatasetShard;
+import waddington.kai.main.knnf.data.ImageCache;
 import waddington.kai.main.knnf.exceptions.InvalidLayerOrderException;
 import waddington.kai.main.knnf.exceptions.InvalidNetworkException;
 import waddington.kai.main.knnf.exceptions.InvalidOutputSizeException;
 import waddington.kai.main.knnf.exceptions.MissingTerminationConditionException;
+import waddington.kai.main.knnf.inference.InferencePlan;
+import waddington.kai.main.knnf.inference.QuantisationReport;
+import waddington.kai.main.knnf.layers.ExecutionPolicy;
 import waddington.kai.main.knnf.layers.Layer;
+import waddington.kai.main.knnf.layers.LayerConvolution;
 import waddington.kai.main.knnf.layers.LayerFactory;
+import waddington.kai.main.knnf.layers.LayerFullyConnected;
 import waddington.kai.main.knnf.layers.LayerInput;
 import waddington.kai.main.knnf.layers.LayerOutput;
-import waddington.kai.main.knnf.layers.neurons.Neuron;
+import waddington.kai.main.knnf.optimisers.LearningRateSchedule;
+import waddington.kai.main.knnf.optimisers.Optimiser;
+import waddington.kai.main.knnf.serialisation.CheckpointWriter;
 import waddington.kai.main.knnf.serialisation.NetworkSaver;
+import waddington.kai.main.knnf.serialisation.TrainingCheckpoint;
 
-import javax.imageio.ImageIO;
-import java.awt.image.BufferedImage;
 import java.io.*;
 import java.util.*;
+import java.util.concurrent.atomic.AtomicLong;
 
 /**
  * The facade to the KNNF library/package.
@@ -23,37 +33,71 @@ import java.util.*;
  * This class also orchestrates the training/testing loops.
  */
 public class NetworkManager {
-    // Hyper-parameters
-	/**
-	 * The learning rate of the network model.
-	 */
-    public static float LearningRate;
-	/**
-	 * The maximum distance from zero creating the range that weights can be initialised within.
-	 */
-	public static float MaximumInitialWeights;
-	/**
-	 * The momentum of the network model.
-	 */
-    public static float Momentum;
-	/**
-	 * Package-wide Random instance.
-	 */
-	public static Random random;
+    /**
+     * The hyper-parameters, random number generator and layers of this network, which are passed to its layers and neurons.
+     */
+    private final NetworkContext context;
+    /**
+     * The last reference given to a network, so that networks created in the same millisecond don't share log and model files.
+     */
+    private static final AtomicLong lastNetworkReference = new AtomicLong();
+
+    /**
+     * The number of training examples whose deltas are averaged into each weight update, see {@link #setBatchSize(int)}.
+     */
+    private int batchSize;
+    /**
+     * The number of workers that share the examples of each batch, see {@link #setDataParallelWorkers(int)}.
+     */
+    private int dataParallelWorkers;
+    /**
+     * True to run the forward pass for every example of a batch at once, see {@link #setStackedBatches(boolean)}.
+     */
+    private boolean stackedBatches;
+    /**
+     * The number of threads that make predictions, see {@link #setPredictionThreads(int)}.
+     */
+    private int predictionThreads;
+    /**
+     * The number of threads that decode images ahead of the network, see {@link #setDataLoaderWorkers(int)}.
+     */
+    private int dataLoaderWorkers;
+    /**
+     * The number of upcoming examples decoded ahead of the network, see {@link #setPrefetchDepth(int)}.
+     */
+    private int prefetchDepth;
+    /**
+     * The loader used by the last training, testing or prediction run, kept for its metrics.
+     */
+    private DataLoader dataLoader;
+    /**
+     * Decoded images kept between epochs and runs, see {@link #setImageCacheSize(long)}. Null when disabled.
+     */
+    private ImageCache imageCache;
 
     private List<String[]> trainingCsvData;
     private int trainingExampleCount;
+    /**
+     * The packed training data, see {@link #setTrainingShard(String)}. Null when the images are read from a directory.
+     */
+    private DatasetShard trainingShard;
 
     private List<String[]> testingCsvData;
     private int testingExampleCount;
+    private DatasetShard testingShard;
 
     private List<String[]> predictionCsvData;
     private int predictionExampleCount;
+    private DatasetShard predictionShard;
 
     /**
      * Stores all of the layers of the network.
      */
-    private static List<Layer> networkLayers;
+    private List<Layer> networkLayers;
+    /**
+     * How each layer runs the work for its neurons, see {@link #setParallelism(int)}.
+     */
+    private ExecutionPolicy executionPolicy;
 
     // Termination conditions
     /**
@@ -72,6 +116,30 @@ public class NetworkManager {
      */
     private long terminationDuration;
 
+    // Checkpoints
+    /**
+     * The directory that checkpoints are written to during training, null to not write checkpoints. See {@link #setCheckpointing(String, int, long)}.
+     */
+    private String checkpointDir;
+    /**
+     * Write a checkpoint after this many training examples. -1 to not use this condition.
+     */
+    private int checkpointExamples;
+    /**
+     * Write a checkpoint after this duration (ms) of training. -1 to not use this condition.
+     */
+    private long checkpointInterval;
+    /**
+     * Writes the checkpoints of the current training run in the background.
+     */
+    private CheckpointWriter checkpointWriter;
+    private int examplesSinceCheckpoint;
+    private long lastCheckpointTime;
+    /**
+     * The checkpoint restored by {@link #resumeFromCheckpoint(String)}, which the next training run continues from.
+     */
+    private TrainingCheckpoint resumeCheckpoint;
+
     /**
      * A flag for whether the current network is in a valid state for use.
      */
@@ -84,13 +152,23 @@ public class NetworkManager {
      * Instantiates many settings required for the network.
      */
     public NetworkManager() {
-        random = new Random(13081996); // Ensures consistency when recreating networks
-        networkLayers = new ArrayList<>();
+        context = new NetworkContext(); // Seeds the random number generator to ensure consistency when recreating networks
+        networkLayers = context.getLayers();
+        executionPolicy = ExecutionPolicy.sequential();
+        batchSize = 1;
+        dataParallelWorkers = 1;
+        predictionThreads = Runtime.getRuntime().availableProcessors();
+        dataLoaderWorkers = 1;
+        prefetchDepth = 4;
+        imageCache = new ImageCache(256L * 1024 * 1024);
 
         terminationEpoch = -1;
         terminationError = -1;
         terminationDuration = -1;
 
+        checkpointExamples = -1;
+        checkpointInterval = -1;
+
         networkValid = false;
 
         trainingCsvData = new ArrayList<>();
@@ -98,7 +176,8 @@ public class NetworkManager {
         predictionCsvData = new ArrayList<>();
 
         // Used as a name for log files etc
-        networkReference = String.valueOf(System.currentTimeMillis());
+        long now = System.currentTimeMillis();
+        networkReference = String.valueOf(lastNetworkReference.updateAndGet(last -> Math.max(now, last + 1)));
     }
 
     /**
@@ -106,7 +185,11 @@ public class NetworkManager {
      * @param learningRate The value for the learning rate.
      */
     public void setLearningRate(float learningRate) {
-        NetworkManager.LearningRate = learningRate;
+        context.setLearningRate(learningRate);
+    }
+
+    public float getLearningRate() {
+        return context.getLearningRate();
     }
 
     /**
@@ -115,7 +198,11 @@ public class NetworkManager {
      * @param maxInitialWeights The absolute value for the range of weights.
      */
     public void setMaximumInitialWeights(float maxInitialWeights) {
-        NetworkManager.MaximumInitialWeights = maxInitialWeights;
+        context.setMaximumInitialWeights(maxInitialWeights);
+    }
+
+    public float getMaximumInitialWeights() {
+        return context.getMaximumInitialWeights();
     }
 
     /**
@@ -123,7 +210,187 @@ public class NetworkManager {
      * @param momentum The value for the momentum.
      */
     public void setMomentum(float momentum) {
-        NetworkManager.Momentum = momentum;
+        context.setMomentum(momentum);
+    }
+
+    public float getMomentum() {
+        return context.getMomentum();
+    }
+
+    /**
+     * Sets the optimiser that turns the gradients of each batch into updates of the weights, e.g. {@link waddington.kai.main.knnf.optimisers.AdamOptimiser}.
+     * @param optimiser The {@link Optimiser}. Stochastic gradient descent with the momentum of the network by default.
+     */
+    public void setOptimiser(Optimiser optimiser) {
+        context.setOptimiser(optimiser);
+    }
+
+    public Optimiser getOptimiser() {
+        return context.getOptimiser();
+    }
+
+    /**
+     * Sets the schedule that changes the learning rate as the network trains, e.g. {@link LearningRateSchedule#cosine(long, double)}. The steps of the schedule are batches.
+     * @param learningRateSchedule The {@link LearningRateSchedule}. A constant learning rate by default.
+     */
+    public void setLearningRateSchedule(LearningRateSchedule learningRateSchedule) {
+        context.setLearningRateSchedule(learningRateSchedule);
+    }
+
+    public LearningRateSchedule getLearningRateSchedule() {
+        return context.getLearningRateSchedule();
+    }
+
+    /**
+     * Gets the state that belongs to this network, which its layers and neurons are created with.
+     * @return The {@link NetworkContext} of this network.
+     */
+    public NetworkContext getContext() {
+        return context;
+    }
+
+    /**
+     * Sets the number of training examples in each mini-batch.
+     * The deltas of every example in a batch are calculated with the same weights, then averaged and applied once at the end of the batch.
+     * The MSE is logged and the termination conditions checked once per batch.
+     * @param batchSize The number of examples per batch. 1 updates the weights after every example.
+     */
+    public void setBatchSize(int batchSize) {
+        this.batchSize = Math.max(1, batchSize);
+    }
+
+    public int getBatchSize() {
+        return batchSize;
+    }
+
+    /**
+     * Sets the number of worker threads that train on each mini-batch, see {@link DataParallelTrainer}.
+     * Each worker trains a replica of the network on its share of the batch, and the deltas of the replicas are added together before they are applied.
+     * For a given seed and number of workers the training is deterministic.
+     * @param workers The number of workers. 1 trains on every example of the batch in turn on the calling thread.
+     */
+    public void setDataParallelWorkers(int workers) {
+        this.dataParallelWorkers = Math.max(1, workers);
+    }
+
+    public int getDataParallelWorkers() {
+        return dataParallelWorkers;
+    }
+
+    /**
+     * Sets whether the forward pass runs for every example of a batch at once, see {@link DataParallelTrainer}.
+     * The dense fully-connected and output layers (see {@link #setDenseWeights(boolean)}) and the im2col convolution layers then multiply their weights with the whole batch in one matrix multiply.
+     * Each example keeps its own activations until the backward pass, so this needs memory for the activations of a whole batch. The result is the same as training on each example in turn.
+     * @param stacked True to stack the examples of each batch. Off by default.
+     */
+    public void setStackedBatches(boolean stacked) {
+        this.stackedBatches = stacked;
+    }
+
+    public boolean isStackedBatches() {
+        return stackedBatches;
+    }
+
+    /**
+     * Sets the number of threads that make predictions in {@link #startPredicting(String)}, see {@link PredictionEngine}.
+     * Each thread has a replica of the network that shares its weights, so the predictions are the same whatever the number of threads.
+     * @param threads The number of threads. The number of cores by default.
+     */
+    public void setPredictionThreads(int threads) {
+        this.predictionThreads = Math.max(1, threads);
+    }
+
+    public int getPredictionThreads() {
+        return predictionThreads;
+    }
+
+    /**
+     * Sets the number of threads that decode the images of the data-set in the background while the network works, see {@link DataLoader}.
+     * @param workers The number of threads. 0 decodes each image on the calling thread when it is needed.
+     */
+    public void setDataLoaderWorkers(int workers) {
+        this.dataLoaderWorkers = Math.max(0, workers);
+    }
+
+    public int getDataLoaderWorkers() {
+        return dataLoaderWorkers;
+    }
+
+    /**
+     * Sets the maximum number of upcoming examples that are decoded ahead of the network. Each one holds a decoded image in memory.
+     * @param prefetchDepth The number of examples, at least 1.
+     */
+    public void setPrefetchDepth(int prefetchDepth) {
+        this.prefetchDepth = Math.max(1, prefetchDepth);
+    }
+
+    public int getPrefetchDepth() {
+        return prefetchDepth;
+    }
+
+    /**
+     * Sets the memory budget of the cache that keeps decoded images between epochs, replacing the current cache. See {@link ImageCache}.
+     * Each cached image uses one byte per pixel. The least recently used images are evicted when the budget is reached.
+     * @param bytes The memory budget in bytes. 0 disables the cache so every image is decoded each time it is used.
+     */
+    public void setImageCacheSize(long bytes) {
+        imageCache = bytes > 0 ? new ImageCache(bytes) : null;
+    }
+
+    /**
+     * Gets the cache of decoded images, which holds the hit, miss and eviction counters.
+     * @return The {@link ImageCache}, or null if disabled.
+     */
+    public ImageCache getImageCache() {
+        return imageCache;
+    }
+
+    /**
+     * Gets the data loader of the last training, testing or prediction run, which holds the metrics of that run.
+     * @return The {@link DataLoader}, or null if nothing has been run.
+     */
+    public DataLoader getDataLoader() {
+        return dataLoader;
+    }
+
+    /**
+     * Sets the number of threads that each layer uses to run its neurons. Applies to every layer, including those added later.
+     * @param threads The number of threads. 1 runs the neurons one after another on the calling thread.
+     */
+    public void setParallelism(int threads) {
+        executionPolicy.shutdown();
+        executionPolicy = ExecutionPolicy.parallel(threads);
+
+        for (Layer layer: networkLayers)
+            layer.setExecutionPolicy(executionPolicy);
+    }
+
+    /**
+     * Sets the filter size above which the convolution layers of the network switch to {@link ConvolutionMethod#fft}, whichever method they were added with.
+     * Applies to every convolution layer, including those added later.
+     * @param size The filter size threshold, {@link NetworkContext#DEFAULT_FFT_FILTER_SIZE_THRESHOLD} by default. 0 disables the switch.
+     */
+    public void setFFTFilterSizeThreshold(int size) {
+        context.setFFTFilterSizeThreshold(size);
+
+        for (Layer layer: networkLayers) {
+            if (layer.getLayerType() == LayerType.conv)
+                ((LayerConvolution) layer).setFFTFilterSizeThreshold(size);
+        }
+    }
+
+    /**
+     * Sets whether the fully-connected and output layers of the network store their weights as one matrix, see {@link LayerFullyConnected#setDenseWeights(boolean)}.
+     * Applies to the fully-connected and output layers that have already been added.
+     * @param dense True to use one weight matrix per layer.
+     */
+    public void setDenseWeights(boolean dense) {
+        for (Layer layer: networkLayers) {
+            if (layer.getLayerType() == LayerType.fc)
+                ((LayerFullyConnected) layer).setDenseWeights(dense);
+            else if (layer.getLayerType() == LayerType.output)
+                ((LayerOutput) layer).setDenseWeights(dense);
+        }
     }
 
     // Methods to add layers
@@ -137,7 +404,7 @@ public class NetworkManager {
      * @param imgChannels The number of channels in the input images.
      */
     public void addInput(int imgWidth, int imgHeight, int imgChannels) {
-        addLayer(LayerFactory.getInputLayer(imgWidth, imgHeight, imgChannels));
+        addLayer(LayerFactory.getInputLayer(context, imgWidth, imgHeight, imgChannels));
     }
 
     /**
@@ -149,7 +416,20 @@ public class NetworkManager {
      * @param activation The {@link LayerActivation} that the layer should use.
      */
     public void addConv(int numFilters, int filterSize, int stride, String activation) {
-        addLayer(LayerFactory.getConvLayer(numFilters, filterSize, stride, activation, getNumberOfNeuronsToLayer(networkLayers.size()-1)));
+        addLayer(LayerFactory.getConvLayer(context, numFilters, filterSize, stride, activation, getNumberOfNeuronsToLayer(networkLayers.size()-1)));
+    }
+
+    /**
+     * Public method to add a convolution layer that uses a specific {@link ConvolutionMethod} to a network.
+     * Uses {@link LayerFactory} to create the layer.
+     * @param numFilters The number of filters the convolution layer should contain.
+     * @param filterSize The size of the receptive field for all filters in the layer. This sets both the X and Y dimensions.
+     * @param stride The stride that the convolution layer should use.
+     * @param activation The {@link LayerActivation} that the layer should use.
+     * @param method The {@link ConvolutionMethod} that the layer should use.
+     */
+    public void addConv(int numFilters, int filterSize, int stride, String activation, String method) {
+        addLayer(LayerFactory.getConvLayer(context, numFilters, filterSize, stride, activation, method, getNumberOfNeuronsToLayer(networkLayers.size()-1)));
     }
 
     /**
@@ -160,7 +440,7 @@ public class NetworkManager {
      * @param poolType The type of pool operation. {@link LayerType#minPool} or {@link LayerType#maxPool}.
      */
     public void addPool(int poolSize, int stride, String poolType) {
-        addLayer(LayerFactory.getPoolLayer(poolSize, stride, poolType, getNumberOfNeuronsToLayer(networkLayers.size()-1)));
+        addLayer(LayerFactory.getPoolLayer(context, poolSize, stride, poolType, getNumberOfNeuronsToLayer(networkLayers.size()-1)));
 
     }
 
@@ -170,7 +450,7 @@ public class NetworkManager {
      * Uses {@link LayerFactory} to create the layer.
      */
     public void addFlatten() {
-        addLayer(LayerFactory.getFlattenLayer(getNumberOfNeuronsToLayer(networkLayers.size()-1)));
+        addLayer(LayerFactory.getFlattenLayer(context, getNumberOfNeuronsToLayer(networkLayers.size()-1)));
     }
 
     /**
@@ -180,7 +460,7 @@ public class NetworkManager {
      * @param activation The activation type - {@link LayerActivation} - that this layer should use.
      */
     public void addFC(int numberOfNeurons, String activation) {
-        addLayer(LayerFactory.getFCLayer(numberOfNeurons, activation, getNumberOfNeuronsToLayer(networkLayers.size()-1)));
+        addLayer(LayerFactory.getFCLayer(context, numberOfNeurons, activation, getNumberOfValuesToLayer(networkLayers.size()-1)));
     }
 
     /**
@@ -189,7 +469,7 @@ public class NetworkManager {
      * @param numberOfOutputs The number of output classes for the data-set. This defines the number of neurons in the layer.
      */
     public void addOutput(int numberOfOutputs) {
-        addLayer(LayerFactory.getOutputLayer(numberOfOutputs, getNumberOfNeuronsToLayer(networkLayers.size()-1)));
+        addLayer(LayerFactory.getOutputLayer(context, numberOfOutputs, getNumberOfValuesToLayer(networkLayers.size()-1)));
     }
 
     /**
@@ -198,6 +478,7 @@ public class NetworkManager {
      * @param layer A {@link Layer} instance to add to the network.
      */
     private void addLayer(Layer layer) {
+        layer.setExecutionPolicy(executionPolicy);
         networkLayers.add(layer);
     }
 
@@ -206,19 +487,11 @@ public class NetworkManager {
      * @param layers A list containing instances of a {@link Layer} class.
      */
     public void setLayers(List<Layer> layers) {
+        context.setLayers(layers);
         networkLayers = layers;
-    }
 
-    /**
-     * Gets the shape of the input to a specified layer.
-     * @param layerId The ID of the layer that you wish to find the input shape for.
-     * @return An int[] containing the {Z,Y,X} dimensions of the input data to the specified layer.
-     */
-    public static int[] getLayerInputSize(int layerId) {
-        if (layerId > networkLayers.size())
-            return new int[3];
-            
-        return networkLayers.get(layerId-1).getOutputSize();
+        for (Layer layer: networkLayers)
+            layer.setExecutionPolicy(executionPolicy);
     }
 
     /**
@@ -229,12 +502,36 @@ public class NetworkManager {
         return networkLayers;
     }
 
+    /**
+     * Creates an inference-only copy of the network, which shares the weights of the network but holds no training state and releases the activations of each layer once they have been used.
+     * Once this manager is no longer referenced only the weights remain in memory, see {@link InferenceNetwork}.
+     * @return The {@link InferenceNetwork}.
+     */
+    public InferenceNetwork createInferenceNetwork() {
+        if (!networkValid)
+            throw new InvalidNetworkException("\r\nEnsure networkValidityCheck() is called before creating an inference network. ");
+
+        return new InferenceNetwork(networkLayers);
+    }
+
+    /**
+     * Compiles the network into an {@link InferencePlan} of fused kernels with the current weights folded in, for making predictions.
+     * The plan is a copy, so it has to be compiled again after training the network further.
+     * @return The {@link InferencePlan}.
+     */
+    public InferencePlan compileForInference() {
+        if (!networkValid)
+            throw new InvalidNetworkException("\r\nEnsure networkValidityCheck() is called before compiling the network. ");
+
+        return InferencePlan.compile(networkLayers);
+    }
+
     /**
      * Gets the number of neurons in the layer before the specified layer.
      * @param layerId The layer that you wish to find the number of neurons leading into.
      * @return The number of neurons in the layer before the specified layer.
      */
-    public static int getNumberOfNeuronsToLayer(int layerId) {
+    public int getNumberOfNeuronsToLayer(int layerId) {
         int number = 1;
         
         if (layerId > 0)
@@ -243,6 +540,22 @@ public class NetworkManager {
         return number;
     }
 
+    /**
+     * Gets the number of values output by the layer before the specified layer, which is the number of weights each neuron of a fully-connected layer needs.
+     * @param layerId The layer that you wish to find the number of values leading into.
+     * @return The number of values output by the layer before the specified layer.
+     */
+    public int getNumberOfValuesToLayer(int layerId) {
+        int number = 1;
+
+        if (layerId > 0) {
+            for (int size: networkLayers.get(layerId).getOutputSize())
+                number *= size;
+        }
+
+        return number;
+    }
+
     /**
      * Checks that the network is valid.
      * This method must be called before training/testing/predicting. It checks that the layers are in a valid order and that the data sizes are also valid, however, it shouldn't be possible to reach this stage if the data sizes are not valid.
@@ -252,6 +565,7 @@ public class NetworkManager {
 
         checkLayerOrders();
         checkDataSizes();
+        allocateInputBuffers();
 
         networkValid = true;
     }
@@ -307,6 +621,18 @@ public class NetworkManager {
         }
     }
 
+    /**
+     * This is a part of the network validity check. Now that the data sizes are known to be valid, this creates the buffers that the fully-connected and output layers join their input values into.
+     */
+    private void allocateInputBuffers() {
+        for (Layer layer: networkLayers) {
+            if (layer.getLayerType() == LayerType.fc)
+                ((LayerFullyConnected) layer).allocateInputBuffer();
+            else if (layer.getLayerType() == LayerType.output)
+                ((LayerOutput) layer).allocateInputBuffer();
+        }
+    }
+
     /**
      * Sets the training termination conditions. 1 of these must be set before training.
      * @param epoch The number of epochs you wish to train for. -1 to not use this parameter.
@@ -319,6 +645,41 @@ public class NetworkManager {
         terminationDuration = duration;
     }
 
+    /**
+     * Sets how often a checkpoint is written during training, see {@link TrainingCheckpoint}. A checkpoint is written after a batch once either condition is met,
+     * on a background thread so that training carries on. Each checkpoint replaces the last, in the file "Checkpoint-[network reference].ckpt".
+     * @param checkpointDir The directory to write checkpoints to, which must exist. Null to not write checkpoints.
+     * @param examples The number of training examples between checkpoints. -1 to not use this parameter.
+     * @param duration The duration (ms) of training between checkpoints. -1 to not use this parameter.
+     */
+    public void setCheckpointing(String checkpointDir, int examples, long duration) {
+        this.checkpointDir = checkpointDir;
+        checkpointExamples = examples;
+        checkpointInterval = duration;
+    }
+
+    /**
+     * Restores the network from a checkpoint so that the next call to {@link #startTraining(String)} carries on from where the checkpoint was written,
+     * with the same weights, momentum, random number generator, position in the training data and training time. The network must have the same layers.
+     * @param checkpointPath The path of a checkpoint file, or of a directory to resume from the latest checkpoint in.
+     */
+    public void resumeFromCheckpoint(String checkpointPath) {
+        if (!networkValid)
+            throw new InvalidNetworkException("\r\nEnsure networkValidityCheck() is called before resuming from a checkpoint. ");
+
+        TrainingCheckpoint checkpoint = TrainingCheckpoint.read(checkpointPath);
+        checkpoint.restore(this);
+        resumeCheckpoint = checkpoint;
+    }
+
+    /**
+     * Gets the checkpoint writer of the last training run, which holds the number of checkpoints written.
+     * @return The {@link CheckpointWriter}, or null if checkpoints were not written.
+     */
+    public CheckpointWriter getCheckpointWriter() {
+        return checkpointWriter;
+    }
+
     /**
      * Sets the training data.
      * The .csv file must be named "trainingImages.csv" although this will be changeable in the future.
@@ -327,6 +688,10 @@ public class NetworkManager {
     public void setTrainingData(String trainingDir) {
         String filePathName = trainingDir + "trainingImages.csv";
         trainingExampleCount = 0;
+        if (trainingShard != null) {
+            trainingCsvData = new ArrayList<>();
+            trainingShard = null;
+        }
 
         try {
             BufferedReader br = new BufferedReader(new FileReader(filePathName));
@@ -343,6 +708,17 @@ public class NetworkManager {
         }
     }
 
+    /**
+     * Sets the training data from a shard packed with {@link DatasetShard#pack(String, String, String)}, replacing the .csv rows.
+     * The images are then read from the memory-mapped shard rather than decoded from the directory passed to {@link #startTraining(String)}.
+     * @param shardPath The path of the shard file.
+     */
+    public void setTrainingShard(String shardPath) {
+        trainingShard = new DatasetShard(shardPath);
+        trainingCsvData = new ArrayList<>(trainingShard.getRows());
+        trainingExampleCount = trainingCsvData.size();
+    }
+
     // Training happens here
 
     /**
@@ -359,9 +735,26 @@ public class NetworkManager {
         long trainingStartTime = System.currentTimeMillis();
         boolean shouldTerminate = false;
         int currentEpoch = -1;
-        double currentError;
 	    int firstStart = 0;
 
+        // Carry on from the checkpoint the network was restored from, with the training time already spent
+        if (resumeCheckpoint != null) {
+            currentEpoch = resumeCheckpoint.getEpoch() - 1;
+            firstStart = resumeCheckpoint.getNextExample();
+            trainingStartTime -= resumeCheckpoint.getElapsedTime();
+            System.out.println("Resuming training at epoch " + resumeCheckpoint.getEpoch() + ", example " + firstStart + ".");
+            resumeCheckpoint = null;
+        }
+
+        checkpointWriter = (checkpointDir != null) ? new CheckpointWriter(new File(checkpointDir, "Checkpoint-" + networkReference + TrainingCheckpoint.EXTENSION).getPath()) : null;
+        examplesSinceCheckpoint = 0;
+        lastCheckpointTime = System.currentTimeMillis();
+        DataParallelTrainer trainer = new DataParallelTrainer(networkLayers, dataParallelWorkers, stackedBatches);
+        List<List<DoubleMatrix>> batchInputs = new ArrayList<>();
+        List<Integer> batchLabels = new ArrayList<>();
+        List<Integer> batchExamples = new ArrayList<>();
+        dataLoader = new DataLoader(dataLoaderWorkers, prefetchDepth, imageCache);
+
 	    // Checks
         checkTerminationConditionExists();
 
@@ -371,123 +764,180 @@ public class NetworkManager {
             currentEpoch++;
             System.out.println("Epoch: " + currentEpoch);
 
-            // For each training example
-            for (int i=firstStart%trainingExampleCount; i<trainingExampleCount; i++) {
-		        firstStart = 0;
+            // For each training example, the loader skips image slices ending in "-1" as they were not deemed to be useful.
+            startPass(trainingShard, trainingDir, trainingCsvData, firstStart%trainingExampleCount);
+            firstStart = 0;
+
+            DataLoader.Example example;
+            while ((example = dataLoader.next()) != null) {
+                int i = example.getIndex();
                 System.out.println("Example: " + i);
 
-                // Retrieve training data
-                String[] rowData = trainingCsvData.get(i);
-                String imgSuffix = rowData[0].substring(rowData[0].length()-1, rowData[0].length());
-
-                // Avoiding image slices ending in "-1" as they were not deemed to be useful.
-                if (!"1".equals(imgSuffix)) {
-                    // Getting the image and class
-                    List<DoubleMatrix> inputData = retrieveImageData(trainingDir, rowData[0]);
-                    int label = convertLabelToInt(rowData[1]);
-
-                    // Check we have the data
-                    if (inputData != null && label > -1) {
-                        // Set input layer input data
-                        ((LayerInput) networkLayers.get(0)).setInput(inputData);
-
-                        // Forward pass through entire network
-                        // Start at 1 because input layer handled differently above
-                        for (int j=1; j<networkLayers.size(); j++) {
-                            networkLayers.get(j).setInputData(networkLayers.get(j-1).getNeurons());
-                        }
-
-                        // Get current total MSE
-                        currentError = ((LayerOutput) networkLayers.get(networkLayers.size()-1)).getError(label);
-                        logError(currentError, currentEpoch, i);
-
-                        // Backwards pass through entire network
-                        List<Neuron> lowerNeurons = networkLayers.get(networkLayers.size()-2).getNeurons();
-                        List<Neuron> upperNeurons = null;
-
-                        networkLayers.get(networkLayers.size()-1).calculateDeltas(lowerNeurons, upperNeurons);
-
-                        // Don't need to do anything to input layer
-                        // Loop starts at penultimate layer as output layer is handled differently
-                        for (int j=networkLayers.size()-2; j>0; j--) {
-                            lowerNeurons = networkLayers.get(j-1).getNeurons();
-                            upperNeurons = networkLayers.get(j+1).getNeurons();
-                            networkLayers.get(j).calculateDeltas(lowerNeurons, upperNeurons);
-                        }
-
-                        // Apply deltas
-                        for (int j=networkLayers.size()-1; j>0; j--) {
-                            networkLayers.get(j).applyDeltas();
-                        }
-
-                        // Print stuff
-                        if ((i+1)%10 == 0) {
-                            System.out.println("Example " + i + ": " + String.format("%.17f", currentError));
-
-                            DoubleMatrix outputs = ((LayerOutput) networkLayers.get(networkLayers.size()-1)).getOutputs();
-                            String predicted = extractPrediction(outputs, true);
-
-                            System.out.println("Actual: " + rowData[1] + ", Predicted: " + predicted);
-                            System.out.println();
-                        }
-
-                        // Termination check
-                        shouldTerminate = checkShouldTerminate(trainingStartTime, currentEpoch, currentError);
-                        if (shouldTerminate) {
-                            errorLogger.flush();
-                            saveNetwork();
+                // Getting the image and class
+                List<DoubleMatrix> inputData = example.getImage();
+                int label = convertLabelToInt(example.getRow()[1]);
+
+                // Check we have the data
+                if (inputData != null && label > -1) {
+                    batchInputs.add(inputData);
+                    batchLabels.add(label);
+                    batchExamples.add(i);
+
+                    // Train on the batch, apply the averaged deltas, log the batch MSE and check for termination once per batch
+                    if (batchInputs.size() == batchSize) {
+                        shouldTerminate = trainBatch(trainer, batchInputs, batchLabels, batchExamples, trainingStartTime, currentEpoch);
+
+                        if (shouldTerminate)
                             break;
-                        }
-                    } else {
-                        System.out.println("Training example invalid. Skipping.");
                     }
                 } else {
-                    System.out.println("Skipping image type 1.");
+                    System.out.println("Training example invalid. Skipping.");
                 }
             }
+
+            // The last batch of an epoch may not be full
+            if (!shouldTerminate && !batchInputs.isEmpty()) {
+                shouldTerminate = trainBatch(trainer, batchInputs, batchLabels, batchExamples, trainingStartTime, currentEpoch);
+            }
+
+            printDataMetrics();
         }
 
+        dataLoader.shutdown();
+        trainer.shutdown();
         errorLogger.close();
+
+        if (checkpointWriter != null) {
+            checkpointWriter.shutdown();
+            System.out.println(checkpointWriter);
+        }
     }
 
     /**
-     * Converts a .png image to a list of {@link DoubleMatrix}'s containing the pixel values.
-     * The method for retrieving the image data is taken from 2 answers on stackoverflow:
-     *      - https://stackoverflow.com/a/9470843/3259361
-     *      - https://stackoverflow.com/a/10089030/3259361
-     *
-     * @param trainingDir The directory containing the images.
-     * @param imgName The name of the image (without extension).
-     * @return A list containing {@link DoubleMatrix}'s containing the pixel values.
+     * Trains on a mini-batch, then applies the deltas of every layer, logs the MSE of the batch and checks the termination conditions.
+     * Saves the network if training should terminate. The batch lists are cleared.
+     * @param trainer Runs the forward and backward passes, see {@link DataParallelTrainer}.
+     * @param batchInputs The image data of each example in the batch.
+     * @param batchLabels The class of each example in the batch.
+     * @param batchExamples The index of each example in the training data.
+     * @param trainingStartTime The time training started.
+     * @param currentEpoch The current epoch.
+     * @return True if training should terminate.
      */
-    private List<DoubleMatrix> retrieveImageData(String trainingDir, String imgName) {
-        List<DoubleMatrix> out = null;
+    private boolean trainBatch(DataParallelTrainer trainer, List<List<DoubleMatrix>> batchInputs, List<Integer> batchLabels, List<Integer> batchExamples,
+                               long trainingStartTime, int currentEpoch) {
+        trainer.train(batchInputs, batchLabels);
 
-        // https://stackoverflow.com/a/9470843/3259361
-        // https://stackoverflow.com/a/10089030/3259361
-        int[] pixel;
-        try {
-            out = new ArrayList<>();
+        double batchError = 0;
+        for (int k=0; k<batchExamples.size(); k++) {
+            int i = batchExamples.get(k);
+            double currentError = trainer.getError(k);
+            batchError += currentError;
 
-            BufferedImage img = ImageIO.read(new File(trainingDir + imgName + ".png"));
-            int width = img.getWidth();
-            int height = img.getHeight();
+            // Print stuff
+            if ((i+1)%10 == 0) {
+                System.out.println("Example " + i + ": " + String.format("%.17f", currentError));
 
-            DoubleMatrix imgData = new DoubleMatrix(height, width);
+                String predicted = extractPrediction(trainer.getOutputs(k), true);
 
-            for (int y=0; y<height; y++) {
-                for (int x=0; x<width; x++) {
-                    pixel = img.getRaster().getPixel(x, y, new int[4]);
-                    imgData.put(y,x, pixel[0]);
-                }
+                System.out.println("Actual: " + trainingCsvData.get(i)[1] + ", Predicted: " + predicted);
+                System.out.println();
             }
+        }
+        batchError /= batchExamples.size();
+        int example = batchExamples.get(batchExamples.size()-1);
+        examplesSinceCheckpoint += batchExamples.size();
 
-            out.add(imgData);
-        } catch (IOException e) {
-            System.out.println("Could not read image " + imgName);
+        batchInputs.clear();
+        batchLabels.clear();
+        batchExamples.clear();
+
+        // Apply deltas
+        trainer.applyDeltas();
+
+        logError(batchError, currentEpoch, example);
+
+        // Termination check
+        boolean shouldTerminate = checkShouldTerminate(trainingStartTime, currentEpoch, batchError);
+        if (shouldTerminate) {
+            errorLogger.flush();
+
+            // Keep the run if the model cannot be saved
+            if (!saveNetwork() && checkpointWriter != null) {
+                writeCheckpoint(trainingStartTime, currentEpoch, example, false);
+                System.out.println("The network was saved as a checkpoint instead: " + checkpointWriter.getCheckpointPath());
+            }
+        } else if (checkpointWriter != null && isCheckpointDue()) {
+            writeCheckpoint(trainingStartTime, currentEpoch, example, true);
         }
 
-        return out;
+        return shouldTerminate;
+    }
+
+    /**
+     * Checks whether a checkpoint should be written, see {@link #setCheckpointing(String, int, long)}.
+     * When the last checkpoint is still being written, the next one waits for a later batch.
+     * @return True if a checkpoint should be written.
+     */
+    private boolean isCheckpointDue() {
+        if (checkpointWriter.isBusy())
+            return false;
+
+        if (checkpointExamples > 0 && examplesSinceCheckpoint >= checkpointExamples)
+            return true;
+
+        return checkpointInterval > 0 && System.currentTimeMillis() - lastCheckpointTime >= checkpointInterval;
+    }
+
+    /**
+     * Captures a checkpoint after a batch has been applied and writes it.
+     * @param trainingStartTime The time training started.
+     * @param currentEpoch The current epoch.
+     * @param lastExample The index of the last example of the batch, training resumes from the example after it.
+     * @param async True to write the checkpoint in the background, false to wait for it to be written.
+     */
+    private void writeCheckpoint(long trainingStartTime, int currentEpoch, int lastExample, boolean async) {
+        int epoch = currentEpoch;
+        int nextExample = lastExample + 1;
+        if (nextExample >= trainingExampleCount) {
+            epoch++;
+            nextExample = 0;
+        }
+
+        long now = System.currentTimeMillis();
+        TrainingCheckpoint checkpoint = TrainingCheckpoint.capture(this, epoch, nextExample, now - trainingStartTime);
+
+        if (async)
+            checkpointWriter.writeAsync(checkpoint);
+        else
+            checkpointWriter.writeNow(checkpoint);
+
+        examplesSinceCheckpoint = 0;
+        lastCheckpointTime = now;
+    }
+
+    /**
+     * Starts a pass of the data loader over a shard if one is set, otherwise over a directory of images.
+     * @param shard The {@link DatasetShard} of the data, or null.
+     * @param imageDir The directory containing the images, used when there is no shard.
+     * @param csvData The rows of the data-set .csv file.
+     * @param firstRow The index of the first row of the pass.
+     */
+    private void startPass(DatasetShard shard, String imageDir, List<String[]> csvData, int firstRow) {
+        if (shard != null)
+            dataLoader.start(shard, firstRow);
+        else
+            dataLoader.start(imageDir, csvData, firstRow);
+    }
+
+    /**
+     * Prints the metrics of the data loader and image cache.
+     */
+    private void printDataMetrics() {
+        System.out.println(dataLoader);
+
+        if (imageCache != null)
+            System.out.println(imageCache);
     }
 
     /**
@@ -560,6 +1010,10 @@ public class NetworkManager {
     public void setTestingData(String testingDir) {
         String filePathName = testingDir + "testImages.csv";
         testingExampleCount = 0;
+        if (testingShard != null) {
+            testingCsvData = new ArrayList<>();
+            testingShard = null;
+        }
 
         try {
             BufferedReader br = new BufferedReader(new FileReader(filePathName));
@@ -576,6 +1030,17 @@ public class NetworkManager {
         }
     }
 
+    /**
+     * Sets the testing data from a shard packed with {@link DatasetShard#pack(String, String, String)}, replacing the .csv rows.
+     * The images are then read from the memory-mapped shard rather than decoded from the directory passed to {@link #startTesting(String)}.
+     * @param shardPath The path of the shard file.
+     */
+    public void setTestingShard(String shardPath) {
+        testingShard = new DatasetShard(shardPath);
+        testingCsvData = new ArrayList<>(testingShard.getRows());
+        testingExampleCount = testingCsvData.size();
+    }
+
     /**
      * This method orchestrates the testing of the network. It receives a directory containing the testing images.
      * @param testingDir The directory containing the testing images.
@@ -593,53 +1058,54 @@ public class NetworkManager {
        
             System.out.println("\r\nStarting testing...\r\n");
 
-        // Testing loop
-        for (int i=0; i<testingExampleCount; i++) {
+        // Testing loop, the loader skips "1" images because they are not useful
+        dataLoader = new DataLoader(dataLoaderWorkers, prefetchDepth, imageCache);
+        startPass(testingShard, testingDir, testingCsvData, 0);
+
+        DataLoader.Example example;
+        while ((example = dataLoader.next()) != null) {
             // Get the data
-            String[] rowData = testingCsvData.get(i);
-            String imgSuffix = rowData[0].substring(rowData[0].length()-1, rowData[0].length());
-            String dgn = rowData[1];
+            int i = example.getIndex();
+            String dgn = example.getRow()[1];
 
-            // Skipping "1" images because they are not useful
-            if (!"1".equals(imgSuffix)) {
-                List<DoubleMatrix> inputData = retrieveImageData(testingDir, rowData[0]);
-                int label = convertLabelToInt(rowData[1]);
+            List<DoubleMatrix> inputData = example.getImage();
+            int label = convertLabelToInt(dgn);
 
-                // Check we have the data
-                if (inputData != null && label > -1) {
-                    System.out.println("Example " + i);
+            // Check we have the data
+            if (inputData != null && label > -1) {
+                System.out.println("Example " + i);
 
-                    // Set the input and forward propagate through the network
-                    ((LayerInput) networkLayers.get(0)).setInput(inputData);
-                    for (int j=1; j<networkLayers.size(); j++) {
-                        networkLayers.get(j).setInputData(networkLayers.get(j-1).getNeurons());
-                    }
-                    // Get the error of the network
-                    currentError = ((LayerOutput) networkLayers.get(networkLayers.size()-1)).getError(label);
+                // Set the input and forward propagate through the network
+                ((LayerInput) networkLayers.get(0)).setInput(inputData);
+                for (int j=1; j<networkLayers.size(); j++) {
+                    networkLayers.get(j).setInputData(networkLayers.get(j-1).getNeurons());
+                }
+                // Get the error of the network
+                currentError = ((LayerOutput) networkLayers.get(networkLayers.size()-1)).getError(label);
 
-                    // Get the outputs and convert to a prediction
-                    DoubleMatrix outputs = ((LayerOutput) networkLayers.get(networkLayers.size()-1)).getOutputs();
-                    String predicted = extractPrediction(outputs, false);
+                // Get the outputs and convert to a prediction
+                DoubleMatrix outputs = ((LayerOutput) networkLayers.get(networkLayers.size()-1)).getOutputs();
+                String predicted = extractPrediction(outputs, false);
 
-                    // Store the error and prediction
-                    predictions[i] = predicted;
-                    errors[i] = currentError;
+                // Store the error and prediction
+                predictions[i] = predicted;
+                errors[i] = currentError;
 
-                    System.out.println("Predicted: " + predicted + ", Actual: " + dgn);
+                System.out.println("Predicted: " + predicted + ", Actual: " + dgn);
 
-                    if (predicted.equals(dgn)) {
-                        correct++;
-                    } else {
-                        incorrect++;
-                    }
+                if (predicted.equals(dgn)) {
+                    correct++;
                 } else {
-                    System.out.println("Testing example invalid. Skipping.");
+                    incorrect++;
                 }
             } else {
-                System.out.println("Skipping image type 1.");
+                System.out.println("Testing example invalid. Skipping.");
             }
         }
 
+        dataLoader.shutdown();
+        printDataMetrics();
+
         System.out.println("\r\nCorrect: " + correct + ", Incorrect: " + incorrect);
         double perc = ((double) correct / (double) (correct + incorrect)) * 100;
         System.out.println("Correct: " + perc + "%");
@@ -648,6 +1114,52 @@ public class NetworkManager {
         saveTestResults(predictions, errors);
     }
 
+    /**
+     * Quantises the network to int8 for making predictions, see {@link InferencePlan#quantise(List)}, and compares it with the double network on the testing data.
+     * The first images of the testing data calibrate the quantisation, then every testing image is predicted with both, reporting the change in accuracy next to the speed and size of each.
+     * @param testingDir The directory containing the testing images, see {@link #setTestingData(String)}.
+     * @param calibrationImages The number of testing images to calibrate with.
+     * @return The {@link QuantisationReport}, holding the quantised plan.
+     */
+    public QuantisationReport quantiseForInference(String testingDir, int calibrationImages) {
+        InferencePlan plan = compileForInference();
+
+        System.out.println("\r\nCalibrating quantisation...\r\n");
+
+        // Calibrate on the first valid images
+        dataLoader = new DataLoader(dataLoaderWorkers, prefetchDepth, imageCache);
+        startPass(testingShard, testingDir, testingCsvData, 0);
+
+        List<List<DoubleMatrix>> calibration = new ArrayList<>();
+        DataLoader.Example example;
+        while (calibration.size() < calibrationImages && (example = dataLoader.next()) != null) {
+            if (example.getImage() != null)
+                calibration.add(example.getImage());
+        }
+
+        QuantisationReport report = new QuantisationReport(plan, plan.quantise(calibration), calibration.size());
+        System.out.println(report.getQuantisedPlan());
+
+        // Compare the plans on every testing image
+        startPass(testingShard, testingDir, testingCsvData, 0);
+        while ((example = dataLoader.next()) != null) {
+            List<DoubleMatrix> inputData = example.getImage();
+            int label = convertLabelToInt(example.getRow()[1]);
+
+            if (inputData != null && label > -1) {
+                report.evaluate(inputData, label);
+            } else {
+                System.out.println("Testing example invalid. Skipping.");
+            }
+        }
+
+        dataLoader.shutdown();
+        printDataMetrics();
+        System.out.println(report);
+
+        return report;
+    }
+
     /**
      * Save the results from testing to a file in the "./performance-logging/" directory. The directory will be customisable in the future.
      * @param predicted The predictions that the model made.
@@ -685,6 +1197,10 @@ public class NetworkManager {
     public void setPredictionData(String predictionDir) {
         String filePathName = predictionDir + "testImages.csv";
         predictionExampleCount = 0;
+        if (predictionShard != null) {
+            predictionCsvData = new ArrayList<>();
+            predictionShard = null;
+        }
 
         try {
             BufferedReader br = new BufferedReader(new FileReader(filePathName));
@@ -701,6 +1217,17 @@ public class NetworkManager {
         }
     }
 
+    /**
+     * Sets the prediction data from a shard packed with {@link DatasetShard#pack(String, String, String)}, replacing the .csv rows.
+     * The images are then read from the memory-mapped shard rather than decoded from the directory passed to {@link #startPredicting(String)}.
+     * @param shardPath The path of the shard file.
+     */
+    public void setPredictionShard(String shardPath) {
+        predictionShard = new DatasetShard(shardPath);
+        predictionCsvData = new ArrayList<>(predictionShard.getRows());
+        predictionExampleCount = predictionCsvData.size();
+    }
+
     /**
      * Orchestrates the network to make predictions on images.
      * @param predictionDir The directory containing the images to make predictions on.
@@ -714,35 +1241,34 @@ public class NetworkManager {
        
         System.out.println("\r\nStarting predicting...\r\n");
 
-        // The main loop
-        for (int i=0; i<predictionExampleCount; i++) {
-            String[] rowData = predictionCsvData.get(i);
-            String imgSuffix = rowData[0].substring(rowData[0].length()-1, rowData[0].length());
+        // The main loop, the loader skips "1" images because they are not useful.
+        dataLoader = new DataLoader(dataLoaderWorkers, prefetchDepth, imageCache);
+        startPass(predictionShard, predictionDir, predictionCsvData, 0);
 
-            // Skipping "1" images because they are not useful.
-            if (!"1".equals(imgSuffix)) {
-                // Get the image data
-                List<DoubleMatrix> inputData = retrieveImageData(predictionDir, rowData[0]);
+        // The images are predicted on several threads, the results arrive in the order of the examples
+        PredictionEngine engine = new PredictionEngine(networkLayers, predictionThreads);
+        engine.predict(dataLoader::next, DataLoader.Example::getImage, (example, outputs) -> {
+            int i = example.getIndex();
 
-                // Forward propagation through the network
-                ((LayerInput) networkLayers.get(0)).setInput(inputData);
-                for (int j=1; j<networkLayers.size(); j++) {
-                    networkLayers.get(j).setInputData(networkLayers.get(j-1).getNeurons());
-                }
+            if (outputs == null) {
+                System.out.println("Prediction example invalid. Skipping.");
+                return;
+            }
 
-                // Get the output and convert to a prediction and store the prediction.
-                DoubleMatrix outputs = ((LayerOutput) networkLayers.get(networkLayers.size()-1)).getOutputs();
-                String predicted = extractPrediction(outputs, false);
-                System.out.println("Prediction: " + predicted);
-                predictions[i] = predicted;
+            // Convert the output to a prediction and store the prediction.
+            String predicted = extractPrediction(outputs, false);
+            System.out.println("Prediction: " + predicted);
+            predictions[i] = predicted;
 
-                if (i % 50 == 0) {
-                    System.out.println("Example " + i);
-                }
-            } else {
-                System.out.println("Skipping image type 1.");
+            if (i % 50 == 0) {
+                System.out.println("Example " + i);
             }
-        }
+        });
+
+        engine.shutdown();
+        dataLoader.shutdown();
+        printDataMetrics();
+        System.out.println(engine);
     }
 
     /**
@@ -804,22 +1330,24 @@ public class NetworkManager {
         String message = epoch+";"+example+";"+String.format("%.17f", mse);
         errorLogger.println(message);
 
-        // Ensure errors are written to file at least every 50 examples
-        if ((example+1) % 50 == 0) {
+        // Ensure errors are written to file about every 50 examples, errors are logged once per batch
+        if ((example+1) % 50 < batchSize) {
             errorLogger.flush();
         }
     }
 
     /**
      * Starts the process of saving a network model.
+     * @return True if the model was saved.
      */
-    private void saveNetwork() {
+    private boolean saveNetwork() {
         try {
             System.out.println("Saving network...");
             NetworkSaver.saveNetwork(this, networkReference); 
+            return true;
         } catch (Exception e) {
-            System.out.println("Error saving network model.");
-            System.exit(1);
+            System.out.println("Error saving network model. " + e.getMessage());
+            return false;
         }
     }
 }
@@ -0,0 +1,267 @@
+package waddington.kai.main.knnf;
+
+import org.jblas.DoubleMatrix;
+import waddington.kai.main.knnf.exceptions.PredictionException;
+import waddington.kai.main.knnf.layers.Layer;
+import waddington.kai.main.knnf.layers.LayerInput;
+import waddington.kai.main.knnf.layers.LayerOutput;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.function.BiConsumer;
+import java.util.function.Function;
+import java.util.function.Supplier;
+
+/**
+ * Makes predictions with a trained network on a pool of threads.
+ * <p>
+ * A forward pass writes the activations of every neuron, so the layers of a network can only predict one image at a time. The engine gives each thread its own
+ * {@link InferenceNetwork}, which shares the weights of the network read-only and holds its own activations, releasing them layer by layer.
+ * Images can be predicted as a batch with {@link #predict(List)}, or streamed through the engine with {@link #predict(Supplier, Function, BiConsumer)},
+ * and the predictions are always returned in the order the images were given.
+ * <p>
+ * The engine records how long each prediction takes, reported as percentiles by {@link #getLatencyPercentile(double)}, and the throughput of the engine.
+ */
+public class PredictionEngine {
+    /**
+     * The layers of the network, which the replicas share their weights with.
+     */
+    private final List<Layer> layers;
+    /**
+     * The inference-only replica of the network for each thread.
+     */
+    private final List<InferenceNetwork> replicas;
+    /**
+     * The replicas that are not being used by a prediction.
+     */
+    private final BlockingQueue<InferenceNetwork> idleReplicas;
+    /**
+     * The threads that make the predictions.
+     */
+    private final ExecutorService workers;
+
+    // Metrics
+    private long[] latencies;
+    private int predictions;
+    private long firstSubmitTime;
+    private long lastPredictionTime;
+
+    /**
+     * Creates the replicas and threads of the engine.
+     * @param layers The layers of the network, with their weights trained or loaded.
+     * @param threads The number of threads, at least 1.
+     */
+    public PredictionEngine(List<Layer> layers, int threads) {
+        this.layers = layers;
+        int numberOfThreads = Math.max(1, threads);
+
+        replicas = new ArrayList<>();
+        idleReplicas = new ArrayBlockingQueue<>(numberOfThreads);
+        for (int t=0; t<numberOfThreads; t++) {
+            InferenceNetwork replica = new InferenceNetwork(layers);
+            replicas.add(replica);
+            idleReplicas.add(replica);
+        }
+
+        workers = Executors.newFixedThreadPool(numberOfThreads, runnable -> {
+            Thread thread = new Thread(runnable, "prediction-engine");
+            thread.setDaemon(true);
+            return thread;
+        });
+
+        latencies = new long[1024];
+    }
+
+    public int getNumberOfThreads() {
+        return replicas.size();
+    }
+
+    /**
+     * Starts a prediction for an image.
+     * @param image The image data, see {@link waddington.kai.main.knnf.data.ImageDecoder#decode(String, String)}. Null if the image could not be read, which gives a null prediction.
+     * @return The outputs of the network for the image, a 1xN matrix, see {@link LayerOutput#getOutputs()}.
+     */
+    public Future<DoubleMatrix> submit(List<DoubleMatrix> image) {
+        synchronized (this) {
+            if (firstSubmitTime == 0)
+                firstSubmitTime = System.nanoTime();
+        }
+
+        return workers.submit(() -> predictOnReplica(image));
+    }
+
+    /**
+     * Predicts a batch of images across the threads of the engine.
+     * @param images The image data of each image.
+     * @return The outputs of the network for each image, in the same order as the images.
+     */
+    public List<DoubleMatrix> predict(List<List<DoubleMatrix>> images) {
+        List<Future<DoubleMatrix>> futures = new ArrayList<>(images.size());
+        for (List<DoubleMatrix> image: images)
+            futures.add(submit(image));
+
+        List<DoubleMatrix> outputs = new ArrayList<>(images.size());
+        for (Future<DoubleMatrix> future: futures)
+            outputs.add(take(future));
+
+        return outputs;
+    }
+
+    /**
+     * Predicts a stream of items, such as the examples of a {@link waddington.kai.main.knnf.data.DataLoader}, keeping up to twice as many images in flight as there are threads.
+     * @param source Gives the next item of the stream, or null at the end of the stream.
+     * @param images Gets the image data of an item.
+     * @param results Receives each item with the outputs of the network for it, in the order the items were given, on the calling thread.
+     * @param <T> The type of the items.
+     */
+    public <T> void predict(Supplier<T> source, Function<T, List<DoubleMatrix>> images, BiConsumer<T, DoubleMatrix> results) {
+        int maximumInFlight = 2 * replicas.size();
+        ArrayDeque<T> items = new ArrayDeque<>();
+        ArrayDeque<Future<DoubleMatrix>> futures = new ArrayDeque<>();
+
+        T item;
+        while ((item = source.get()) != null) {
+            items.add(item);
+            futures.add(submit(images.apply(item)));
+
+            if (futures.size() == maximumInFlight)
+                results.accept(items.poll(), take(futures.poll()));
+        }
+
+        while (!futures.isEmpty())
+            results.accept(items.poll(), take(futures.poll()));
+    }
+
+    /**
+     * Copies the parameters that the replicas do not share with the network, such as the biases, after the network has been trained further.
+     * Must not be called while predictions are being made.
+     */
+    public void syncWeights() {
+        for (InferenceNetwork replica: replicas)
+            replica.syncWeights(layers);
+    }
+
+    /**
+     * Stops the threads of the engine. The metrics can still be read afterwards.
+     */
+    public void shutdown() {
+        workers.shutdownNow();
+    }
+
+    /**
+     * @return The number of predictions made.
+     */
+    public synchronized int getPredictions() {
+        return predictions;
+    }
+
+    /**
+     * Gets a percentile of the time taken by each prediction, from a thread starting the forward pass to the outputs being ready.
+     * @param percentile The percentile, e.g. 50 for the median or 99.
+     * @return The latency in milliseconds, 0 if no predictions have been made.
+     */
+    public synchronized double getLatencyPercentile(double percentile) {
+        if (predictions == 0)
+            return 0;
+
+        long[] sorted = Arrays.copyOf(latencies, predictions);
+        Arrays.sort(sorted);
+
+        int rank = (int) Math.ceil((percentile / 100) * predictions) - 1;
+
+        return sorted[Math.max(0, Math.min(predictions-1, rank))] / 1e6;
+    }
+
+    /**
+     * Gets the number of predictions made per second, from the first image being submitted to the last prediction being made.
+     * @return The throughput in images per second.
+     */
+    public synchronized double getThroughput() {
+        if (predictions == 0 || lastPredictionTime == firstSubmitTime)
+            return 0;
+
+        return predictions / ((lastPredictionTime - firstSubmitTime) / 1e9);
+    }
+
+    @Override
+    public String toString() {
+        return "Prediction engine: threads(" + replicas.size() + "), predictions(" + getPredictions() + "), "
+                + "p50(" + String.format("%.2f", getLatencyPercentile(50)) + "ms), "
+                + "p99(" + String.format("%.2f", getLatencyPercentile(99)) + "ms), "
+                + "throughput(" + String.format("%.1f", getThroughput()) + "/s).";
+    }
+
+    /**
+     * Runs the forward pass for an image on a set of layers, keeping the activations of every layer, e.g. for training.
+     * @param layers The layers of a network or a replica, which are not safe to use from another thread at the same time.
+     * @param image The image data.
+     * @return The outputs of the network, a new 1xN matrix, see {@link LayerOutput#getOutputs()}.
+     */
+    public static DoubleMatrix forward(List<Layer> layers, List<DoubleMatrix> image) {
+        ((LayerInput) layers.get(0)).setInput(image);
+
+        for (int j=1; j<layers.size(); j++) {
+            layers.get(j).setInputData(layers.get(j-1).getNeurons());
+        }
+
+        return ((LayerOutput) layers.get(layers.size()-1)).getOutputs();
+    }
+
+    /**
+     * Makes a prediction on an idle replica, recording its latency.
+     * @param image The image data, or null.
+     * @return The outputs of the network, or null if there is no image.
+     * @throws InterruptedException When interrupted while waiting for a replica.
+     */
+    private DoubleMatrix predictOnReplica(List<DoubleMatrix> image) throws InterruptedException {
+        if (image == null)
+            return null;
+
+        InferenceNetwork replica = idleReplicas.take();
+        long start = System.nanoTime();
+
+        try {
+            return replica.predict(image);
+        } finally {
+            idleReplicas.add(replica);
+            record(start, System.nanoTime());
+        }
+    }
+
+    /**
+     * Records the latency of a prediction.
+     * @param start The time the prediction started, in nanoseconds.
+     * @param end The time the prediction finished, in nanoseconds.
+     */
+    private synchronized void record(long start, long end) {
+        if (predictions == latencies.length)
+            latencies = Arrays.copyOf(latencies, latencies.length * 2);
+
+        latencies[predictions++] = end - start;
+        lastPredictionTime = Math.max(lastPredictionTime, end);
+    }
+
+    /**
+     * Waits for a prediction.
+     * @param future The prediction.
+     * @return The outputs of the network.
+     */
+    private DoubleMatrix take(Future<DoubleMatrix> future) {
+        try {
+            return future.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new PredictionException("Interrupted while waiting for a prediction.", e);
+        } catch (ExecutionException e) {
+            throw new PredictionException("The forward pass failed.", e.getCause());
+        }
+    }
+}
\ No newline at end of file
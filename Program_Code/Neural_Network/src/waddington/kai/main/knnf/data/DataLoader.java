@@ -0,0 +1,301 @@
+package waddington.kai.main.knnf.data;
+
+import org.jblas.DoubleMatrix;
+import waddington.kai.main.knnf.exceptions.DataLoadingException;
+
+import java.util.ArrayDeque;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+
+/**
+ * Decodes the images of a data-set ahead of the network on background threads.
+ * <p>
+ * A pass over the rows of a data-set is started with {@link #start(String, List, int)}, then {@link #next()} returns the examples in row order.
+ * Up to {@link #getPrefetchDepth()} upcoming examples are kept in a bounded queue and decoded by the worker threads while the network works on the current one.
+ * Slices ending in "-1" are skipped without being decoded, see {@link ImageDecoder#isSkippedSlice(String)}.
+ * When the loader has an {@link ImageCache}, images that were loaded before are expanded from the cache instead of being decoded again.
+ * A pass can also read a packed {@link DatasetShard} with {@link #start(DatasetShard, int)}, in which case the images are expanded from the mapped file and the cache is not used.
+ */
+public class DataLoader {
+    /**
+     * An example returned by the loader.
+     */
+    public static class Example {
+        private final int index;
+        private final String[] row;
+        private final List<DoubleMatrix> image;
+
+        private Example(int index, String[] row, List<DoubleMatrix> image) {
+            this.index = index;
+            this.row = row;
+            this.image = image;
+        }
+
+        /**
+         * @return The index of the example's row in the data-set.
+         */
+        public int getIndex() {
+            return index;
+        }
+
+        /**
+         * @return The row of the data-set .csv file, {image name, class}.
+         */
+        public String[] getRow() {
+            return row;
+        }
+
+        /**
+         * @return The image data, see {@link ImageDecoder#decode(String, String)}. Null if the image could not be read.
+         */
+        public List<DoubleMatrix> getImage() {
+            return image;
+        }
+    }
+
+    /**
+     * The threads that decode the images, null when decoding on the calling thread.
+     */
+    private final ExecutorService workers;
+    private final int numberOfWorkers;
+    private final int prefetchDepth;
+    /**
+     * The cache of decoded images, null to always decode.
+     */
+    private final ImageCache imageCache;
+
+    /**
+     * The examples being decoded or waiting to be returned, in row order. Never holds more than {@link #prefetchDepth} examples.
+     */
+    private final ArrayDeque<Future<Example>> queue;
+
+    // The current pass
+    private String imageDir;
+    private DatasetShard shard;
+    private List<String[]> rows;
+    private int nextRow;
+
+    // Metrics
+    private long examplesLoaded;
+    private long examplesSkipped;
+    private long queueWaitTime;
+    private long readyOnTake;
+
+    /**
+     * Creates a data loader.
+     * @param workers The number of threads that decode images. 0 decodes each image on the calling thread when it is needed.
+     * @param prefetchDepth The maximum number of upcoming examples that are decoded ahead of the network, at least 1.
+     */
+    public DataLoader(int workers, int prefetchDepth) {
+        this(workers, prefetchDepth, null);
+    }
+
+    /**
+     * Creates a data loader that loads images through a cache.
+     * @param workers The number of threads that decode images. 0 decodes each image on the calling thread when it is needed.
+     * @param prefetchDepth The maximum number of upcoming examples that are decoded ahead of the network, at least 1.
+     * @param imageCache The {@link ImageCache} to load images through, or null to always decode them.
+     */
+    public DataLoader(int workers, int prefetchDepth, ImageCache imageCache) {
+        this.imageCache = imageCache;
+        this.numberOfWorkers = Math.max(0, workers);
+        this.prefetchDepth = Math.max(1, prefetchDepth);
+        this.queue = new ArrayDeque<>();
+
+        if (numberOfWorkers > 0) {
+            this.workers = Executors.newFixedThreadPool(numberOfWorkers, runnable -> {
+                Thread thread = new Thread(runnable, "data-loader");
+                thread.setDaemon(true);
+                return thread;
+            });
+        } else {
+            this.workers = null;
+        }
+    }
+
+    /**
+     * Starts a pass over the rows of a data-set, discarding anything left from the previous pass, and starts decoding the first examples.
+     * @param imageDir The directory containing the images.
+     * @param rows The rows of the data-set .csv file, {image name, class}.
+     * @param firstRow The index of the first row of the pass.
+     */
+    public void start(String imageDir, List<String[]> rows, int firstRow) {
+        start(imageDir, null, rows, firstRow);
+    }
+
+    /**
+     * Starts a pass over the rows of a shard, discarding anything left from the previous pass, and starts reading the first examples.
+     * @param shard The {@link DatasetShard} to read.
+     * @param firstRow The index of the first row of the pass.
+     */
+    public void start(DatasetShard shard, int firstRow) {
+        start(null, shard, shard.getRows(), firstRow);
+    }
+
+    /**
+     * Gets the next example of the pass, waiting for it to be decoded if it is not ready.
+     * @return The next {@link Example}, or null at the end of the pass.
+     */
+    public Example next() {
+        if (queue.isEmpty())
+            return null;
+
+        for (Future<Example> future: queue) {
+            if (future.isDone())
+                readyOnTake++;
+        }
+
+        Future<Example> head = queue.poll();
+        long start = System.nanoTime();
+        Example example = take(head);
+        queueWaitTime += System.nanoTime() - start;
+        examplesLoaded++;
+
+        // Keep the workers busy while the network uses this example
+        fillQueue();
+
+        return example;
+    }
+
+    /**
+     * Stops the worker threads. The metrics can still be read afterwards.
+     */
+    public void shutdown() {
+        for (Future<Example> future: queue)
+            future.cancel(false);
+        queue.clear();
+
+        if (workers != null)
+            workers.shutdownNow();
+    }
+
+    public int getNumberOfWorkers() {
+        return numberOfWorkers;
+    }
+
+    public int getPrefetchDepth() {
+        return prefetchDepth;
+    }
+
+    /**
+     * @return The number of examples returned by {@link #next()}.
+     */
+    public long getExamplesLoaded() {
+        return examplesLoaded;
+    }
+
+    /**
+     * @return The number of "-1" slices that were skipped.
+     */
+    public long getExamplesSkipped() {
+        return examplesSkipped;
+    }
+
+    /**
+     * Gets the total time spent in {@link #next()} waiting for an example to be decoded. Close to 0 when the workers keep up with the network.
+     * @return The wait time in milliseconds.
+     */
+    public double getQueueWaitTime() {
+        return queueWaitTime / 1e6;
+    }
+
+    /**
+     * Gets how far the workers were ahead of the network: the mean number of examples in the queue that were already decoded when {@link #next()} was called.
+     * @return The mean number of decoded examples, between 0 and {@link #getPrefetchDepth()}.
+     */
+    public double getAverageReadyExamples() {
+        if (examplesLoaded == 0)
+            return 0;
+
+        return (double) readyOnTake / examplesLoaded;
+    }
+
+    @Override
+    public String toString() {
+        return "Data loader: workers(" + numberOfWorkers + "), prefetch-depth(" + prefetchDepth + "), "
+                + "loaded(" + examplesLoaded + "), skipped(" + examplesSkipped + "), "
+                + "ready(" + String.format("%.2f", getAverageReadyExamples()) + "), "
+                + "queue-wait(" + String.format("%.1f", getQueueWaitTime()) + "ms).";
+    }
+
+    /**
+     * Starts a pass over either a directory of images or a shard.
+     * @param imageDir The directory containing the images, null when reading a shard.
+     * @param shard The shard to read, null when reading a directory.
+     * @param rows The rows of the data-set, {image name, class}.
+     * @param firstRow The index of the first row of the pass.
+     */
+    private void start(String imageDir, DatasetShard shard, List<String[]> rows, int firstRow) {
+        for (Future<Example> future: queue)
+            future.cancel(false);
+        queue.clear();
+
+        this.imageDir = imageDir;
+        this.shard = shard;
+        this.rows = rows;
+        this.nextRow = firstRow;
+
+        fillQueue();
+    }
+
+    /**
+     * Queues the next rows of the pass until the queue is full or there are no rows left, skipping "-1" slices.
+     */
+    private void fillQueue() {
+        while (queue.size() < prefetchDepth && nextRow < rows.size()) {
+            int index = nextRow++;
+            String[] row = rows.get(index);
+
+            if (ImageDecoder.isSkippedSlice(row[0])) {
+                examplesSkipped++;
+                continue;
+            }
+
+            String dir = imageDir;
+            DatasetShard source = shard;
+            Callable<Example> decode = () -> new Example(index, row, source != null ? source.getImage(index) : load(dir, row[0]));
+
+            if (workers != null)
+                queue.add(workers.submit(decode));
+            else
+                queue.add(new FutureTask<>(decode));
+        }
+    }
+
+    /**
+     * Loads an image through the cache if there is one.
+     * @param imageDir The directory containing the images.
+     * @param imgName The name of the image (without extension).
+     * @return The image data, or null if the image could not be read.
+     */
+    private List<DoubleMatrix> load(String imageDir, String imgName) {
+        if (imageCache != null)
+            return imageCache.get(imageDir, imgName);
+
+        return ImageDecoder.decode(imageDir, imgName);
+    }
+
+    /**
+     * Waits for an example to be decoded, decoding it on the calling thread if there are no workers.
+     * @param future The queued example.
+     * @return The decoded example.
+     */
+    private Example take(Future<Example> future) {
+        if (workers == null)
+            ((FutureTask<Example>) future).run();
+
+        try {
+            return future.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new DataLoadingException("Interrupted while waiting for an example to be decoded.", e);
+        } catch (ExecutionException e) {
+            throw new DataLoadingException("An example could not be decoded.", e.getCause());
+        }
+    }
+}
\ No newline at end of file
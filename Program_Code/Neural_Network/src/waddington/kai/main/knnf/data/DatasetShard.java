@@ -0,0 +1,328 @@
+package waddington.kai.main.knnf.data;
+
+import org.jblas.DoubleMatrix;
+import waddington.kai.main.knnf.exceptions.DataLoadingException;
+
+import java.io.BufferedReader;
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.FileReader;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * A data-set packed into a single binary file, so that an example is read from a memory-mapped file rather than by opening and decoding a .png.
+ * <p>
+ * A shard is created once from a directory of images and its .csv file with {@link #pack(String, String, String)}. The file is laid out as:
+ * <ul>
+ *     <li>A header: magic number, version, number of examples, image rows, image columns and the offset of the first record.</li>
+ *     <li>An index with one entry per row of the .csv file: image name, class and the offset of its record (-1 if it has no record).</li>
+ *     <li>The records: one byte per pixel in column-major order like a {@link DoubleMatrix}, all the same size.</li>
+ * </ul>
+ * Opening a shard reads the index and maps the records, so {@link #getPixels(int)} is a slice of the mapped file without any copying.
+ * Slices skipped by the {@link DataLoader} and images that could not be read are listed in the index without a record.
+ * A shard can be read from several threads at once.
+ */
+public class DatasetShard {
+    private static final int MAGIC = 0x4B4E4E46; // "KNNF"
+    private static final int VERSION = 1;
+    private static final int HEADER_SIZE = 28;
+
+    /**
+     * The rows of the .csv file the shard was packed from, {image name, class}.
+     */
+    private final List<String[]> rows;
+    /**
+     * The offset in the file of the record of each row, -1 if the row has no record.
+     */
+    private final long[] offsets;
+    private final int imageRows;
+    private final int imageColumns;
+    private final int recordSize;
+    private final long recordsOffset;
+    /**
+     * The records mapped in segments, each holding a whole number of records within the 2GB limit of a {@link MappedByteBuffer}.
+     */
+    private final MappedByteBuffer[] segments;
+    private final int recordsPerSegment;
+
+    /**
+     * Opens a shard, reading its index and mapping its records.
+     * @param shardPath The path of the shard file.
+     */
+    public DatasetShard(String shardPath) {
+        try (FileChannel channel = FileChannel.open(Paths.get(shardPath), StandardOpenOption.READ)) {
+            long size = channel.size();
+            if (size < HEADER_SIZE)
+                throw new DataLoadingException(shardPath + " is not a data-set shard.");
+
+            ByteBuffer header = channel.map(FileChannel.MapMode.READ_ONLY, 0, HEADER_SIZE);
+            if (header.getInt() != MAGIC)
+                throw new DataLoadingException(shardPath + " is not a data-set shard.");
+            int version = header.getInt();
+            if (version != VERSION)
+                throw new DataLoadingException(shardPath + " has unsupported shard version " + version + ".");
+
+            int numberOfExamples = header.getInt();
+            imageRows = header.getInt();
+            imageColumns = header.getInt();
+            recordsOffset = header.getLong();
+            recordSize = imageRows * imageColumns;
+
+            // Index
+            ByteBuffer index = channel.map(FileChannel.MapMode.READ_ONLY, HEADER_SIZE, recordsOffset - HEADER_SIZE);
+            List<String[]> indexRows = new ArrayList<>(numberOfExamples);
+            offsets = new long[numberOfExamples];
+            for (int i=0; i<numberOfExamples; i++) {
+                indexRows.add(new String[] {readString(index), readString(index)});
+                offsets[i] = index.getLong();
+            }
+            rows = Collections.unmodifiableList(indexRows);
+
+            // Records
+            long recordsLength = size - recordsOffset;
+            recordsPerSegment = Math.max(1, Integer.MAX_VALUE / Math.max(1, recordSize));
+            long segmentLength = (long) recordsPerSegment * recordSize;
+            int numberOfSegments = recordSize == 0 ? 0 : (int) ((recordsLength + segmentLength - 1) / segmentLength);
+
+            segments = new MappedByteBuffer[numberOfSegments];
+            for (int s=0; s<numberOfSegments; s++) {
+                long start = s * segmentLength;
+                segments[s] = channel.map(FileChannel.MapMode.READ_ONLY, recordsOffset + start, Math.min(segmentLength, recordsLength - start));
+            }
+        } catch (IOException e) {
+            throw new DataLoadingException("Could not open the shard " + shardPath + ".", e);
+        }
+    }
+
+    /**
+     * Gets the rows of the .csv file the shard was packed from. Row i is the image returned by {@link #getImage(int)} for i.
+     * @return An unmodifiable list of {image name, class}.
+     */
+    public List<String[]> getRows() {
+        return rows;
+    }
+
+    public int getNumberOfExamples() {
+        return rows.size();
+    }
+
+    public int getImageRows() {
+        return imageRows;
+    }
+
+    public int getImageColumns() {
+        return imageColumns;
+    }
+
+    /**
+     * Checks whether a row has a record.
+     * @param index The index of the row.
+     * @return False for skipped slices and images that could not be read when the shard was packed.
+     */
+    public boolean hasImage(int index) {
+        return offsets[index] >= 0;
+    }
+
+    /**
+     * Gets the pixels of an image as a slice of the mapped file, without copying them.
+     * @param index The index of the row.
+     * @return A read-only buffer of {@link #getImageRows()} * {@link #getImageColumns()} bytes in column-major order, or null if the row has no record.
+     */
+    public ByteBuffer getPixels(int index) {
+        if (offsets[index] < 0)
+            return null;
+
+        long record = (offsets[index] - recordsOffset) / recordSize;
+        int segment = (int) (record / recordsPerSegment);
+        int position = (int) (record % recordsPerSegment) * recordSize;
+
+        return segments[segment].slice(position, recordSize);
+    }
+
+    /**
+     * Expands the pixels of an image into a new {@link DoubleMatrix}.
+     * @param index The index of the row.
+     * @return A list containing the {@link DoubleMatrix}, in the same form as {@link ImageDecoder#decode(String, String)}, or null if the row has no record.
+     */
+    public List<DoubleMatrix> getImage(int index) {
+        ByteBuffer pixels = getPixels(index);
+        if (pixels == null)
+            return null;
+
+        DoubleMatrix imgData = new DoubleMatrix(imageRows, imageColumns);
+        for (int i=0; i<recordSize; i++) {
+            imgData.data[i] = pixels.get(i) & 0xFF;
+        }
+
+        List<DoubleMatrix> out = new ArrayList<>();
+        out.add(imgData);
+
+        return out;
+    }
+
+    @Override
+    public String toString() {
+        return "Data-set shard: examples(" + rows.size() + "), image(" + imageRows + "x" + imageColumns + ").";
+    }
+
+    /**
+     * Packs a directory of images and its .csv file into a shard. The images are decoded with {@link ImageDecoder#decode(String, String)} and must all be the same size
+     * with whole pixel values in [0, 255].
+     * @param imageDir The directory containing the images.
+     * @param csvPath The path of the .csv file, with one {image name, class} row per example.
+     * @param shardPath The path of the shard file to create, which is overwritten if it exists.
+     * @return The number of images stored in the shard.
+     */
+    public static int pack(String imageDir, String csvPath, String shardPath) {
+        List<String[]> csvRows = readCsv(csvPath);
+        long[] recordOffsets = new long[csvRows.size()];
+
+        // The index has the same size whatever the offsets are, so the records can be written first
+        long firstRecord = HEADER_SIZE + writeIndex(csvRows, recordOffsets).length;
+        long nextRecord = firstRecord;
+        int rowsPerImage = 0;
+        int columnsPerImage = 0;
+        int packed = 0;
+
+        try (FileChannel channel = FileChannel.open(Paths.get(shardPath), StandardOpenOption.CREATE,
+                StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.WRITE)) {
+            for (int i=0; i<csvRows.size(); i++) {
+                String imgName = csvRows.get(i)[0];
+                recordOffsets[i] = -1;
+
+                if (ImageDecoder.isSkippedSlice(imgName))
+                    continue;
+
+                List<DoubleMatrix> decoded = ImageDecoder.decode(imageDir, imgName);
+                if (decoded == null)
+                    continue;
+
+                DoubleMatrix image = decoded.get(0);
+                if (packed == 0) {
+                    rowsPerImage = image.rows;
+                    columnsPerImage = image.columns;
+                } else if (image.rows != rowsPerImage || image.columns != columnsPerImage) {
+                    throw new DataLoadingException("Image " + imgName + " is " + image.rows + "x" + image.columns
+                            + " but the shard holds " + rowsPerImage + "x" + columnsPerImage + " images.");
+                }
+
+                channel.write(ByteBuffer.wrap(toBytes(imgName, image)), nextRecord);
+                recordOffsets[i] = nextRecord;
+                nextRecord += image.length;
+                packed++;
+            }
+
+            ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE);
+            header.putInt(MAGIC).putInt(VERSION).putInt(csvRows.size())
+                    .putInt(rowsPerImage).putInt(columnsPerImage).putLong(firstRecord);
+            header.flip();
+
+            channel.write(header, 0);
+            channel.write(ByteBuffer.wrap(writeIndex(csvRows, recordOffsets)), HEADER_SIZE);
+        } catch (IOException e) {
+            throw new DataLoadingException("Could not write the shard " + shardPath + ".", e);
+        }
+
+        return packed;
+    }
+
+    /**
+     * Packs a data-set from the command line: {@code DatasetShard <image directory> <.csv file> <shard file>}.
+     * @param args The image directory, .csv file and shard file.
+     */
+    public static void main(String[] args) {
+        if (args.length != 3) {
+            System.out.println("Usage: DatasetShard <image directory> <.csv file> <shard file>");
+            return;
+        }
+
+        long start = System.currentTimeMillis();
+        int packed = pack(args[0], args[1], args[2]);
+        System.out.println("Packed " + packed + " images into " + args[2] + " in " + (System.currentTimeMillis() - start) + "ms.");
+    }
+
+    /**
+     * Reads the rows of a data-set .csv file in the same way as {@code NetworkManager}, keeping rows with 2 columns.
+     * @param csvPath The path of the .csv file.
+     * @return The {image name, class} rows.
+     */
+    private static List<String[]> readCsv(String csvPath) {
+        List<String[]> csvRows = new ArrayList<>();
+
+        try (BufferedReader br = new BufferedReader(new FileReader(csvPath))) {
+            String line;
+            while ((line = br.readLine()) != null) {
+                String[] row = line.split(",");
+                if (row.length == 2)
+                    csvRows.add(row);
+            }
+        } catch (IOException e) {
+            throw new DataLoadingException("Could not read " + csvPath + ".", e);
+        }
+
+        return csvRows;
+    }
+
+    /**
+     * Writes the index of a shard.
+     * @param csvRows The {image name, class} rows.
+     * @param recordOffsets The offset of the record of each row.
+     * @return The bytes of the index.
+     */
+    private static byte[] writeIndex(List<String[]> csvRows, long[] recordOffsets) {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+
+        try (DataOutputStream out = new DataOutputStream(bytes)) {
+            for (int i=0; i<csvRows.size(); i++) {
+                out.writeUTF(csvRows.get(i)[0]);
+                out.writeUTF(csvRows.get(i)[1]);
+                out.writeLong(recordOffsets[i]);
+            }
+        } catch (IOException e) {
+            throw new DataLoadingException("Could not write the shard index.", e);
+        }
+
+        return bytes.toByteArray();
+    }
+
+    /**
+     * Reads a string written by {@link DataOutputStream#writeUTF(String)}.
+     * @param buffer The buffer positioned at the string.
+     * @return The string.
+     */
+    private static String readString(ByteBuffer buffer) {
+        byte[] utf = new byte[buffer.getShort() & 0xFFFF];
+        buffer.get(utf);
+
+        return new String(utf, StandardCharsets.UTF_8);
+    }
+
+    /**
+     * Stores the pixels of an image as bytes.
+     * @param imgName The name of the image, for the error message.
+     * @param image The decoded image.
+     * @return One byte per pixel in column-major order.
+     */
+    private static byte[] toBytes(String imgName, DoubleMatrix image) {
+        byte[] pixels = new byte[image.length];
+
+        for (int i=0; i<image.length; i++) {
+            double value = image.data[i];
+            if (value < 0 || value > 255 || value != Math.rint(value))
+                throw new DataLoadingException("Image " + imgName + " has a pixel value of " + value + ", a shard only holds values in [0, 255].");
+
+            pixels[i] = (byte) value;
+        }
+
+        return pixels;
+    }
+}
\ No newline at end of file
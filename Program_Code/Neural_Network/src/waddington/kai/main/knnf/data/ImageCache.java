@@ -0,0 +1,195 @@
+package waddington.kai.main.knnf.data;
+
+import org.jblas.DoubleMatrix;
+
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+
+/**
+ * Keeps decoded images in memory so that each image is only read from disk once, rather than once per epoch.
+ * <p>
+ * The pixels are stored as one byte each, 1/8 of the size of a {@link DoubleMatrix}, and are expanded to a new {@link DoubleMatrix} each time the image is used.
+ * When the stored pixels go over the memory budget the least recently used images are evicted. Images with a pixel value outside [0, 255] are not cached.
+ * The cache can be used from several threads at once, such as the workers of a {@link DataLoader}.
+ */
+public class ImageCache {
+    /**
+     * The pixels of a cached image, one byte per pixel in column-major order like a {@link DoubleMatrix}.
+     */
+    private static class CachedImage {
+        private final int rows;
+        private final int columns;
+        private final byte[] pixels;
+
+        private CachedImage(int rows, int columns, byte[] pixels) {
+            this.rows = rows;
+            this.columns = columns;
+            this.pixels = pixels;
+        }
+    }
+
+    /**
+     * The maximum number of bytes of pixels to keep.
+     */
+    private final long memoryBudget;
+    /**
+     * The cached images keyed by their path without extension, in least to most recently used order.
+     */
+    private final LinkedHashMap<String, CachedImage> images;
+    private long bytesUsed;
+
+    // Counters
+    private long hits;
+    private long misses;
+    private long evictions;
+
+    /**
+     * Creates an empty cache.
+     * @param memoryBudget The maximum number of bytes of pixels to keep. One byte is used for each pixel.
+     */
+    public ImageCache(long memoryBudget) {
+        this.memoryBudget = memoryBudget;
+        this.images = new LinkedHashMap<>(16, 0.75f, true);
+    }
+
+    /**
+     * Gets an image, decoding it with {@link ImageDecoder#decode(String, String)} and caching it if it is not cached.
+     * @param imageDir The directory containing the images.
+     * @param imgName The name of the image (without extension).
+     * @return A list containing a new {@link DoubleMatrix} of the pixel values, or null if the image could not be read.
+     */
+    public List<DoubleMatrix> get(String imageDir, String imgName) {
+        String key = imageDir + imgName;
+
+        CachedImage cached;
+        synchronized (this) {
+            cached = images.get(key);
+            if (cached != null)
+                hits++;
+            else
+                misses++;
+        }
+
+        if (cached != null)
+            return expand(cached);
+
+        // Decode outside the lock so that other threads can use the cache meanwhile
+        List<DoubleMatrix> decoded = ImageDecoder.decode(imageDir, imgName);
+        if (decoded != null && decoded.size() == 1) {
+            CachedImage compact = compact(decoded.get(0));
+            if (compact != null)
+                put(key, compact);
+        }
+
+        return decoded;
+    }
+
+    /**
+     * Removes every image from the cache. The counters are kept.
+     */
+    public synchronized void clear() {
+        images.clear();
+        bytesUsed = 0;
+    }
+
+    public long getMemoryBudget() {
+        return memoryBudget;
+    }
+
+    public synchronized long getBytesUsed() {
+        return bytesUsed;
+    }
+
+    public synchronized int getNumberOfImages() {
+        return images.size();
+    }
+
+    /**
+     * @return The number of times a requested image was already cached.
+     */
+    public synchronized long getHits() {
+        return hits;
+    }
+
+    /**
+     * @return The number of times a requested image had to be decoded.
+     */
+    public synchronized long getMisses() {
+        return misses;
+    }
+
+    /**
+     * @return The number of images removed to stay within the memory budget.
+     */
+    public synchronized long getEvictions() {
+        return evictions;
+    }
+
+    @Override
+    public synchronized String toString() {
+        return "Image cache: images(" + images.size() + "), "
+                + "memory(" + (bytesUsed / 1024) + "/" + (memoryBudget / 1024) + "KB), "
+                + "hits(" + hits + "), misses(" + misses + "), evictions(" + evictions + ").";
+    }
+
+    /**
+     * Adds an image to the cache, then evicts the least recently used images until the cache is within the memory budget.
+     * @param key The path of the image without extension.
+     * @param image The pixels of the image.
+     */
+    private synchronized void put(String key, CachedImage image) {
+        if (image.pixels.length > memoryBudget)
+            return;
+
+        CachedImage previous = images.put(key, image);
+        if (previous != null)
+            bytesUsed -= previous.pixels.length;
+        bytesUsed += image.pixels.length;
+
+        Iterator<CachedImage> leastRecentlyUsed = images.values().iterator();
+        while (bytesUsed > memoryBudget) {
+            bytesUsed -= leastRecentlyUsed.next().pixels.length;
+            leastRecentlyUsed.remove();
+            evictions++;
+        }
+    }
+
+    /**
+     * Stores the pixels of an image as bytes.
+     * @param image The decoded image.
+     * @return The {@link CachedImage}, or null if a pixel is not a whole number in [0, 255].
+     */
+    private static CachedImage compact(DoubleMatrix image) {
+        byte[] pixels = new byte[image.length];
+
+        for (int i=0; i<image.length; i++) {
+            double value = image.data[i];
+            if (value < 0 || value > 255 || value != Math.rint(value))
+                return null;
+
+            pixels[i] = (byte) value;
+        }
+
+        return new CachedImage(image.rows, image.columns, pixels);
+    }
+
+    /**
+     * Expands the pixels of a cached image into a new {@link DoubleMatrix}.
+     * @param image The cached image.
+     * @return A list containing the {@link DoubleMatrix}, in the same form as {@link ImageDecoder#decode(String, String)}.
+     */
+    private static List<DoubleMatrix> expand(CachedImage image) {
+        DoubleMatrix imgData = new DoubleMatrix(image.rows, image.columns);
+
+        for (int i=0; i<image.pixels.length; i++) {
+            imgData.data[i] = image.pixels[i] & 0xFF;
+        }
+
+        List<DoubleMatrix> out = new ArrayList<>();
+        out.add(imgData);
+
+        return out;
+    }
+}
\ No newline at end of file
@@ -0,0 +1,113 @@
+package waddington.kai.main.knnf.data;
+
+import org.jblas.DoubleMatrix;
+
+import javax.imageio.ImageIO;
+import java.awt.image.BufferedImage;
+import java.awt.image.ComponentSampleModel;
+import java.awt.image.DataBuffer;
+import java.awt.image.DataBufferByte;
+import java.awt.image.Raster;
+import java.awt.image.SampleModel;
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Static helper class for reading the images of a data-set into {@link DoubleMatrix}'s.
+ */
+public class ImageDecoder {
+
+    /**
+     * Converts a .png image to a list of {@link DoubleMatrix}'s containing the pixel values, see {@link #toMatrix(BufferedImage)}.
+     * @param imageDir The directory containing the images.
+     * @param imgName The name of the image (without extension).
+     * @return A list containing {@link DoubleMatrix}'s containing the pixel values, or null if the image could not be read.
+     */
+    public static List<DoubleMatrix> decode(String imageDir, String imgName) {
+        BufferedImage img = null;
+
+        try {
+            img = ImageIO.read(new File(imageDir + imgName + ".png"));
+        } catch (IOException e) {
+            // Reported below, as when there is no reader for the file
+        }
+
+        // ImageIO returns null rather than throwing when the file is not an image it can read
+        if (img == null) {
+            System.out.println("Could not read image " + imgName);
+            return null;
+        }
+
+        List<DoubleMatrix> out = new ArrayList<>();
+        out.add(toMatrix(img));
+
+        return out;
+    }
+
+    /**
+     * Copies the first band of an image into a {height, width} {@link DoubleMatrix}: the grey value of a greyscale image or the red value of an RGB image.
+     * <p>
+     * Images stored as bytes, which includes 8-bit greyscale and RGB .png's, are read straight from the backing array of the raster.
+     * Other images are read with one {@link Raster#getSamples(int, int, int, int, int, int[])} call for the whole band.
+     * Either way the result is the same as reading each pixel with {@link Raster#getPixel(int, int, int[])}, without an array and raster lookup per pixel.
+     * @param img The image.
+     * @return A {@link DoubleMatrix} of the pixel values.
+     */
+    public static DoubleMatrix toMatrix(BufferedImage img) {
+        Raster raster = img.getRaster();
+        int width = raster.getWidth();
+        int height = raster.getHeight();
+
+        DoubleMatrix imgData = new DoubleMatrix(height, width);
+        double[] data = imgData.data;
+
+        DataBuffer buffer = raster.getDataBuffer();
+        SampleModel sampleModel = raster.getSampleModel();
+
+        if (buffer instanceof DataBufferByte && sampleModel instanceof ComponentSampleModel) {
+            ComponentSampleModel model = (ComponentSampleModel) sampleModel;
+            int bank = model.getBankIndices()[0];
+            byte[] bytes = ((DataBufferByte) buffer).getData(bank);
+            int pixelStride = model.getPixelStride();
+            int scanlineStride = model.getScanlineStride();
+
+            // The offset of the first sample of the raster, which can be translated within the buffer, e.g. for a sub-image
+            int origin = buffer.getOffsets()[bank]
+                    + model.getOffset(raster.getMinX() - raster.getSampleModelTranslateX(), raster.getMinY() - raster.getSampleModelTranslateY(), 0);
+
+            // Write the matrix in order, one column at a time
+            for (int x=0; x<width; x++) {
+                int column = origin + x * pixelStride;
+                int offset = x * height;
+                for (int y=0; y<height; y++) {
+                    data[offset + y] = bytes[column + y * scanlineStride] & 0xFF;
+                }
+            }
+        } else {
+            int[] samples = raster.getSamples(raster.getMinX(), raster.getMinY(), width, height, 0, (int[]) null);
+
+            // The samples are in row-major order and the matrix is column-major
+            for (int x=0; x<width; x++) {
+                int offset = x * height;
+                for (int y=0; y<height; y++) {
+                    data[offset + y] = samples[y * width + x];
+                }
+            }
+        }
+
+        return imgData;
+    }
+
+    /**
+     * Checks whether an image is a slice ending in "-1". These slices were not deemed to be useful, so they are skipped.
+     * @param imgName The name of the image (without extension).
+     * @return True if the image should be skipped.
+     */
+    public static boolean isSkippedSlice(String imgName) {
+        String imgSuffix = imgName.substring(imgName.length()-1, imgName.length());
+
+        return "1".equals(imgSuffix);
+    }
+}
\ No newline at end of file
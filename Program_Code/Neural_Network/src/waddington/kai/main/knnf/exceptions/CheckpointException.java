@@ -0,0 +1,16 @@
+/*
+* Exception for when a training checkpoint cannot be read, or does not match the network it is restored into.
+*/
+
+package waddington.kai.main.knnf.exceptions;
+
+public class CheckpointException extends RuntimeException {
+
+    public CheckpointException(String message) {
+        super("Could not restore the checkpoint. " + message);
+    }
+
+    public CheckpointException(String message, Throwable cause) {
+        super("Could not restore the checkpoint. " + message, cause);
+    }
+}
\ No newline at end of file
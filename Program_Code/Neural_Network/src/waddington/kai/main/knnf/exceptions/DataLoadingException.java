@@ -0,0 +1,12 @@
+package waddington.kai.main.knnf.exceptions;
+
+public class DataLoadingException extends RuntimeException {
+
+    public DataLoadingException(String message) {
+        super("Could not load the data-set. " + message);
+    }
+
+    public DataLoadingException(String message, Throwable cause) {
+        super("Could not load the data-set. " + message, cause);
+    }
+}
\ No newline at end of file
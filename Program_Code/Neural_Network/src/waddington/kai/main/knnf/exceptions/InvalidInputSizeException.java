@@ -0,0 +1,12 @@
+/*
+* Exception for when the data given to a layer is not the size the network was validated for, e.g. an image of the wrong size.
+*/
+
+package waddington.kai.main.knnf.exceptions;
+
+public class InvalidInputSizeException extends RuntimeException {
+
+    public InvalidInputSizeException(String message) {
+        super("Input size invalid. " + message);
+    }
+}
\ No newline at end of file
@@ -0,0 +1,16 @@
+/*
+* Exception for when the prediction engine cannot make a prediction for an image.
+*/
+
+package waddington.kai.main.knnf.exceptions;
+
+public class PredictionException extends RuntimeException {
+
+    public PredictionException(String message) {
+        super("Could not make a prediction. " + message);
+    }
+
+    public PredictionException(String message, Throwable cause) {
+        super("Could not make a prediction. " + message, cause);
+    }
+}
\ No newline at end of file
@@ -0,0 +1,12 @@
+/*
+* Exception for if the user inputs an invalid convolution method.
+*/
+
+package waddington.kai.main.knnf.exceptions;
+
+public class UnknownConvolutionMethodException extends RuntimeException {
+
+    public UnknownConvolutionMethodException(String message) {
+        super("Selected convolution method not known. " + message);
+    }
+}
\ No newline at end of file
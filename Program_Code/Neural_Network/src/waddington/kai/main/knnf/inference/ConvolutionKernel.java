@@ -0,0 +1,301 @@
+package waddington.kai.main.knnf.inference;
+
+import org.jblas.DoubleMatrix;
+import org.jblas.NativeBlas;
+import waddington.kai.main.knnf.LayerActivation;
+import waddington.kai.main.knnf.LayerType;
+import waddington.kai.main.knnf.NetworkHelper;
+import waddington.kai.main.knnf.layers.LayerConvolution;
+import waddington.kai.main.knnf.layers.LayerPool;
+import waddington.kai.main.knnf.layers.neurons.NeuronConvolution;
+
+import java.util.Arrays;
+import java.util.function.DoubleUnaryOperator;
+
+/**
+ * A convolution layer, and the pooling layer above it if there is one, fused into one kernel.
+ * <p>
+ * Each filter is divided by its sum when the kernel is compiled, so the normalisation of {@link NeuronConvolution} is folded into the filter bank.
+ * The convolution is then one matrix multiply of the receptive fields with the filter bank, which writes each channel of the output contiguously.
+ * When fused with pooling, the cells are pooled before the bias and activation are applied. Every {@link LayerActivation} is non-decreasing, so this gives the same
+ * values while only activating the pooled cells.
+ * <p>
+ * {@link QuantisedConvolutionKernel} replaces the matrix multiply with an int8 one, see {@link #convolve(double[], double[], double[][], int[][])}.
+ */
+class ConvolutionKernel implements Kernel {
+    // Input shape
+    private final int channels;
+    protected final int inputRows;
+    protected final int inputCols;
+
+    // Convolution
+    protected final int filterSize;
+    protected final int stride;
+    protected final int numberOfFilters;
+    protected final int outputRows;
+    protected final int outputCols;
+    /**
+     * The {filterSize*filterSize, numberOfFilters} filter bank, each filter divided by its sum and laid out in one column. Null in a quantised copy.
+     */
+    protected final double[] filters;
+    private final double[] biases;
+    private final LayerActivation activation;
+    private final DoubleUnaryOperator activationFunction;
+
+    // Pooling, poolType is null when not fused with a pooling layer
+    private final LayerType poolType;
+    private final int pooledChannels;
+    private final int poolSize;
+    private final int poolStride;
+    private final int pooledRows;
+    private final int pooledCols;
+
+    /**
+     * Compiles a convolution layer, fused with the pooling layer above it.
+     * @param layer The convolution layer.
+     * @param pool The pooling layer directly above the convolution layer, or null to compile the convolution on its own.
+     * @param channels The number of neurons in the layer below, whose outputs are summed.
+     */
+    ConvolutionKernel(LayerConvolution layer, LayerPool pool, int channels) {
+        this.channels = channels;
+        inputRows = layer.getInputSize()[1];
+        inputCols = layer.getInputSize()[2];
+
+        filterSize = layer.getFilterSize();
+        stride = layer.getStride();
+        numberOfFilters = layer.getNumberOfFilters();
+        outputRows = layer.getOutputSize()[1];
+        outputCols = layer.getOutputSize()[2];
+        activation = layer.getLayerActivation();
+        activationFunction = NetworkHelper.getActivationFunction(activation);
+
+        int patchSize = filterSize * filterSize;
+        filters = new double[patchSize * numberOfFilters];
+        biases = new double[numberOfFilters];
+
+        for (int f=0; f<numberOfFilters; f++) {
+            NeuronConvolution neuron = (NeuronConvolution) layer.getNeuron(f);
+            DoubleMatrix filter = neuron.getFilter();
+            double sumOfFilter = NetworkHelper.sumMatrix(filter);
+
+            for (int i=0; i<patchSize; i++) {
+                filters[(f*patchSize)+i] = filter.data[i] / sumOfFilter;
+            }
+
+            biases[f] = neuron.getBias();
+        }
+
+        if (pool != null) {
+            poolType = pool.getLayerType();
+            pooledChannels = pool.getNeurons().size();
+            poolSize = pool.getPoolSize();
+            poolStride = pool.getStride();
+            pooledRows = pool.getOutputSize()[1];
+            pooledCols = pool.getOutputSize()[2];
+        } else {
+            poolType = null;
+            pooledChannels = numberOfFilters;
+            poolSize = 0;
+            poolStride = 0;
+            pooledRows = outputRows;
+            pooledCols = outputCols;
+        }
+    }
+
+    /**
+     * Copies the shape, biases, activation and pooling of a kernel, but not its filters, for {@link QuantisedConvolutionKernel}.
+     * @param kernel The kernel to copy.
+     */
+    protected ConvolutionKernel(ConvolutionKernel kernel) {
+        channels = kernel.channels;
+        inputRows = kernel.inputRows;
+        inputCols = kernel.inputCols;
+
+        filterSize = kernel.filterSize;
+        stride = kernel.stride;
+        numberOfFilters = kernel.numberOfFilters;
+        outputRows = kernel.outputRows;
+        outputCols = kernel.outputCols;
+        filters = null;
+        biases = kernel.biases;
+        activation = kernel.activation;
+        activationFunction = kernel.activationFunction;
+
+        poolType = kernel.poolType;
+        pooledChannels = kernel.pooledChannels;
+        poolSize = kernel.poolSize;
+        poolStride = kernel.poolStride;
+        pooledRows = kernel.pooledRows;
+        pooledCols = kernel.pooledCols;
+    }
+
+    @Override
+    public int getOutputLength() {
+        return pooledChannels * pooledRows * pooledCols;
+    }
+
+    /**
+     * The summed input channels (empty for a single channel), the receptive fields, and the output before pooling (empty when not pooling).
+     */
+    @Override
+    public int[] getScratchLengths() {
+        int outputLength = outputRows * outputCols;
+
+        return new int[] {
+                channels > 1 ? inputRows * inputCols : 0,
+                (filterSize * filterSize) * outputLength,
+                poolType != null ? numberOfFilters * outputLength : 0
+        };
+    }
+
+    @Override
+    public void run(double[] input, double[] output, double[][] scratch, int[][] quantisedScratch) {
+        int inputLength = inputRows * inputCols;
+        int outputLength = outputRows * outputCols;
+
+        // Each filter uses a summed view of all input channels
+        double[] summed = input;
+        if (channels > 1) {
+            summed = scratch[0];
+
+            System.arraycopy(input, 0, summed, 0, inputLength);
+            for (int c=1; c<channels; c++) {
+                int channelOffset = c * inputLength;
+                for (int i=0; i<inputLength; i++)
+                    summed[i] += input[channelOffset + i];
+            }
+        }
+
+        // Pooling reads the convolved channels from scratch, otherwise they are written straight to the output
+        double[] convolved = poolType != null ? scratch[2] : output;
+        convolve(summed, convolved, scratch, quantisedScratch);
+
+        if (poolType != null) {
+            pool(convolved, output);
+            return;
+        }
+
+        for (int f=0; f<numberOfFilters; f++) {
+            double bias = biases[f];
+            int offset = f * outputLength;
+
+            for (int i=offset; i<offset+outputLength; i++)
+                output[i] = activationFunction.applyAsDouble(output[i] + bias);
+        }
+    }
+
+    @Override
+    public long getWeightBytes() {
+        return (filters.length + biases.length) * (long) Double.BYTES;
+    }
+
+    /**
+     * The largest absolute value of the summed input channels.
+     */
+    @Override
+    public double getInputRange(double[] input, double[][] scratch) {
+        return QuantisationHelper.getRange(channels > 1 ? scratch[0] : input);
+    }
+
+    @Override
+    public Kernel quantise(double inputRange) {
+        return new QuantisedConvolutionKernel(this, inputRange);
+    }
+
+    /**
+     * Convolves the summed input with every filter, without the bias.
+     * @param summed The summed input channels.
+     * @param convolved The array to write the convolved channels to, one after another.
+     * @param scratch The scratch arrays, the receptive fields are laid out in the second.
+     * @param quantisedScratch The int scratch arrays, unused by this kernel.
+     */
+    protected void convolve(double[] summed, double[] convolved, double[][] scratch, int[][] quantisedScratch) {
+        int outputLength = outputRows * outputCols;
+        int patchSize = filterSize * filterSize;
+
+        double[] patches = scratch[1];
+        im2col(summed, patches);
+
+        // One GEMM for all filters, fields^T * filters gives one output channel per column
+        NativeBlas.dgemm('T', 'N', outputLength, numberOfFilters, patchSize,
+                1.0, patches, 0, patchSize,
+                filters, 0, patchSize,
+                0.0, convolved, 0, outputLength);
+    }
+
+    /**
+     * Lays out every receptive field of the summed input as a column of the scratch space, in the same order as {@link NetworkHelper#im2col(DoubleMatrix, int, int, DoubleMatrix)}.
+     * @param input The summed input channels.
+     * @param patches The array to write the receptive fields to.
+     */
+    protected void im2col(double[] input, double[] patches) {
+        int index = 0;
+
+        for (int ox=0; ox<outputCols; ox++) {
+            for (int oy=0; oy<outputRows; oy++) {
+                // Each column of the receptive field is contiguous in the input
+                for (int fx=0; fx<filterSize; fx++) {
+                    int inputIndex = (((ox*stride)+fx) * inputRows) + (oy*stride);
+                    System.arraycopy(input, inputIndex, patches, index, filterSize);
+                    index += filterSize;
+                }
+            }
+        }
+    }
+
+    /**
+     * Pools each convolved channel that the pooling layer has a neuron for, then applies the bias and activation to the pooled cells only.
+     * Each receptive field is scanned in column-major order, the same as {@link waddington.kai.main.knnf.layers.neurons.NeuronPool}.
+     * @param convolved The convolved channels before the bias and activation.
+     * @param output The array to write the pooled channels to.
+     */
+    private void pool(double[] convolved, double[] output) {
+        boolean max = poolType == LayerType.maxPool;
+        int outputLength = outputRows * outputCols;
+        int pooledLength = pooledRows * pooledCols;
+
+        for (int f=0; f<pooledChannels; f++) {
+            int channelOffset = f * outputLength;
+            int pooledOffset = f * pooledLength;
+            double bias = biases[f];
+
+            for (int px=0; px<pooledCols; px++) {
+                for (int py=0; py<pooledRows; py++) {
+                    int fieldStart = channelOffset + ((px*poolStride) * outputRows) + (py*poolStride);
+                    double best = convolved[fieldStart];
+
+                    for (int x=0; x<poolSize; x++) {
+                        int columnStart = fieldStart + (x*outputRows);
+
+                        for (int y=0; y<poolSize; y++) {
+                            double value = convolved[columnStart+y];
+
+                            if (max ? value > best : value < best)
+                                best = value;
+                        }
+                    }
+
+                    output[pooledOffset + (px*pooledRows) + py] = activationFunction.applyAsDouble(best + bias);
+                }
+            }
+        }
+    }
+
+    @Override
+    public String toString() {
+        return toString("");
+    }
+
+    /**
+     * @param precision The precision of the filters to describe, e.g. "int8", or an empty string.
+     * @return A description of the kernel.
+     */
+    protected String toString(String precision) {
+        String description = "conv(" + numberOfFilters + ", " + filterSize + "x" + filterSize + ", stride " + stride + ", " + activation + (precision.isEmpty() ? "" : ", " + precision) + ")";
+
+        if (poolType != null)
+            description += " + " + poolType + "(" + poolSize + "x" + poolSize + ", stride " + poolStride + ")";
+
+        return description + " -> " + Arrays.toString(new int[] {pooledChannels, pooledRows, pooledCols});
+    }
+}
\ No newline at end of file
@@ -0,0 +1,190 @@
+package waddington.kai.main.knnf.inference;
+
+import waddington.kai.main.knnf.LayerActivation;
+import waddington.kai.main.knnf.NetworkHelper;
+import waddington.kai.main.knnf.layers.Layer;
+import waddington.kai.main.knnf.layers.LayerFullyConnected;
+import waddington.kai.main.knnf.layers.LayerOutput;
+import waddington.kai.main.knnf.layers.neurons.NeuronFullyConnected;
+import waddington.kai.main.knnf.layers.neurons.NeuronOutput;
+
+import java.util.function.DoubleUnaryOperator;
+
+/**
+ * A fully-connected or output layer. The weighted sum, bias and activation of each neuron are calculated in one pass over its row of the weights,
+ * with the output layer applying softmax instead of an activation.
+ * <p>
+ * The rows are multiplied in Java rather than with a BLAS matrix-vector multiply, as the BLAS routines copy the whole weight matrix in and out on every call,
+ * which takes far longer than the multiply itself.
+ * <p>
+ * {@link QuantisedDenseKernel} replaces the multiply with an int8 one, see {@link #multiply(double[], double[], int[][])}.
+ */
+class DenseKernel implements Kernel {
+    protected final int numberOfNeurons;
+    protected final int numberOfInputs;
+    /**
+     * The weights of each neuron one after another, so each neuron reads its weights contiguously. Null in a quantised copy.
+     */
+    protected final double[] weights;
+    private final double[] biases;
+    /**
+     * The activation of a fully-connected layer, or null for the output layer, which applies softmax instead.
+     */
+    private final LayerActivation activation;
+    private final DoubleUnaryOperator activationFunction;
+
+    /**
+     * Compiles a fully-connected layer.
+     * @param layer The fully-connected layer.
+     */
+    DenseKernel(LayerFullyConnected layer) {
+        this(layer, layer.getNumberOfWeights(), layer.getLayerActivation());
+    }
+
+    /**
+     * Compiles the output layer.
+     * @param layer The output layer.
+     */
+    DenseKernel(LayerOutput layer) {
+        this(layer, layer.getNumberOfWeights(), null);
+    }
+
+    /**
+     * Copies the weights and biases of the neurons of a layer, whether they are stored by each neuron or as {@link waddington.kai.main.knnf.layers.DenseWeights}.
+     * @param layer The fully-connected or output layer.
+     * @param numberOfInputs The number of weights each neuron has (excluding weight to bias).
+     * @param activation The activation of the layer, or null to apply softmax.
+     */
+    private DenseKernel(Layer layer, int numberOfInputs, LayerActivation activation) {
+        this.numberOfNeurons = layer.getNeurons().size();
+        this.numberOfInputs = numberOfInputs;
+        this.activation = activation;
+        activationFunction = activation != null ? NetworkHelper.getActivationFunction(activation) : null;
+
+        weights = new double[numberOfNeurons * numberOfInputs];
+        biases = new double[numberOfNeurons];
+
+        for (int n=0; n<numberOfNeurons; n++) {
+            if (activation != null) {
+                NeuronFullyConnected neuron = (NeuronFullyConnected) layer.getNeuron(n);
+                for (int i=0; i<numberOfInputs; i++)
+                    weights[(n*numberOfInputs)+i] = neuron.getWeight(i);
+                biases[n] = neuron.getBias();
+            } else {
+                NeuronOutput neuron = (NeuronOutput) layer.getNeuron(n);
+                for (int i=0; i<numberOfInputs; i++)
+                    weights[(n*numberOfInputs)+i] = neuron.getWeight(i);
+                biases[n] = neuron.getBias();
+            }
+        }
+    }
+
+    /**
+     * Copies the shape, biases and activation of a kernel, but not its weights, for {@link QuantisedDenseKernel}.
+     * @param kernel The kernel to copy.
+     */
+    protected DenseKernel(DenseKernel kernel) {
+        numberOfNeurons = kernel.numberOfNeurons;
+        numberOfInputs = kernel.numberOfInputs;
+        weights = null;
+        biases = kernel.biases;
+        activation = kernel.activation;
+        activationFunction = kernel.activationFunction;
+    }
+
+    @Override
+    public int getOutputLength() {
+        return numberOfNeurons;
+    }
+
+    @Override
+    public int[] getScratchLengths() {
+        return new int[0];
+    }
+
+    @Override
+    public void run(double[] input, double[] output, double[][] scratch, int[][] quantisedScratch) {
+        multiply(input, output, quantisedScratch);
+
+        if (activation != null) {
+            for (int n=0; n<numberOfNeurons; n++)
+                output[n] = activationFunction.applyAsDouble(output[n] + biases[n]);
+            return;
+        }
+
+        // Softmax, the same as NetworkHelper.applySoftmax
+        double sumExp = 0;
+        for (int n=0; n<numberOfNeurons; n++) {
+            output[n] = Math.exp(output[n] + biases[n]);
+            sumExp += output[n];
+        }
+
+        for (int n=0; n<numberOfNeurons; n++)
+            output[n] /= sumExp;
+    }
+
+    @Override
+    public long getWeightBytes() {
+        return (weights.length + biases.length) * (long) Double.BYTES;
+    }
+
+    @Override
+    public double getInputRange(double[] input, double[][] scratch) {
+        return QuantisationHelper.getRange(input);
+    }
+
+    @Override
+    public Kernel quantise(double inputRange) {
+        return new QuantisedDenseKernel(this, inputRange);
+    }
+
+    /**
+     * Writes the weighted sum of each neuron, without the bias.
+     * @param input The input values.
+     * @param output The array to write the weighted sums to.
+     * @param quantisedScratch The int scratch arrays, unused by this kernel.
+     */
+    protected void multiply(double[] input, double[] output, int[][] quantisedScratch) {
+        for (int n=0; n<numberOfNeurons; n++)
+            output[n] = dot(input, n * numberOfInputs);
+    }
+
+    /**
+     * Multiplies the input with the weights of one neuron.
+     * Four partial sums are kept so the additions do not each wait for the one before.
+     * @param input The input values.
+     * @param offset The index of the first weight of the neuron.
+     * @return The weighted sum.
+     */
+    private double dot(double[] input, int offset) {
+        double sum0 = 0, sum1 = 0, sum2 = 0, sum3 = 0;
+        int i = 0;
+
+        for (; i+3<numberOfInputs; i+=4) {
+            sum0 += weights[offset+i] * input[i];
+            sum1 += weights[offset+i+1] * input[i+1];
+            sum2 += weights[offset+i+2] * input[i+2];
+            sum3 += weights[offset+i+3] * input[i+3];
+        }
+
+        for (; i<numberOfInputs; i++)
+            sum0 += weights[offset+i] * input[i];
+
+        return (sum0 + sum1) + (sum2 + sum3);
+    }
+
+    @Override
+    public String toString() {
+        return toString("");
+    }
+
+    /**
+     * @param precision The precision of the weights to describe, e.g. "int8", or an empty string.
+     * @return A description of the kernel.
+     */
+    protected String toString(String precision) {
+        String weightsDescription = precision.isEmpty() ? "" : ", " + precision;
+
+        return (activation != null ? "fc(" + numberOfNeurons + ", " + activation + weightsDescription + ")" : "output(" + numberOfNeurons + ", softmax" + weightsDescription + ")") + " -> [" + numberOfNeurons + "]";
+    }
+}
\ No newline at end of file
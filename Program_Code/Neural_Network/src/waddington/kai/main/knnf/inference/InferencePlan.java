@@ -0,0 +1,283 @@
+package waddington.kai.main.knnf.inference;
+
+import org.jblas.DoubleMatrix;
+import waddington.kai.main.knnf.exceptions.InvalidNetworkException;
+import waddington.kai.main.knnf.exceptions.PredictionException;
+import waddington.kai.main.knnf.layers.Layer;
+import waddington.kai.main.knnf.layers.LayerConvolution;
+import waddington.kai.main.knnf.layers.LayerFullyConnected;
+import waddington.kai.main.knnf.layers.LayerOutput;
+import waddington.kai.main.knnf.layers.LayerPool;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * A trained network compiled for making predictions, see {@link waddington.kai.main.knnf.NetworkManager#compileForInference()}.
+ * <p>
+ * The layers are compiled into a fixed sequence of kernels for the shapes the network was validated with:
+ * <ul>
+ *     <li>Convolution layers fold the normalisation of each filter into the filter bank, and fuse the pooling layer above them, see {@link ConvolutionKernel}.</li>
+ *     <li>Flattening layers need no kernel, as the activations are always stored in flattened order.</li>
+ *     <li>Fully-connected layers apply their activation in the same pass as the bias, and the output layer its softmax, see {@link DenseKernel}.</li>
+ * </ul>
+ * Activation types are resolved to a function when compiling, so no value goes through {@link waddington.kai.main.knnf.NetworkHelper#applyActivation(waddington.kai.main.knnf.LayerActivation, double)}.
+ * <p>
+ * The plan copies the weights when it is compiled and never changes, so training the network further does not affect it and it can be shared by any number of threads.
+ * Each thread needs its own {@link Workspace}, which holds the activation and scratch arrays of every kernel so that predicting does not allocate.
+ * <p>
+ * A plan can be quantised after training with {@link #quantise(List)}, which stores the filters and weights as int8, see {@link QuantisationHelper}.
+ */
+public final class InferencePlan {
+    /**
+     * The {channels, rows, columns} shape of the images the plan predicts.
+     */
+    private final int[] inputSize;
+    private final Kernel[] kernels;
+
+    /**
+     * See {@link #compile(List)}.
+     * @param inputSize The shape of the images.
+     * @param kernels The kernels, in the order they run.
+     */
+    private InferencePlan(int[] inputSize, List<Kernel> kernels) {
+        this.inputSize = inputSize.clone();
+        this.kernels = kernels.toArray(new Kernel[0]);
+    }
+
+    /**
+     * Compiles the layers of a validated network into a plan, copying their current weights.
+     * @param layers The layers of the network, see {@link waddington.kai.main.knnf.NetworkManager#networkValidityCheck()}.
+     * @return The plan.
+     * @throws InvalidNetworkException If the network does not start with an input layer and end with an output layer.
+     */
+    public static InferencePlan compile(List<Layer> layers) {
+        if (!(layers.get(layers.size()-1) instanceof LayerOutput))
+            throw new InvalidNetworkException("\r\nOnly a network ending with an output layer can be compiled for inference. ");
+
+        List<Kernel> kernels = new ArrayList<>();
+
+        for (int j=1; j<layers.size(); j++) {
+            Layer layer = layers.get(j);
+            int channels = layers.get(j-1).getNeurons().size();
+
+            switch (layer.getLayerType()) {
+                case conv: {
+                    // Fuse the pooling layer above, if there is one
+                    Layer next = layers.get(j+1);
+                    if (next instanceof LayerPool) {
+                        kernels.add(new ConvolutionKernel((LayerConvolution) layer, (LayerPool) next, channels));
+                        j++;
+                    } else {
+                        kernels.add(new ConvolutionKernel((LayerConvolution) layer, null, channels));
+                    }
+                    break;
+                }
+                case maxPool:
+                case minPool: {
+                    kernels.add(new PoolKernel((LayerPool) layer));
+                    break;
+                }
+                case flatten: {
+                    // The activations are already flat
+                    break;
+                }
+                case fc: {
+                    kernels.add(new DenseKernel((LayerFullyConnected) layer));
+                    break;
+                }
+                case output: {
+                    kernels.add(new DenseKernel((LayerOutput) layer));
+                    break;
+                }
+                default: {
+                    throw new InvalidNetworkException("\r\nLayer " + j + " cannot be compiled for inference. ");
+                }
+            }
+        }
+
+        return new InferencePlan(layers.get(0).getInputSize(), kernels);
+    }
+
+    /**
+     * @return The {channels, rows, columns} shape of the images the plan predicts.
+     */
+    public int[] getInputSize() {
+        return inputSize.clone();
+    }
+
+    /**
+     * Creates the buffers for one thread to predict with.
+     * @return A new {@link Workspace}.
+     */
+    public Workspace createWorkspace() {
+        return new Workspace(this);
+    }
+
+    /**
+     * @return The number of bytes taken by the weights and biases of every kernel.
+     */
+    public long getWeightBytes() {
+        long bytes = 0;
+
+        for (Kernel kernel: kernels)
+            bytes += kernel.getWeightBytes();
+
+        return bytes;
+    }
+
+    /**
+     * @return The number of bytes of weights copied into each {@link Workspace}, on top of {@link #getWeightBytes()}.
+     */
+    public long getWorkspaceWeightBytes() {
+        long bytes = 0;
+
+        for (Kernel kernel: kernels)
+            bytes += kernel.getWorkspaceWeightBytes();
+
+        return bytes;
+    }
+
+    /**
+     * Creates a copy of this plan with the filters of the convolution kernels and the weights of the fully-connected and output kernels stored as int8.
+     * The weights of each kernel share one scale, from the largest absolute weight. The input of each kernel also has one scale, calibrated from the largest absolute
+     * input seen while predicting the calibration images with this plan, so the images should be a representative sample of the data the plan will predict.
+     * Biases stay as doubles, and pooling, activations and softmax are unchanged.
+     * @param calibrationImages The images to calibrate the input scales with, in the shape of {@link #getInputSize()}.
+     * @return The quantised plan.
+     * @throws PredictionException If there are no calibration images, or one is the wrong shape.
+     * @throws InvalidNetworkException If a kernel has so many inputs per neuron that its int weighted sums could overflow.
+     */
+    public InferencePlan quantise(List<List<DoubleMatrix>> calibrationImages) {
+        if (calibrationImages.isEmpty())
+            throw new PredictionException("At least one calibration image is needed to quantise a plan.");
+
+        Workspace workspace = createWorkspace();
+        double[] inputRanges = new double[kernels.length];
+
+        for (List<DoubleMatrix> image: calibrationImages) {
+            setInput(image, workspace);
+
+            for (int k=0; k<kernels.length; k++) {
+                runKernel(k, workspace);
+                inputRanges[k] = Math.max(inputRanges[k], kernels[k].getInputRange(workspace.activations[k], workspace.scratch[k]));
+            }
+        }
+
+        List<Kernel> quantised = new ArrayList<>();
+        for (int k=0; k<kernels.length; k++)
+            quantised.add(kernels[k].quantise(inputRanges[k]));
+
+        return new InferencePlan(inputSize, quantised);
+    }
+
+    /**
+     * Predicts an image with a new workspace. Use {@link #predict(List, Workspace)} to predict several images without allocating buffers for each.
+     * @param image The image data, see {@link waddington.kai.main.knnf.data.ImageDecoder#decode(String, String)}.
+     * @return The outputs of the network, see {@link LayerOutput#getOutputs()}.
+     */
+    public DoubleMatrix predict(List<DoubleMatrix> image) {
+        return predict(image, createWorkspace());
+    }
+
+    /**
+     * Predicts an image.
+     * @param image The image data, one matrix per channel in the shape of {@link #getInputSize()}.
+     * @param workspace A workspace created by this plan, which must not be used by another thread at the same time.
+     * @return The outputs of the network, see {@link LayerOutput#getOutputs()}.
+     * @throws PredictionException If the image is not the shape the plan was compiled for.
+     */
+    public DoubleMatrix predict(List<DoubleMatrix> image, Workspace workspace) {
+        setInput(image, workspace);
+
+        // Each kernel reads the activations the one before it wrote
+        for (int k=0; k<kernels.length; k++) {
+            runKernel(k, workspace);
+        }
+
+        return new DoubleMatrix(workspace.activations[kernels.length].clone());
+    }
+
+    /**
+     * Copies an image into the first activations of a workspace.
+     * @param image The image data, one matrix per channel in the shape of {@link #getInputSize()}.
+     * @param workspace A workspace created by this plan.
+     * @throws PredictionException If the image is not the shape the plan was compiled for.
+     */
+    private void setInput(List<DoubleMatrix> image, Workspace workspace) {
+        if (image.size() != inputSize[0])
+            throw new PredictionException("The image has " + image.size() + " channels but the network was compiled for " + inputSize[0] + ".");
+
+        double[] input = workspace.activations[0];
+
+        int channelLength = inputSize[1] * inputSize[2];
+        for (int c=0; c<inputSize[0]; c++) {
+            DoubleMatrix channel = image.get(c);
+            if (channel.rows != inputSize[1] || channel.columns != inputSize[2])
+                throw new PredictionException("The image is " + channel.rows + "x" + channel.columns + " but the network was compiled for " + inputSize[1] + "x" + inputSize[2] + ".");
+
+            System.arraycopy(channel.data, 0, input, c * channelLength, channelLength);
+        }
+    }
+
+    /**
+     * Runs one kernel on the activations written by the kernel before it.
+     * @param k The index of the kernel.
+     * @param workspace A workspace created by this plan.
+     */
+    private void runKernel(int k, Workspace workspace) {
+        kernels[k].run(workspace.activations[k], workspace.activations[k+1], workspace.scratch[k], workspace.quantisedScratch[k]);
+    }
+
+    @Override
+    public String toString() {
+        StringBuilder description = new StringBuilder("Inference plan: input" + Arrays.toString(inputSize) + ".");
+
+        for (Kernel kernel: kernels)
+            description.append("\r\n\t").append(kernel);
+
+        return description.toString();
+    }
+
+    /**
+     * The activation and scratch arrays for predicting with an {@link InferencePlan} on one thread, each exactly the length its kernel uses.
+     */
+    public static final class Workspace {
+        /**
+         * The image, then the activations written by each kernel.
+         */
+        private final double[][] activations;
+        /**
+         * The scratch arrays of each kernel.
+         */
+        private final double[][][] scratch;
+        /**
+         * The int scratch arrays of each kernel, for quantised values and their sums.
+         */
+        private final int[][][] quantisedScratch;
+
+        private Workspace(InferencePlan plan) {
+            Kernel[] kernels = plan.kernels;
+            activations = new double[kernels.length+1][];
+            scratch = new double[kernels.length][][];
+            quantisedScratch = new int[kernels.length][][];
+
+            activations[0] = new double[plan.inputSize[0] * plan.inputSize[1] * plan.inputSize[2]];
+            for (int k=0; k<kernels.length; k++) {
+                activations[k+1] = new double[kernels[k].getOutputLength()];
+
+                int[] scratchLengths = kernels[k].getScratchLengths();
+                scratch[k] = new double[scratchLengths.length][];
+                for (int s=0; s<scratchLengths.length; s++)
+                    scratch[k][s] = new double[scratchLengths[s]];
+                kernels[k].initialiseScratch(scratch[k]);
+
+                int[] quantisedScratchLengths = kernels[k].getQuantisedScratchLengths();
+                quantisedScratch[k] = new int[quantisedScratchLengths.length][];
+                for (int s=0; s<quantisedScratchLengths.length; s++)
+                    quantisedScratch[k][s] = new int[quantisedScratchLengths[s]];
+            }
+        }
+    }
+}
\ No newline at end of file
@@ -0,0 +1,76 @@
+package waddington.kai.main.knnf.inference;
+
+/**
+ * One step of an {@link InferencePlan}, compiled from one or more layers of a network.
+ * <p>
+ * Activations are passed between kernels as flat arrays holding one channel after another, each channel in column-major order, the same order as {@link org.jblas.DoubleMatrix#data}.
+ * This is also the order that a flattening layer puts the values in, so flattening needs no kernel.
+ */
+interface Kernel {
+    /**
+     * @return The number of values this kernel writes to the output array.
+     */
+    int getOutputLength();
+
+    /**
+     * Gets the scratch arrays this kernel needs while it runs. Each is a separate array of exactly the length used, as the BLAS routines copy every array they are given.
+     * @return The length of each scratch array.
+     */
+    int[] getScratchLengths();
+
+    /**
+     * Gets the int scratch arrays this kernel needs while it runs, for the quantised values of its input and their int32 sums.
+     * @return The length of each int scratch array.
+     */
+    default int[] getQuantisedScratchLengths() {
+        return new int[0];
+    }
+
+    /**
+     * Fills the scratch arrays that hold values which do not change between predictions, once when a {@link InferencePlan.Workspace} is created.
+     * @param scratch The new scratch arrays, with the lengths of {@link #getScratchLengths()}.
+     */
+    default void initialiseScratch(double[][] scratch) {}
+
+    /**
+     * Calculates the activations of the layers this kernel was compiled from.
+     * @param input The activations of the layer below.
+     * @param output The array to write the activations to, {@link #getOutputLength()} long.
+     * @param scratch The scratch arrays, with the lengths of {@link #getScratchLengths()}.
+     * @param quantisedScratch The int scratch arrays, with the lengths of {@link #getQuantisedScratchLengths()}.
+     */
+    void run(double[] input, double[] output, double[][] scratch, int[][] quantisedScratch);
+
+    /**
+     * @return The number of bytes taken by the weights and biases of this kernel.
+     */
+    default long getWeightBytes() {
+        return 0;
+    }
+
+    /**
+     * @return The number of bytes of weights that {@link #initialiseScratch(double[][])} copies into each workspace.
+     */
+    default long getWorkspaceWeightBytes() {
+        return 0;
+    }
+
+    /**
+     * Gets the largest absolute value that this kernel multiplied with its weights when it last ran, used to calibrate {@link #quantise(double)}.
+     * @param input The input the kernel last ran with.
+     * @param scratch The scratch arrays the kernel last ran with.
+     * @return The largest absolute value, 0 for a kernel without weights.
+     */
+    default double getInputRange(double[] input, double[][] scratch) {
+        return 0;
+    }
+
+    /**
+     * Creates a copy of this kernel that stores its weights as int8 and multiplies them with int8 inputs, accumulating in int32.
+     * @param inputRange The largest absolute value seen by {@link #getInputRange(double[], double[][])} while calibrating.
+     * @return The quantised kernel, or this kernel if it has no weights or is already quantised.
+     */
+    default Kernel quantise(double inputRange) {
+        return this;
+    }
+}
\ No newline at end of file
@@ -0,0 +1,86 @@
+package waddington.kai.main.knnf.inference;
+
+import waddington.kai.main.knnf.LayerType;
+import waddington.kai.main.knnf.layers.LayerPool;
+
+import java.util.Arrays;
+
+/**
+ * A pooling layer that is not above a convolution layer, e.g. one that downsamples the input image. Pooling above a convolution is fused into its {@link ConvolutionKernel}.
+ */
+final class PoolKernel implements Kernel {
+    private final LayerType poolType;
+    private final int channels;
+    private final int inputRows;
+    private final int inputCols;
+    private final int poolSize;
+    private final int stride;
+    private final int outputRows;
+    private final int outputCols;
+
+    /**
+     * Compiles a pooling layer.
+     * @param layer The pooling layer.
+     */
+    PoolKernel(LayerPool layer) {
+        poolType = layer.getLayerType();
+        // One neuron per pooled channel, which can be fewer than the input channels
+        channels = layer.getNeurons().size();
+        inputRows = layer.getInputSize()[1];
+        inputCols = layer.getInputSize()[2];
+        poolSize = layer.getPoolSize();
+        stride = layer.getStride();
+        outputRows = layer.getOutputSize()[1];
+        outputCols = layer.getOutputSize()[2];
+    }
+
+    @Override
+    public int getOutputLength() {
+        return channels * outputRows * outputCols;
+    }
+
+    @Override
+    public int[] getScratchLengths() {
+        return new int[0];
+    }
+
+    /**
+     * Pools each channel, scanning each receptive field in column-major order, the same as {@link waddington.kai.main.knnf.layers.neurons.NeuronPool}.
+     */
+    @Override
+    public void run(double[] input, double[] output, double[][] scratch, int[][] quantisedScratch) {
+        boolean max = poolType == LayerType.maxPool;
+        int inputLength = inputRows * inputCols;
+        int outputLength = outputRows * outputCols;
+
+        for (int c=0; c<channels; c++) {
+            int channelOffset = c * inputLength;
+            int outputOffset = c * outputLength;
+
+            for (int ox=0; ox<outputCols; ox++) {
+                for (int oy=0; oy<outputRows; oy++) {
+                    int fieldStart = channelOffset + ((ox*stride) * inputRows) + (oy*stride);
+                    double best = input[fieldStart];
+
+                    for (int px=0; px<poolSize; px++) {
+                        int columnStart = fieldStart + (px*inputRows);
+
+                        for (int py=0; py<poolSize; py++) {
+                            double value = input[columnStart+py];
+
+                            if (max ? value > best : value < best)
+                                best = value;
+                        }
+                    }
+
+                    output[outputOffset + (ox*outputRows) + oy] = best;
+                }
+            }
+        }
+    }
+
+    @Override
+    public String toString() {
+        return poolType + "(" + poolSize + "x" + poolSize + ", stride " + stride + ") -> " + Arrays.toString(new int[] {channels, outputRows, outputCols});
+    }
+}
\ No newline at end of file
@@ -0,0 +1,78 @@
+package waddington.kai.main.knnf.inference;
+
+import waddington.kai.main.knnf.exceptions.InvalidNetworkException;
+
+/**
+ * Static utilities class for symmetric int8 quantisation, used by the quantised kernels.
+ * <p>
+ * A value x is stored as round(x / scale) clamped to [-127, 127], where the scale is the largest absolute value expected divided by 127.
+ * The product of two quantised values is at most 127*127, so a dot product is accumulated exactly in an int32 and multiplied by both scales once at the end.
+ * Weights are stored as bytes. Activations are quantised into scratch arrays while predicting.
+ */
+final class QuantisationHelper {
+    /**
+     * The largest quantised value. -128 is not used so that the range is symmetric.
+     */
+    static final int MAX_QUANTISED = 127;
+
+    private QuantisationHelper() {}
+
+    /**
+     * Gets the scale that maps the range [-range, range] onto [-127, 127].
+     * @param range The largest absolute value to represent.
+     * @return The scale, 1 if the range is 0 so that nothing is divided by 0.
+     */
+    static double getScale(double range) {
+        return range > 0 ? range / MAX_QUANTISED : 1;
+    }
+
+    /**
+     * Quantises a value.
+     * @param value The value.
+     * @param scale The scale, see {@link #getScale(double)}.
+     * @return The nearest quantised value, clamped to [-127, 127].
+     */
+    static int quantise(double value, double scale) {
+        long quantised = Math.round(value / scale);
+
+        return (int) Math.max(-MAX_QUANTISED, Math.min(MAX_QUANTISED, quantised));
+    }
+
+    /**
+     * Quantises an array with one scale for the whole array.
+     * @param values The values.
+     * @param scale The scale, see {@link #getScale(double)}.
+     * @return The quantised values.
+     */
+    static byte[] quantise(double[] values, double scale) {
+        byte[] quantised = new byte[values.length];
+
+        for (int i=0; i<values.length; i++)
+            quantised[i] = (byte) quantise(values[i], scale);
+
+        return quantised;
+    }
+
+    /**
+     * @param values The values.
+     * @return The largest absolute value in the array.
+     */
+    static double getRange(double[] values) {
+        double range = 0;
+
+        for (double value: values)
+            range = Math.max(range, Math.abs(value));
+
+        return range;
+    }
+
+    /**
+     * Checks that a dot product of quantised values cannot overflow the int32 it is accumulated in.
+     * @param length The number of products summed.
+     * @throws InvalidNetworkException If the largest possible sum does not fit in an int.
+     */
+    static void checkAccumulator(int length) {
+        if ((long) MAX_QUANTISED * MAX_QUANTISED * length > Integer.MAX_VALUE)
+            throw new InvalidNetworkException("\r\nA layer with " + length + " inputs per neuron cannot be quantised, as its weighted sums could overflow an int. ");
+    }
+}
\ No newline at end of file
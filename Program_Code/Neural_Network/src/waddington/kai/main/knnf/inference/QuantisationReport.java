@@ -0,0 +1,160 @@
+package waddington.kai.main.knnf.inference;
+
+import org.jblas.DoubleMatrix;
+
+import java.util.List;
+
+/**
+ * Compares a quantised plan with the double plan it was quantised from, see {@link InferencePlan#quantise(List)}.
+ * Each image passed to {@link #evaluate(List, int)} is predicted by both plans, recording the accuracy, speed and agreement of each, and the weights of both are compared.
+ * The weights copied into each workspace are reported separately, as they are held once per thread.
+ * <p>
+ * Not thread-safe, as it predicts with one workspace per plan.
+ */
+public final class QuantisationReport {
+    private final InferencePlan plan;
+    private final InferencePlan quantisedPlan;
+    private final InferencePlan.Workspace workspace;
+    private final InferencePlan.Workspace quantisedWorkspace;
+    private final int calibrationImages;
+
+    // Metrics
+    private int examples;
+    private int correct;
+    private int quantisedCorrect;
+    private int agreements;
+    private double maxOutputDifference;
+    private long predictionTime;
+    private long quantisedPredictionTime;
+
+    /**
+     * Creates a report with nothing evaluated yet.
+     * @param plan The double plan.
+     * @param quantisedPlan The plan quantised from it.
+     * @param calibrationImages The number of images the quantised plan was calibrated with.
+     */
+    public QuantisationReport(InferencePlan plan, InferencePlan quantisedPlan, int calibrationImages) {
+        this.plan = plan;
+        this.quantisedPlan = quantisedPlan;
+        this.workspace = plan.createWorkspace();
+        this.quantisedWorkspace = quantisedPlan.createWorkspace();
+        this.calibrationImages = calibrationImages;
+    }
+
+    /**
+     * Predicts an image with both plans and records the results.
+     * @param image The image data, in the shape of {@link InferencePlan#getInputSize()}.
+     * @param label The class of the image, the index of the output that should be largest.
+     */
+    public void evaluate(List<DoubleMatrix> image, int label) {
+        long start = System.nanoTime();
+        DoubleMatrix outputs = plan.predict(image, workspace);
+        long middle = System.nanoTime();
+        DoubleMatrix quantisedOutputs = quantisedPlan.predict(image, quantisedWorkspace);
+        long end = System.nanoTime();
+
+        predictionTime += middle - start;
+        quantisedPredictionTime += end - middle;
+        examples++;
+
+        int predicted = outputs.argmax();
+        int quantisedPredicted = quantisedOutputs.argmax();
+
+        if (predicted == label)
+            correct++;
+        if (quantisedPredicted == label)
+            quantisedCorrect++;
+        if (predicted == quantisedPredicted)
+            agreements++;
+
+        maxOutputDifference = Math.max(maxOutputDifference, outputs.sub(quantisedOutputs).normmax());
+    }
+
+    /**
+     * @return The quantised plan.
+     */
+    public InferencePlan getQuantisedPlan() {
+        return quantisedPlan;
+    }
+
+    public int getCalibrationImages() {
+        return calibrationImages;
+    }
+
+    /**
+     * @return The number of images evaluated.
+     */
+    public int getExamples() {
+        return examples;
+    }
+
+    /**
+     * @return The percentage of images the double plan predicted correctly.
+     */
+    public double getAccuracy() {
+        return percentage(correct);
+    }
+
+    /**
+     * @return The percentage of images the quantised plan predicted correctly.
+     */
+    public double getQuantisedAccuracy() {
+        return percentage(quantisedCorrect);
+    }
+
+    /**
+     * @return The accuracy of the quantised plan minus the accuracy of the double plan, in percentage points. Negative when quantising lost accuracy.
+     */
+    public double getAccuracyDelta() {
+        return getQuantisedAccuracy() - getAccuracy();
+    }
+
+    /**
+     * @return The percentage of images both plans predicted the same class for.
+     */
+    public double getAgreement() {
+        return percentage(agreements);
+    }
+
+    /**
+     * @return The largest difference between an output of the double plan and the same output of the quantised plan.
+     */
+    public double getMaxOutputDifference() {
+        return maxOutputDifference;
+    }
+
+    /**
+     * @return The mean time the double plan took to predict an image, in milliseconds.
+     */
+    public double getPredictionTime() {
+        return examples > 0 ? predictionTime / 1e6 / examples : 0;
+    }
+
+    /**
+     * @return The mean time the quantised plan took to predict an image, in milliseconds.
+     */
+    public double getQuantisedPredictionTime() {
+        return examples > 0 ? quantisedPredictionTime / 1e6 / examples : 0;
+    }
+
+    @Override
+    public String toString() {
+        double megabytes = 1024 * 1024;
+
+        return "Quantisation: calibration(" + calibrationImages + "), evaluated(" + examples + "), "
+                + "accuracy(" + String.format("%.2f%% -> %.2f%%, %+.2f", getAccuracy(), getQuantisedAccuracy(), getAccuracyDelta()) + "), "
+                + "agreement(" + String.format("%.2f%%", getAgreement()) + "), "
+                + "max-output-difference(" + String.format("%.4f", maxOutputDifference) + "), "
+                + "time(" + String.format("%.2fms -> %.2fms", getPredictionTime(), getQuantisedPredictionTime()) + "), "
+                + "weights(" + String.format("%.2fMB -> %.2fMB", plan.getWeightBytes() / megabytes, quantisedPlan.getWeightBytes() / megabytes) + "), "
+                + "workspace-weights(" + String.format("%.2fMB -> %.2fMB", plan.getWorkspaceWeightBytes() / megabytes, quantisedPlan.getWorkspaceWeightBytes() / megabytes) + ").";
+    }
+
+    /**
+     * @param count A number of the evaluated images.
+     * @return The count as a percentage of the evaluated images.
+     */
+    private double percentage(int count) {
+        return examples > 0 ? ((double) count / examples) * 100 : 0;
+    }
+}
\ No newline at end of file
@@ -0,0 +1,114 @@
+package waddington.kai.main.knnf.inference;
+
+import org.jblas.NativeBlas;
+
+import java.util.Arrays;
+
+/**
+ * A {@link ConvolutionKernel} with int8 filters, see {@link QuantisationHelper}.
+ * <p>
+ * The summed input is quantised and convolved with the quantised filters, then each sum is scaled back before pooling, the bias and the activation.
+ * jblas has no integer GEMM, so the sums are calculated exactly with the double GEMM instead, which is faster than an int loop in Java.
+ */
+final class QuantisedConvolutionKernel extends ConvolutionKernel {
+    /**
+     * The quantised filter bank, in the same order as {@link ConvolutionKernel#filters}.
+     */
+    private final byte[] quantisedFilters;
+    private final double inputScale;
+    /**
+     * The scale of the filters multiplied by the scale of the input, which turns a sum of quantised products back into a double.
+     */
+    private final double outputScale;
+
+    /**
+     * Quantises the normalised filters of a kernel with one scale for the whole layer.
+     * @param kernel The kernel to quantise.
+     * @param inputRange The largest absolute value of the summed input seen while calibrating.
+     */
+    QuantisedConvolutionKernel(ConvolutionKernel kernel, double inputRange) {
+        super(kernel);
+        QuantisationHelper.checkAccumulator(filterSize * filterSize);
+
+        double filterScale = QuantisationHelper.getScale(QuantisationHelper.getRange(kernel.filters));
+        quantisedFilters = QuantisationHelper.quantise(kernel.filters, filterScale);
+        inputScale = QuantisationHelper.getScale(inputRange);
+        outputScale = filterScale * inputScale;
+    }
+
+    /**
+     * As {@link ConvolutionKernel#getScratchLengths()}, followed by the quantised summed input and the quantised filter bank, both held as whole numbers in doubles.
+     * The filter bank is widened once by {@link #initialiseScratch(double[][])}, as jblas has no GEMM for bytes.
+     */
+    @Override
+    public int[] getScratchLengths() {
+        int[] lengths = Arrays.copyOf(super.getScratchLengths(), 5);
+        lengths[3] = inputRows * inputCols;
+        lengths[4] = quantisedFilters.length;
+
+        return lengths;
+    }
+
+    @Override
+    public long getWeightBytes() {
+        return quantisedFilters.length + (numberOfFilters * (long) Double.BYTES);
+    }
+
+    /**
+     * Widens the quantised filter bank into the workspace, so that predicting only quantises the input.
+     */
+    @Override
+    public void initialiseScratch(double[][] scratch) {
+        double[] filterBank = scratch[4];
+
+        for (int i=0; i<filterBank.length; i++)
+            filterBank[i] = quantisedFilters[i];
+    }
+
+    /**
+     * The quantised filter bank widened to doubles.
+     */
+    @Override
+    public long getWorkspaceWeightBytes() {
+        return quantisedFilters.length * (long) Double.BYTES;
+    }
+
+    @Override
+    public Kernel quantise(double inputRange) {
+        return this;
+    }
+
+    /**
+     * Multiplies the quantised receptive fields with the quantised filters in one GEMM, the same as {@link ConvolutionKernel}.
+     * The values are whole numbers of at most 127, so every product and sum is a whole number well below 2^53 and the GEMM calculates the int32 sums exactly.
+     */
+    @Override
+    protected void convolve(double[] summed, double[] convolved, double[][] scratch, int[][] quantisedScratch) {
+        int outputLength = outputRows * outputCols;
+        int patchSize = filterSize * filterSize;
+
+        double[] quantisedInput = scratch[3];
+        for (int i=0; i<quantisedInput.length; i++)
+            quantisedInput[i] = QuantisationHelper.quantise(summed[i], inputScale);
+
+        // Widened when the workspace was created
+        double[] filterBank = scratch[4];
+
+        double[] patches = scratch[1];
+        im2col(quantisedInput, patches);
+
+        NativeBlas.dgemm('T', 'N', outputLength, numberOfFilters, patchSize,
+                1.0, patches, 0, patchSize,
+                filterBank, 0, patchSize,
+                0.0, convolved, 0, outputLength);
+
+        // Scaled after the GEMM, so that it only adds whole numbers
+        for (int i=0; i<convolved.length; i++)
+            convolved[i] *= outputScale;
+    }
+
+    @Override
+    public String toString() {
+        return toString("int8");
+    }
+}
\ No newline at end of file
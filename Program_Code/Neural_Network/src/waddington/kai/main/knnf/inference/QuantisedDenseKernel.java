@@ -0,0 +1,74 @@
+package waddington.kai.main.knnf.inference;
+
+/**
+ * A {@link DenseKernel} with int8 weights, see {@link QuantisationHelper}.
+ * <p>
+ * The input is quantised with the scale calibrated for this layer, then each weighted sum is accumulated as an int and scaled back before the bias and activation.
+ */
+final class QuantisedDenseKernel extends DenseKernel {
+    /**
+     * The quantised weights, in the same order as {@link DenseKernel#weights}.
+     */
+    private final byte[] quantisedWeights;
+    private final double inputScale;
+    /**
+     * The scale of the weights multiplied by the scale of the input, which turns a weighted sum of quantised values back into a double.
+     */
+    private final double outputScale;
+
+    /**
+     * Quantises the weights of a kernel with one scale for the whole layer.
+     * @param kernel The kernel to quantise.
+     * @param inputRange The largest absolute input seen while calibrating.
+     */
+    QuantisedDenseKernel(DenseKernel kernel, double inputRange) {
+        super(kernel);
+        QuantisationHelper.checkAccumulator(numberOfInputs);
+
+        double weightScale = QuantisationHelper.getScale(QuantisationHelper.getRange(kernel.weights));
+        quantisedWeights = QuantisationHelper.quantise(kernel.weights, weightScale);
+        inputScale = QuantisationHelper.getScale(inputRange);
+        outputScale = weightScale * inputScale;
+    }
+
+    /**
+     * The quantised input.
+     */
+    @Override
+    public int[] getQuantisedScratchLengths() {
+        return new int[] {numberOfInputs};
+    }
+
+    @Override
+    public long getWeightBytes() {
+        return quantisedWeights.length + (numberOfNeurons * (long) Double.BYTES);
+    }
+
+    @Override
+    public Kernel quantise(double inputRange) {
+        return this;
+    }
+
+    @Override
+    protected void multiply(double[] input, double[] output, int[][] quantisedScratch) {
+        int[] quantisedInput = quantisedScratch[0];
+
+        for (int i=0; i<numberOfInputs; i++)
+            quantisedInput[i] = QuantisationHelper.quantise(input[i], inputScale);
+
+        for (int n=0; n<numberOfNeurons; n++) {
+            int offset = n * numberOfInputs;
+            int weightedSum = 0;
+
+            for (int i=0; i<numberOfInputs; i++)
+                weightedSum += quantisedWeights[offset+i] * quantisedInput[i];
+
+            output[n] = weightedSum * outputScale;
+        }
+    }
+
+    @Override
+    public String toString() {
+        return toString("int8");
+    }
+}
\ No newline at end of file
@@ -0,0 +1,4 @@
+/**
+ * Contains the compiled form of a trained network, an {@link waddington.kai.main.knnf.inference.InferencePlan} of fused kernels with the weights folded into them.
+ */
+package waddington.kai.main.knnf.inference;
\ No newline at end of file
@@ -0,0 +1,260 @@
+package waddington.kai.main.knnf.layers;
+
+import org.jblas.DoubleMatrix;
+import org.jblas.NativeBlas;
+import waddington.kai.main.knnf.LayerType;
+import waddington.kai.main.knnf.NetworkContext;
+import waddington.kai.main.knnf.layers.neurons.Neuron;
+import waddington.kai.main.knnf.layers.neurons.NeuronFullyConnected;
+import waddington.kai.main.knnf.layers.neurons.NeuronOutput;
+import waddington.kai.main.knnf.optimisers.Optimiser;
+import waddington.kai.main.knnf.optimisers.OptimiserState;
+
+import java.util.List;
+
+/**
+ * The weights of every neuron in a {@link LayerFullyConnected} or {@link LayerOutput} stored as one contiguous {neurons, inputs} matrix, one neuron per row.
+ * The forward pass is then a single matrix-vector multiply and the weight deltas for a batch a single matrix multiply, instead of one dot product and one vector update per neuron.
+ * The neurons are bound to their row, so their own weight accessors keep working.
+ */
+public class DenseWeights {
+    /**
+     * The state of the network, which holds the optimiser and its hyper-parameters.
+     */
+    private final NetworkContext context;
+    /**
+     * The {neurons, inputs} weights, one neuron per row.
+     */
+    private DoubleMatrix weights;
+    /**
+     * The {neurons, inputs} gradient of the weights averaged over the batch, calculated into when the deltas are applied. Created the first time they are.
+     */
+    private DoubleMatrix gradients;
+    /**
+     * The state the optimiser keeps for the weights, such as their momentum.
+     */
+    private OptimiserState optimiserState;
+    /**
+     * The weighted sum of the inputs for each neuron, excluding the bias.
+     */
+    private DoubleMatrix weightedSums;
+    /**
+     * The error of each neuron for each example of the current batch, one example per column. Created for the first example, so a network that only predicts never has it.
+     */
+    private DoubleMatrix batchErrors;
+    /**
+     * The inputs to the layer for each example of the current batch, one example per column. Created along with {@link #batchErrors}.
+     */
+    private DoubleMatrix batchInputs;
+    /**
+     * The number of examples in the current batch.
+     */
+    private int batchCount;
+
+    /**
+     * Creates an empty set of dense weights.
+     * @param context The {@link NetworkContext} of the network.
+     * @param numberOfNeurons The number of neurons in the layer.
+     * @param numberOfWeights The number of weights each neuron has (excluding weight to bias).
+     */
+    public DenseWeights(NetworkContext context, int numberOfNeurons, int numberOfWeights) {
+        this.context = context;
+        weights = new DoubleMatrix(numberOfNeurons, numberOfWeights);
+        weightedSums = new DoubleMatrix(numberOfNeurons);
+    }
+
+    /**
+     * Creates dense weights for a replica of a layer, which share the weights of the layer but store their own batch. A replica never applies deltas, so it has no gradients or optimiser state.
+     * @param master The dense weights of the layer being replicated.
+     * @param context The {@link NetworkContext} of the replica.
+     */
+    private DenseWeights(DenseWeights master, NetworkContext context) {
+        this.context = context;
+        weights = master.weights;
+        weightedSums = new DoubleMatrix(weights.rows);
+    }
+
+    /**
+     * Creates dense weights for a replica of the layer, see {@link Layer#createReplica(NetworkContext)}.
+     * The replica shares the weights, so only these dense weights should apply deltas after adding the batch of the replica with {@link #addBatch(DenseWeights)}.
+     * @param context The {@link NetworkContext} of the replica.
+     * @return The replica.
+     */
+    public DenseWeights createReplica(NetworkContext context) {
+        return new DenseWeights(this, context);
+    }
+
+    /**
+     * Adds the examples stored by a replica to the current batch, and clears them from the replica.
+     * @param replica Dense weights created by {@link #createReplica()}.
+     */
+    public void addBatch(DenseWeights replica) {
+        for (int c=0; c<replica.batchCount; c++) {
+            int column = nextBatchColumn();
+
+            System.arraycopy(replica.batchErrors.data, c * batchErrors.rows, batchErrors.data, column * batchErrors.rows, batchErrors.rows);
+            System.arraycopy(replica.batchInputs.data, c * batchInputs.rows, batchInputs.data, column * batchInputs.rows, batchInputs.rows);
+        }
+
+        replica.batchCount = 0;
+    }
+
+    /**
+     * Moves the weights of each neuron into its row of the matrix. The neurons then read and write their weights through the matrix.
+     * @param neurons The {@link NeuronFullyConnected} or {@link NeuronOutput} neurons of the layer, in ID order.
+     */
+    public void bind(List<Neuron> neurons) {
+        for (Neuron neuron: neurons)
+            bindWeights(neuron, weights);
+    }
+
+    /**
+     * Moves the weights of each neuron back out of the matrix, so that they hold their own weights again.
+     * @param neurons The neurons that were bound with {@link #bind(List)}.
+     */
+    public void unbind(List<Neuron> neurons) {
+        for (Neuron neuron: neurons)
+            bindWeights(neuron, null);
+    }
+
+    /**
+     * Gets the weights matrix.
+     * @return The {neurons, inputs} weights, one neuron per row.
+     */
+    public DoubleMatrix getWeights() {
+        return weights;
+    }
+
+    /**
+     * Gets the state the optimiser of the network keeps for the weights, which carries the momentum into the next batch.
+     * @return The {@link OptimiserState}, created if the layer has not trained yet or the optimiser has been changed.
+     */
+    public OptimiserState getOptimiserState() {
+        Optimiser optimiser = context.getOptimiser();
+        if (optimiserState == null || !optimiserState.isFor(optimiser))
+            optimiserState = optimiser.createState(weights.length);
+
+        return optimiserState;
+    }
+
+    /**
+     * Calculates the weighted sum of the inputs for every neuron with one matrix-vector multiply.
+     * @param input A {@link DoubleMatrix} containing the inputs to the layer, as a row or column.
+     * @return A {neurons, 1} {@link DoubleMatrix} of the weighted sums, excluding the bias. Reused between calls.
+     */
+    public DoubleMatrix multiply(DoubleMatrix input) {
+        return weights.mmuli(asColumn(input), weightedSums);
+    }
+
+    /**
+     * Calculates the weighted sums of several examples at once with one matrix multiply, see {@link Layer#setStackedInputData(List, List)}.
+     * @param inputs A {inputs, examples} {@link DoubleMatrix} with the inputs of each example as a column.
+     * @param result A {neurons, examples} {@link DoubleMatrix} to write to. A new one is created if this is null or the wrong shape.
+     * @return The weighted sums of each example as a column, excluding the bias.
+     */
+    public DoubleMatrix multiply(DoubleMatrix inputs, DoubleMatrix result) {
+        if (result == null || result.rows != weights.rows || result.columns != inputs.columns)
+            result = new DoubleMatrix(weights.rows, inputs.columns);
+
+        return weights.mmuli(inputs, result);
+    }
+
+    /**
+     * Stores the errors and inputs of one example of the batch. The weight deltas for the whole batch are calculated by {@link #applyDeltas()}.
+     * @param errors A {@link DoubleMatrix} containing the error of each neuron.
+     * @param input A {@link DoubleMatrix} containing the inputs to the layer, as a row or column.
+     */
+    public void calculateDeltas(DoubleMatrix errors, DoubleMatrix input) {
+        int column = nextBatchColumn();
+
+        System.arraycopy(errors.data, 0, batchErrors.data, column * batchErrors.rows, batchErrors.rows);
+        System.arraycopy(input.data, 0, batchInputs.data, column * batchInputs.rows, batchInputs.rows);
+    }
+
+    /**
+     * Stores the errors the neurons have already calculated for one example of the batch, see {@link #calculateDeltas(DoubleMatrix, DoubleMatrix)}.
+     * @param neurons The bound neurons of the layer, in ID order.
+     */
+    public void calculateDeltas(List<Neuron> neurons) {
+        int column = nextBatchColumn();
+
+        int offset = column * batchErrors.rows;
+        for (int i=0; i<batchErrors.rows; i++) {
+            batchErrors.data[offset + i] = neurons.get(i).getError().get(0);
+        }
+
+        DoubleMatrix input = neurons.get(0).getInputData();
+        System.arraycopy(input.data, 0, batchInputs.data, column * batchInputs.rows, batchInputs.rows);
+    }
+
+    /**
+     * Calculates the gradient of the weights for the batch, mean(error * input), with one matrix multiply of the stored errors and inputs, then passes it to the optimiser of the network.
+     */
+    public void applyDeltas() {
+        if (batchCount == 0)
+            return;
+
+        if (gradients == null)
+            gradients = new DoubleMatrix(weights.rows, weights.columns);
+
+        NativeBlas.dgemm('N', 'T', gradients.rows, gradients.columns, batchCount,
+                1.0 / batchCount, batchErrors.data, 0, batchErrors.rows,
+                batchInputs.data, 0, batchInputs.rows,
+                0, gradients.data, 0, gradients.rows);
+        batchCount = 0;
+
+        context.getOptimiser().update(weights.data, gradients.data, weights.length, getOptimiserState(), context);
+    }
+
+    /**
+     * Gets the column of the batch matrices for the next example, creating them for the first example and growing them if they are full.
+     * @return The column index.
+     */
+    private int nextBatchColumn() {
+        if (batchErrors == null) {
+            batchErrors = new DoubleMatrix(weights.rows, 1);
+            batchInputs = new DoubleMatrix(weights.columns, 1);
+        } else if (batchCount == batchErrors.columns) {
+            batchErrors = growColumns(batchErrors);
+            batchInputs = growColumns(batchInputs);
+        }
+
+        return batchCount++;
+    }
+
+    /**
+     * Doubles the number of columns of a batch matrix, keeping its data.
+     * @param matrix The matrix to grow.
+     * @return A new {@link DoubleMatrix} with the data of the matrix in its first columns.
+     */
+    private DoubleMatrix growColumns(DoubleMatrix matrix) {
+        DoubleMatrix grown = new DoubleMatrix(matrix.rows, matrix.columns * 2);
+        System.arraycopy(matrix.data, 0, grown.data, 0, matrix.length);
+
+        return grown;
+    }
+
+    /**
+     * Views a vector as a column without copying.
+     * @param vector The vector.
+     * @return A {length, 1} {@link DoubleMatrix} sharing the data of the vector.
+     */
+    private DoubleMatrix asColumn(DoubleMatrix vector) {
+        if (vector.columns == 1)
+            return vector;
+
+        return new DoubleMatrix(vector.length, 1, vector.data);
+    }
+
+    /**
+     * Binds a neuron to a weight matrix, or unbinds it.
+     * @param neuron A {@link NeuronFullyConnected} or {@link NeuronOutput}.
+     * @param matrix The weight matrix, or null to unbind.
+     */
+    private static void bindWeights(Neuron neuron, DoubleMatrix matrix) {
+        if (neuron.getType() == LayerType.output)
+            ((NeuronOutput) neuron).bindWeights(matrix);
+        else
+            ((NeuronFullyConnected) neuron).bindWeights(matrix);
+    }
+}
\ No newline at end of file
@@ -0,0 +1,107 @@
+package waddington.kai.main.knnf.layers;
+
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+import java.util.function.IntConsumer;
+
+/**
+ * Decides how a {@link Layer} runs the work for each of its neurons.
+ * The neurons in a layer do not depend on each other, so they can either be run one after another or spread across a {@link ForkJoinPool}.
+ */
+public class ExecutionPolicy {
+    /**
+     * The policy shared by every layer that runs its neurons one after another.
+     */
+    private static final ExecutionPolicy SEQUENTIAL = new ExecutionPolicy(null);
+
+    /**
+     * The pool used to run the neurons, null when sequential.
+     */
+    private final ForkJoinPool pool;
+
+    private ExecutionPolicy(ForkJoinPool pool) {
+        this.pool = pool;
+    }
+
+    /**
+     * Gets the policy that runs each neuron one after another on the calling thread.
+     * @return The sequential {@link ExecutionPolicy}.
+     */
+    public static ExecutionPolicy sequential() {
+        return SEQUENTIAL;
+    }
+
+    /**
+     * Creates a policy that spreads the neurons across a new {@link ForkJoinPool}.
+     * @param parallelism The number of threads to use. 1 or less gives {@link #sequential()}.
+     * @return The {@link ExecutionPolicy}.
+     */
+    public static ExecutionPolicy parallel(int parallelism) {
+        if (parallelism <= 1)
+            return SEQUENTIAL;
+
+        return new ExecutionPolicy(new ForkJoinPool(parallelism));
+    }
+
+    /**
+     * Gets the number of threads that this policy uses.
+     * @return The number of threads.
+     */
+    public int getParallelism() {
+        if (pool == null)
+            return 1;
+
+        return pool.getParallelism();
+    }
+
+    /**
+     * Runs an action for each index in [0, count) and waits for all of them to finish.
+     * Any exception thrown by an action is rethrown on the calling thread.
+     * @param count The number of indexes, usually the number of neurons in a layer.
+     * @param action The action to run for each index.
+     */
+    public void forEach(int count, IntConsumer action) {
+        if (pool == null || count < 2) {
+            for (int i=0; i<count; i++) {
+                action.accept(i);
+            }
+            return;
+        }
+
+        pool.invoke(new RangeAction(action, 0, count));
+    }
+
+    /**
+     * Stops the threads of this policy once any running work is done. Has no effect on {@link #sequential()}.
+     */
+    public void shutdown() {
+        if (pool != null)
+            pool.shutdown();
+    }
+
+    /**
+     * Splits a range of indexes in half until each task has a single index.
+     */
+    private static class RangeAction extends RecursiveAction {
+        private final IntConsumer action;
+        private final int start;
+        private final int end;
+
+        RangeAction(IntConsumer action, int start, int end) {
+            this.action = action;
+            this.start = start;
+            this.end = end;
+        }
+
+        @Override
+        protected void compute() {
+            if (end - start == 1) {
+                action.accept(start);
+                return;
+            }
+
+            int middle = (start + end) >>> 1;
+            invokeAll(new RangeAction(action, start, middle), new RangeAction(action, middle, end));
+        }
+    }
+}
\ No newline at end of file
@@ -2,15 +2,21 @@ package waddington.kai.main.knnf.layers;
 
 import waddington.kai.main.knnf.LayerActivation;
 import waddington.kai.main.knnf.LayerType;
+import waddington.kai.main.knnf.NetworkContext;
 import waddington.kai.main.knnf.layers.neurons.Neuron;
 
 import java.util.ArrayList;
 import java.util.List;
+import java.util.function.IntConsumer;
 
 /**
  * This is the abstract class that all layer-type-specific classes extend.
  */
 public abstract class Layer {
+    /**
+     * The state of the network that this layer belongs to, see {@link NetworkContext}.
+     */
+    private final NetworkContext context;
     /**
      * Each layer has an ID and is it's position in the network.
      */
@@ -34,17 +40,32 @@ public abstract class Layer {
     private List<Neuron> neurons;
 
     /**
-     * This is the only constructor that can be used. Sets the ID, layer type, and activation type of the layer.
+     * How the work for each neuron in this layer is run.
+     */
+    private ExecutionPolicy executionPolicy = ExecutionPolicy.sequential();
+
+    /**
+     * This is the only constructor that can be used. Sets the network context, ID, layer type, and activation type of the layer.
+     * @param context The {@link NetworkContext} of the network that the layer belongs to.
      * @param id The ID for the layer.
      * @param type The {@link LayerType} that the new layer is.
      * @param activation The {@link LayerActivation} that the layer will use.
      */
-    public Layer(int id, LayerType type, LayerActivation activation) {
+    public Layer(NetworkContext context, int id, LayerType type, LayerActivation activation) {
+        this.context = context;
         this.id = id;
         this.type = type;
         this.activation = activation;
     }
 
+    /**
+     * Get the state of the network that the layer belongs to.
+     * @return The {@link NetworkContext} of the network.
+     */
+    public NetworkContext getContext() {
+        return context;
+    }
+
     /**
      * Get the ID of the layer.
      * @return The ID of the layer.
@@ -109,6 +130,23 @@ public abstract class Layer {
         return outputSize;
     }
 
+    public void setExecutionPolicy(ExecutionPolicy policy) {
+        executionPolicy = policy;
+    }
+
+    public ExecutionPolicy getExecutionPolicy() {
+        return executionPolicy;
+    }
+
+    /**
+     * Runs an action for the index of each neuron in this layer using the {@link ExecutionPolicy} of this layer.
+     * The action for one neuron must not depend on the action for any other neuron.
+     * @param action The action to run for each neuron index.
+     */
+    protected void forEachNeuron(IntConsumer action) {
+        executionPolicy.forEach(getNumberOfNeurons(), action);
+    }
+
     /**
      * Used to create all of the neurons in the layer. Is abstract so all individual layer types must have their own implementation for this.
      * @param number The number of neurons to create.
@@ -157,6 +195,18 @@ public abstract class Layer {
      */
     public abstract void setInputData(List<Neuron> inputNeurons);
 
+    /**
+     * Sets the input data for several copies of this layer at once, one example of a batch per copy, see {@link waddington.kai.main.knnf.DataParallelTrainer}.
+     * Layers that can multiply every example by their weights in one matrix multiply override this. Otherwise each copy sets its own input data in turn.
+     * @param replicas This layer and its replicas, or only replicas of it, one per example. They all share the weights of this layer.
+     * @param inputNeurons The neurons of the layer below each replica, in the same order.
+     */
+    public void setStackedInputData(List<Layer> replicas, List<List<Neuron>> inputNeurons) {
+        for (int b=0; b<replicas.size(); b++) {
+            replicas.get(b).setInputData(inputNeurons.get(b));
+        }
+    }
+
     /**
      * Calculates the weight deltas for a given list of neurons.
      * @param lowerNeurons The neurons in the layer below.
@@ -168,4 +218,52 @@ public abstract class Layer {
      * Applies the weight deltas to the neurons.
      */
     public abstract void applyDeltas();
+
+    /**
+     * Drops the activations of this layer, and the workspaces as large as them, so that they can be garbage collected once the layer above has consumed them.
+     * Used by {@link waddington.kai.main.knnf.InferenceNetwork}. The next forward pass creates them again.
+     * Only workspaces the size of the weights, such as a packed filter bank, are kept. Training never releases the activations, so it reuses every workspace.
+     */
+    public void releaseActivations() {
+        for (Neuron neuron: neurons)
+            neuron.releaseActivations();
+    }
+
+    /**
+     * Creates a copy of this layer for a replica of the network, see {@link waddington.kai.main.knnf.DataParallelTrainer}.
+     * The replica shares the weights of this layer but has its own neurons, so that it can run forward and backward passes at the same time as this layer.
+     * Only this layer applies deltas, after adding those of its replicas with {@link #addReplicaDeltas(Layer)}.
+     * @return The replica, using the sequential {@link ExecutionPolicy}.
+     */
+    public Layer createReplica() {
+        return createReplica(context);
+    }
+
+    /**
+     * Creates a copy of this layer for a replica of the network that belongs to another {@link NetworkContext}, see {@link #createReplica()}.
+     * The replica then does not keep this network reachable through the layers of its context, see {@link waddington.kai.main.knnf.InferenceNetwork}.
+     * @param context The {@link NetworkContext} of the replica.
+     * @return The replica, using the sequential {@link ExecutionPolicy}.
+     */
+    public abstract Layer createReplica(NetworkContext context);
+
+    /**
+     * Adds the deltas that a replica of this layer has calculated to the deltas of this layer, and clears them from the replica.
+     * @param replica A replica created by {@link #createReplica()}.
+     */
+    public void addReplicaDeltas(Layer replica) {
+        for (int i=0; i<getNumberOfNeurons(); i++) {
+            getNeuron(i).addReplicaDeltas(replica.getNeuron(i));
+        }
+    }
+
+    /**
+     * Copies the parameters that a replica of this layer does not share with it, after this layer has applied its deltas.
+     * @param replica A replica created by {@link #createReplica()}.
+     */
+    public void syncReplica(Layer replica) {
+        for (int i=0; i<getNumberOfNeurons(); i++) {
+            getNeuron(i).syncReplica(replica.getNeuron(i));
+        }
+    }
 }
\ No newline at end of file
@@ -1,10 +1,15 @@
 package waddington.kai.main.knnf.layers;
 
 import org.jblas.DoubleMatrix;
+import org.jblas.NativeBlas;
+import waddington.kai.main.knnf.ConvolutionMethod;
+import waddington.kai.main.knnf.FourierHelper;
 import waddington.kai.main.knnf.LayerActivation;
 import waddington.kai.main.knnf.LayerType;
+import waddington.kai.main.knnf.NetworkContext;
 import waddington.kai.main.knnf.NetworkHelper;
 import waddington.kai.main.knnf.layers.neurons.Neuron;
+import waddington.kai.main.knnf.layers.neurons.NeuronConvolution;
 import waddington.kai.main.knnf.layers.neurons.NeuronFactory;
 
 import java.util.ArrayList;
@@ -26,14 +31,56 @@ public class LayerConvolution extends Layer {
      * The number of neurons in the layer.
      */
     private int numberOfFilters;
+    /**
+     * The method used to perform the convolutions.
+     */
+    private ConvolutionMethod convolutionMethod = ConvolutionMethod.direct;
+    /**
+     * Filters larger than this size use {@link ConvolutionMethod#fft} regardless of {@link #convolutionMethod}. 0 disables the switch.
+     * Set from {@link NetworkContext#getFFTFilterSizeThreshold()} when the layer is created.
+     */
+    private int fftFilterSizeThreshold = 0;
+    /**
+     * The spectrum of the current input, shared by every filter when using {@link ConvolutionMethod#fft}.
+     */
+    private FourierHelper.Spectrum inputSpectrum;
+    /**
+     * The receptive fields of the current input, reused between forward passes when using {@link ConvolutionMethod#im2col}.
+     */
+    private DoubleMatrix inputPatches;
+    /**
+     * The filters of every neuron in this layer packed into one {filterSize*filterSize, numberOfFilters} matrix, one filter per column.
+     */
+    private DoubleMatrix filterBank;
+    /**
+     * True if the filters or biases of the neurons may have changed since they were packed, see {@link #invalidateFilterBank()}.
+     */
+    private boolean filterBankDirty = true;
+    /**
+     * The bias of every neuron in this layer, one per row.
+     */
+    private DoubleMatrix biases;
+    /**
+     * The sum of each filter, used to normalise the output of each neuron.
+     */
+    private DoubleMatrix filterSums;
+    /**
+     * The result of multiplying the receptive fields with the filter bank, {outputRows*outputCols, numberOfFilters}, so the output of each filter is one contiguous column.
+     */
+    private DoubleMatrix convolved;
+    /**
+     * The receptive fields of each example of a batch, one example after another, see {@link #setStackedInputData(List, List)}.
+     */
+    private DoubleMatrix stackedPatches;
 
     /**
-     * See {@link Layer#Layer(int, LayerType, LayerActivation)}.
+     * See {@link Layer#Layer(NetworkContext, int, LayerType, LayerActivation)}.
+     * @param context The {@link NetworkContext} of the network.
      * @param id The layer ID.
      * @param activation The activation type for the layer.
      */
-    public LayerConvolution(int id, LayerActivation activation) {
-        super(id, LayerType.conv, activation);
+    public LayerConvolution(NetworkContext context, int id, LayerActivation activation) {
+        super(context, id, LayerType.conv, activation);
     }
 
     public void setFilterSize(int filterSize) {
@@ -60,6 +107,33 @@ public class LayerConvolution extends Layer {
         return numberOfFilters;
     }
 
+    public void setConvolutionMethod(ConvolutionMethod method) {
+        convolutionMethod = method;
+    }
+
+    public ConvolutionMethod getConvolutionMethod() {
+        return convolutionMethod;
+    }
+
+    public void setFFTFilterSizeThreshold(int size) {
+        fftFilterSizeThreshold = size;
+    }
+
+    public int getFFTFilterSizeThreshold() {
+        return fftFilterSizeThreshold;
+    }
+
+    /**
+     * Gets the {@link ConvolutionMethod} that is actually used for the forward pass, taking {@link #fftFilterSizeThreshold} into account.
+     * @return The {@link ConvolutionMethod} in use.
+     */
+    public ConvolutionMethod getActiveConvolutionMethod() {
+        if (fftFilterSizeThreshold > 0 && filterSize > fftFilterSizeThreshold)
+            return ConvolutionMethod.fft;
+
+        return convolutionMethod;
+    }
+
     /**
      * Creates the neurons for this layer, 1 neuron for each filter.
      * @param number The number of neurons to create.
@@ -67,7 +141,7 @@ public class LayerConvolution extends Layer {
     @Override
     public void createNeurons(int number) {
         for (int i=0; i<numberOfFilters; i++) {
-            Neuron neuron = NeuronFactory.getConvolutionNeuron(i, getInputSize(), getOutputSize(), filterSize, stride, getLayerActivation());
+            Neuron neuron = NeuronFactory.getConvolutionNeuron(getContext(), i, getInputSize(), getOutputSize(), filterSize, stride, getLayerActivation());
             addNeuron(neuron);
         }
     }
@@ -78,19 +152,218 @@ public class LayerConvolution extends Layer {
      */
     @Override
     public void setInputData(List<Neuron> inputNeurons) {
-        // Get list of all input data
+        DoubleMatrix input = sumInputs(inputNeurons);
+
+        // Set the data
+        switch (getActiveConvolutionMethod()) {
+            case im2col: {
+                // Lay out the receptive fields once for every filter to use
+                inputPatches = NetworkHelper.im2col(input, filterSize, stride, inputPatches);
+                convolveFilterBank(input);
+                break;
+            }
+            case fft: {
+                // Transform the input once for every filter to use
+                int rows = FourierHelper.nextPowerOfTwo(input.rows);
+                int cols = FourierHelper.nextPowerOfTwo(input.columns);
+                inputSpectrum = FourierHelper.transform(input, rows, cols, inputSpectrum);
+
+                forEachNeuron(i -> ((NeuronConvolution) getNeuron(i)).setInputData(input, inputSpectrum));
+                break;
+            }
+            default: {
+                forEachNeuron(i -> getNeuron(i).setInputData(input));
+            }
+        }
+    }
+
+    /**
+     * See {@link Layer#setStackedInputData(List, List)}. With {@link ConvolutionMethod#im2col} the receptive fields of every example are laid out one after another,
+     * so that every filter is convolved with every example in one matrix multiply, instead of one per example.
+     * @param replicas This layer and its replicas, or only replicas of it, one per example.
+     * @param inputNeurons The neurons of the layer below each replica.
+     */
+    @Override
+    public void setStackedInputData(List<Layer> replicas, List<List<Neuron>> inputNeurons) {
+        if (getActiveConvolutionMethod() != ConvolutionMethod.im2col) {
+            super.setStackedInputData(replicas, inputNeurons);
+            return;
+        }
+
+        int examples = replicas.size();
+        List<DoubleMatrix> inputs = new ArrayList<>();
+        for (List<Neuron> neurons: inputNeurons)
+            inputs.add(sumInputs(neurons));
+
+        int outputRows = NetworkHelper.calculateConvolutionOutputSize(filterSize, stride, inputs.get(0).rows);
+        int outputCols = NetworkHelper.calculateConvolutionOutputSize(filterSize, stride, inputs.get(0).columns);
+        int outputLength = outputRows * outputCols;
+        int patchSize = filterSize * filterSize;
+
+        if (stackedPatches == null || stackedPatches.columns != outputLength * examples)
+            stackedPatches = new DoubleMatrix(patchSize, outputLength * examples);
+        for (int b=0; b<examples; b++)
+            NetworkHelper.im2col(inputs.get(b), filterSize, stride, stackedPatches.data, b * patchSize * outputLength);
+
+        packFilterBank();
+
+        if (convolved == null || convolved.rows != outputLength * examples)
+            convolved = new DoubleMatrix(outputLength * examples, numberOfFilters);
+
+        // Each filters column holds the output of every example, one after another
+        NativeBlas.dgemm('T', 'N', outputLength * examples, numberOfFilters, patchSize,
+                1.0, stackedPatches.data, 0, patchSize,
+                filterBank.data, 0, patchSize,
+                0.0, convolved.data, 0, outputLength * examples);
+
+        for (int b=0; b<examples; b++)
+            ((LayerConvolution) replicas.get(b)).setConvolvedOutputs(this, inputs.get(b), outputRows, outputCols, convolved, b * outputLength);
+    }
+
+    /**
+     * Sums the outputs of the neurons in the layer below, as each filter uses a summed view of all input channels.
+     * @param inputNeurons The list of neurons to get the data from.
+     * @return A new {@link DoubleMatrix} of the summed input data.
+     */
+    private DoubleMatrix sumInputs(List<Neuron> inputNeurons) {
         List<DoubleMatrix> inputDataList = new ArrayList<>();
         for (Neuron neuron: inputNeurons)
             inputDataList.add(neuron.getOutputData());
-        
-        // Consolidate input data
-        // Each filter uses a summed view of all input channels
-        DoubleMatrix input = NetworkHelper.sumMatrices(inputDataList);
 
-        // Set the data
-        for (int i=0; i<getNumberOfNeurons(); i++) {
-            getNeuron(i).setInputData(input);
+        return NetworkHelper.sumMatrices(inputDataList);
+    }
+
+    /**
+     * Packs the filters, biases, and filter sums of every neuron in this layer into {@link #filterBank}, {@link #biases}, and {@link #filterSums}, if they have changed since they were last packed.
+     * The neurons remain the owners of the filters, so the bank is only packed again after {@link #applyDeltas()}, {@link #syncReplica(Layer)}, {@link #invalidateFilterBank()},
+     * or when the filter or bias of a neuron has been set, see {@link NeuronConvolution#isFilterChanged()}.
+     */
+    public void packFilterBank() {
+        int patchSize = filterSize * filterSize;
+
+        if (filterBank == null) {
+            filterBank = new DoubleMatrix(patchSize, numberOfFilters);
+            biases = new DoubleMatrix(numberOfFilters);
+            filterSums = new DoubleMatrix(numberOfFilters);
+        } else if (!filterBankDirty && !isFilterChanged()) {
+            return;
         }
+
+        forEachNeuron(f -> {
+            NeuronConvolution neuron = (NeuronConvolution) getNeuron(f);
+            System.arraycopy(neuron.getFilter().data, 0, filterBank.data, f*patchSize, patchSize);
+
+            biases.put(f, neuron.getBias());
+            filterSums.put(f, NetworkHelper.sumMatrix(neuron.getFilter()));
+            neuron.clearFilterChanged();
+        });
+
+        filterBankDirty = false;
+    }
+
+    /**
+     * @return True if the filter or bias of any neuron in this layer has been set since the bank was packed.
+     */
+    private boolean isFilterChanged() {
+        for (Neuron neuron: getNeurons()) {
+            if (((NeuronConvolution) neuron).isFilterChanged())
+                return true;
+        }
+
+        return false;
+    }
+
+    /**
+     * Marks the packed filter bank as out of date, so it is packed again on the next forward pass. Needed when the filters or biases of the neurons are changed directly, such as when restoring a checkpoint.
+     */
+    public void invalidateFilterBank() {
+        filterBankDirty = true;
+    }
+
+    /**
+     * Gets the packed filters of this layer, see {@link #packFilterBank()}.
+     * @return A {filterSize*filterSize, numberOfFilters} {@link DoubleMatrix} with one filter per column.
+     */
+    public DoubleMatrix getFilterBank() {
+        return filterBank;
+    }
+
+    /**
+     * @return The receptive fields of the last forward pass with {@link ConvolutionMethod#im2col}, null if they have been released, see {@link #releaseActivations()}.
+     */
+    public DoubleMatrix getInputPatches() {
+        return inputPatches;
+    }
+
+    /**
+     * @return The result of the last filter bank multiply, null if it has been released, see {@link #releaseActivations()}.
+     */
+    public DoubleMatrix getConvolved() {
+        return convolved;
+    }
+
+    /**
+     * Convolves every filter in this layer with the current receptive fields using a single matrix multiply, then hands each neuron its column of the result.
+     * Gives the same output as each neuron performing its own convolution.
+     * @param input The summed input data that the receptive fields were taken from.
+     */
+    private void convolveFilterBank(DoubleMatrix input) {
+        int outputRows = NetworkHelper.calculateConvolutionOutputSize(filterSize, stride, input.rows);
+        int outputCols = NetworkHelper.calculateConvolutionOutputSize(filterSize, stride, input.columns);
+        int outputLength = outputRows * outputCols;
+        int patchSize = filterSize * filterSize;
+
+        packFilterBank();
+
+        if (convolved == null || convolved.rows != outputLength)
+            convolved = new DoubleMatrix(outputLength, numberOfFilters);
+
+        // One GEMM for all filters, patches^T * bank, so each filters output is a contiguous column in the order of its output matrix
+        NativeBlas.dgemm('T', 'N', outputLength, numberOfFilters, patchSize,
+                1.0, inputPatches.data, 0, patchSize,
+                filterBank.data, 0, patchSize,
+                0.0, convolved.data, 0, outputLength);
+
+        setConvolvedOutputs(this, input, outputRows, outputCols, convolved, 0);
+    }
+
+    /**
+     * Hands each neuron its part of the result of multiplying the receptive fields with the filter bank, normalised by the filter sum, with the bias added and activated.
+     * A DoubleMatrix cannot view part of an array, so each part is moved into the neurons output with one block copy, then normalised and activated there.
+     * @param bank The layer whose packed filter sums and biases were used, this layer or the layer it is a replica of.
+     * @param input The summed input data that the receptive fields were taken from.
+     * @param outputRows The number of rows in the output of each neuron.
+     * @param outputCols The number of columns in the output of each neuron.
+     * @param convolved The result of the multiply, one column per filter.
+     * @param offset The row of the result that the output of this layer starts at.
+     */
+    private void setConvolvedOutputs(LayerConvolution bank, DoubleMatrix input, int outputRows, int outputCols, DoubleMatrix convolved, int offset) {
+        int outputLength = outputRows * outputCols;
+
+        forEachNeuron(f -> {
+            NeuronConvolution neuron = (NeuronConvolution) getNeuron(f);
+            DoubleMatrix output = neuron.getOutputData();
+            if (output == null || output.rows != outputRows || output.columns != outputCols)
+                output = new DoubleMatrix(outputRows, outputCols);
+
+            System.arraycopy(convolved.data, (f*convolved.rows) + offset, output.data, 0, outputLength);
+            output.divi(bank.filterSums.get(f)).addi(bank.biases.get(f));
+            NetworkHelper.applyActivation(getLayerActivation(), output);
+
+            neuron.setConvolvedData(input, output);
+        });
+    }
+
+    /**
+     * See {@link Layer#releaseActivations()}. Also drops the receptive fields, input spectrum and convolved output of the last forward pass, which are each at least as large as the output. The packed filter bank is kept.
+     */
+    @Override
+    public void releaseActivations() {
+        super.releaseActivations();
+        inputPatches = null;
+        inputSpectrum = null;
+        convolved = null;
+        stackedPatches = null;
     }
 
     /**
@@ -101,9 +374,7 @@ public class LayerConvolution extends Layer {
     @Override
     public void calculateDeltas(List<Neuron> lowerNeurons, List<Neuron> upperNeurons) {
         // Each neuron calculate individual errors + deltas
-        for (int i=0; i<getNumberOfNeurons(); i++) {
-            getNeuron(i).calculateDeltas(lowerNeurons, upperNeurons);
-        }
+        forEachNeuron(i -> getNeuron(i).calculateDeltas(lowerNeurons, upperNeurons));
     }
 
     /**
@@ -111,8 +382,39 @@ public class LayerConvolution extends Layer {
      */
     @Override
     public void applyDeltas() {
-        for (int i=0; i<getNumberOfNeurons(); i++) {
-            getNeuron(i).applyDeltas();
-        }
+        forEachNeuron(i -> getNeuron(i).applyDeltas());
+        filterBankDirty = true;
+    }
+
+    /**
+     * See {@link Layer#syncReplica(Layer)}. The replica shares the filters but packs its own filter bank, so its bank is marked out of date.
+     * @param replica A replica created by {@link #createReplica()}.
+     */
+    @Override
+    public void syncReplica(Layer replica) {
+        super.syncReplica(replica);
+        ((LayerConvolution) replica).invalidateFilterBank();
+    }
+
+    /**
+     * See {@link Layer#createReplica(NetworkContext)}. Each neuron of the replica shares the filter of the neuron it replicates.
+     * @param context The {@link NetworkContext} of the replica.
+     * @return The replica.
+     */
+    @Override
+    public Layer createReplica(NetworkContext context) {
+        LayerConvolution replica = new LayerConvolution(context, getId(), getLayerActivation());
+        replica.setInputSize(getInputSize());
+        replica.setOutoutSize(getOutputSize());
+        replica.setFilterSize(filterSize);
+        replica.setStride(stride);
+        replica.setNumberOfFilters(numberOfFilters);
+        replica.setConvolutionMethod(convolutionMethod);
+        replica.setFFTFilterSizeThreshold(fftFilterSizeThreshold);
+
+        for (Neuron neuron: getNeurons())
+            replica.addNeuron(NeuronFactory.getReplica(neuron, context, getInputSize(), getOutputSize()));
+
+        return replica;
     }
 }
\ No newline at end of file
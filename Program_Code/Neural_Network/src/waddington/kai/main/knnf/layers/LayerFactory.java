@@ -1,9 +1,10 @@
 package waddington.kai.main.knnf.layers;
 
+import waddington.kai.main.knnf.ConvolutionMethod;
 import waddington.kai.main.knnf.LayerActivation;
 import waddington.kai.main.knnf.LayerType;
+import waddington.kai.main.knnf.NetworkContext;
 import waddington.kai.main.knnf.NetworkHelper;
-import waddington.kai.main.knnf.NetworkManager;
 
 import java.util.Arrays;
 
@@ -11,24 +12,20 @@ import java.util.Arrays;
  * Static factory class for creating new {@link Layer} instances.
  */
 public class LayerFactory {
-    /**
-     * The current number of layers created, used to generate the layer ID's.
-     */
-    public static int numberOfLayers = 0;
-
     /**
      * Creates and sets up an instance of {@link LayerInput}.
+     * @param context The {@link NetworkContext} of the network the layer is for.
      * @param imgWidth The width of the input images.
      * @param imgHeight The height of the input images.
      * @param imgChannels The number of channels in the input images, used for the number of neurons in the layer.
      * @return An instance of {@link LayerInput}.
      */
-    public static Layer getInputLayer(int imgWidth, int imgHeight, int imgChannels) {
-        int layerId = numberOfLayers++;
+    public static Layer getInputLayer(NetworkContext context, int imgWidth, int imgHeight, int imgChannels) {
+        int layerId = context.nextLayerId();
         int[] inputSize = new int[] {imgChannels, imgHeight, imgWidth}; // {z,y,x}
         int[] outputSize = inputSize;
 
-        LayerInput layer = new LayerInput(layerId);
+        LayerInput layer = new LayerInput(context, layerId);
         layer.setInputSize(inputSize);
         layer.setOutoutSize(outputSize);
 
@@ -45,25 +42,44 @@ public class LayerFactory {
 
     /**
      * Creates and sets up an instance of {@link LayerConvolution}.
+     * @param context The {@link NetworkContext} of the network the layer is for.
+     * @param numFilters The number of neurons for this layer.
+     * @param filterSize The size of the receptive field.
+     * @param stride The stride that this layer will use.
+     * @param activation The {@link LayerActivation} type that this layer will use.
+     * @param numberOfNeuronsToLayer The number of inputs channels to the layer.
+     * @return An instance of {@link LayerConvolution}.
+     */
+    public static Layer getConvLayer(NetworkContext context, int numFilters, int filterSize, int stride, String activation, int numberOfNeuronsToLayer) {
+        return getConvLayer(context, numFilters, filterSize, stride, activation, ConvolutionMethod.direct.toString(), numberOfNeuronsToLayer);
+    }
+
+    /**
+     * Creates and sets up an instance of {@link LayerConvolution} that uses a specific {@link ConvolutionMethod}.
+     * @param context The {@link NetworkContext} of the network the layer is for.
      * @param numFilters The number of neurons for this layer.
      * @param filterSize The size of the receptive field.
      * @param stride The stride that this layer will use.
      * @param activation The {@link LayerActivation} type that this layer will use.
+     * @param method The {@link ConvolutionMethod} that this layer will use.
      * @param numberOfNeuronsToLayer The number of inputs channels to the layer.
      * @return An instance of {@link LayerConvolution}.
      */
-    public static Layer getConvLayer(int numFilters, int filterSize, int stride, String activation, int numberOfNeuronsToLayer) {
-        int layerId = numberOfLayers++;
-        int[] inputSize = NetworkManager.getLayerInputSize(layerId);
+    public static Layer getConvLayer(NetworkContext context, int numFilters, int filterSize, int stride, String activation, String method, int numberOfNeuronsToLayer) {
+        int layerId = context.nextLayerId();
+        int[] inputSize = context.getLayerInputSize(layerId);
         int[] outputSize = NetworkHelper.calculateConvolutionOutputSize(numFilters, filterSize, stride, inputSize);
         LayerActivation layerActivation = NetworkHelper.matchActivation(activation);
+        ConvolutionMethod convolutionMethod = NetworkHelper.matchConvolutionMethod(method);
 
-        LayerConvolution layer = new LayerConvolution(layerId, layerActivation);
+        LayerConvolution layer = new LayerConvolution(context, layerId, layerActivation);
         layer.setInputSize(inputSize);
         layer.setOutoutSize(outputSize);
         layer.setNumberOfFilters(numFilters);
         layer.setFilterSize(filterSize);
         layer.setStride(stride);
+        layer.setConvolutionMethod(convolutionMethod);
+        layer.setFFTFilterSizeThreshold(context.getFFTFilterSizeThreshold());
 
         layer.createNeurons(numberOfNeuronsToLayer);
 
@@ -73,6 +89,7 @@ public class LayerFactory {
         sb.append("filter-size("+filterSize+"), ");
         sb.append("stride("+stride+"), ");
         sb.append("activation("+activation+"), ");
+        sb.append("method("+layer.getActiveConvolutionMethod()+"), ");
         sb.append("output-size("+Arrays.toString(NetworkHelper.calculateConvolutionOutputSize(numFilters, filterSize, stride, inputSize))+").");
         System.out.println(sb);
 
@@ -81,19 +98,20 @@ public class LayerFactory {
 
     /**
      * Creates and sets up an instance of {@link LayerPool}.
+     * @param context The {@link NetworkContext} of the network the layer is for.
      * @param poolSize The size of the receptive field.
      * @param stride The stride that this layer will use.
      * @param poolType The type of pooling operation, see {@link LayerType}.
      * @param numberOfNeuronsToLayer The number of neurons in this layer.
      * @return An instance of {@link LayerPool}.
      */
-    public static Layer getPoolLayer(int poolSize, int stride, String poolType, int numberOfNeuronsToLayer) {
-        int layerId = numberOfLayers++;
-        int[] inputSize = NetworkManager.getLayerInputSize(layerId);
+    public static Layer getPoolLayer(NetworkContext context, int poolSize, int stride, String poolType, int numberOfNeuronsToLayer) {
+        int layerId = context.nextLayerId();
+        int[] inputSize = context.getLayerInputSize(layerId);
         int[] outputSize = NetworkHelper.calculatePoolOutputSize(poolSize, stride, inputSize);
         LayerType type = NetworkHelper.matchPoolType(poolType);
 
-        LayerPool layer = new LayerPool(layerId, type);
+        LayerPool layer = new LayerPool(context, layerId, type);
         layer.setInputSize(inputSize);
         layer.setOutoutSize(outputSize);
         layer.setPoolSize(poolSize);
@@ -114,15 +132,16 @@ public class LayerFactory {
 
     /**
      * Creates and sets up an instance of {@link LayerFlatten}.
+     * @param context The {@link NetworkContext} of the network the layer is for.
      * @param numberOfNeuronsToLayer The number of neurons to the layer, used to calculate how many neurons this layer needs.
      * @return An instance of {@link LayerFlatten}.
      */
-    public static Layer getFlattenLayer(int numberOfNeuronsToLayer) {
-        int layerId = numberOfLayers++;
-        int[] inputSize = NetworkManager.getLayerInputSize(layerId);
+    public static Layer getFlattenLayer(NetworkContext context, int numberOfNeuronsToLayer) {
+        int layerId = context.nextLayerId();
+        int[] inputSize = context.getLayerInputSize(layerId);
         int[] outputSize = NetworkHelper.caculateFlattenLayerOutputSize(inputSize);
 
-        LayerFlatten layer = new LayerFlatten(layerId);
+        LayerFlatten layer = new LayerFlatten(context, layerId);
         layer.setInputSize(inputSize);
         layer.setOutoutSize(outputSize);
 
@@ -130,7 +149,8 @@ public class LayerFactory {
 
         StringBuilder sb = new StringBuilder();
         sb.append("Layer(" + layerId + ")(flatten), ");
-        sb.append("neurons("+outputSize[2]+").");
+        sb.append("neurons("+inputSize[0]+"), ");
+        sb.append("values("+outputSize[2]+").");
         System.out.println(sb);
 
         return layer;
@@ -138,18 +158,19 @@ public class LayerFactory {
 
     /**
      * Creates and sets up an instance of {@link LayerFullyConnected}.
+     * @param context The {@link NetworkContext} of the network the layer is for.
      * @param numberOfNeurons The number of neurons this layer should have.
      * @param activation The {@link LayerActivation} for this layer.
      * @param numberOfNeuronsToLayer The number of neurons leading to this layer, used to calculate how many weights each neuron will have.
      * @return An instance of {@link LayerFullyConnected}.
      */
-    public static Layer getFCLayer(int numberOfNeurons, String activation, int numberOfNeuronsToLayer) {
-        int layerId = numberOfLayers++;
-        int[] inputSize = NetworkManager.getLayerInputSize(layerId);
+    public static Layer getFCLayer(NetworkContext context, int numberOfNeurons, String activation, int numberOfNeuronsToLayer) {
+        int layerId = context.nextLayerId();
+        int[] inputSize = context.getLayerInputSize(layerId);
         int[] outputSize = new int[] {1, 1, numberOfNeurons};
         LayerActivation layerActivation = NetworkHelper.matchActivation(activation);
 
-        LayerFullyConnected layer = new LayerFullyConnected(layerId, layerActivation);
+        LayerFullyConnected layer = new LayerFullyConnected(context, layerId, layerActivation);
         layer.setInputSize(inputSize);
         layer.setOutoutSize(outputSize);
         layer.setNumberOfNeurons(numberOfNeurons);
@@ -168,16 +189,17 @@ public class LayerFactory {
 
     /**
      * Creates and sets up an instance of {@link LayerOutput}.
+     * @param context The {@link NetworkContext} of the network the layer is for.
      * @param numberOfOutputs The number of neurons this layer should have.
      * @param numberOfNeuronsToLayer The number of neurons leading to this layer, used to calculate how many weights each neuron will have.
      * @return An instance of {@link LayerOutput}.
      */
-    public static Layer getOutputLayer(int numberOfOutputs, int numberOfNeuronsToLayer) {
-        int layerId = numberOfLayers++;
-        int[] inputSize = NetworkManager.getLayerInputSize(layerId);
+    public static Layer getOutputLayer(NetworkContext context, int numberOfOutputs, int numberOfNeuronsToLayer) {
+        int layerId = context.nextLayerId();
+        int[] inputSize = context.getLayerInputSize(layerId);
         int[] outputSize = new int[] {1, 1, numberOfOutputs};
 
-        LayerOutput layer = new LayerOutput(layerId);
+        LayerOutput layer = new LayerOutput(context, layerId);
         layer.setInputSize(inputSize);
         layer.setOutoutSize(outputSize);
         layer.setNumberOfOutputs(numberOfOutputs);
@@ -3,72 +3,85 @@ package waddington.kai.main.knnf.layers;
 import org.jblas.DoubleMatrix;
 import waddington.kai.main.knnf.LayerActivation;
 import waddington.kai.main.knnf.LayerType;
+import waddington.kai.main.knnf.NetworkContext;
+import waddington.kai.main.knnf.NetworkHelper;
+import waddington.kai.main.knnf.exceptions.InvalidInputSizeException;
 import waddington.kai.main.knnf.layers.neurons.Neuron;
 import waddington.kai.main.knnf.layers.neurons.NeuronFactory;
+import waddington.kai.main.knnf.layers.neurons.NeuronFlatten;
 
 import java.util.List;
 
 /**
  * This is the class for the flattening layer. It extends the {@link Layer} class, and is a required layer between 2D layers and 1D layers.
+ * <p>
+ * Each channel is flattened in the column-major order of its data, so the flattened values are views of the channel data rather than copies.
  */
 public class LayerFlatten extends Layer {
+    /**
+     * A 1xN {@link DoubleMatrix} that the error of every flattened value is calculated into, reused between examples.
+     */
+    private DoubleMatrix error;
+    /**
+     * Reused buffer for the errors of the neurons in the layer above, when the layer above stores its weights as one matrix.
+     */
+    private double[] upperNeuronErrors;
 
     /**
-     * See {@link Layer#Layer(int, LayerType, LayerActivation)}.
+     * See {@link Layer#Layer(NetworkContext, int, LayerType, LayerActivation)}.
+     * @param context The {@link NetworkContext} of the network.
      * @param id The layer ID.
      */
-    public LayerFlatten(int id) {
-        super(id, LayerType.flatten, null);
+    public LayerFlatten(NetworkContext context, int id) {
+        super(context, id, LayerType.flatten, null);
     }
 
     /**
-     * Creates the neurons for this layer. 1 neuron per value/cell.
+     * Creates the neurons for this layer. 1 neuron per input channel.
      * @param number The number of neurons to create.
      */
     @Override
     public void createNeurons(int number) {
-        for (int i=0; i<getOutputSize()[2]; i++) {
+        for (int i=0; i<getInputSize()[0]; i++) {
             Neuron neuron = NeuronFactory.getFlattenNeuron(i, getInputSize(), getOutputSize());
             addNeuron(neuron);
         }
     }
 
     /**
-     * Sets the input data to each neuron in this layer. Has to calculate the ID of the neuron in this layer as it transforms a list of 2D matrices to a 1xN matrix.
+     * Sets the input data to each neuron in this layer. Each neuron flattens the channel with the same ID, so the output of the layer is every channel one after another.
      * @param inputNeurons The list of neurons to get the data from.
+     * @throws InvalidInputSizeException If a channel is not the size the layer was validated for, as the flattened values would not line up with the weights of the layer above.
      */
     @Override
     public void setInputData(List<Neuron> inputNeurons) {
-        int neuronId = 0;
-
-        for (int i=0; i<inputNeurons.size(); i++) {
-            Neuron neuron = inputNeurons.get(i);
-            DoubleMatrix data = neuron.getOutputData();
-            int dataRows = data.rows;
-            int dataCols = data.columns;
+        int[] inputSize = getInputSize();
 
-            for (int y=0; y<dataRows; y++) {
-                for (int x=0; x<dataCols; x++) {
-                    double cellValue = data.get(y, x);
-                    // This is a vector with 1 value
-                    getNeuron(neuronId).setInputData(new DoubleMatrix(new double[] {cellValue}));
+        for (int i=0; i<getNumberOfNeurons(); i++) {
+            DoubleMatrix channel = inputNeurons.get(i).getOutputData();
 
-                    neuronId++;
-                }
-            }
+            if (channel.rows != inputSize[1] || channel.columns != inputSize[2])
+                throw new InvalidInputSizeException("\r\nLayer " + getId() + " was validated for " + inputSize[1] + "x" + inputSize[2] + " channels but was given " + channel.rows + "x" + channel.columns + ". ");
         }
+
+        forEachNeuron(i -> getNeuron(i).setInputData(inputNeurons.get(i).getOutputData()));
     }
 
     /**
-     * Triggers the weight delta calculations for each neuron in this layer.
+     * Back-propagates the error of the layer above to every flattened value, then gives each neuron the error for its channel.
      * @param lowerNeurons The neurons in the layer below.
      * @param upperNeurons The neurons in the layer above.
      */
     @Override
     public void calculateDeltas(List<Neuron> lowerNeurons, List<Neuron> upperNeurons) {
-        for (int i=0; i<getNumberOfNeurons(); i++) {
-            getNeuron(i).calculateDeltas(lowerNeurons, upperNeurons);
-        }
+        if (upperNeuronErrors == null || upperNeuronErrors.length != upperNeurons.size())
+            upperNeuronErrors = new double[upperNeurons.size()];
+
+        // One product over the weights of the layer above for every flattened value
+        error = NetworkHelper.getWeightedUpperError(upperNeurons, error, upperNeuronErrors);
+
+        // Then each neuron takes the part for its channel
+        forEachNeuron(i -> ((NeuronFlatten) getNeuron(i)).setFlatError(error));
     }
 
     /**
@@ -78,4 +91,19 @@ public class LayerFlatten extends Layer {
     public void applyDeltas() {
         // Flattening layer doesn't need to do anything
     }
+
+    /**
+     * See {@link Layer#createReplica(NetworkContext)}. Flattening neurons have no weights, so the replica has new neurons.
+     * @param context The {@link NetworkContext} of the replica.
+     * @return The replica.
+     */
+    @Override
+    public Layer createReplica(NetworkContext context) {
+        LayerFlatten replica = new LayerFlatten(context, getId());
+        replica.setInputSize(getInputSize());
+        replica.setOutoutSize(getOutputSize());
+        replica.createNeurons(getNumberOfNeurons());
+
+        return replica;
+    }
 }
\ No newline at end of file
@@ -3,9 +3,11 @@ package waddington.kai.main.knnf.layers;
 import org.jblas.DoubleMatrix;
 import waddington.kai.main.knnf.LayerActivation;
 import waddington.kai.main.knnf.LayerType;
+import waddington.kai.main.knnf.NetworkContext;
 import waddington.kai.main.knnf.NetworkHelper;
 import waddington.kai.main.knnf.layers.neurons.Neuron;
 import waddington.kai.main.knnf.layers.neurons.NeuronFactory;
+import waddington.kai.main.knnf.layers.neurons.NeuronFullyConnected;
 
 import java.util.List;
 
@@ -21,14 +23,40 @@ public class LayerFullyConnected extends Layer {
      * The number of weights that each neuron will have (excluding weight to bias).
      */
     private int numberOfWeights;
+    /**
+     * True if the weights of the neurons are stored in one {@link DenseWeights} matrix, see {@link #setDenseWeights(boolean)}.
+     */
+    private boolean dense;
+    /**
+     * The weights of every neuron when {@link #dense}, created on the first forward pass so that loaded neurons are included.
+     */
+    private DenseWeights denseWeights;
+    /**
+     * Reused buffer that the values from the layer below are joined into, see {@link #allocateInputBuffer()}.
+     */
+    private DoubleMatrix inputBuffer;
+    /**
+     * Reused buffer for the error back-propagated from the layer above.
+     */
+    private DoubleMatrix upperError;
+    /**
+     * Reused buffer for the errors of the neurons in the layer above, when the layer above stores its weights as one matrix.
+     */
+    private double[] upperNeuronErrors;
+    /**
+     * Reused buffers for the inputs and weighted sums of each example of a batch, one example per column, see {@link #setStackedInputData(List, List)}.
+     */
+    private DoubleMatrix stackedInputs;
+    private DoubleMatrix stackedSums;
 
     /**
-     * See {@link Layer#Layer(int, LayerType, LayerActivation)}.
+     * See {@link Layer#Layer(NetworkContext, int, LayerType, LayerActivation)}.
+     * @param context The {@link NetworkContext} of the network.
      * @param id The layer ID.
      * @param activation The activation type for the layer.
      */
-    public LayerFullyConnected(int id, LayerActivation activation) {
-        super(id, LayerType.fc, activation);
+    public LayerFullyConnected(NetworkContext context, int id, LayerActivation activation) {
+        super(context, id, LayerType.fc, activation);
     }
 
     public void setNumberOfNeurons(int numberOfNeurons) {
@@ -47,6 +75,52 @@ public class LayerFullyConnected extends Layer {
         return numberOfWeights;
     }
 
+    /**
+     * Creates the buffer that the values from the layer below are joined into on each forward pass, so it is not reallocated for every example.
+     * Called by {@link waddington.kai.main.knnf.NetworkManager#networkValidityCheck()}, otherwise the buffer is created on the first forward pass.
+     */
+    public void allocateInputBuffer() {
+        inputBuffer = new DoubleMatrix(1, numberOfWeights);
+    }
+
+    /**
+     * @return The buffer the inputs were last joined into, null if it has been released, see {@link #releaseActivations()}.
+     */
+    public DoubleMatrix getInputBuffer() {
+        return inputBuffer;
+    }
+
+    /**
+     * Sets whether the weights of the neurons are stored as one {neurons, inputs} matrix, so that the forward pass is one matrix-vector multiply and the weight deltas one outer product.
+     * Turning it off moves the weights back into each neuron.
+     * @param dense True to use {@link DenseWeights}.
+     */
+    public void setDenseWeights(boolean dense) {
+        this.dense = dense;
+
+        if (!dense && denseWeights != null) {
+            denseWeights.unbind(getNeurons());
+            denseWeights = null;
+        }
+    }
+
+    public boolean isDenseWeights() {
+        return dense;
+    }
+
+    /**
+     * Gets the {@link DenseWeights} of this layer, binding the neurons to them first if needed.
+     * @return The {@link DenseWeights}, or null if the layer does not use them.
+     */
+    public DenseWeights getDenseWeights() {
+        if (dense && denseWeights == null) {
+            denseWeights = new DenseWeights(getContext(), getNeurons().size(), numberOfWeights);
+            denseWeights.bind(getNeurons());
+        }
+
+        return denseWeights;
+    }
+
     /**
      * Creates the neurons for this layer.
      * @param number The number of neurons to create.
@@ -54,7 +128,7 @@ public class LayerFullyConnected extends Layer {
     @Override
     public void createNeurons(int number) {
         for (int i=0; i<number; i++) {
-            Neuron neuron = NeuronFactory.getFCNeuron(i, getLayerActivation(), numberOfWeights);
+            Neuron neuron = NeuronFactory.getFCNeuron(getContext(), i, getLayerActivation(), numberOfWeights);
             addNeuron(neuron);
         }
     }
@@ -66,12 +140,62 @@ public class LayerFullyConnected extends Layer {
     @Override
     public void setInputData(List<Neuron> inputNeurons) {
         // Merge input data
-        DoubleMatrix joinedInputs = NetworkHelper.joinInputVectors(inputNeurons);
+        inputBuffer = NetworkHelper.joinInputVectors(inputNeurons, inputBuffer);
+        DoubleMatrix joinedInputs = inputBuffer;
+
+        if (dense) {
+            // One matrix-vector multiply for every neurons weighted sum
+            DoubleMatrix weightedSums = getDenseWeights().multiply(joinedInputs);
+            forEachNeuron(i -> ((NeuronFullyConnected) getNeuron(i)).setInputData(joinedInputs, weightedSums.get(i)));
+            return;
+        }
 
         // Set the input data for each neuron
-        for (int i=0; i<getNumberOfNeurons(); i++) {
-            getNeuron(i).setInputData(joinedInputs);
+        forEachNeuron(i -> getNeuron(i).setInputData(joinedInputs));
+    }
+
+    /**
+     * See {@link Layer#setStackedInputData(List, List)}. With {@link DenseWeights} the weighted sums of every example are one matrix multiply, instead of one matrix-vector multiply per example.
+     * @param replicas This layer and its replicas, or only replicas of it, one per example.
+     * @param inputNeurons The neurons of the layer below each replica.
+     */
+    @Override
+    public void setStackedInputData(List<Layer> replicas, List<List<Neuron>> inputNeurons) {
+        if (!dense) {
+            super.setStackedInputData(replicas, inputNeurons);
+            return;
         }
+
+        int examples = replicas.size();
+        if (stackedInputs == null || stackedInputs.columns != examples)
+            stackedInputs = new DoubleMatrix(numberOfWeights, examples);
+
+        // Each replica joins its own inputs, which its neurons keep for the backward pass
+        for (int b=0; b<examples; b++) {
+            LayerFullyConnected replica = (LayerFullyConnected) replicas.get(b);
+            replica.inputBuffer = NetworkHelper.joinInputVectors(inputNeurons.get(b), replica.inputBuffer);
+            System.arraycopy(replica.inputBuffer.data, 0, stackedInputs.data, b*numberOfWeights, numberOfWeights);
+        }
+
+        stackedSums = getDenseWeights().multiply(stackedInputs, stackedSums);
+
+        for (int b=0; b<examples; b++) {
+            LayerFullyConnected replica = (LayerFullyConnected) replicas.get(b);
+            DoubleMatrix joinedInputs = replica.inputBuffer;
+            int column = b;
+            replica.forEachNeuron(i -> ((NeuronFullyConnected) replica.getNeuron(i)).setInputData(joinedInputs, stackedSums.get(i, column)));
+        }
+    }
+
+    /**
+     * See {@link Layer#releaseActivations()}. Also drops the buffers the inputs were joined into, which are as large as the output of the layer below.
+     */
+    @Override
+    public void releaseActivations() {
+        super.releaseActivations();
+        inputBuffer = null;
+        stackedInputs = null;
+        stackedSums = null;
     }
 
     /**
@@ -81,9 +205,17 @@ public class LayerFullyConnected extends Layer {
      */
     @Override
     public void calculateDeltas(List<Neuron> lowerNeurons, List<Neuron> upperNeurons) {
-        for (int i=0; i<getNumberOfNeurons(); i++) {
-            getNeuron(i).calculateDeltas(lowerNeurons, upperNeurons);
+        if (dense) {
+            // The error from the layer above for every neuron at once, then one outer product for the weight deltas
+            if (upperNeuronErrors == null || upperNeuronErrors.length != upperNeurons.size())
+                upperNeuronErrors = new double[upperNeurons.size()];
+            upperError = NetworkHelper.getWeightedUpperError(upperNeurons, upperError, upperNeuronErrors);
+            forEachNeuron(i -> ((NeuronFullyConnected) getNeuron(i)).calculateDeltas(upperError.get(i)));
+            getDenseWeights().calculateDeltas(getNeurons());
+            return;
         }
+
+        forEachNeuron(i -> getNeuron(i).calculateDeltas(lowerNeurons, upperNeurons));
     }
 
     /**
@@ -91,8 +223,47 @@ public class LayerFullyConnected extends Layer {
      */
     @Override
     public void applyDeltas() {
-        for (int i=0; i<getNumberOfNeurons(); i++) {
-            getNeuron(i).applyDeltas();
+        forEachNeuron(i -> getNeuron(i).applyDeltas());
+
+        if (dense)
+            getDenseWeights().applyDeltas();
+    }
+
+    /**
+     * See {@link Layer#createReplica(NetworkContext)}. Each neuron of the replica shares the weights of the neuron it replicates, including when they are stored as {@link DenseWeights}.
+     * @param context The {@link NetworkContext} of the replica.
+     * @return The replica.
+     */
+    @Override
+    public Layer createReplica(NetworkContext context) {
+        LayerFullyConnected replica = new LayerFullyConnected(context, getId(), getLayerActivation());
+        replica.setInputSize(getInputSize());
+        replica.setOutoutSize(getOutputSize());
+        replica.setNumberOfWeights(numberOfWeights);
+        replica.setNumberOfNeurons(numberOfNeurons);
+
+        // Bind this layer before replicating so the replica neurons share the weight matrix
+        if (dense) {
+            replica.dense = true;
+            replica.denseWeights = getDenseWeights().createReplica(context);
         }
+
+        int[] dataSize = new int[] {1, 1, 1};
+        for (Neuron neuron: getNeurons())
+            replica.addNeuron(NeuronFactory.getReplica(neuron, context, dataSize, dataSize));
+
+        return replica;
+    }
+
+    /**
+     * See {@link Layer#addReplicaDeltas(Layer)}. Also adds the batch stored by the {@link DenseWeights} of the replica.
+     * @param replica A replica created by {@link #createReplica()}.
+     */
+    @Override
+    public void addReplicaDeltas(Layer replica) {
+        super.addReplicaDeltas(replica);
+
+        if (dense)
+            getDenseWeights().addBatch(((LayerFullyConnected) replica).denseWeights);
     }
 }
\ No newline at end of file
@@ -3,6 +3,7 @@ package waddington.kai.main.knnf.layers;
 import org.jblas.DoubleMatrix;
 import waddington.kai.main.knnf.LayerActivation;
 import waddington.kai.main.knnf.LayerType;
+import waddington.kai.main.knnf.NetworkContext;
 import waddington.kai.main.knnf.exceptions.IllegalMethodCallException;
 import waddington.kai.main.knnf.layers.neurons.Neuron;
 import waddington.kai.main.knnf.layers.neurons.NeuronFactory;
@@ -15,11 +16,12 @@ import java.util.List;
 public class LayerInput extends Layer {
 
     /**
-     * See {@link Layer#Layer(int, LayerType, LayerActivation)}.
+     * See {@link Layer#Layer(NetworkContext, int, LayerType, LayerActivation)}.
+     * @param context The {@link NetworkContext} of the network.
      * @param id The layer ID.
      */
-    public LayerInput(int id) {
-        super(id, LayerType.input, null);
+    public LayerInput(NetworkContext context, int id) {
+        super(context, id, LayerType.input, null);
     }
 
 	/**
@@ -72,4 +74,19 @@ public class LayerInput extends Layer {
     public void applyDeltas() {
         // Input layer doesn't need to do anything
     }
+
+    /**
+     * See {@link Layer#createReplica(NetworkContext)}. Input neurons have no weights, so the replica has new neurons.
+     * @param context The {@link NetworkContext} of the replica.
+     * @return The replica.
+     */
+    @Override
+    public Layer createReplica(NetworkContext context) {
+        LayerInput replica = new LayerInput(context, getId());
+        replica.setInputSize(getInputSize());
+        replica.setOutoutSize(getOutputSize());
+        replica.createNeurons(getNumberOfNeurons());
+
+        return replica;
+    }
 }
\ No newline at end of file
@@ -3,6 +3,7 @@ package waddington.kai.main.knnf.layers;
 import org.jblas.DoubleMatrix;
 import waddington.kai.main.knnf.LayerActivation;
 import waddington.kai.main.knnf.LayerType;
+import waddington.kai.main.knnf.NetworkContext;
 import waddington.kai.main.knnf.NetworkHelper;
 import waddington.kai.main.knnf.layers.neurons.Neuron;
 import waddington.kai.main.knnf.layers.neurons.NeuronFactory;
@@ -22,13 +23,31 @@ public class LayerOutput extends Layer {
 	 * The number of weights that each neuron will have (excluding weight to bias).
 	 */
 	private int numberOfWeights;
+	/**
+	 * True if the weights of the neurons are stored in one {@link DenseWeights} matrix, see {@link #setDenseWeights(boolean)}.
+	 */
+	private boolean dense;
+	/**
+	 * The weights of every neuron when {@link #dense}, created on the first forward pass so that loaded neurons are included.
+	 */
+	private DenseWeights denseWeights;
+	/**
+	 * Reused buffer that the values from the layer below are joined into, see {@link #allocateInputBuffer()}.
+	 */
+	private DoubleMatrix inputBuffer;
+	/**
+	 * Reused buffers for the inputs and weighted sums of each example of a batch, one example per column, see {@link #setStackedInputData(List, List)}.
+	 */
+	private DoubleMatrix stackedInputs;
+	private DoubleMatrix stackedSums;
 
 	/**
-	 * See {@link Layer#Layer(int, LayerType, LayerActivation)}.
+	 * See {@link Layer#Layer(NetworkContext, int, LayerType, LayerActivation)}.
+	 * @param context The {@link NetworkContext} of the network.
 	 * @param id The layer ID.
 	 */
-    public LayerOutput(int id) {
-        super(id, LayerType.output, null);
+    public LayerOutput(NetworkContext context, int id) {
+        super(context, id, LayerType.output, null);
     }
 
     public void setNumberOfOutputs(int numberOfOutputs) {
@@ -47,6 +66,52 @@ public class LayerOutput extends Layer {
         return numberOfWeights;
     }
 
+    /**
+     * Creates the buffer that the values from the layer below are joined into on each forward pass, so it is not reallocated for every example.
+     * Called by {@link waddington.kai.main.knnf.NetworkManager#networkValidityCheck()}, otherwise the buffer is created on the first forward pass.
+     */
+    public void allocateInputBuffer() {
+        inputBuffer = new DoubleMatrix(1, numberOfWeights);
+    }
+
+    /**
+     * @return The buffer the inputs were last joined into, null if it has been released, see {@link #releaseActivations()}.
+     */
+    public DoubleMatrix getInputBuffer() {
+        return inputBuffer;
+    }
+
+    /**
+     * Sets whether the weights of the neurons are stored as one {neurons, inputs} matrix, so that the forward pass is one matrix-vector multiply and the weight deltas one outer product.
+     * Turning it off moves the weights back into each neuron.
+     * @param dense True to use {@link DenseWeights}.
+     */
+    public void setDenseWeights(boolean dense) {
+        this.dense = dense;
+
+        if (!dense && denseWeights != null) {
+            denseWeights.unbind(getNeurons());
+            denseWeights = null;
+        }
+    }
+
+    public boolean isDenseWeights() {
+        return dense;
+    }
+
+    /**
+     * Gets the {@link DenseWeights} of this layer, binding the neurons to them first if needed.
+     * @return The {@link DenseWeights}, or null if the layer does not use them.
+     */
+    public DenseWeights getDenseWeights() {
+        if (dense && denseWeights == null) {
+            denseWeights = new DenseWeights(getContext(), getNeurons().size(), numberOfWeights);
+            denseWeights.bind(getNeurons());
+        }
+
+        return denseWeights;
+    }
+
 	/**
 	 * Creates the neurons for this layer.
 	 * @param number The number of neurons to create.
@@ -54,7 +119,7 @@ public class LayerOutput extends Layer {
     @Override
     public void createNeurons(int number) {
         for (int i=0; i<numberOfOutputs; i++) {
-            Neuron neuron = NeuronFactory.getOutputNeuron(i, getLayerActivation(), numberOfWeights);
+            Neuron neuron = NeuronFactory.getOutputNeuron(getContext(), i, getLayerActivation(), numberOfWeights);
             addNeuron(neuron);
         }
     }
@@ -67,13 +132,60 @@ public class LayerOutput extends Layer {
     @Override
     public void setInputData(List<Neuron> inputNeurons) {
         // Merge input data
-        DoubleMatrix joinedInputs = NetworkHelper.joinInputVectors(inputNeurons);
-        DoubleMatrix outputs = new DoubleMatrix(1, numberOfOutputs);
+        inputBuffer = NetworkHelper.joinInputVectors(inputNeurons, inputBuffer);
+        DoubleMatrix joinedInputs = inputBuffer;
 
         // Set the input data for each neuron
-        // and get their outputs so can apply softmax
-        for (int i=0; i<getNumberOfNeurons(); i++) {
-            getNeuron(i).setInputData(joinedInputs);
+        if (dense) {
+            DoubleMatrix weightedSums = getDenseWeights().multiply(joinedInputs);
+            forEachNeuron(i -> ((NeuronOutput) getNeuron(i)).setInputData(joinedInputs, weightedSums.get(i)));
+        } else {
+            forEachNeuron(i -> getNeuron(i).setInputData(joinedInputs));
+        }
+
+        applySoftmax();
+    }
+
+	/**
+	 * See {@link Layer#setStackedInputData(List, List)}. With {@link DenseWeights} the weighted sums of every example are one matrix multiply, instead of one matrix-vector multiply per example.
+	 * @param replicas This layer and its replicas, or only replicas of it, one per example.
+	 * @param inputNeurons The neurons of the layer below each replica.
+	 */
+	@Override
+	public void setStackedInputData(List<Layer> replicas, List<List<Neuron>> inputNeurons) {
+        if (!dense) {
+            super.setStackedInputData(replicas, inputNeurons);
+            return;
+        }
+
+        int examples = replicas.size();
+        if (stackedInputs == null || stackedInputs.columns != examples)
+            stackedInputs = new DoubleMatrix(numberOfWeights, examples);
+
+        // Each replica joins its own inputs, which its neurons keep for the backward pass
+        for (int b=0; b<examples; b++) {
+            LayerOutput replica = (LayerOutput) replicas.get(b);
+            replica.inputBuffer = NetworkHelper.joinInputVectors(inputNeurons.get(b), replica.inputBuffer);
+            System.arraycopy(replica.inputBuffer.data, 0, stackedInputs.data, b*numberOfWeights, numberOfWeights);
+        }
+
+        stackedSums = getDenseWeights().multiply(stackedInputs, stackedSums);
+
+        for (int b=0; b<examples; b++) {
+            LayerOutput replica = (LayerOutput) replicas.get(b);
+            DoubleMatrix joinedInputs = replica.inputBuffer;
+            int column = b;
+            replica.forEachNeuron(i -> ((NeuronOutput) replica.getNeuron(i)).setInputData(joinedInputs, stackedSums.get(i, column)));
+            replica.applySoftmax();
+        }
+    }
+
+	/**
+	 * Gets the output of each neuron, which has just calculated it, applies the softmax function to all of them, and changes the output of each neuron to its value from the softmax function.
+	 */
+	private void applySoftmax() {
+        DoubleMatrix outputs = new DoubleMatrix(1, numberOfOutputs);
+        for (int i=0; i<numberOfOutputs; i++) {
             outputs.put(0, i, getNeuron(i).getOutputData().get(0,0));
         }
 
@@ -87,6 +199,17 @@ public class LayerOutput extends Layer {
         }
     }
 
+	/**
+	 * See {@link Layer#releaseActivations()}. Also drops the buffers the inputs were joined into, which are as large as the output of the layer below.
+	 */
+	@Override
+	public void releaseActivations() {
+        super.releaseActivations();
+        inputBuffer = null;
+        stackedInputs = null;
+        stackedSums = null;
+    }
+
 	/**
 	 * Calculates and retrieves the MSE of the network.
 	 * @param label The expected classification, so that the error can be calculated.
@@ -114,9 +237,11 @@ public class LayerOutput extends Layer {
 	 */
     @Override
     public void calculateDeltas(List<Neuron> lowerNeurons, List<Neuron> upperNeurons) {
-        for (int i=0; i<getNumberOfNeurons(); i++) {
-            getNeuron(i).calculateDeltas(lowerNeurons, upperNeurons);
-        }
+        forEachNeuron(i -> getNeuron(i).calculateDeltas(lowerNeurons, upperNeurons));
+
+        // One outer product for the weight deltas of every neuron
+        if (dense)
+            getDenseWeights().calculateDeltas(getNeurons());
     }
 
 	/**
@@ -124,9 +249,10 @@ public class LayerOutput extends Layer {
 	 */
     @Override
     public void applyDeltas() {
-        for (int i=0; i<getNumberOfNeurons(); i++) {
-            getNeuron(i).applyDeltas();
-        }
+        forEachNeuron(i -> getNeuron(i).applyDeltas());
+
+        if (dense)
+            getDenseWeights().applyDeltas();
     }
 
 	/**
@@ -142,4 +268,42 @@ public class LayerOutput extends Layer {
 
         return new DoubleMatrix(outputs);
     }
+
+    /**
+     * See {@link Layer#createReplica(NetworkContext)}. Each neuron of the replica shares the weights of the neuron it replicates, including when they are stored as {@link DenseWeights}.
+     * @param context The {@link NetworkContext} of the replica.
+     * @return The replica.
+     */
+    @Override
+    public Layer createReplica(NetworkContext context) {
+        LayerOutput replica = new LayerOutput(context, getId());
+        replica.setInputSize(getInputSize());
+        replica.setOutoutSize(getOutputSize());
+        replica.setNumberOfWeights(numberOfWeights);
+        replica.setNumberOfOutputs(numberOfOutputs);
+
+        // Bind this layer before replicating so the replica neurons share the weight matrix
+        if (dense) {
+            replica.dense = true;
+            replica.denseWeights = getDenseWeights().createReplica(context);
+        }
+
+        int[] dataSize = new int[] {1, 1, 1};
+        for (Neuron neuron: getNeurons())
+            replica.addNeuron(NeuronFactory.getReplica(neuron, context, dataSize, dataSize));
+
+        return replica;
+    }
+
+    /**
+     * See {@link Layer#addReplicaDeltas(Layer)}. Also adds the batch stored by the {@link DenseWeights} of the replica.
+     * @param replica A replica created by {@link #createReplica()}.
+     */
+    @Override
+    public void addReplicaDeltas(Layer replica) {
+        super.addReplicaDeltas(replica);
+
+        if (dense)
+            getDenseWeights().addBatch(((LayerOutput) replica).denseWeights);
+    }
 }
\ No newline at end of file
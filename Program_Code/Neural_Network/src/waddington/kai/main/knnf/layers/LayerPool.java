@@ -2,6 +2,7 @@ package waddington.kai.main.knnf.layers;
 
 import waddington.kai.main.knnf.LayerActivation;
 import waddington.kai.main.knnf.LayerType;
+import waddington.kai.main.knnf.NetworkContext;
 import waddington.kai.main.knnf.layers.neurons.Neuron;
 import waddington.kai.main.knnf.layers.neurons.NeuronFactory;
 
@@ -21,11 +22,12 @@ public class LayerPool extends Layer {
     private int stride;
 
     /**
-     * See {@link Layer#Layer(int, LayerType, LayerActivation)}.
+     * See {@link Layer#Layer(NetworkContext, int, LayerType, LayerActivation)}.
+     * @param context The {@link NetworkContext} of the network.
      * @param id The layer ID.
      */
-    public LayerPool(int id, LayerType type) {
-        super(id, type, null);
+    public LayerPool(NetworkContext context, int id, LayerType type) {
+        super(context, id, type, null);
     }
 
     public void setPoolSize(int poolSize) {
@@ -62,9 +64,7 @@ public class LayerPool extends Layer {
      */
     @Override
     public void setInputData(List<Neuron> inputNeurons) {
-        for (int i=0; i<getNumberOfNeurons(); i++) {
-            getNeuron(i).setInputData(inputNeurons.get(i).getOutputData());
-        }
+        forEachNeuron(i -> getNeuron(i).setInputData(inputNeurons.get(i).getOutputData()));
     }
 
     /**
@@ -74,9 +74,7 @@ public class LayerPool extends Layer {
      */
     @Override
     public void calculateDeltas(List<Neuron> lowerNeurons, List<Neuron> upperNeurons) {
-        for (int i=0; i<getNumberOfNeurons(); i++) {
-            getNeuron(i).calculateDeltas(lowerNeurons, upperNeurons);
-        }
+        forEachNeuron(i -> getNeuron(i).calculateDeltas(lowerNeurons, upperNeurons));
     }
 
     /**
@@ -86,4 +84,21 @@ public class LayerPool extends Layer {
     public void applyDeltas() {
         // Pooling layer doesn't need to do anything
     }
+
+    /**
+     * See {@link Layer#createReplica(NetworkContext)}. Pooling neurons have no weights, so the replica has new neurons.
+     * @param context The {@link NetworkContext} of the replica.
+     * @return The replica.
+     */
+    @Override
+    public Layer createReplica(NetworkContext context) {
+        LayerPool replica = new LayerPool(context, getId(), getLayerType());
+        replica.setInputSize(getInputSize());
+        replica.setOutoutSize(getOutputSize());
+        replica.setPoolSize(poolSize);
+        replica.setStride(stride);
+        replica.createNeurons(getNumberOfNeurons());
+
+        return replica;
+    }
 }
\ No newline at end of file
@@ -36,10 +36,6 @@ public abstract class Neuron {
 	 * The error of the network that this neuron is responsible for.
 	 */
 	private DoubleMatrix error;
-	/**
-	 * The weight delta(s) for this neuron.
-	 */
-    private DoubleMatrix deltas;
 
 	/**
 	 * This is the only constructor that can be used. Sets the ID, layer type, and activation type of the neuron.
@@ -127,22 +123,6 @@ public abstract class Neuron {
         return error;
     }
 
-	/**
-	 * Sets the weight delatas for the neuron.
-	 * @param deltas A {@link DoubleMatrix} containing the weight deltas.
-	 */
-	public void setDeltas(DoubleMatrix deltas) {
-        this.deltas = deltas;
-    }
-
-	/**
-	 * Gets the neurons weight deltas.
-	 * @return A {@link DoubleMatrix} containing the weight deltas.
-	 */
-	public DoubleMatrix getDeltas() {
-        return deltas;
-    }
-
 	/**
 	 * Creates empty {@link DoubleMatrix} instances for the input and output data.
 	 * @param inputSize The shape of the input data.
@@ -169,6 +149,16 @@ public abstract class Neuron {
         outputData = new DoubleMatrix(outputSize[1], outputSize[2]);
     }
 
+	/**
+	 * Drops the input, output and error of this neuron so that they can be garbage collected, see {@link waddington.kai.main.knnf.layers.Layer#releaseActivations()}.
+	 * Neurons that keep workspaces as large as their input or output drop those as well.
+	 */
+	public void releaseActivations() {
+        inputData = null;
+        outputData = null;
+        error = null;
+    }
+
 	/**
 	 * Method used to calculate the weight deltas for the neuron.
 	 * @param lowerNeurons A list of neurons in the layer below.
@@ -180,4 +170,20 @@ public abstract class Neuron {
 	 * Applies the weight deltas.
 	 */
     public abstract void applyDeltas();
+
+	/**
+	 * Adds the deltas that a replica of this neuron has calculated to the deltas of this neuron, so that they are applied together, and clears them from the replica.
+	 * Neurons without weights have nothing to add.
+	 * @param replica A replica of this neuron, see {@link NeuronFactory}.
+	 */
+	public void addReplicaDeltas(Neuron replica) {
+	}
+
+	/**
+	 * Copies the parameters that a replica of this neuron does not share with it, after this neuron has applied its deltas.
+	 * Neurons without weights have nothing to copy.
+	 * @param replica A replica of this neuron, see {@link NeuronFactory}.
+	 */
+	public void syncReplica(Neuron replica) {
+	}
 }
\ No newline at end of file
@@ -1,10 +1,13 @@
 package waddington.kai.main.knnf.layers.neurons;
 
 import org.jblas.DoubleMatrix;
+import waddington.kai.main.knnf.FourierHelper;
 import waddington.kai.main.knnf.LayerActivation;
 import waddington.kai.main.knnf.LayerType;
+import waddington.kai.main.knnf.NetworkContext;
 import waddington.kai.main.knnf.NetworkHelper;
-import waddington.kai.main.knnf.NetworkManager;
+import waddington.kai.main.knnf.optimisers.Optimiser;
+import waddington.kai.main.knnf.optimisers.OptimiserState;
 
 import java.util.List;
 
@@ -12,6 +15,10 @@ import java.util.List;
  * This is the class for convolution neurons. It extends the {@link Neuron} class.
  */
 public class NeuronConvolution extends Neuron {
+    /**
+     * The state of the network that this neuron belongs to, which holds the hyper-parameters.
+     */
+    private final NetworkContext context;
     /**
      * The size of the receptive field.
      */
@@ -25,47 +32,88 @@ public class NeuronConvolution extends Neuron {
      */
     private DoubleMatrix filter;
     /**
-     * A {@link DoubleMatrix} that will store the delta values for the filter.
+     * The sum of the gradient of the filter for each example of the current batch.
+     */
+    private DoubleMatrix filterGradientSum;
+    /**
+     * The state the optimiser keeps for the filter, such as its momentum.
+     */
+    private OptimiserState filterState;
+    /**
+     * A {@link DoubleMatrix} that the gradient of the filter is calculated into, reused between examples.
      */
-    private DoubleMatrix filterDelta;
+    private DoubleMatrix filterGradient;
+    /**
+     * A {@link DoubleMatrix} that the error of each input cell is calculated into, reused between examples.
+     */
+    private DoubleMatrix inputError;
+    /**
+     * A {@link DoubleMatrix} that the error from the layer above is calculated into, reused between examples.
+     */
+    private DoubleMatrix upperError;
     /**
      * The bias value.
      */
     private double bias;
     /**
-     * The delta value for the bias.
+     * The sum of the gradient of the bias for each example of the current batch.
+     */
+    private double biasGradientSum;
+    /**
+     * The state the optimiser keeps for the bias.
      */
-    private double biasDelta;
+    private OptimiserState biasState;
+    /**
+     * The number of examples that deltas have been calculated for since they were last applied.
+     */
+    private int batchCount;
+    /**
+     * Workspace for the spectrum of the filter, reused between forward passes when using {@link waddington.kai.main.knnf.ConvolutionMethod#fft}.
+     */
+    private FourierHelper.Spectrum filterSpectrum;
+    /**
+     * The spectrum of the input that the last output was calculated from when using {@link waddington.kai.main.knnf.ConvolutionMethod#fft}, shared with the layer. Null for the other methods.
+     */
+    private FourierHelper.Spectrum inputSpectrum;
+    /**
+     * Workspace for the spectrum of the error from the layer above, reused between examples when back-propagating with {@link waddington.kai.main.knnf.ConvolutionMethod#fft}.
+     */
+    private FourierHelper.Spectrum errorSpectrum;
+    /**
+     * True if the filter or bias has been set since the layer last packed them, see {@link waddington.kai.main.knnf.layers.LayerConvolution#packFilterBank()}.
+     */
+    private boolean filterChanged = true;
 
     /**
      * See {@link Neuron#Neuron(int, LayerType, LayerActivation)}.
+     * @param context The {@link NetworkContext} of the network.
      * @param id The neuron ID.
      * @param filterSize The size of the receptive field.
      * @param stride The stride used.
      * @param activation The {@link LayerActivation} for this neuron.
      */
-    public NeuronConvolution(int id, int filterSize, int stride, LayerActivation activation) {
+    public NeuronConvolution(NetworkContext context, int id, int filterSize, int stride, LayerActivation activation) {
         super(id, LayerType.conv, activation);
+        this.context = context;
 
         this.filterSize = filterSize;
         this.stride = stride;
     }
 
     /**
-     * Initialises the values for the filter. The min/max values are dictated by {@link NetworkManager#MaximumInitialWeights} and are generated used {@link NetworkManager#random}.
+     * Initialises the values for the filter. The min/max values are dictated by {@link NetworkContext#getMaximumInitialWeights()} and are generated using {@link NetworkContext#getRandom()}.
      */
     public void initFilter() {
         filter = new DoubleMatrix(filterSize, filterSize);
-        filterDelta = new DoubleMatrix(filterSize, filterSize);
 
         for (int y=0; y<filterSize; y++) {
             for (int x=0; x<filterSize; x++) {
-                double value = NetworkManager.random.nextDouble() * NetworkManager.MaximumInitialWeights;
+                double value = context.getRandom().nextDouble() * context.getMaximumInitialWeights();
                 filter.put(y, x, value);
             }
         }
 
-        bias = NetworkManager.random.nextDouble() * NetworkManager.MaximumInitialWeights;
+        bias = context.getRandom().nextDouble() * context.getMaximumInitialWeights();
     }
 
     /**
@@ -106,6 +154,7 @@ public class NeuronConvolution extends Neuron {
      */
     public void setFilter(DoubleMatrix filter) {
         this.filter = filter;
+        filterChanged = true;
     }
 
     /**
@@ -122,6 +171,23 @@ public class NeuronConvolution extends Neuron {
      */
     public void setBias(double b) {
         bias = b;
+        filterChanged = true;
+    }
+
+    /**
+     * Checks whether {@link #setFilter(DoubleMatrix)} or {@link #setBias(double)} has been called since the layer last packed the filter.
+     * Changes made to the matrix returned by {@link #getFilter()} are not tracked, see {@link waddington.kai.main.knnf.layers.LayerConvolution#invalidateFilterBank()}.
+     * @return True if the filter or bias has been set.
+     */
+    public boolean isFilterChanged() {
+        return filterChanged;
+    }
+
+    /**
+     * Marks the filter and bias as packed by the layer.
+     */
+    public void clearFilterChanged() {
+        filterChanged = false;
     }
 
     /**
@@ -132,6 +198,30 @@ public class NeuronConvolution extends Neuron {
         return bias;
     }
 
+    /**
+     * Gets the state the optimiser of the network keeps for the filter, which carries the momentum into the next batch.
+     * @return The {@link OptimiserState}, created if the neuron has not trained yet or the optimiser has been changed.
+     */
+    public OptimiserState getFilterState() {
+        Optimiser optimiser = context.getOptimiser();
+        if (filterState == null || !filterState.isFor(optimiser))
+            filterState = optimiser.createState(filterSize * filterSize);
+
+        return filterState;
+    }
+
+    /**
+     * Gets the state the optimiser of the network keeps for the bias.
+     * @return The {@link OptimiserState}, created if the neuron has not trained yet or the optimiser has been changed.
+     */
+    public OptimiserState getBiasState() {
+        Optimiser optimiser = context.getOptimiser();
+        if (biasState == null || !biasState.isFor(optimiser))
+            biasState = optimiser.createState(1);
+
+        return biasState;
+    }
+
     /**
      * Sets the input data for the neuron and triggers the neuron to calculate its output.
      * @param data A {@link DoubleMatrix} containing the input data.
@@ -139,10 +229,54 @@ public class NeuronConvolution extends Neuron {
     @Override
     public void setInputData(DoubleMatrix data) {
         super.setInputData(data);
+        inputSpectrum = null;
 
         calculateOutput();
     }
 
+    /**
+     * Sets the input data for the neuron and triggers the neuron to calculate its output in the frequency domain, using a spectrum of the input that has already been calculated by the layer.
+     * @param data A {@link DoubleMatrix} containing the input data.
+     * @param inputSpectrum The {@link FourierHelper.Spectrum} of the input data, see {@link FourierHelper#transform(DoubleMatrix, int, int, FourierHelper.Spectrum)}.
+     */
+    public void setInputData(DoubleMatrix data, FourierHelper.Spectrum inputSpectrum) {
+        super.setInputData(data);
+        this.inputSpectrum = inputSpectrum;
+
+        calculateOutput(inputSpectrum);
+    }
+
+    /**
+     * Sets the input data for the neuron along with an output that has already been calculated by the layer, see {@link waddington.kai.main.knnf.layers.LayerConvolution#packFilterBank()}.
+     * @param data A {@link DoubleMatrix} containing the input data.
+     * @param output A {@link DoubleMatrix} containing the output data for this neuron.
+     */
+    public void setConvolvedData(DoubleMatrix data, DoubleMatrix output) {
+        super.setInputData(data);
+        super.setOutputData(output);
+        inputSpectrum = null;
+    }
+
+    /**
+     * Calculates the neurons output by multiplying the spectrum of the input with the spectrum of the filter.
+     * Gives the same output as {@link #calculateOutput()}, up to floating point rounding.
+     * @param inputSpectrum The {@link FourierHelper.Spectrum} of the input data.
+     */
+    private void calculateOutput(FourierHelper.Spectrum inputSpectrum) {
+        DoubleMatrix inputData = getInputData();
+        int outputRows = NetworkHelper.calculateConvolutionOutputSize(filter.rows, stride, inputData.rows);
+        int outputCols = NetworkHelper.calculateConvolutionOutputSize(filter.rows, stride, inputData.columns);
+        double sumOfFilter = NetworkHelper.sumMatrix(filter);
+
+        filterSpectrum = FourierHelper.correlate(inputSpectrum, filter, filterSpectrum);
+        DoubleMatrix output = FourierHelper.extract(filterSpectrum, stride, outputRows, outputCols);
+
+        output.divi(sumOfFilter).addi(bias);
+        NetworkHelper.applyActivation(getActivation(), output);
+
+        super.setOutputData(output);
+    }
+
     /**
      * Calculates the neurons output using the convolution process.
      */
@@ -175,111 +309,156 @@ public class NeuronConvolution extends Neuron {
         super.setOutputData(output);
     }
 
+    /**
+     * See {@link Neuron#releaseActivations()}. Also drops the spectrum workspaces used by {@link waddington.kai.main.knnf.ConvolutionMethod#fft}, which are as large as the padded input.
+     */
+    @Override
+    public void releaseActivations() {
+        super.releaseActivations();
+        filterSpectrum = null;
+        inputSpectrum = null;
+        errorSpectrum = null;
+    }
+
     /**
      * Calculates the bias delta and triggers the calculation of the filter deltas.
+     * The deltas are added to those of the other examples in the batch, and applied by {@link #applyDeltas()}.
+     * If the output was calculated in the frequency domain the deltas are too, reusing the spectrum of the input.
      * @param lowerNeurons A list of neurons in the layer below.
      * @param upperNeurons A list of neurons in the layer above.
      */
     @Override
     public void calculateDeltas(List<Neuron> lowerNeurons, List<Neuron> upperNeurons) {
-        DoubleMatrix upperError = NetworkHelper.getUpperError(this, lowerNeurons, upperNeurons);
-        upperError = NetworkHelper.applyActivationDerivative(getActivation(), upperError);
+        upperError = NetworkHelper.getUpperError(this, lowerNeurons, upperNeurons, upperError);
+        NetworkHelper.applyActivationDerivative(getActivation(), upperError);
+
+        // The error is dilated by the stride so that it lines up with the input it came from
+        if (inputSpectrum != null)
+            errorSpectrum = FourierHelper.transform(upperError, stride, inputSpectrum.rows, inputSpectrum.columns, errorSpectrum);
 
         calculateFilterDeltas(upperNeurons, upperError);
         calculateInputError(upperNeurons, upperError);
 
-        double biasMomentum = NetworkManager.Momentum * biasDelta;
-        biasDelta = NetworkManager.LearningRate * (1 / NetworkHelper.sumMatrix(upperError)) + biasMomentum;
+        biasGradientSum += 1 / NetworkHelper.sumMatrix(upperError);
+
+        batchCount++;
     }
 
     /***
      * Calculates the deltas for the filter.
+     * The output before activation is sum(filter*field)/sum(filter) + bias, so the gradient of a filter cell is the correlation of the input with the error divided by the filter sum,
+     * minus the error weighted output divided by the filter sum squared. That second term is the same for every cell and equals the filter dotted with the correlation, so one correlation gives the whole gradient.
+     * With {@link waddington.kai.main.knnf.ConvolutionMethod#fft} the correlation is the spectrum of the input multiplied by the conjugate of the spectrum of the error.
      * @param upperNeurons A list of neurons in the layer above.
      * @param upperError A {@link DoubleMatrix} containing the errors from the layer above.
      */
     private void calculateFilterDeltas(List<Neuron> upperNeurons, DoubleMatrix upperError) {
-        // Ensure deltas matrix exists
-        if (filterDelta == null) {
-            filterDelta = new DoubleMatrix(filterSize, filterSize);
+        // Ensure the gradient sum exists
+        if (filterGradientSum == null) {
+            filterGradientSum = new DoubleMatrix(filterSize, filterSize);
         }
-        
-        DoubleMatrix filterMomentum = filterDelta.mul(NetworkManager.Momentum);
-        DoubleMatrix errorDivideByOutput = upperError.div(getOutputData());
 
-        // Calculate the delta
-        // For each cell in the filter do:
-        for (int y=0; y<filterSize; y++) {
-            for (int x=0; x<filterSize; x++) {
-                // Sum for all:
-                // All output values divide by this filter value
-                // Multiplied by corresponding upper errors divide by all outputs
-                DoubleMatrix outputDivideByFilterCell = getOutputData().div(filter.get(y,x));
-                DoubleMatrix filterBetaMatrix = errorDivideByOutput.mul(outputDivideByFilterCell);
-                filterDelta.put(y, x, NetworkHelper.sumMatrix(filterBetaMatrix));
-            }
+        if (inputSpectrum != null) {
+            filterSpectrum = FourierHelper.multiply(inputSpectrum, errorSpectrum, true, filterSpectrum);
+            filterGradient = FourierHelper.extract(filterSpectrum, 1, filterSize, filterSize, filterGradient);
+        } else {
+            filterGradient = NetworkHelper.correlate(getInputData(), upperError, filterSize, stride, filterGradient);
         }
 
-        filterDelta.addi(filterMomentum);
+        double sumOfFilter = NetworkHelper.sumMatrix(filter);
+        double outputTerm = filter.dot(filterGradient) / (sumOfFilter * sumOfFilter);
+        double[] gradientSumData = filterGradientSum.data;
+        double[] gradientData = filterGradient.data;
+
+        // Gradient, summed over the batch
+        for (int i=0; i<gradientSumData.length; i++) {
+            gradientSumData[i] += (gradientData[i] / sumOfFilter) - outputTerm;
+        }
     }
 
     /**
      * Back-propagates the error through this neuron, calculating how much each input to this neuron is responsible for this neurons error.
+     * Each output cell is sum(filter*field)/sum(filter) + bias, so its error is spread over its receptive field in proportion to filter/sum(filter) by a transposed convolution.
+     * With {@link waddington.kai.main.knnf.ConvolutionMethod#fft} the transposed convolution is the spectrum of the error multiplied by the spectrum of the filter.
      * @param upperNeurons A list of neurons in the layer above.
      * @param upperError A {@link DoubleMatrix} containing the errors from the layer above.
      */
     private void calculateInputError(List<Neuron> upperNeurons, DoubleMatrix upperError) {
-        DoubleMatrix errorDivideByOutput = upperError.div(getOutputData());
-        DoubleMatrix inputError = new DoubleMatrix(getInputData().rows, getInputData().columns);
-
-        // For each input cell
-        for (int y=0; y<getInputData().rows; y++) {
-            for (int x=0; x<getInputData().columns; x++) {
-                int[] effectedBounds = getEffectedBounds(y, x);
-                DoubleMatrix effectedOutput = NetworkHelper.createSubMatrix(getOutputData(), effectedBounds[0], effectedBounds[1], effectedBounds[2], effectedBounds[3], 1);
-                DoubleMatrix outputDividedByInput = effectedOutput.div(getInputData().get(y, x));
-                double sumInputEffect = NetworkHelper.sumMatrix(outputDividedByInput);
-
-                inputError.put(y, x, sumInputEffect);
-            }
+        DoubleMatrix inputData = getInputData();
+
+        if (inputSpectrum != null) {
+            filterSpectrum = FourierHelper.transform(filter, inputSpectrum.rows, inputSpectrum.columns, filterSpectrum);
+            filterSpectrum = FourierHelper.multiply(errorSpectrum, filterSpectrum, false, filterSpectrum);
+            inputError = FourierHelper.extract(filterSpectrum, 1, inputData.rows, inputData.columns, inputError);
+        } else {
+            inputError = NetworkHelper.convolveTranspose(upperError, filter, stride, inputData.rows, inputData.columns, inputError);
         }
+        inputError.divi(NetworkHelper.sumMatrix(filter));
 
         setError(inputError);
     }
 
     /**
-     * Calculates the coords. of the receptive field.
-     * @param y The Y coord. of the output position to calculate.
-     * @param x The X coord. of the output position to calculate.
-     * @return The bounds of the receptive field in order {upper bound, left bound, Y size, X size}.
+     * Applies the filter and bias deltas.
+     * The gradients are averaged over the examples of the batch and passed to the optimiser of the network, see {@link NetworkContext#getOptimiser()}.
      */
-    private int[] getEffectedBounds(int y, int x) {
-        int rows = getOutputData().rows;
-        int cols = getOutputData().columns;
+    @Override
+    public void applyDeltas() {
+        if (batchCount == 0)
+            return;
 
-        int upper = y - (filterSize - 1);
-        if (upper < 0) upper = 0;
+        Optimiser optimiser = context.getOptimiser();
 
-        int lower = y + (filterSize - 1);
-        if (lower > rows) lower = rows;
+        filterGradientSum.divi(batchCount);
+        optimiser.update(filter.data, filterGradientSum.data, filter.length, getFilterState(), context);
+        bias = optimiser.update(bias, biasGradientSum / batchCount, getBiasState(), context);
 
-        int left = x - (filterSize - 1);
-        if (left < 0) left = 0;
+        filterGradientSum.fill(0);
+        biasGradientSum = 0;
+        batchCount = 0;
+    }
 
-        int right = x + (filterSize - 1);
-        if (right > cols) right = cols;
+    /**
+     * Creates a neuron that shares the filter of this neuron, for a replica of the network to calculate deltas with.
+     * @param context The {@link NetworkContext} of the replica.
+     * @return The replica, with a copy of the bias.
+     */
+    public NeuronConvolution createReplica(NetworkContext context) {
+        NeuronConvolution replica = new NeuronConvolution(context, getId(), filterSize, stride, getActivation());
+        replica.filter = filter;
+        replica.bias = bias;
 
-        int rangeY = lower - upper;
-        int rangeX = right - left;
+        return replica;
+    }
 
-        return new int[] {upper, left, rangeY, rangeX};
+    /**
+     * See {@link Neuron#addReplicaDeltas(Neuron)}.
+     * @param replica A replica of this neuron.
+     */
+    @Override
+    public void addReplicaDeltas(Neuron replica) {
+        NeuronConvolution r = (NeuronConvolution) replica;
+        if (r.batchCount == 0)
+            return;
+
+        if (filterGradientSum == null) {
+            filterGradientSum = new DoubleMatrix(filterSize, filterSize);
+        }
+        filterGradientSum.addi(r.filterGradientSum);
+        biasGradientSum += r.biasGradientSum;
+        batchCount += r.batchCount;
+
+        r.filterGradientSum.fill(0);
+        r.biasGradientSum = 0;
+        r.batchCount = 0;
     }
 
     /**
-     * Applies the filter and bias deltas.
+     * See {@link Neuron#syncReplica(Neuron)}. The filter is shared, so only the bias is copied.
+     * @param replica A replica of this neuron.
      */
     @Override
-    public void applyDeltas() {
-        bias += biasDelta;
-        filter.addi(filterDelta);
+    public void syncReplica(Neuron replica) {
+        ((NeuronConvolution) replica).bias = bias;
     }
 }
\ No newline at end of file
@@ -2,6 +2,8 @@ package waddington.kai.main.knnf.layers.neurons;
 
 import waddington.kai.main.knnf.LayerActivation;
 import waddington.kai.main.knnf.LayerType;
+import waddington.kai.main.knnf.NetworkContext;
+import waddington.kai.main.knnf.exceptions.IllegalMethodCallException;
 
 /**
  * Static factory class for creating new {@link Neuron} instances.
@@ -24,6 +26,7 @@ public class NeuronFactory {
 
     /**
      *  Creates and sets up an instance of {@link NeuronConvolution}.
+     * @param context The {@link NetworkContext} of the network the neuron is for.
      * @param id The ID for the neuron.
 	 * @param inputSize The shape of the input data to the neuron.
 	 * @param outputSize The shape of the output data from the neuron.
@@ -32,8 +35,8 @@ public class NeuronFactory {
      * @param activation The {@link LayerActivation} type that this neuron will use.
      * @return An instance of {@link NeuronConvolution}.
      */
-    public static Neuron getConvolutionNeuron(int id, int[] inputSize, int[] outputSize, int filterSize, int stride, LayerActivation activation) {
-        NeuronConvolution neuron = new NeuronConvolution(id, filterSize, stride, activation);
+    public static Neuron getConvolutionNeuron(NetworkContext context, int id, int[] inputSize, int[] outputSize, int filterSize, int stride, LayerActivation activation) {
+        NeuronConvolution neuron = new NeuronConvolution(context, id, filterSize, stride, activation);
         neuron.initMemory(inputSize, outputSize);
         neuron.initFilter();
 
@@ -60,29 +63,29 @@ public class NeuronFactory {
     }
 
     /**
-     *  Creates and sets up an instance of {@link NeuronFlatten}.
-     * @param id The ID for the neuron.
-	 * @param inputSize The shape of the input data to the neuron.
-	 * @param outputSize The shape of the output data from the neuron.
+     *  Creates and sets up an instance of {@link NeuronFlatten}, which flattens a single channel.
+     * @param id The ID for the neuron, which is also the channel it flattens.
+	 * @param inputSize The shape of the input data to the flattening layer.
+	 * @param outputSize The shape of the output data from the flattening layer.
      * @return An instance of {@link NeuronFlatten}.
      */
     public static Neuron getFlattenNeuron(int id, int[] inputSize, int[] outputSize) {
         NeuronFlatten neuron = new NeuronFlatten(id);
-        int[] dataSize = new int[] {1, 1, 1};
-        neuron.initMemory(dataSize, dataSize);
+        neuron.initMemory(new int[] {1, inputSize[1], inputSize[2]}, new int[] {1, 1, inputSize[1] * inputSize[2]});
 
         return neuron;
     }
 
     /**
      *  Creates and sets up an instance of {@link NeuronFullyConnected}.
+     * @param context The {@link NetworkContext} of the network the neuron is for.
      * @param id The ID for the neuron.
      * @param activation The {@link LayerActivation} type that this neuron will use.
      * @param numberOfWeights The number of weights that this neuron will have (excluding weight to bias).
      * @return An instance of {@link NeuronFullyConnected}.
      */
-    public static Neuron getFCNeuron(int id, LayerActivation activation, int numberOfWeights) {
-        NeuronFullyConnected neuron = new NeuronFullyConnected(id, activation);
+    public static Neuron getFCNeuron(NetworkContext context, int id, LayerActivation activation, int numberOfWeights) {
+        NeuronFullyConnected neuron = new NeuronFullyConnected(context, id, activation);
         int[] dataSize = new int[] {1, 1, 1};
         neuron.initMemory(dataSize, dataSize);
         neuron.initWeights(numberOfWeights);
@@ -92,17 +95,53 @@ public class NeuronFactory {
 
     /**
      *  Creates and sets up an instance of {@link NeuronOutput}.
+     * @param context The {@link NetworkContext} of the network the neuron is for.
      * @param id The ID for the neuron.
      * @param activation The {@link LayerActivation} type that this neuron will use.
      * @param numberOfWeights The number of weights that this neuron will have (excluding weight to bias).
      * @return An instance of {@link NeuronOutput}.
      */
-    public static Neuron getOutputNeuron(int id, LayerActivation activation, int numberOfWeights) {
-        NeuronOutput neuron = new NeuronOutput(id, activation);
+    public static Neuron getOutputNeuron(NetworkContext context, int id, LayerActivation activation, int numberOfWeights) {
+        NeuronOutput neuron = new NeuronOutput(context, id, activation);
         int[] dataSize = new int[] {1, 1, 1};
         neuron.initMemory(dataSize, dataSize);
         neuron.initWeights(numberOfWeights);
 
         return neuron;
     }
+
+    /**
+     *  Creates a replica of a neuron with weights for a replica of the network, see {@link Neuron#addReplicaDeltas(Neuron)}.
+     *  The replica shares the filter or weights of the neuron, but has its own input, output, error and deltas.
+     * @param neuron The {@link NeuronConvolution}, {@link NeuronFullyConnected} or {@link NeuronOutput} to replicate.
+     * @param context The {@link NetworkContext} of the replica.
+	 * @param inputSize The shape of the input data to the neuron.
+	 * @param outputSize The shape of the output data from the neuron.
+     * @return The replica.
+     */
+    public static Neuron getReplica(Neuron neuron, NetworkContext context, int[] inputSize, int[] outputSize) {
+        Neuron replica;
+
+        switch (neuron.getType()) {
+            case conv: {
+                replica = ((NeuronConvolution) neuron).createReplica(context);
+                break;
+            }
+            case fc: {
+                replica = ((NeuronFullyConnected) neuron).createReplica(context);
+                break;
+            }
+            case output: {
+                replica = ((NeuronOutput) neuron).createReplica(context);
+                break;
+            }
+            default: {
+                throw new IllegalMethodCallException("Only neurons with weights can be replicated, use the layer to create other neurons.");
+            }
+        }
+
+        replica.initMemory(inputSize, outputSize);
+
+        return replica;
+    }
 }
\ No newline at end of file
@@ -3,13 +3,18 @@ package waddington.kai.main.knnf.layers.neurons;
 import org.jblas.DoubleMatrix;
 import waddington.kai.main.knnf.LayerActivation;
 import waddington.kai.main.knnf.LayerType;
+import waddington.kai.main.knnf.NetworkHelper;
 
 import java.util.List;
 
 /**
- * This is the class for flattening neurons. It extends the {@link Neuron} class.
+ * This is the class for flattening neurons. It extends the {@link Neuron} class. Each neuron flattens one channel of the layer below.
  */
 public class NeuronFlatten extends Neuron {
+    /**
+     * A {@link DoubleMatrix} that the flat error of the channel is calculated into, reused between examples.
+     */
+    private DoubleMatrix error;
 
     /**
      * See {@link Neuron#Neuron(int, LayerType, LayerActivation)}.
@@ -20,37 +25,44 @@ public class NeuronFlatten extends Neuron {
     }
 
     /**
-     * Back-propagates the error from the layer above into the correct shape for the layer below.
+     * Sets the input data for the neuron. The output is a 1xN view of the same data, in the column-major order of the input, so nothing is copied.
+     * @param data A {@link DoubleMatrix} containing the channel to flatten.
+     */
+    @Override
+    public void setInputData(DoubleMatrix data) {
+        super.setInputData(data);
+        super.setOutputData(new DoubleMatrix(1, data.length, data.data));
+    }
+
+    /**
+     * Back-propagates the error from the layer above for the channel this neuron flattens.
+     * This calculates the error of every flattened value, so {@link waddington.kai.main.knnf.layers.LayerFlatten} calculates it once for all of its neurons and uses {@link #setFlatError(DoubleMatrix)} instead.
      * @param lowerNeurons A list of neurons in the layer below.
      * @param upperNeurons A list of neurons in the layer above.
      */
     @Override
     public void calculateDeltas(List<Neuron> lowerNeurons, List<Neuron> upperNeurons) {
-        // This is really slow
-        // Calculate error
-        double sumWeightedError = 0;
-        LayerType upperType = upperNeurons.get(0).getType();
-
-        switch (upperType) {
-            case output: {
-                for (int i=0; i<upperNeurons.size(); i++) {
-                    sumWeightedError += upperNeurons.get(i).getError().get(0,0) * ((NeuronOutput) upperNeurons.get(i)).getWeight(getId());
-                }
-                break;
-            }
-            case fc: {
-                for (int i=0; i<upperNeurons.size(); i++) {
-                    sumWeightedError += upperNeurons.get(i).getError().get(0,0) * ((NeuronFullyConnected) upperNeurons.get(i)).getWeight(getId());
-                }
-                break;
-            }
-        }
-
-        setError(new DoubleMatrix(new double[] {sumWeightedError}));
+        setFlatError(NetworkHelper.getWeightedUpperError(upperNeurons, null));
 
         // There are nothing to update on this layer so there are no deltas to calculate
     }
 
+    /**
+     * Sets the error of this neuron from the error of every flattened value, taking the part for the channel this neuron flattens.
+     * The error is kept flat, see {@link NetworkHelper#getErrorFromFlatten(List, int, int, int)} for the reshape back to the channel shape.
+     * @param layerError A 1xN {@link DoubleMatrix} containing the error of every flattened value, see {@link NetworkHelper#getWeightedUpperError(List, DoubleMatrix)}.
+     */
+    public void setFlatError(DoubleMatrix layerError) {
+        int length = getOutputData().length;
+
+        if (error == null || error.length != length)
+            error = new DoubleMatrix(1, length);
+
+        System.arraycopy(layerError.data, getId() * length, error.data, 0, length);
+
+        setError(error);
+    }
+
     /**
      * Doesn't do anything in a flattening layer...
      */
@@ -1,9 +1,12 @@
 package waddington.kai.main.knnf.layers.neurons;
 
 import org.jblas.DoubleMatrix;
+import org.jblas.SimpleBlas;
 import waddington.kai.main.knnf.LayerActivation;
 import waddington.kai.main.knnf.LayerType;
-import waddington.kai.main.knnf.NetworkManager;
+import waddington.kai.main.knnf.NetworkContext;
+import waddington.kai.main.knnf.optimisers.Optimiser;
+import waddington.kai.main.knnf.optimisers.OptimiserState;
 
 import java.util.List;
 
@@ -11,18 +14,47 @@ import java.util.List;
  * This is the class for output-layer neurons. It extends the {@link Neuron} class.
  */
 public class NeuronOutput extends Neuron {
+    /**
+     * The state of the network that this neuron belongs to, which holds the hyper-parameters.
+     */
+    private final NetworkContext context;
     /**
      * A {@link DoubleMatrix} containing the weights for this neuron (excluding weight to bias value).
      */
     private DoubleMatrix weights;
+    /**
+     * The {neurons, inputs} weight matrix of the layer when the layer uses {@link waddington.kai.main.knnf.layers.DenseWeights}, otherwise null.
+     * This neurons weights are then the row with the same ID, and {@link #weights} is not used.
+     */
+    private DoubleMatrix weightMatrix;
     /**
      * The bias value.
      */
     private double bias;
     /**
-     * The delta for the bias.
+     * The sum of the gradient of the bias for each example of the current batch.
+     */
+    private double biasGradientSum;
+    /**
+     * The sum of the gradient of the weights for each example of the current batch, while this neuron holds its own weights.
+     */
+    private DoubleMatrix gradientSum;
+    /**
+     * The state the optimiser keeps for the weights while this neuron holds its own weights, such as their momentum.
+     */
+    private OptimiserState weightState;
+    /**
+     * The state the optimiser keeps for the bias.
      */
-    private double biasDelta;
+    private OptimiserState biasState;
+    /**
+     * The number of examples that deltas have been calculated for since they were last applied.
+     */
+    private int batchCount;
+    /**
+     * A 1x1 {@link DoubleMatrix} that the error of this neuron is written to, reused between examples.
+     */
+    private DoubleMatrix errorBuffer;
     /**
      * The expected classification for the current example.
      */
@@ -30,26 +62,27 @@ public class NeuronOutput extends Neuron {
 
     /**
      * See {@link Neuron#Neuron(int, LayerType, LayerActivation)}.
+     * @param context The {@link NetworkContext} of the network.
      * @param id The neuron ID.
      * @param activation The {@link LayerActivation} for this neuron.
      */
-    public NeuronOutput(int id, LayerActivation activation) {
+    public NeuronOutput(NetworkContext context, int id, LayerActivation activation) {
         super(id, LayerType.output, activation);
+        this.context = context;
     }
 
     /**
-     * Initialises the values for the weights. The min/max values are dictated by {@link NetworkManager#MaximumInitialWeights} and are generated used {@link NetworkManager#random}.
+     * Initialises the values for the weights. The min/max values are dictated by {@link NetworkContext#getMaximumInitialWeights()} and are generated using {@link NetworkContext#getRandom()}.
      */
     public void initWeights(int numberOfWeights) {
         weights = new DoubleMatrix(numberOfWeights);
 
         for (int i=0; i<numberOfWeights; i++) {
-            double value = NetworkManager.random.nextDouble() * NetworkManager.MaximumInitialWeights;
+            double value = context.getRandom().nextDouble() * context.getMaximumInitialWeights();
             weights.put(i, value);
         }
 
-        bias = NetworkManager.random.nextDouble() * NetworkManager.MaximumInitialWeights;
-        setDeltas(DoubleMatrix.zeros(weights.length));
+        bias = context.getRandom().nextDouble() * context.getMaximumInitialWeights();
     }
 
     /**
@@ -57,14 +90,20 @@ public class NeuronOutput extends Neuron {
      * @param w A {@link DoubleMatrix} containing the weights.
      */
     public void setWeights(DoubleMatrix w) {
-        weights = w;
+        if (weightMatrix != null)
+            weightMatrix.putRow(getId(), w);
+        else
+            weights = w;
     }
 
     /**
-     * Get the weights for this neuron.
+     * Get the weights for this neuron. When bound to a weight matrix this is a copy of the row for this neuron.
      * @return The weights this neuron uses.
      */
     public DoubleMatrix getWeights() {
+        if (weightMatrix != null)
+            return weightMatrix.getRow(getId()).reshape(weightMatrix.columns, 1);
+
         return weights;
     }
 
@@ -74,9 +113,38 @@ public class NeuronOutput extends Neuron {
      * @return The value of the weight.
      */
     public double getWeight(int index) {
+        if (weightMatrix != null)
+            return weightMatrix.get(getId(), index);
+
         return weights.get(index, 0);
     }
 
+    /**
+     * Moves the weights of this neuron into the row with the same ID of a layer weight matrix, or back out of it.
+     * While bound, the layer calculates the weighted sums and weight deltas for all of its neurons at once.
+     * @param matrix The {neurons, inputs} weight matrix to bind to, or null to unbind.
+     */
+    public void bindWeights(DoubleMatrix matrix) {
+        if (matrix != null) {
+            matrix.putRow(getId(), weights);
+            weights = null;
+        } else if (weightMatrix != null) {
+            weights = getWeights();
+            weightState = null;
+            gradientSum = null;
+        }
+
+        weightMatrix = matrix;
+    }
+
+    /**
+     * Gets the layer weight matrix that this neuron is bound to.
+     * @return The {neurons, inputs} weight matrix, or null if this neuron holds its own weights.
+     */
+    public DoubleMatrix getWeightMatrix() {
+        return weightMatrix;
+    }
+
     public void setBias(double b) {
         bias = b;
     }
@@ -85,6 +153,31 @@ public class NeuronOutput extends Neuron {
         return bias;
     }
 
+    /**
+     * Gets the state the optimiser of the network keeps for the weights of this neuron, which carries the momentum into the next batch.
+     * When bound to a weight matrix the layer keeps the state instead, see {@link waddington.kai.main.knnf.layers.DenseWeights#getOptimiserState()}.
+     * @return The {@link OptimiserState}, created if the neuron has not trained yet or the optimiser has been changed.
+     */
+    public OptimiserState getWeightState() {
+        Optimiser optimiser = context.getOptimiser();
+        if (weightState == null || !weightState.isFor(optimiser))
+            weightState = optimiser.createState(weights.length);
+
+        return weightState;
+    }
+
+    /**
+     * Gets the state the optimiser of the network keeps for the bias.
+     * @return The {@link OptimiserState}, created if the neuron has not trained yet or the optimiser has been changed.
+     */
+    public OptimiserState getBiasState() {
+        Optimiser optimiser = context.getOptimiser();
+        if (biasState == null || !biasState.isFor(optimiser))
+            biasState = optimiser.createState(1);
+
+        return biasState;
+    }
+
     /**
      * Sets the input data for the neuron and triggers the neuron to calculate its output.
      * @param data A {@link DoubleMatrix} containing the input data.
@@ -96,11 +189,30 @@ public class NeuronOutput extends Neuron {
         calculateOutput();
     }
 
+    /**
+     * Sets the input data for the neuron along with the weighted sum of the inputs that has already been calculated by the layer, see {@link waddington.kai.main.knnf.layers.DenseWeights#multiply(DoubleMatrix)}.
+     * @param data A {@link DoubleMatrix} containing the input data.
+     * @param weightedSum The weighted sum of the input data, excluding the bias.
+     */
+    public void setInputData(DoubleMatrix data, double weightedSum) {
+        super.setInputData(data);
+
+        calculateOutput(weightedSum);
+    }
+
     /**
      * Calculates the neurons output. This is an element-wise multiplication between the neurons weights and inputs.
      */
     private void calculateOutput() {
-        double output = weights.dot(getInputData()) + bias;
+        calculateOutput(weights.dot(getInputData()));
+    }
+
+    /**
+     * Calculates the neurons output from the weighted sum of its inputs.
+     * @param weightedSum The weighted sum of the input data, excluding the bias.
+     */
+    private void calculateOutput(double weightedSum) {
+        double output = weightedSum + bias;
 
         setOutputData(new DoubleMatrix(new double[] {output}));
     }
@@ -120,6 +232,7 @@ public class NeuronOutput extends Neuron {
 
     /**
      * Calculates the weight and bias deltas.
+     * The deltas are added to those of the other examples in the batch, and applied by {@link #applyDeltas()}.
      * @param lowerNeurons A list of neurons in the layer below.
      * @param upperNeurons A list of neurons in the layer above.
      */
@@ -127,31 +240,97 @@ public class NeuronOutput extends Neuron {
     public void calculateDeltas(List<Neuron> lowerNeurons, List<Neuron> upperNeurons) {
         // Calculate error
         double error  = expectedOutput - getOutputData().get(0,0);
-        setError(new DoubleMatrix(new double[] {error}));
-        
-        // Ensure deltas matrix exists
-        if (getDeltas() == null) {
-            setDeltas(DoubleMatrix.zeros(weights.length));
-        }
+        if (errorBuffer == null)
+            errorBuffer = new DoubleMatrix(1, 1);
+        errorBuffer.data[0] = error;
+        setError(errorBuffer);
+
+        biasGradientSum += bias * error;
+        batchCount++;
 
-        // Calculate deltas
-        DoubleMatrix deltasMomentum = getDeltas().mul(NetworkManager.Momentum);
-        DoubleMatrix deltas = getInputData().mul(error);
-        deltas = deltas.mul(NetworkManager.LearningRate);
-        deltas.addi(deltasMomentum);
+        // The layer calculates the weight deltas when bound to a weight matrix
+        if (weightMatrix != null)
+            return;
 
-        double biasMomentum = NetworkManager.Momentum * biasDelta;
-        biasDelta = (NetworkManager.LearningRate * bias * error) + biasMomentum;
+        // Ensure the gradient sum exists
+        if (gradientSum == null) {
+            gradientSum = DoubleMatrix.zeros(weights.length);
+        }
 
-        setDeltas(deltas);
+        // Error * input, summed over the batch
+        SimpleBlas.axpy(error, getInputData(), gradientSum);
     }
 
     /**
      * Applies the weight and bias deltas.
+     * The gradients are averaged over the examples of the batch and passed to the optimiser of the network, see {@link NetworkContext#getOptimiser()}.
+     * When bound to a weight matrix only the bias is updated here, the layer updates the weights.
      */
     @Override
     public void applyDeltas() {
-        bias += biasDelta;
-        weights.addi(getDeltas());
+        if (batchCount == 0)
+            return;
+
+        Optimiser optimiser = context.getOptimiser();
+        bias = optimiser.update(bias, biasGradientSum / batchCount, getBiasState(), context);
+
+        if (weightMatrix == null) {
+            gradientSum.divi(batchCount);
+            optimiser.update(weights.data, gradientSum.data, weights.length, getWeightState(), context);
+            gradientSum.fill(0);
+        }
+
+        biasGradientSum = 0;
+        batchCount = 0;
+    }
+
+    /**
+     * Creates a neuron that shares the weights of this neuron, for a replica of the network to calculate deltas with.
+     * @param context The {@link NetworkContext} of the replica.
+     * @return The replica, with a copy of the bias.
+     */
+    public NeuronOutput createReplica(NetworkContext context) {
+        NeuronOutput replica = new NeuronOutput(context, getId(), getActivation());
+        replica.weights = weights;
+        replica.weightMatrix = weightMatrix;
+        replica.bias = bias;
+
+        return replica;
+    }
+
+    /**
+     * See {@link Neuron#addReplicaDeltas(Neuron)}. When bound to a weight matrix only the bias deltas are added, the layer adds the weight deltas.
+     * @param replica A replica of this neuron.
+     */
+    @Override
+    public void addReplicaDeltas(Neuron replica) {
+        NeuronOutput r = (NeuronOutput) replica;
+        if (r.batchCount == 0)
+            return;
+
+        if (r.gradientSum != null) {
+            // Ensure the gradient sum exists
+            if (gradientSum == null) {
+                gradientSum = DoubleMatrix.zeros(weights.length);
+            }
+
+            gradientSum.addi(r.gradientSum);
+            r.gradientSum.fill(0);
+        }
+
+        biasGradientSum += r.biasGradientSum;
+        batchCount += r.batchCount;
+
+        r.biasGradientSum = 0;
+        r.batchCount = 0;
+    }
+
+    /**
+     * See {@link Neuron#syncReplica(Neuron)}. The weights are shared, so only the bias is copied.
+     * @param replica A replica of this neuron.
+     */
+    @Override
+    public void syncReplica(Neuron replica) {
+        ((NeuronOutput) replica).bias = bias;
     }
 }
\ No newline at end of file
@@ -5,6 +5,7 @@ import waddington.kai.main.knnf.LayerActivation;
 import waddington.kai.main.knnf.LayerType;
 import waddington.kai.main.knnf.NetworkHelper;
 
+import java.util.Arrays;
 import java.util.List;
 
 /**
@@ -20,9 +21,17 @@ public class NeuronPool extends Neuron {
 	 */
 	private int stride;
 	/**
-	 * A 2D array, the same size as the output, that maps the output cell locations to their respective locations in the input matrix.
+	 * Maps each output cell to the location in the input matrix that it was taken from. Both are flat column-major indexes, the same as {@link DoubleMatrix#data}.
 	 */
-    private int[][] poolLocations;
+    private int[] poolIndices;
+	/**
+	 * A {@link DoubleMatrix} that the error of each input cell is calculated into, reused between examples.
+	 */
+	private DoubleMatrix inputError;
+	/**
+	 * A {@link DoubleMatrix} that the error from the layer above is calculated into, reused between examples.
+	 */
+	private DoubleMatrix upperError;
 
 	/**
 	 * See {@link Neuron#Neuron(int, LayerType, LayerActivation)}.
@@ -65,49 +74,70 @@ public class NeuronPool extends Neuron {
     }
 
 	/**
-	 * Calculates the neurons output using the pooling process. Output data cells are mapped to a location in the input data using {@link #poolLocations}.
+	 * Calculates the neurons output using the pooling process. Output data cells are mapped to a location in the input data using {@link #poolIndices}.
+	 * Each receptive field is scanned in place in column-major order, so ties go to the first cell in that order.
 	 */
     private void calculateOutput() {
         // Preliminary data
         DoubleMatrix inputData = getInputData();
         int inputRows = inputData.rows;
         int inputCols = inputData.columns;
-        int[] outputSize = NetworkHelper.calculatePoolOutputSize(poolSize, stride, new int[] {1, inputRows, inputCols});
-        int outputRows = outputSize[1];
-        int outputCols = outputSize[2];
+        int outputRows = NetworkHelper.calculatePoolOutputSize(poolSize, stride, inputRows);
+        int outputCols = NetworkHelper.calculatePoolOutputSize(poolSize, stride, inputCols);
         DoubleMatrix output = new DoubleMatrix(outputRows, outputCols);
-        poolLocations = new int[outputRows][outputCols];
-        LayerType type = getType();
-        
-        // Do the pooling
-        for (int oy=0; oy<outputRows; oy++) {
-            for (int ox=0; ox<outputCols; ox++) {
-                // Create a matrix of the part of the input in the pooling view
-                DoubleMatrix subView = NetworkHelper.createSubMatrix(inputData, oy, ox, poolSize, poolSize, stride);
-                int index;
-                double value;
-
-                if (type == LayerType.maxPool) {
-                    value = subView.max();
-                    index = subView.argmax();
-                } else {
-                    value = subView.min();
-                    index = subView.argmin();
-                }
+        boolean max = getType() == LayerType.maxPool;
+        double[] in = inputData.data;
+        double[] out = output.data;
 
-                // Translate linear index in subview you Y/X coordinates of entire input
-                int indexY = (index % poolSize) + (oy * stride);
-                int indexX = (index / poolSize) + (ox * stride);
+        if (poolIndices == null || poolIndices.length != out.length)
+            poolIndices = new int[out.length];
 
-                output.put(oy, ox, value);
-                poolLocations[oy][ox] = NetworkHelper.poolEncodeLocation(indexY, indexX, inputRows, inputCols);
+        // Do the pooling
+        for (int ox=0; ox<outputCols; ox++) {
+            for (int oy=0; oy<outputRows; oy++) {
+                int fieldStart = ((ox*stride) * inputRows) + (oy*stride);
+                int bestIndex = fieldStart;
+                double best = in[fieldStart];
+
+                for (int px=0; px<poolSize; px++) {
+                    int columnStart = fieldStart + (px*inputRows);
+
+                    for (int py=0; py<poolSize; py++) {
+                        double value = in[columnStart+py];
+
+                        if (max ? value > best : value < best) {
+                            best = value;
+                            bestIndex = columnStart+py;
+                        }
+                    }
+                }
 
+                int outputIndex = (ox*outputRows) + oy;
+                out[outputIndex] = best;
+                poolIndices[outputIndex] = bestIndex;
             }
         }
 
         super.setOutputData(output);
     }
 
+	/**
+	 * Gets the location in the input data that each output cell was taken from.
+	 * @return The flat column-major input index for each flat column-major output index.
+	 */
+	public int[] getPoolIndices() {
+		return poolIndices;
+	}
+
+	/**
+	 * See {@link Neuron#releaseActivations()}. Also drops {@link #poolIndices}, which are only needed to back-propagate the error.
+	 */
+	@Override
+	public void releaseActivations() {
+		super.releaseActivations();
+		poolIndices = null;
+	}
+
 	/**
 	 * Back-propagates the error from the layer above for the layer below. Any cells in the input data that were not in the output data have an error of zero as they do not contribute.
 	 * @param lowerNeurons A list of neurons in the layer below.
@@ -116,22 +146,23 @@ public class NeuronPool extends Neuron {
     @Override
     public void calculateDeltas(List<Neuron> lowerNeurons, List<Neuron> upperNeurons) {
         // No deltas to calculate, just which errors to pass back where
-        DoubleMatrix errorFromUp = NetworkHelper.getUpperError(this, lowerNeurons, upperNeurons);
-
-        // Create matrix of errors to pass back 
-        DoubleMatrix errors = DoubleMatrix.zeros(getInputData().rows, getInputData().columns);
-
-        for (int y=0; y<errorFromUp.rows; y++) {
-            for (int x=0; x<errorFromUp.columns; x++) {
-                double error = errorFromUp.get(y, x);
-                int encodedLocation = poolLocations[y][x];
-                int[] decodedLocation = NetworkHelper.poolDecodeLocation(encodedLocation, getInputData().rows);
+        upperError = NetworkHelper.getUpperError(this, lowerNeurons, upperNeurons, upperError);
+        DoubleMatrix inputData = getInputData();
 
-                errors.put(decodedLocation[0], decodedLocation[1], error);
-            }
+        // Create matrix of errors to pass back
+        if (inputError == null || inputError.rows != inputData.rows || inputError.columns != inputData.columns)
+            inputError = new DoubleMatrix(inputData.rows, inputData.columns);
+        else
+            Arrays.fill(inputError.data, 0.0);
+
+        // Overlapping receptive fields can select the same input cell more than once
+        double[] errors = inputError.data;
+        double[] upper = upperError.data;
+        for (int i=0; i<poolIndices.length; i++) {
+            errors[poolIndices[i]] += upper[i];
         }
 
-        setError(errors);
+        setError(inputError);
     }
 
 	/**
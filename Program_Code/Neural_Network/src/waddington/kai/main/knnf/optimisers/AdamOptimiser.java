@@ -0,0 +1,58 @@
+package waddington.kai.main.knnf.optimisers;
+
+import waddington.kai.main.knnf.NetworkContext;
+
+/**
+ * Adam, which scales the step of each parameter by moving averages of its gradient and squared gradient.
+ * The bias correction of the averages is folded into the learning rate of each update: rate = learning rate * sqrt(1 - beta2^t) / (1 - beta1^t).
+ * Delta = rate * mean / (sqrt(mean square) + epsilon).
+ */
+public class AdamOptimiser extends Optimiser {
+    private final double beta1;
+    private final double beta2;
+    private final double epsilon;
+
+    /**
+     * Creates Adam with beta1 of 0.9, beta2 of 0.999 and epsilon of 1e-8.
+     */
+    public AdamOptimiser() {
+        this(0.9, 0.999, 1e-8);
+    }
+
+    /**
+     * @param beta1 How much of the mean gradient is kept each update, in [0, 1).
+     * @param beta2 How much of the mean square gradient is kept each update, in [0, 1).
+     * @param epsilon Added to the root mean square to avoid dividing by 0.
+     */
+    public AdamOptimiser(double beta1, double beta2, double epsilon) {
+        this.beta1 = beta1;
+        this.beta2 = beta2;
+        this.epsilon = epsilon;
+    }
+
+    /**
+     * Two buffers, the mean gradient and mean square gradient of each parameter.
+     */
+    @Override
+    public int getNumberOfBuffers() {
+        return 2;
+    }
+
+    @Override
+    protected double getStepRate(long step, NetworkContext context) {
+        double rate = super.getStepRate(step, context);
+
+        return rate * Math.sqrt(1 - Math.pow(beta2, step)) / (1 - Math.pow(beta1, step));
+    }
+
+    @Override
+    protected double delta(double gradient, OptimiserState state, int index, double rate, NetworkContext context) {
+        double[] mean = state.getBuffer(0);
+        double[] meanSquare = state.getBuffer(1);
+
+        mean[index] = (beta1 * mean[index]) + ((1 - beta1) * gradient);
+        meanSquare[index] = (beta2 * meanSquare[index]) + ((1 - beta2) * gradient * gradient);
+
+        return rate * mean[index] / (Math.sqrt(meanSquare[index]) + epsilon);
+    }
+}
\ No newline at end of file
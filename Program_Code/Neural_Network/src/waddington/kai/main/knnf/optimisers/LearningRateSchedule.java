@@ -0,0 +1,62 @@
+package waddington.kai.main.knnf.optimisers;
+
+/**
+ * Changes the learning rate of a network as training goes on. The step is the number of updates made to a block of parameters, which is the number of batches it has been trained on.
+ */
+public interface LearningRateSchedule {
+
+    /**
+     * Gets the learning rate for an update.
+     * @param learningRate The learning rate of the network.
+     * @param step The number of the update, starting at 1.
+     * @return The learning rate to use for the update.
+     */
+    double getLearningRate(double learningRate, long step);
+
+    /**
+     * Gets the schedule that always uses the learning rate of the network. This is the default.
+     * @return The constant {@link LearningRateSchedule}.
+     */
+    static LearningRateSchedule constant() {
+        return (learningRate, step) -> learningRate;
+    }
+
+    /**
+     * Creates a schedule that multiplies the learning rate by a factor every number of steps.
+     * @param stepSize The number of updates between each decay.
+     * @param gamma The factor the learning rate is multiplied by, e.g. 0.1.
+     * @return The {@link LearningRateSchedule}.
+     */
+    static LearningRateSchedule step(long stepSize, double gamma) {
+        return (learningRate, step) -> learningRate * Math.pow(gamma, (step - 1) / stepSize);
+    }
+
+    /**
+     * Creates a schedule that lowers the learning rate along half a cosine wave, from the learning rate of the network to a minimum.
+     * @param totalSteps The number of updates to reach the minimum in, after which the minimum is used.
+     * @param minimumRate The final learning rate.
+     * @return The {@link LearningRateSchedule}.
+     */
+    static LearningRateSchedule cosine(long totalSteps, double minimumRate) {
+        return (learningRate, step) -> {
+            double progress = (double) Math.min(step - 1, totalSteps) / totalSteps;
+
+            return minimumRate + (learningRate - minimumRate) * 0.5 * (1 + Math.cos(Math.PI * progress));
+        };
+    }
+
+    /**
+     * Creates a schedule that raises the learning rate linearly from 0 over the first updates, then follows another schedule.
+     * @param warmupSteps The number of updates to reach the learning rate of the network in.
+     * @param after The schedule to follow after the warm-up, which starts again from step 1.
+     * @return The {@link LearningRateSchedule}.
+     */
+    static LearningRateSchedule warmup(long warmupSteps, LearningRateSchedule after) {
+        return (learningRate, step) -> {
+            if (step <= warmupSteps)
+                return learningRate * step / warmupSteps;
+
+            return after.getLearningRate(learningRate, step - warmupSteps);
+        };
+    }
+}
\ No newline at end of file
@@ -0,0 +1,28 @@
+package waddington.kai.main.knnf.optimisers;
+
+import waddington.kai.main.knnf.NetworkContext;
+
+/**
+ * Gradient descent with Nesterov momentum, which applies the momentum to where the parameters are heading rather than where they are.
+ * Velocity = momentum * velocity + learning rate * gradient, delta = momentum * velocity + learning rate * gradient, where the momentum is that of the network.
+ */
+public class NesterovOptimiser extends Optimiser {
+
+    /**
+     * One buffer, the velocity of each parameter.
+     */
+    @Override
+    public int getNumberOfBuffers() {
+        return 1;
+    }
+
+    @Override
+    protected double delta(double gradient, OptimiserState state, int index, double rate, NetworkContext context) {
+        double[] velocity = state.getBuffer(0);
+        double momentum = context.getMomentum();
+
+        velocity[index] = (momentum * velocity[index]) + (rate * gradient);
+
+        return (momentum * velocity[index]) + (rate * gradient);
+    }
+}
\ No newline at end of file
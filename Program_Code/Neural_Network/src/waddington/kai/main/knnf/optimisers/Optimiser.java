@@ -0,0 +1,80 @@
+package waddington.kai.main.knnf.optimisers;
+
+import waddington.kai.main.knnf.NetworkContext;
+
+/**
+ * Decides how the weights of a network are updated from their gradients at the end of each batch.
+ * <p>
+ * The neurons calculate the gradient of each parameter averaged over the batch, in the direction that reduces the error, and pass it to the {@link Optimiser} of the network, see {@link NetworkContext#getOptimiser()}.
+ * Anything the optimiser remembers between batches is kept in an {@link OptimiserState} for each block of parameters, created with {@link #createState(int)}.
+ * The learning rate of each update comes from the {@link LearningRateSchedule} of the network, based on the number of updates made to the block.
+ * An optimiser has no state of its own, so one can be shared by every neuron and used from several threads at once.
+ */
+public abstract class Optimiser {
+
+    /**
+     * Gets the number of values the optimiser keeps for each parameter between updates.
+     * @return The number of buffers in an {@link OptimiserState}.
+     */
+    public abstract int getNumberOfBuffers();
+
+    /**
+     * Creates the state for a block of parameters, allocating the buffers.
+     * @param numberOfParameters The number of parameters in the block.
+     * @return The {@link OptimiserState}.
+     */
+    public OptimiserState createState(int numberOfParameters) {
+        return new OptimiserState(this, numberOfParameters, getNumberOfBuffers());
+    }
+
+    /**
+     * Updates a block of parameters in place.
+     * @param parameters The parameters, for example the data of a filter or weight matrix.
+     * @param gradients The gradient of each parameter averaged over the batch, in the direction that reduces the error.
+     * @param length The number of parameters to update.
+     * @param state The state of the block, created by this optimiser.
+     * @param context The {@link NetworkContext} of the network, which holds the learning rate, schedule and momentum.
+     */
+    public void update(double[] parameters, double[] gradients, int length, OptimiserState state, NetworkContext context) {
+        double rate = getStepRate(state.nextStep(), context);
+
+        for (int i=0; i<length; i++) {
+            parameters[i] += delta(gradients[i], state, i, rate, context);
+        }
+    }
+
+    /**
+     * Updates a single parameter, such as a bias.
+     * @param parameter The parameter.
+     * @param gradient The gradient of the parameter averaged over the batch, in the direction that reduces the error.
+     * @param state The state of the parameter, created by this optimiser for 1 parameter.
+     * @param context The {@link NetworkContext} of the network.
+     * @return The updated parameter.
+     */
+    public double update(double parameter, double gradient, OptimiserState state, NetworkContext context) {
+        double rate = getStepRate(state.nextStep(), context);
+
+        return parameter + delta(gradient, state, 0, rate, context);
+    }
+
+    /**
+     * Gets the learning rate for an update, calculated once per block of parameters.
+     * @param step The number of the update, starting at 1.
+     * @param context The {@link NetworkContext} of the network.
+     * @return The learning rate from the schedule of the network.
+     */
+    protected double getStepRate(long step, NetworkContext context) {
+        return context.getScheduledLearningRate(step);
+    }
+
+    /**
+     * Calculates the change to one parameter and updates its state.
+     * @param gradient The gradient of the parameter.
+     * @param state The state of the block.
+     * @param index The index of the parameter in the block.
+     * @param rate The learning rate from {@link #getStepRate(long, NetworkContext)}.
+     * @param context The {@link NetworkContext} of the network.
+     * @return The amount to add to the parameter.
+     */
+    protected abstract double delta(double gradient, OptimiserState state, int index, double rate, NetworkContext context);
+}
\ No newline at end of file
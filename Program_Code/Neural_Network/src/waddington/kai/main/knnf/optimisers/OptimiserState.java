@@ -0,0 +1,76 @@
+package waddington.kai.main.knnf.optimisers;
+
+/**
+ * The state an {@link Optimiser} keeps for a block of parameters, such as the filter of a neuron or the weight matrix of a layer.
+ * The buffers hold one value per parameter and are allocated once, when the state is created.
+ */
+public class OptimiserState {
+    /**
+     * The optimiser that created this state, and is the only one that can use it.
+     */
+    private final Optimiser optimiser;
+    /**
+     * The buffers of the optimiser, see {@link Optimiser#getNumberOfBuffers()}.
+     */
+    private final double[][] buffers;
+    private final int numberOfParameters;
+    /**
+     * The number of updates made to the parameters.
+     */
+    private long step;
+
+    OptimiserState(Optimiser optimiser, int numberOfParameters, int numberOfBuffers) {
+        this.optimiser = optimiser;
+        this.numberOfParameters = numberOfParameters;
+        this.buffers = new double[numberOfBuffers][numberOfParameters];
+    }
+
+    /**
+     * Checks whether this state can be used by an optimiser. The state of a block of parameters has to be recreated when the optimiser of a network is changed.
+     * @param optimiser The optimiser.
+     * @return True if the optimiser created this state.
+     */
+    public boolean isFor(Optimiser optimiser) {
+        return this.optimiser == optimiser;
+    }
+
+    public int getNumberOfParameters() {
+        return numberOfParameters;
+    }
+
+    public int getNumberOfBuffers() {
+        return buffers.length;
+    }
+
+    /**
+     * Gets a buffer of the optimiser, for example the velocity of each parameter.
+     * @param buffer The index of the buffer.
+     * @return The buffer, with one value per parameter.
+     */
+    public double[] getBuffer(int buffer) {
+        return buffers[buffer];
+    }
+
+    /**
+     * @return The number of updates made to the parameters, which the learning rate schedule is based on.
+     */
+    public long getStep() {
+        return step;
+    }
+
+    /**
+     * Sets the number of updates made to the parameters, for example when restoring a checkpoint.
+     * @param step The number of updates.
+     */
+    public void setStep(long step) {
+        this.step = step;
+    }
+
+    /**
+     * Counts an update of the parameters.
+     * @return The number of the update, starting at 1.
+     */
+    long nextStep() {
+        return ++step;
+    }
+}
\ No newline at end of file
@@ -0,0 +1,45 @@
+package waddington.kai.main.knnf.optimisers;
+
+import waddington.kai.main.knnf.NetworkContext;
+
+/**
+ * RMSProp, which divides the learning rate of each parameter by a moving average of the size of its gradients.
+ * Mean square = decay * mean square + (1 - decay) * gradient^2, delta = learning rate * gradient / (sqrt(mean square) + epsilon).
+ */
+public class RMSPropOptimiser extends Optimiser {
+    private final double decay;
+    private final double epsilon;
+
+    /**
+     * Creates RMSProp with a decay of 0.9 and epsilon of 1e-8.
+     */
+    public RMSPropOptimiser() {
+        this(0.9, 1e-8);
+    }
+
+    /**
+     * @param decay How much of the mean square is kept each update, in [0, 1).
+     * @param epsilon Added to the root mean square to avoid dividing by 0.
+     */
+    public RMSPropOptimiser(double decay, double epsilon) {
+        this.decay = decay;
+        this.epsilon = epsilon;
+    }
+
+    /**
+     * One buffer, the mean square gradient of each parameter.
+     */
+    @Override
+    public int getNumberOfBuffers() {
+        return 1;
+    }
+
+    @Override
+    protected double delta(double gradient, OptimiserState state, int index, double rate, NetworkContext context) {
+        double[] meanSquare = state.getBuffer(0);
+
+        meanSquare[index] = (decay * meanSquare[index]) + ((1 - decay) * gradient * gradient);
+
+        return rate * gradient / (Math.sqrt(meanSquare[index]) + epsilon);
+    }
+}
\ No newline at end of file
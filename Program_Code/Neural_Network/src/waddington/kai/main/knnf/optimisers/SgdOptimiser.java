@@ -0,0 +1,28 @@
+package waddington.kai.main.knnf.optimisers;
+
+import waddington.kai.main.knnf.NetworkContext;
+
+/**
+ * Stochastic gradient descent with momentum, the update rule the network has always used and the default optimiser.
+ * Delta = learning rate * gradient + momentum * previous delta, where the momentum is that of the network, see {@link NetworkContext#getMomentum()}.
+ */
+public class SgdOptimiser extends Optimiser {
+
+    /**
+     * One buffer, the previous delta of each parameter.
+     */
+    @Override
+    public int getNumberOfBuffers() {
+        return 1;
+    }
+
+    @Override
+    protected double delta(double gradient, OptimiserState state, int index, double rate, NetworkContext context) {
+        double[] previousDelta = state.getBuffer(0);
+
+        double delta = (rate * gradient) + (context.getMomentum() * previousDelta[index]);
+        previousDelta[index] = delta;
+
+        return delta;
+    }
+}
\ No newline at end of file
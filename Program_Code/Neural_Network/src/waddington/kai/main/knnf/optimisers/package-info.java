@@ -0,0 +1,4 @@
+/**
+ * Contains the optimisers that turn the gradients calculated by the neurons into updates of the weights, and the learning rate schedules they use.
+ */
+package waddington.kai.main.knnf.optimisers;
\ No newline at end of file
@@ -0,0 +1,150 @@
+package waddington.kai.main.knnf.serialisation;
+
+import java.io.IOException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+/**
+ * Writes {@link TrainingCheckpoint}'s to a file on a background thread, so that training does not wait for the disk.
+ * <p>
+ * Only one checkpoint is written at a time. While a write is in progress {@link #isBusy()} is true, and the training loop should capture its next checkpoint once it has finished.
+ * A checkpoint that cannot be written is counted as a failure and training carries on, the file keeps the previous checkpoint.
+ */
+public class CheckpointWriter {
+    /**
+     * The path of the checkpoint file, which each checkpoint replaces.
+     */
+    private final String checkpointPath;
+    /**
+     * The thread that writes the checkpoints.
+     */
+    private final ExecutorService writer;
+    /**
+     * The checkpoint being written, null if none have been written.
+     */
+    private Future<?> pending;
+
+    // Metrics
+    private volatile int checkpointsWritten;
+    private volatile int failures;
+    private volatile long writeTime;
+
+    /**
+     * Creates a checkpoint writer.
+     * @param checkpointPath The path of the checkpoint file.
+     */
+    public CheckpointWriter(String checkpointPath) {
+        this.checkpointPath = checkpointPath;
+        this.writer = Executors.newSingleThreadExecutor(runnable -> {
+            Thread thread = new Thread(runnable, "checkpoint-writer");
+            thread.setDaemon(true);
+            return thread;
+        });
+    }
+
+    public String getCheckpointPath() {
+        return checkpointPath;
+    }
+
+    /**
+     * @return True while a checkpoint is being written.
+     */
+    public boolean isBusy() {
+        return pending != null && !pending.isDone();
+    }
+
+    /**
+     * Starts writing a checkpoint on the background thread.
+     * @param checkpoint The checkpoint, already captured.
+     */
+    public void writeAsync(TrainingCheckpoint checkpoint) {
+        pending = writer.submit(() -> write(checkpoint));
+    }
+
+    /**
+     * Writes a checkpoint on the calling thread, after any checkpoint being written in the background.
+     * @param checkpoint The checkpoint, already captured.
+     * @return True if the checkpoint was written.
+     */
+    public boolean writeNow(TrainingCheckpoint checkpoint) {
+        awaitPending();
+
+        return write(checkpoint);
+    }
+
+    /**
+     * Waits for the checkpoint being written in the background, if there is one.
+     */
+    public void awaitPending() {
+        if (pending == null)
+            return;
+
+        try {
+            pending.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } catch (ExecutionException e) {
+            // Failures are counted by write
+        }
+    }
+
+    /**
+     * Waits for the checkpoint being written, then stops the background thread.
+     */
+    public void shutdown() {
+        awaitPending();
+        writer.shutdown();
+    }
+
+    /**
+     * @return The number of checkpoints written.
+     */
+    public int getCheckpointsWritten() {
+        return checkpointsWritten;
+    }
+
+    /**
+     * @return The number of checkpoints that could not be written.
+     */
+    public int getFailures() {
+        return failures;
+    }
+
+    /**
+     * @return The total time spent writing checkpoints, in milliseconds.
+     */
+    public double getWriteTime() {
+        return writeTime / 1e6;
+    }
+
+    @Override
+    public String toString() {
+        return "Checkpoints: written(" + checkpointsWritten + "), failed(" + failures + "), "
+                + "write-time(" + String.format("%.1f", getWriteTime()) + "ms), path(" + checkpointPath + ").";
+    }
+
+    /**
+     * Writes a checkpoint, counting it as written or failed.
+     * @param checkpoint The checkpoint.
+     * @return True if the checkpoint was written.
+     */
+    private boolean write(TrainingCheckpoint checkpoint) {
+        long start = System.nanoTime();
+
+        try {
+            checkpoint.write(checkpointPath);
+            checkpointsWritten++;
+
+            return true;
+        } catch (IOException e) {
+            failures++;
+            System.out.println("Could not write checkpoint " + checkpointPath + ": " + e.getMessage());
+
+            return false;
+        } finally {
+            writeTime += System.nanoTime() - start;
+        }
+    }
+}
\ No newline at end of file
@@ -7,8 +7,10 @@ import org.json.simple.JSONArray;
 import org.json.simple.JSONObject;
 import org.json.simple.parser.JSONParser;
 import org.json.simple.parser.ParseException;
+import waddington.kai.main.knnf.ConvolutionMethod;
 import waddington.kai.main.knnf.LayerActivation;
 import waddington.kai.main.knnf.LayerType;
+import waddington.kai.main.knnf.NetworkContext;
 import waddington.kai.main.knnf.NetworkManager;
 import waddington.kai.main.knnf.exceptions.MissingLayerTypeSerialisationMethodException;
 import waddington.kai.main.knnf.exceptions.MissingNeuronTypeSerialisationMethodException;
@@ -45,7 +47,7 @@ public class NetworkLoader {
 
         // Settings
         String pathToRoot = "./../";
-        String tempDirName = ".loadTemp";
+        String tempDirName = ".loadTemp-" + Thread.currentThread().getId(); // Threads loading at the same time each use their own directory
         String saveDirName = "LoadNetwork";
 
         // Create temp file area
@@ -59,8 +61,10 @@ public class NetworkLoader {
         } catch (Exception e) {}
 
         // Read NetworkManager file and assign hyperparameters
+        int formatVersion = NetworkSaver.FORMAT_VERSION;
         try {
             network = loadManager(pathToRoot, tempDirName, filename, network);
+            formatVersion = getFormatVersion(pathToRoot, tempDirName, filename);
         } catch (FileNotFoundException e) {}
         catch (IOException e) {}
         catch (ParseException e) {}
@@ -78,7 +82,7 @@ public class NetworkLoader {
 
         // Read each neuron
         try {
-            network = getNeurons(pathToRoot, tempDirName, filename, network);
+            network = getNeurons(pathToRoot, tempDirName, filename, network, formatVersion);
         } catch (FileNotFoundException e) {
             System.out.println(e.getStackTrace());
         } catch (IOException e) {
@@ -148,9 +152,34 @@ public class NetworkLoader {
         network.setLearningRate((float) learnRate);
         network.setMomentum((float) momentum);
 
+        // Models saved before mini-batches were added updated after every example
+        Long batchSize = (Long) obj.get("BatchSize");
+        if (batchSize != null)
+            network.setBatchSize(batchSize.intValue());
+
         return network;
     }
 
+    /**
+     * Reads the version of the model format from the "NetworkManager.json" file, see {@link NetworkSaver#FORMAT_VERSION}.
+     * @param pRoot A locally set path to the root of the project.
+     * @param tempDir The name of the temporary directory.
+     * @param fileName The name of the model file, without extension.
+     * @return The format version, 1 for models saved before the version was saved.
+     * @throws FileNotFoundException If cannot find the file.
+     * @throws IOException If cannot read the file.
+     * @throws ParseException If the json cannot be parsed.
+     */
+    private static int getFormatVersion(String pRoot, String tempDir, String fileName)
+    throws FileNotFoundException, IOException, ParseException {
+        JSONParser parser = new JSONParser();
+        JSONObject obj = (JSONObject) parser.parse(new FileReader(pRoot + tempDir + "/" + fileName + "/NetworkManager.json"));
+
+        Long version = (Long) obj.get("FormatVersion");
+
+        return version != null ? version.intValue() : 1;
+    }
+
     /**
      * Loads the layers of the model. Each layer is stored in it's own directory which also contains the neuron files as well.
      * The method used to get the number of layers is from stackoverflow:
@@ -185,7 +214,7 @@ public class NetworkLoader {
             String typeString = (String) obj.get("Type");
             LayerType type = LayerType.valueOf(typeString);
 
-            layers.add(getLayer(type, obj));
+            layers.add(getLayer(network.getContext(), type, obj));
         }
 
         network.setLayers(layers);
@@ -195,32 +224,33 @@ public class NetworkLoader {
 
     /**
      * Takes the json data from a layer file, and calls a method to parse the data and convert to a {@link Layer} instance.
+     * @param context The {@link NetworkContext} of the network being loaded.
      * @param type The type of layer, so that the correct method can be called.
      * @param obj The json data.
      * @return The loaded {@link Layer} instance.
      */
-    private static Layer getLayer(LayerType type, JSONObject obj) {
+    private static Layer getLayer(NetworkContext context, LayerType type, JSONObject obj) {
         switch (type) {
             case input: {
-                return getInputLayer(obj);
+                return getInputLayer(context, obj);
             }
             case conv: {
-                return getConvLayer(obj);
+                return getConvLayer(context, obj);
             }
             case minPool: {
-                return getPoolLayer(obj);
+                return getPoolLayer(context, obj);
             }
             case maxPool: {
-                return getPoolLayer(obj);
+                return getPoolLayer(context, obj);
             }
             case flatten: {
-                return getFlattenLayer(obj);
+                return getFlattenLayer(context, obj);
             }
             case fc: {
-                return getFCLayer(obj);
+                return getFCLayer(context, obj);
             }
             case output: {
-                return getOutputLayer(obj);
+                return getOutputLayer(context, obj);
             }
             default: {
                 throw new MissingLayerTypeSerialisationMethodException("");
@@ -230,10 +260,11 @@ public class NetworkLoader {
 
     /**
      * Used to load an {@link LayerType#input} layer.
+     * @param context The {@link NetworkContext} of the network being loaded.
      * @param obj The json data.
      * @return A {@link LayerInput} instance.
      */
-    private static Layer getInputLayer(JSONObject obj) {
+    private static Layer getInputLayer(NetworkContext context, JSONObject obj) {
         int id = getId(obj);
         LayerType type = getType(obj);
         LayerActivation activation = getActivation(obj);
@@ -241,7 +272,7 @@ public class NetworkLoader {
         int[] inputSize = getInputSize(obj);
         int[] outputSize = getOutputSize(obj);
 
-        LayerInput layer = new LayerInput(id);
+        LayerInput layer = new LayerInput(context, id);
         layer.setInputSize(inputSize);
         layer.setOutoutSize(outputSize);
 
@@ -250,10 +281,11 @@ public class NetworkLoader {
 
     /**
      * Used to load an {@link LayerType#conv} layer.
+     * @param context The {@link NetworkContext} of the network being loaded.
      * @param obj The json data.
      * @return A {@link LayerConvolution} instance.
      */
-    private static Layer getConvLayer(JSONObject obj) {
+    private static Layer getConvLayer(NetworkContext context, JSONObject obj) {
         int id = getId(obj);
         LayerType type = getType(obj);
         LayerActivation activation = getActivation(obj);
@@ -263,23 +295,28 @@ public class NetworkLoader {
         int filterSize = getFilterSize(obj);
         int stride = getStride(obj);
         int numberOfFilters = getNumberOfFilters(obj);
+        ConvolutionMethod convolutionMethod = getConvolutionMethod(obj);
+        int fftFilterSizeThreshold = getFFTFilterSizeThreshold(obj);
 
-        LayerConvolution layer = new LayerConvolution(id, activation);
+        LayerConvolution layer = new LayerConvolution(context, id, activation);
         layer.setInputSize(inputSize);
         layer.setOutoutSize(outputSize);
         layer.setFilterSize(filterSize);
         layer.setStride(stride);
         layer.setNumberOfFilters(numberOfFilters);
+        layer.setConvolutionMethod(convolutionMethod);
+        layer.setFFTFilterSizeThreshold(fftFilterSizeThreshold);
 
         return layer;
     }
 
     /**
      * Used to load an {@link LayerType#maxPool} or {@link LayerType#minPool} layer.
+     * @param context The {@link NetworkContext} of the network being loaded.
      * @param obj The json data.
      * @return A {@link LayerPool} instance.
      */
-    private static Layer getPoolLayer(JSONObject obj) {
+    private static Layer getPoolLayer(NetworkContext context, JSONObject obj) {
         int id = getId(obj);
         LayerType type = getType(obj);
         LayerActivation activation = getActivation(obj);
@@ -289,7 +326,7 @@ public class NetworkLoader {
         int poolSize = getPoolSize(obj);
         int stride = getStride(obj);
 
-        LayerPool layer = new LayerPool(id, type);
+        LayerPool layer = new LayerPool(context, id, type);
         layer.setInputSize(inputSize);
         layer.setOutoutSize(outputSize);
         layer.setPoolSize(poolSize);
@@ -300,10 +337,11 @@ public class NetworkLoader {
 
     /**
      * Used to load an {@link LayerType#flatten} layer.
+     * @param context The {@link NetworkContext} of the network being loaded.
      * @param obj The json data.
      * @return A {@link LayerFlatten} instance.
      */
-    private static Layer getFlattenLayer(JSONObject obj) {
+    private static Layer getFlattenLayer(NetworkContext context, JSONObject obj) {
         int id = getId(obj);
         LayerType type = getType(obj);
         LayerActivation activation = getActivation(obj);
@@ -311,7 +349,7 @@ public class NetworkLoader {
         int[] inputSize = getInputSize(obj);
         int[] outputSize = getOutputSize(obj);
 
-        LayerFlatten layer = new LayerFlatten(id);
+        LayerFlatten layer = new LayerFlatten(context, id);
         layer.setInputSize(inputSize);
         layer.setOutoutSize(outputSize);
    
@@ -320,10 +358,11 @@ public class NetworkLoader {
 
     /**
      * Used to load an {@link LayerType#fc} layer.
+     * @param context The {@link NetworkContext} of the network being loaded.
      * @param obj The json data.
      * @return A {@link LayerFullyConnected} instance.
      */
-    private static Layer getFCLayer(JSONObject obj) {
+    private static Layer getFCLayer(NetworkContext context, JSONObject obj) {
         int id = getId(obj);
         LayerType type = getType(obj);
         LayerActivation activation = getActivation(obj);
@@ -332,21 +371,23 @@ public class NetworkLoader {
         int[] outputSize = getOutputSize(obj);
         int numWights = getNumberOfWeights(obj);
 
-        LayerFullyConnected layer = new LayerFullyConnected(id, activation);
+        LayerFullyConnected layer = new LayerFullyConnected(context, id, activation);
         layer.setInputSize(inputSize);
         layer.setOutoutSize(outputSize);
         layer.setNumberOfWeights(numWights);
         layer.setNumberOfNeurons(numberOfNeurons);
+        layer.setDenseWeights(getDenseWeights(obj));
        
         return layer;
     }
 
     /**
      * Used to load an {@link LayerType#output} layer.
+     * @param context The {@link NetworkContext} of the network being loaded.
      * @param obj The json data.
      * @return A {@link LayerOutput} instance.
      */
-    private static Layer getOutputLayer(JSONObject obj) {
+    private static Layer getOutputLayer(NetworkContext context, JSONObject obj) {
         int id = getId(obj);
         LayerType type = getType(obj);
         LayerActivation activation = getActivation(obj);
@@ -356,11 +397,12 @@ public class NetworkLoader {
         int numWeights = getNumberOfWeights(obj);
         int numOutputs = getNumberOfOutputs(obj);
 
-        LayerOutput layer = new LayerOutput(id);
+        LayerOutput layer = new LayerOutput(context, id);
         layer.setInputSize(inputSize);
         layer.setOutoutSize(outputSize);
         layer.setNumberOfWeights(numWeights);
         layer.setNumberOfOutputs(numOutputs);
+        layer.setDenseWeights(getDenseWeights(obj));
 
         return layer;
     }
@@ -373,12 +415,13 @@ public class NetworkLoader {
      * @param tempDir The name of the temporary directory.
      * @param fileName The name of the model file, without extension.
      * @param network The instance of {@link NetworkManager}.
+     * @param formatVersion The version of the model format, see {@link NetworkSaver#FORMAT_VERSION}.
      * @return The instance of {@link NetworkManager} with the neurons added.
      * @throws FileNotFoundException If a neuron file cannot be read.
      * @throws IOException If a neuron file cannot be found.
      * @throws ParseException If the json data cannot be parsed.
      */
-    private static NetworkManager getNeurons(String pRoot, String tempDir, String fileName, NetworkManager network)
+    private static NetworkManager getNeurons(String pRoot, String tempDir, String fileName, NetworkManager network, int formatVersion)
     throws FileNotFoundException, IOException, ParseException {
         // https://stackoverflow.com/a/18300155/3259361
         int numberOfLayers = (int) Files.find(
@@ -389,6 +432,13 @@ public class NetworkLoader {
 
         for (int i=0; i<numberOfLayers; i++) {
             Layer layer = network.getLayers().get(i);
+
+            // Flattening neurons hold no data, so they are recreated from the shape of the layer
+            // Models saved with one flattening neuron per value still load this way
+            if (layer.getLayerType() == LayerType.flatten) {
+                layer.createNeurons(0);
+                continue;
+            }
             // https://stackoverflow.com/a/18300155/3259361
             int numberOfNeurons = (int) Files.find(
                 Paths.get(pRoot+tempDir+"/"+fileName + "/" + i + "/neurons/"), 
@@ -398,6 +448,11 @@ public class NetworkLoader {
 
             String neuronRootPath = pRoot + tempDir + "/" + fileName + "/" + i + "/neurons/";
 
+            // Models saved before version 2 flattened row by row, so the weights above a flattening layer are reordered
+            int[] flattenOrder = null;
+            if (formatVersion < 2 && i > 0 && network.getLayers().get(i-1).getLayerType() == LayerType.flatten)
+                flattenOrder = getRowMajorFlattenOrder(network.getLayers().get(i-1).getInputSize());
+
             // For each neuron
             for (int j=0; j<numberOfNeurons; j++) {
                 String neuronPath = neuronRootPath + j + ".json";
@@ -409,6 +464,9 @@ public class NetworkLoader {
 
                 Neuron neuron = getSpecificNeuron(layer, type, obj);
 
+                if (flattenOrder != null)
+                    reorderWeights(neuron, flattenOrder);
+
                 layer.addNeuron(neuron);
             }
         }
@@ -416,6 +474,46 @@ public class NetworkLoader {
         return network;
     }
 
+    /**
+     * Gets where each flattened value was in a model saved before version 2, which flattened each channel row by row rather than column by column.
+     * @param inputSize The {channels, rows, columns} input size of the flattening layer.
+     * @return The index each flattened value had in the old order, indexed by its index in the current order.
+     */
+    private static int[] getRowMajorFlattenOrder(int[] inputSize) {
+        int rows = inputSize[1];
+        int cols = inputSize[2];
+        int channelLength = rows * cols;
+        int[] order = new int[inputSize[0] * channelLength];
+
+        for (int c=0; c<inputSize[0]; c++) {
+            for (int x=0; x<cols; x++) {
+                for (int y=0; y<rows; y++) {
+                    order[(c*channelLength) + (x*rows) + y] = (c*channelLength) + (y*cols) + x;
+                }
+            }
+        }
+
+        return order;
+    }
+
+    /**
+     * Reorders the weights of a fully-connected or output neuron loaded from a model saved before version 2, see {@link #getRowMajorFlattenOrder(int[])}.
+     * @param neuron The neuron directly above a flattening layer.
+     * @param order The index each weight had in the old order, indexed by its index in the current order.
+     */
+    private static void reorderWeights(Neuron neuron, int[] order) {
+        DoubleMatrix weights = neuron.getType() == LayerType.output ? ((NeuronOutput) neuron).getWeights() : ((NeuronFullyConnected) neuron).getWeights();
+        DoubleMatrix reordered = new DoubleMatrix(weights.rows, weights.columns);
+
+        for (int i=0; i<order.length; i++)
+            reordered.put(i, weights.get(order[i]));
+
+        if (neuron.getType() == LayerType.output)
+            ((NeuronOutput) neuron).setWeights(reordered);
+        else
+            ((NeuronFullyConnected) neuron).setWeights(reordered);
+    }
+
     /**
      * Takes the json data from a neuron file, and calls a method to parse the data and convert to a {@link Neuron} instance.
      * @param layer The {@link Layer} instance that the neurons should be added to.
@@ -482,7 +580,7 @@ public class NetworkLoader {
         double bias = getBias(obj);
         DoubleMatrix filter = getFilter(obj, filterSize);
 
-        NeuronConvolution neuron = new NeuronConvolution(id, filterSize, stride, activation);
+        NeuronConvolution neuron = new NeuronConvolution(layer.getContext(), id, filterSize, stride, activation);
         neuron.initMemory(layer.getInputSize(), layer.getOutputSize());
         neuron.setBias(bias);
         neuron.setFilter(filter);
@@ -520,11 +618,7 @@ public class NetworkLoader {
         LayerType type = getType(obj);
         LayerActivation activation = getActivation(obj);
 
-        NeuronFlatten neuron = new NeuronFlatten(id);
-        int[] dataSize = new int[] {1, 1, 1};
-        neuron.initMemory(dataSize, dataSize);
-
-        return neuron;
+        return NeuronFactory.getFlattenNeuron(id, layer.getInputSize(), layer.getOutputSize());
     }
 
     /**
@@ -539,7 +633,7 @@ public class NetworkLoader {
         DoubleMatrix weights = getWeights(obj);
         double bias = getBias(obj);
 
-        NeuronFullyConnected neuron = new NeuronFullyConnected(id, activation);
+        NeuronFullyConnected neuron = new NeuronFullyConnected(layer.getContext(), id, activation);
         int[] dataSize = new int[] {1, 1, 1};
         neuron.initMemory(dataSize, dataSize);
         neuron.setBias(bias);
@@ -560,7 +654,7 @@ public class NetworkLoader {
         DoubleMatrix weights = getWeights(obj);
         double bias = getBias(obj);
 
-        NeuronOutput neuron = new NeuronOutput(id, activation);
+        NeuronOutput neuron = new NeuronOutput(layer.getContext(), id, activation);
         int[] dataSize = new int[] {1, 1, 1};
         neuron.initMemory(dataSize, dataSize);
         neuron.setBias(bias);
@@ -712,6 +806,51 @@ public class NetworkLoader {
         return ((Long) n).intValue();
     }
 
+    /**
+     * Used to retrieve the {@link ConvolutionMethod} of a convolution layer from the json data.
+     * Models saved before the convolution method was stored use {@link ConvolutionMethod#direct}.
+     * @param obj The json data.
+     * @return The {@link ConvolutionMethod}.
+     */
+    private static ConvolutionMethod getConvolutionMethod(JSONObject obj) {
+        String methodString = (String) obj.get("ConvolutionMethod");
+
+        if (methodString == null)
+            return ConvolutionMethod.direct;
+
+        return ConvolutionMethod.valueOf(methodString);
+    }
+
+    /**
+     * Used to retrieve the filter size above which a convolution layer switches to {@link ConvolutionMethod#fft} from the json data.
+     * Models saved before the threshold was stored never switch.
+     * @param obj The json data.
+     * @return The filter size threshold.
+     */
+    private static int getFFTFilterSizeThreshold(JSONObject obj) {
+        Long t = (Long) obj.get("FFTFilterSizeThreshold");
+
+        if (t == null)
+            return 0;
+
+        return t.intValue();
+    }
+
+    /**
+     * Used to retrieve whether a fully-connected or output layer stores its weights as one matrix from the json data.
+     * Models saved before this was stored do not.
+     * @param obj The json data.
+     * @return True if the layer uses {@link waddington.kai.main.knnf.layers.DenseWeights}.
+     */
+    private static boolean getDenseWeights(JSONObject obj) {
+        Boolean d = (Boolean) obj.get("DenseWeights");
+
+        if (d == null)
+            return false;
+
+        return d;
+    }
+
     /**
      * Used to retrieve the pool size from the json data.
      * @param obj The json data.
@@ -27,6 +27,14 @@ import java.util.List;
  */
 @SuppressWarnings("unchecked")
 public class NetworkSaver {
+    /**
+     * The version of the model format, saved in "NetworkManager.json" so that {@link NetworkLoader} can read models saved by older versions.
+     * <ul>
+     *     <li>1 (no version saved): a flattening layer flattened each channel row by row.</li>
+     *     <li>2: a flattening layer flattens each channel column by column, the order of {@link DoubleMatrix#data}, so the weights of the layer above a flattening layer are in that order.</li>
+     * </ul>
+     */
+    public static final int FORMAT_VERSION = 2;
 
     /**
      * This method is called to save a network model.
@@ -38,7 +46,7 @@ public class NetworkSaver {
     public static void saveNetwork(NetworkManager networkManager, String networkReference)
     throws IOException, Exception {
         String pathToRoot = "./../";
-        String tempDirName = ".saveTemp";
+        String tempDirName = ".saveTemp-" + networkReference; // Networks saving at the same time each use their own directory
         String saveDirName = "Network-" + networkReference;
 
         createTempFileStructure(networkManager, pathToRoot, tempDirName, saveDirName);
@@ -111,8 +119,10 @@ public class NetworkSaver {
     private static void serialiseNetworkManager(NetworkManager networkManager, String pathToRoot, String tempDirName, String saveDirName)
     throws IOException {
         JSONObject obj = new JSONObject();
-        obj.put("LearningRate", NetworkManager.LearningRate);
-        obj.put("Momentum", NetworkManager.Momentum);
+        obj.put("FormatVersion", FORMAT_VERSION);
+        obj.put("LearningRate", networkManager.getLearningRate());
+        obj.put("Momentum", networkManager.getMomentum());
+        obj.put("BatchSize", networkManager.getBatchSize());
 
         File file = new File(pathToRoot + tempDirName + "/" + saveDirName + "/NetworkManager.json");
         file.createNewFile();
@@ -237,6 +247,8 @@ public class NetworkSaver {
         obj.put("FilterSize", filterSize);
         obj.put("Stride", stride);
         obj.put("NumberOfFilters", numFilters);
+        obj.put("ConvolutionMethod", layerC.getConvolutionMethod().name());
+        obj.put("FFTFilterSizeThreshold", layerC.getFFTFilterSizeThreshold());
 
         return obj;
     }
@@ -279,6 +291,7 @@ public class NetworkSaver {
         int numWeights = layerFC.getNumberOfWeights();
 
         obj.put("NumberOfWeights", numWeights);
+        obj.put("DenseWeights", layerFC.isDenseWeights());
 
         return obj;
     }
@@ -296,6 +309,7 @@ public class NetworkSaver {
 
         obj.put("NumberOfWeights", numWeights);
         obj.put("NumberOfOutputs", numOutputs);
+        obj.put("DenseWeights", layerO.isDenseWeights());
 
         return obj;
     }
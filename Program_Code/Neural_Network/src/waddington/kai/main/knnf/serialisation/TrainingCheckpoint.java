@@ -0,0 +1,515 @@
+package waddington.kai.main.knnf.serialisation;
+
+import org.jblas.DoubleMatrix;
+import waddington.kai.main.knnf.LayerType;
+import waddington.kai.main.knnf.NetworkManager;
+import waddington.kai.main.knnf.exceptions.CheckpointException;
+import waddington.kai.main.knnf.layers.*;
+import waddington.kai.main.knnf.layers.neurons.*;
+import waddington.kai.main.knnf.optimisers.OptimiserState;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.util.List;
+import java.util.Random;
+
+/**
+ * A snapshot of a network part way through training, from which training can be resumed exactly.
+ * <p>
+ * A checkpoint holds the weights and biases of every layer, the state the optimiser keeps for them such as the momentum, the state of the random number generator,
+ * the learning rate, momentum and batch size, and the position in the training data. Unlike the models saved by {@link NetworkSaver}, which round the weights,
+ * the values are stored in binary so that a restored network continues exactly as the original would have.
+ * <p>
+ * {@link #capture(NetworkManager, int, int, long)} copies the state into memory on the training thread between batches, so the checkpoint is consistent
+ * and can then be written by another thread while training continues, see {@link CheckpointWriter}.
+ */
+public class TrainingCheckpoint {
+    private static final int MAGIC = 0x4B4E4E43; // "KNNC"
+    private static final int VERSION = 2;
+    /**
+     * The extension of checkpoint files.
+     */
+    public static final String EXTENSION = ".ckpt";
+
+    /**
+     * The epoch to resume training in.
+     */
+    private final int epoch;
+    /**
+     * The index of the training example to resume training from.
+     */
+    private final int nextExample;
+    /**
+     * The time spent training when the checkpoint was captured, in milliseconds.
+     */
+    private final long elapsedTime;
+    /**
+     * The checkpoint file contents.
+     */
+    private final byte[] data;
+
+    private TrainingCheckpoint(int epoch, int nextExample, long elapsedTime, byte[] data) {
+        this.epoch = epoch;
+        this.nextExample = nextExample;
+        this.elapsedTime = elapsedTime;
+        this.data = data;
+    }
+
+    public int getEpoch() {
+        return epoch;
+    }
+
+    public int getNextExample() {
+        return nextExample;
+    }
+
+    public long getElapsedTime() {
+        return elapsedTime;
+    }
+
+    /**
+     * @return The size of the checkpoint in bytes.
+     */
+    public int getSize() {
+        return data.length;
+    }
+
+    /**
+     * Captures the state of a network between batches, when every layer has applied its deltas.
+     * @param networkManager The network being trained.
+     * @param epoch The epoch to resume training in.
+     * @param nextExample The index of the training example to resume training from.
+     * @param elapsedTime The time spent training so far, in milliseconds.
+     * @return The checkpoint, held in memory.
+     */
+    public static TrainingCheckpoint capture(NetworkManager networkManager, int epoch, int nextExample, long elapsedTime) {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+
+        try (DataOutputStream out = new DataOutputStream(bytes)) {
+            out.writeInt(MAGIC);
+            out.writeInt(VERSION);
+            out.writeInt(epoch);
+            out.writeInt(nextExample);
+            out.writeLong(elapsedTime);
+
+            out.writeFloat(networkManager.getLearningRate());
+            out.writeFloat(networkManager.getMomentum());
+            out.writeInt(networkManager.getBatchSize());
+            out.writeUTF(networkManager.getOptimiser().getClass().getName());
+
+            byte[] random = serialiseRandom(networkManager.getContext().getRandom());
+            out.writeInt(random.length);
+            out.write(random);
+
+            List<Layer> layers = networkManager.getLayers();
+            out.writeInt(layers.size());
+            for (Layer layer: layers)
+                writeLayer(out, layer);
+        } catch (IOException e) {
+            throw new CheckpointException("The network could not be captured.", e);
+        }
+
+        return new TrainingCheckpoint(epoch, nextExample, elapsedTime, bytes.toByteArray());
+    }
+
+    /**
+     * Writes the checkpoint to a file. It is written to a temporary file first and then moved over the file, so the file always holds a whole checkpoint.
+     * @param path The path of the checkpoint file.
+     * @throws IOException When the file cannot be written.
+     */
+    public void write(String path) throws IOException {
+        Path file = Paths.get(path);
+        Path temp = Paths.get(path + ".tmp");
+
+        Files.write(temp, data);
+        try {
+            Files.move(temp, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        } catch (IOException e) {
+            Files.move(temp, file, StandardCopyOption.REPLACE_EXISTING);
+        }
+    }
+
+    /**
+     * Reads a checkpoint file.
+     * @param path The path of a checkpoint file, or of a directory to read the latest checkpoint in, see {@link #findLatest(String)}.
+     * @return The checkpoint, which can be restored with {@link #restore(NetworkManager)}.
+     */
+    public static TrainingCheckpoint read(String path) {
+        if (new File(path).isDirectory()) {
+            String latest = findLatest(path);
+            if (latest == null)
+                throw new CheckpointException("There are no checkpoints in " + path + ".");
+
+            path = latest;
+        }
+
+        try {
+            byte[] data = Files.readAllBytes(Paths.get(path));
+            DataInputStream in = new DataInputStream(new ByteArrayInputStream(data));
+
+            if (data.length < 24 || in.readInt() != MAGIC)
+                throw new CheckpointException(path + " is not a checkpoint.");
+            int version = in.readInt();
+            if (version != VERSION)
+                throw new CheckpointException(path + " has unsupported checkpoint version " + version + ".");
+
+            return new TrainingCheckpoint(in.readInt(), in.readInt(), in.readLong(), data);
+        } catch (IOException e) {
+            throw new CheckpointException("Could not read " + path + ".", e);
+        }
+    }
+
+    /**
+     * Finds the most recently written checkpoint in a directory.
+     * @param checkpointDir The directory containing the checkpoints.
+     * @return The path of the checkpoint, or null if there are none.
+     */
+    public static String findLatest(String checkpointDir) {
+        File[] checkpoints = new File(checkpointDir).listFiles((dir, name) -> name.endsWith(EXTENSION));
+        if (checkpoints == null)
+            return null;
+
+        File latest = null;
+        for (File checkpoint: checkpoints) {
+            if (latest == null || checkpoint.lastModified() > latest.lastModified())
+                latest = checkpoint;
+        }
+
+        return latest != null ? latest.getPath() : null;
+    }
+
+    /**
+     * Restores the checkpoint into a network with the same layers as the network it was captured from.
+     * The whole checkpoint is checked against the network before anything is changed.
+     * @param networkManager The network to restore. Its layers and neurons must already be created.
+     */
+    public void restore(NetworkManager networkManager) {
+        // Check everything first so that a mismatched checkpoint leaves the network untouched
+        readState(networkManager, false);
+        readState(networkManager, true);
+    }
+
+    /**
+     * Reads the state after the position in the training data, either checking it against a network or restoring it.
+     * @param networkManager The network to check or restore.
+     * @param apply False to only check that the checkpoint matches the network, true to restore it.
+     */
+    private void readState(NetworkManager networkManager, boolean apply) {
+        try {
+            DataInputStream in = new DataInputStream(new ByteArrayInputStream(data));
+            in.skipBytes(24);
+
+            float learningRate = in.readFloat();
+            float momentum = in.readFloat();
+            int batchSize = in.readInt();
+
+            String optimiser = in.readUTF();
+            if (!optimiser.equals(networkManager.getOptimiser().getClass().getName()))
+                throw new CheckpointException("The checkpoint was captured with " + optimiser + " but the network uses " + networkManager.getOptimiser().getClass().getName() + ".");
+
+            byte[] random = new byte[in.readInt()];
+            in.readFully(random);
+
+            List<Layer> layers = networkManager.getLayers();
+            int numberOfLayers = in.readInt();
+            if (numberOfLayers != layers.size())
+                throw new CheckpointException("The checkpoint has " + numberOfLayers + " layers but the network has " + layers.size() + ".");
+
+            for (Layer layer: layers)
+                readLayer(in, layer, apply);
+
+            if (apply) {
+                networkManager.setLearningRate(learningRate);
+                networkManager.setMomentum(momentum);
+                networkManager.setBatchSize(batchSize);
+                networkManager.getContext().setRandom(deserialiseRandom(random));
+            }
+        } catch (IOException e) {
+            throw new CheckpointException("The checkpoint is incomplete.", e);
+        }
+    }
+
+    /**
+     * Writes the parameters of a layer and its neurons.
+     * @param out The checkpoint.
+     * @param layer The layer.
+     * @throws IOException When the checkpoint cannot be written.
+     */
+    private static void writeLayer(DataOutputStream out, Layer layer) throws IOException {
+        out.writeUTF(layer.getLayerType().name());
+        out.writeInt(layer.getNumberOfNeurons());
+
+        switch (layer.getLayerType()) {
+            case conv: {
+                for (Neuron neuron: layer.getNeurons()) {
+                    NeuronConvolution neuronC = (NeuronConvolution) neuron;
+                    writeMatrix(out, neuronC.getFilter());
+                    writeState(out, neuronC.getFilterState());
+                    out.writeDouble(neuronC.getBias());
+                    writeState(out, neuronC.getBiasState());
+                }
+                break;
+            }
+            case fc:
+            case output: {
+                DenseWeights denseWeights = getDenseWeights(layer);
+                out.writeBoolean(denseWeights != null);
+                if (denseWeights != null) {
+                    writeMatrix(out, denseWeights.getWeights());
+                    writeState(out, denseWeights.getOptimiserState());
+                }
+
+                for (Neuron neuron: layer.getNeurons()) {
+                    if (denseWeights == null) {
+                        writeMatrix(out, getWeights(neuron));
+                        writeState(out, getWeightState(neuron));
+                    }
+                    out.writeDouble(getBias(neuron));
+                    writeState(out, getBiasState(neuron));
+                }
+                break;
+            }
+            default: {
+                // Input, pool and flatten layers have no parameters
+                break;
+            }
+        }
+    }
+
+    /**
+     * Reads the parameters of a layer and its neurons.
+     * @param in The checkpoint.
+     * @param layer The layer.
+     * @param apply False to only check the parameters match the layer, true to restore them.
+     * @throws IOException When the checkpoint is incomplete.
+     */
+    private static void readLayer(DataInputStream in, Layer layer, boolean apply) throws IOException {
+        String type = in.readUTF();
+        int numberOfNeurons = in.readInt();
+        if (!type.equals(layer.getLayerType().name()) || numberOfNeurons != layer.getNumberOfNeurons())
+            throw new CheckpointException("Layer " + layer.getId() + " is a " + layer.getLayerType().name() + " layer with " + layer.getNumberOfNeurons()
+                    + " neurons but the checkpoint has a " + type + " layer with " + numberOfNeurons + ".");
+
+        switch (layer.getLayerType()) {
+            case conv: {
+                for (Neuron neuron: layer.getNeurons()) {
+                    NeuronConvolution neuronC = (NeuronConvolution) neuron;
+                    readMatrix(in, neuronC.getFilter(), apply);
+                    readState(in, neuronC.getFilterState(), apply);
+                    double bias = in.readDouble();
+                    readState(in, neuronC.getBiasState(), apply);
+
+                    if (apply)
+                        neuronC.setBias(bias);
+                }
+
+                if (apply)
+                    ((LayerConvolution) layer).invalidateFilterBank();
+                break;
+            }
+            case fc:
+            case output: {
+                DenseWeights denseWeights = getDenseWeights(layer);
+                if (in.readBoolean() != (denseWeights != null))
+                    throw new CheckpointException("Layer " + layer.getId() + " does not store its weights in the same way as the checkpoint, see setDenseWeights.");
+
+                if (denseWeights != null) {
+                    readMatrix(in, denseWeights.getWeights(), apply);
+                    readState(in, denseWeights.getOptimiserState(), apply);
+                }
+
+                for (Neuron neuron: layer.getNeurons()) {
+                    if (denseWeights == null) {
+                        readMatrix(in, getWeights(neuron), apply);
+                        readState(in, getWeightState(neuron), apply);
+                    }
+
+                    double bias = in.readDouble();
+                    readState(in, getBiasState(neuron), apply);
+                    if (apply)
+                        setBias(neuron, bias);
+                }
+                break;
+            }
+            default: {
+                break;
+            }
+        }
+    }
+
+    /**
+     * Writes the values of a matrix.
+     * @param out The checkpoint.
+     * @param matrix The matrix.
+     * @throws IOException When the checkpoint cannot be written.
+     */
+    private static void writeMatrix(DataOutputStream out, DoubleMatrix matrix) throws IOException {
+        writeValues(out, matrix.data, matrix.length);
+    }
+
+    /**
+     * Writes the state an optimiser keeps for a block of parameters: the number of buffers, the number of updates and the buffers.
+     * @param out The checkpoint.
+     * @param state The {@link OptimiserState}.
+     * @throws IOException When the checkpoint cannot be written.
+     */
+    private static void writeState(DataOutputStream out, OptimiserState state) throws IOException {
+        out.writeInt(state.getNumberOfBuffers());
+        out.writeLong(state.getStep());
+
+        for (int b=0; b<state.getNumberOfBuffers(); b++)
+            writeValues(out, state.getBuffer(b), state.getNumberOfParameters());
+    }
+
+    /**
+     * Writes an array of values.
+     * @param out The checkpoint.
+     * @param values The values.
+     * @param length The number of values to write.
+     * @throws IOException When the checkpoint cannot be written.
+     */
+    private static void writeValues(DataOutputStream out, double[] values, int length) throws IOException {
+        ByteBuffer bytes = ByteBuffer.allocate(length * Double.BYTES);
+        bytes.asDoubleBuffer().put(values, 0, length);
+
+        out.writeInt(length);
+        out.write(bytes.array());
+    }
+
+    /**
+     * Reads the values of a matrix into an existing matrix, so that anything sharing the matrix, such as a replica, sees the restored values.
+     * @param in The checkpoint.
+     * @param matrix The matrix to restore.
+     * @param apply False to only check the length of the matrix, true to restore it.
+     * @throws IOException When the checkpoint is incomplete.
+     */
+    private static void readMatrix(DataInputStream in, DoubleMatrix matrix, boolean apply) throws IOException {
+        readValues(in, matrix.data, matrix.length, apply);
+    }
+
+    /**
+     * Reads the state an optimiser keeps for a block of parameters into an existing state.
+     * @param in The checkpoint.
+     * @param state The {@link OptimiserState} to restore, created by the optimiser of the network.
+     * @param apply False to only check the size of the state, true to restore it.
+     * @throws IOException When the checkpoint is incomplete.
+     */
+    private static void readState(DataInputStream in, OptimiserState state, boolean apply) throws IOException {
+        int numberOfBuffers = in.readInt();
+        if (numberOfBuffers != state.getNumberOfBuffers())
+            throw new CheckpointException("A checkpoint optimiser state has " + numberOfBuffers + " buffers but the network optimiser has " + state.getNumberOfBuffers() + ".");
+
+        long step = in.readLong();
+        for (int b=0; b<numberOfBuffers; b++)
+            readValues(in, state.getBuffer(b), state.getNumberOfParameters(), apply);
+
+        if (apply)
+            state.setStep(step);
+    }
+
+    /**
+     * Reads an array of values into an existing array.
+     * @param in The checkpoint.
+     * @param values The array to restore.
+     * @param length The number of values the network expects.
+     * @param apply False to only check the number of values, true to restore them.
+     * @throws IOException When the checkpoint is incomplete.
+     */
+    private static void readValues(DataInputStream in, double[] values, int length, boolean apply) throws IOException {
+        int checkpointLength = in.readInt();
+        if (checkpointLength != length)
+            throw new CheckpointException("A checkpoint matrix has " + checkpointLength + " values but the network matrix has " + length + ".");
+
+        byte[] bytes = new byte[checkpointLength * Double.BYTES];
+        in.readFully(bytes);
+
+        if (apply)
+            ByteBuffer.wrap(bytes).asDoubleBuffer().get(values, 0, length);
+    }
+
+    /**
+     * Gets the dense weights of a fully-connected or output layer.
+     * @param layer A {@link LayerFullyConnected} or {@link LayerOutput}.
+     * @return The {@link DenseWeights}, or null if the layer does not use them.
+     */
+    private static DenseWeights getDenseWeights(Layer layer) {
+        if (layer.getLayerType() == LayerType.output)
+            return ((LayerOutput) layer).getDenseWeights();
+
+        return ((LayerFullyConnected) layer).getDenseWeights();
+    }
+
+    /**
+     * Gets the weights of a fully-connected or output neuron that holds its own weights.
+     * @param neuron A {@link NeuronFullyConnected} or {@link NeuronOutput}.
+     * @return The weights of the neuron, not a copy.
+     */
+    private static DoubleMatrix getWeights(Neuron neuron) {
+        if (neuron.getType() == LayerType.output)
+            return ((NeuronOutput) neuron).getWeights();
+
+        return ((NeuronFullyConnected) neuron).getWeights();
+    }
+
+    private static double getBias(Neuron neuron) {
+        if (neuron.getType() == LayerType.output)
+            return ((NeuronOutput) neuron).getBias();
+
+        return ((NeuronFullyConnected) neuron).getBias();
+    }
+
+    private static void setBias(Neuron neuron, double bias) {
+        if (neuron.getType() == LayerType.output)
+            ((NeuronOutput) neuron).setBias(bias);
+        else
+            ((NeuronFullyConnected) neuron).setBias(bias);
+    }
+
+    private static OptimiserState getWeightState(Neuron neuron) {
+        if (neuron.getType() == LayerType.output)
+            return ((NeuronOutput) neuron).getWeightState();
+
+        return ((NeuronFullyConnected) neuron).getWeightState();
+    }
+
+    private static OptimiserState getBiasState(Neuron neuron) {
+        if (neuron.getType() == LayerType.output)
+            return ((NeuronOutput) neuron).getBiasState();
+
+        return ((NeuronFullyConnected) neuron).getBiasState();
+    }
+
+    /**
+     * Stores the state of a random number generator, so that a restored generator continues the same sequence.
+     * @param random The random number generator.
+     * @return The serialised generator.
+     * @throws IOException When the generator cannot be serialised.
+     */
+    private static byte[] serialiseRandom(Random random) throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        try (ObjectOutputStream out = new ObjectOutputStream(bytes)) {
+            out.writeObject(random);
+        }
+
+        return bytes.toByteArray();
+    }
+
+    private static Random deserialiseRandom(byte[] bytes) throws IOException {
+        try (ObjectInputStream in = new ObjectInputStream(new ByteArrayInputStream(bytes))) {
+            return (Random) in.readObject();
+        } catch (ClassNotFoundException e) {
+            throw new CheckpointException("The random number generator could not be restored.", e);
+        }
+    }
+}
\ No newline at end of file
@@ -1,5 +1,6 @@
 /**
  * A package containing classes to serialise (and load) a KNNF network.
  * All of the data is saved in JSON format and can be edited by hand if so desired.
+ * Training checkpoints, which must restore the weights exactly, are saved in a binary format instead, see {@link waddington.kai.main.knnf.serialisation.TrainingCheckpoint}.
  */
 package waddington.kai.main.knnf.serialisation;
\ No newline at end of file
@@ -8,7 +8,12 @@ import waddington.kai.tests.helper.*;
 
 @RunWith(Suite.class)
 @Suite.SuiteClasses({
-    TestMathsFunctions.class
+    TestMathsFunctions.class,
+    TestDataLoader.class,
+    TestImageCache.class,
+    TestDatasetShard.class,
+    TestImageDecoder.class,
+    TestOptimisers.class
 })
 
 public class HelperTestSuite {
@@ -0,0 +1,23 @@
+package waddington.kai.tests;
+
+import org.junit.*;
+import org.junit.runner.RunWith;
+import org.junit.runners.Suite;
+
+import waddington.kai.tests.layers.*;
+
+@RunWith(Suite.class)
+@Suite.SuiteClasses({
+    TestConvolution.class,
+    TestPooling.class,
+    TestFlatten.class,
+    TestFullyConnected.class
+})
+
+public class LayerTestSuite {
+
+    @BeforeClass
+    public static void setup() {
+        System.out.println("Testing network layers...");
+    }
+}
\ No newline at end of file
@@ -9,6 +9,13 @@ import waddington.kai.tests.manager.*;
 @RunWith(Suite.class)
 @Suite.SuiteClasses({
     TestHyperParameters.class,
+    TestDataParallelTrainer.class,
+    TestTrainingCheckpoint.class,
+    TestTrainingAllocation.class,
+    TestPredictionEngine.class,
+    TestInferenceNetwork.class,
+    TestInferencePlan.class,
+    TestQuantisation.class,
 })
 
 public class ManagerTestSuite {
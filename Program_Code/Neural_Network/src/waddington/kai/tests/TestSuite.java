@@ -9,6 +9,7 @@ import waddington.kai.tests.exceptions.*;
 @Suite.SuiteClasses({
     ManagerTestSuite.class,
     HelperTestSuite.class,
+    LayerTestSuite.class,
     TestExceptionTriggers.class
 })
 
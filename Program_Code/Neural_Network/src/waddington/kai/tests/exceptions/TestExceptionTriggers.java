@@ -3,7 +3,6 @@ package waddington.kai.tests.exceptions;
 import org.junit.*;
 
 import waddington.kai.main.knnf.NetworkManager;
-import waddington.kai.main.knnf.layers.LayerFactory;
 import waddington.kai.main.knnf.exceptions.*;
 
 public class TestExceptionTriggers {
@@ -12,7 +11,6 @@ public class TestExceptionTriggers {
 	@Before
 	public void before() {
 		networkManager = new NetworkManager();
-		LayerFactory.numberOfLayers = 0;
 
 		// Hyperparameters
         networkManager.setLearningRate(0.001f);
@@ -192,6 +190,26 @@ public class TestExceptionTriggers {
 		networkManager.networkValidityCheck();
 	}
 
+	@Test(expected = UnknownConvolutionMethodException.class)
+	public void testConvolutionMethodsA() {
+		networkManager.addInput(10, 10, 1);
+		networkManager.addConv(10, 3, 1, "lrelu", "gemm");
+		networkManager.addFlatten();
+		networkManager.addOutput(3);
+
+		networkManager.networkValidityCheck();
+	}
+
+	@Test
+	public void testConvolutionMethodsB() {
+		networkManager.addInput(10, 10, 1);
+		networkManager.addConv(10, 3, 1, "lrelu", "im2col");
+		networkManager.addFlatten();
+		networkManager.addOutput(3);
+
+		networkManager.networkValidityCheck();
+	}
+
 	@Test(expected = MissingTerminationConditionException.class)
 	public void testTerminationsA() {
 		networkManager.addInput(10, 10, 1);
@@ -204,7 +222,7 @@ public class TestExceptionTriggers {
 		networkManager.startTraining("./../mri-png/");
 	}
 
-	@Test(expected = IndexOutOfBoundsException.class)
+	@Test(expected = InvalidInputSizeException.class)
 	public void testTerminationsB() {
 		networkManager.addInput(10, 10, 1);
 		networkManager.addPool(2, 2, "max");
@@ -0,0 +1,85 @@
+package waddington.kai.tests.helper;
+
+import org.junit.*;
+import static org.junit.Assert.*;
+
+import java.awt.image.BufferedImage;
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.List;
+
+import javax.imageio.ImageIO;
+
+import org.apache.commons.io.FileUtils;
+import org.jblas.*;
+
+import waddington.kai.main.knnf.data.DataLoader;
+import waddington.kai.main.knnf.data.ImageDecoder;
+
+public class TestDataLoader {
+    private File imageDir;
+    private List<String[]> rows;
+
+    @Before
+    public void before() throws IOException {
+        imageDir = Files.createTempDirectory("knnf-images").toFile();
+        rows = new ArrayList<>();
+
+        // Every third image is a "-1" slice
+        for (int i=0; i<10; i++) {
+            String name = "image" + i + "-" + (i % 3 == 0 ? 1 : 2);
+            BufferedImage img = new BufferedImage(5, 4, BufferedImage.TYPE_BYTE_GRAY);
+            for (int y=0; y<4; y++) {
+                for (int x=0; x<5; x++) {
+                    img.getRaster().setSample(x, y, 0, (i * 20 + y * 5 + x) % 256);
+                }
+            }
+
+            ImageIO.write(img, "png", new File(imageDir, name + ".png"));
+            rows.add(new String[] {name, "AD"});
+        }
+    }
+
+    @After
+    public void after() throws IOException {
+        FileUtils.deleteDirectory(imageDir);
+    }
+
+    @Test
+    public void testExamplesInOrderWithoutSkippedSlices() {
+        for (int workers: new int[] {0, 1, 3}) {
+            DataLoader loader = new DataLoader(workers, 2);
+            loader.start(imageDir.getPath() + "/", rows, 1);
+
+            List<Integer> indexes = new ArrayList<>();
+            DataLoader.Example example;
+            while ((example = loader.next()) != null) {
+                indexes.add(example.getIndex());
+
+                DoubleMatrix expected = ImageDecoder.decode(imageDir.getPath() + "/", example.getRow()[0]).get(0);
+                assertEquals("Failure - data loader returned the wrong image for an example.", expected, example.getImage().get(0));
+            }
+            loader.shutdown();
+
+            assertEquals("Failure - data loader did not return the examples in order using " + workers + " workers.", List.of(1, 2, 4, 5, 7, 8), indexes);
+            assertEquals("Failure - data loader did not count the skipped slices.", 3, loader.getExamplesSkipped());
+            assertEquals("Failure - data loader did not count the loaded examples.", 6, loader.getExamplesLoaded());
+        }
+    }
+
+    @Test
+    public void testRestartingDiscardsThePreviousPass() {
+        DataLoader loader = new DataLoader(2, 4);
+        loader.start(imageDir.getPath() + "/", rows, 0);
+        loader.next();
+
+        loader.start(imageDir.getPath() + "/", rows, 7);
+        assertEquals("Failure - data loader returned an example from the previous pass.", 7, loader.next().getIndex());
+        assertEquals("Failure - data loader returned an example from the previous pass.", 8, loader.next().getIndex());
+        assertNull("Failure - data loader did not end the pass.", loader.next());
+
+        loader.shutdown();
+    }
+}
\ No newline at end of file
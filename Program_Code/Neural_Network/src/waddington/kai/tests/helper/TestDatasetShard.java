@@ -0,0 +1,99 @@
+package waddington.kai.tests.helper;
+
+import org.junit.*;
+import static org.junit.Assert.*;
+
+import java.awt.image.BufferedImage;
+import java.io.File;
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+
+import javax.imageio.ImageIO;
+
+import org.apache.commons.io.FileUtils;
+import org.jblas.*;
+
+import waddington.kai.main.knnf.data.DataLoader;
+import waddington.kai.main.knnf.data.DatasetShard;
+import waddington.kai.main.knnf.data.ImageDecoder;
+
+public class TestDatasetShard {
+    private String imageDir;
+    private String shardPath;
+
+    @Before
+    public void before() throws IOException {
+        File dir = Files.createTempDirectory("knnf-shard").toFile();
+        imageDir = dir.getPath() + "/";
+        shardPath = imageDir + "training.shard";
+
+        // image1 is a "-1" slice, image3 is listed in the .csv file but does not exist
+        for (int i=0; i<3; i++) {
+            BufferedImage img = new BufferedImage(5, 4, BufferedImage.TYPE_BYTE_GRAY);
+            for (int y=0; y<4; y++) {
+                for (int x=0; x<5; x++) {
+                    img.getRaster().setSample(x, y, 0, 200 + i * 10 + y * 5 + x);
+                }
+            }
+
+            ImageIO.write(img, "png", new File(dir, "image" + i + ".png"));
+        }
+
+        try (PrintWriter pw = new PrintWriter(imageDir + "trainingImages.csv")) {
+            pw.println("image0,NL");
+            pw.println("image1,MCI");
+            pw.println("image2,AD");
+            pw.println("image3,NL");
+        }
+    }
+
+    @After
+    public void after() throws IOException {
+        FileUtils.deleteDirectory(new File(imageDir));
+    }
+
+    @Test
+    public void testShardMatchesDecodedImages() {
+        int packed = DatasetShard.pack(imageDir, imageDir + "trainingImages.csv", shardPath);
+        DatasetShard shard = new DatasetShard(shardPath);
+
+        assertEquals("Failure - shard should only store the images that are used.", 2, packed);
+        assertEquals("Failure - shard index should hold every row of the .csv file.", 4, shard.getNumberOfExamples());
+        assertArrayEquals("Failure - shard index has the wrong row.", new String[] {"image2", "AD"}, shard.getRows().get(2));
+        assertEquals("Failure - shard has the wrong image size.", 4, shard.getImageRows());
+        assertEquals("Failure - shard has the wrong image size.", 5, shard.getImageColumns());
+
+        assertEquals("Failure - image read from the shard differs from the decoded image.",
+                ImageDecoder.decode(imageDir, "image0").get(0), shard.getImage(0).get(0));
+        assertEquals("Failure - image read from the shard differs from the decoded image.",
+                ImageDecoder.decode(imageDir, "image2").get(0), shard.getImage(2).get(0));
+        assertNull("Failure - shard should not store skipped slices.", shard.getImage(1));
+        assertNull("Failure - shard should not store missing images.", shard.getImage(3));
+
+        ByteBuffer pixels = shard.getPixels(2);
+        assertEquals("Failure - shard record should be one byte per pixel.", 20, pixels.remaining());
+        assertTrue("Failure - shard record should be a slice of the mapped file.", pixels.isDirect());
+    }
+
+    @Test
+    public void testDataLoaderReadsShard() {
+        DatasetShard.pack(imageDir, imageDir + "trainingImages.csv", shardPath);
+        DatasetShard shard = new DatasetShard(shardPath);
+        DataLoader loader = new DataLoader(1, 2);
+
+        loader.start(shard, 0);
+        DataLoader.Example first = loader.next();
+        DataLoader.Example second = loader.next();
+        DataLoader.Example third = loader.next();
+        loader.shutdown();
+
+        assertEquals("Failure - data loader returned the wrong row from the shard.", 0, first.getIndex());
+        assertEquals("Failure - data loader did not skip the \"-1\" slice in the shard.", 2, second.getIndex());
+        assertEquals("Failure - data loader returned the wrong image from the shard.",
+                ImageDecoder.decode(imageDir, "image2").get(0), second.getImage().get(0));
+        assertNull("Failure - data loader should return null for an image missing from the shard.", third.getImage());
+        assertNull("Failure - data loader did not finish the pass over the shard.", loader.next());
+    }
+}
\ No newline at end of file
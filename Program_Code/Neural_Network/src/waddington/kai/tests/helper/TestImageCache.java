@@ -0,0 +1,78 @@
+package waddington.kai.tests.helper;
+
+import org.junit.*;
+import static org.junit.Assert.*;
+
+import java.awt.image.BufferedImage;
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+
+import javax.imageio.ImageIO;
+
+import org.apache.commons.io.FileUtils;
+import org.jblas.*;
+
+import waddington.kai.main.knnf.data.ImageCache;
+import waddington.kai.main.knnf.data.ImageDecoder;
+
+public class TestImageCache {
+    private String imageDir;
+
+    @Before
+    public void before() throws IOException {
+        File dir = Files.createTempDirectory("knnf-cache").toFile();
+        imageDir = dir.getPath() + "/";
+
+        // 5x4 images, so each uses 20 bytes in the cache
+        for (int i=0; i<3; i++) {
+            BufferedImage img = new BufferedImage(5, 4, BufferedImage.TYPE_BYTE_GRAY);
+            for (int y=0; y<4; y++) {
+                for (int x=0; x<5; x++) {
+                    img.getRaster().setSample(x, y, 0, 200 + i * 10 + y * 5 + x);
+                }
+            }
+
+            ImageIO.write(img, "png", new File(dir, "image" + i + ".png"));
+        }
+    }
+
+    @After
+    public void after() throws IOException {
+        FileUtils.deleteDirectory(new File(imageDir));
+    }
+
+    @Test
+    public void testCachedImageMatchesDecodedImage() {
+        ImageCache cache = new ImageCache(1024);
+        DoubleMatrix expected = ImageDecoder.decode(imageDir, "image2").get(0);
+
+        DoubleMatrix miss = cache.get(imageDir, "image2").get(0);
+        DoubleMatrix hit = cache.get(imageDir, "image2").get(0);
+
+        assertEquals("Failure - image cache changed the decoded image.", expected, miss);
+        assertEquals("Failure - image expanded from the cache differs from the decoded image.", expected, hit);
+        assertNotSame("Failure - image cache should expand a new matrix for each use.", miss, hit);
+        assertEquals("Failure - image cache did not count the miss.", 1, cache.getMisses());
+        assertEquals("Failure - image cache did not count the hit.", 1, cache.getHits());
+        assertEquals("Failure - image cache should store one byte per pixel.", 20, cache.getBytesUsed());
+    }
+
+    @Test
+    public void testLeastRecentlyUsedImageIsEvicted() {
+        ImageCache cache = new ImageCache(40);
+
+        cache.get(imageDir, "image0");
+        cache.get(imageDir, "image1");
+        cache.get(imageDir, "image0");
+        cache.get(imageDir, "image2");
+
+        assertEquals("Failure - image cache did not evict to stay within its memory budget.", 1, cache.getEvictions());
+        assertEquals("Failure - image cache went over its memory budget.", 40, cache.getBytesUsed());
+
+        cache.get(imageDir, "image0");
+        assertEquals("Failure - image cache evicted the most recently used image.", 2, cache.getHits());
+        cache.get(imageDir, "image1");
+        assertEquals("Failure - image cache did not evict the least recently used image.", 4, cache.getMisses());
+    }
+}
\ No newline at end of file
@@ -0,0 +1,84 @@
+package waddington.kai.tests.helper;
+
+import org.junit.*;
+import static org.junit.Assert.*;
+
+import java.awt.image.BufferedImage;
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.Random;
+
+import org.jblas.*;
+
+import waddington.kai.main.knnf.data.ImageDecoder;
+
+public class TestImageDecoder {
+
+    @Test
+    public void testGreyscaleImagesMatchPerPixelRead() {
+        assertMatchesPerPixelRead(randomImage(BufferedImage.TYPE_BYTE_GRAY));
+        assertMatchesPerPixelRead(randomImage(BufferedImage.TYPE_USHORT_GRAY));
+    }
+
+    @Test
+    public void testColourImagesMatchPerPixelRead() {
+        assertMatchesPerPixelRead(randomImage(BufferedImage.TYPE_3BYTE_BGR));
+        assertMatchesPerPixelRead(randomImage(BufferedImage.TYPE_4BYTE_ABGR));
+        assertMatchesPerPixelRead(randomImage(BufferedImage.TYPE_INT_RGB));
+    }
+
+    @Test
+    public void testSubImageMatchesPerPixelRead() {
+        assertMatchesPerPixelRead(randomImage(BufferedImage.TYPE_BYTE_GRAY).getSubimage(2, 3, 4, 2));
+        assertMatchesPerPixelRead(randomImage(BufferedImage.TYPE_3BYTE_BGR).getSubimage(1, 1, 5, 4));
+    }
+
+    @Test
+    public void testUnreadableImagesAreNull() throws IOException {
+        File dir = Files.createTempDirectory("knnf-decoder").toFile();
+        File notAnImage = new File(dir, "text.png");
+        Files.writeString(notAnImage.toPath(), "not an image");
+
+        try {
+            assertNull("Failure - a missing image was not null.", ImageDecoder.decode(dir.getPath() + File.separator, "missing"));
+            assertNull("Failure - a file that is not an image was not null.", ImageDecoder.decode(dir.getPath() + File.separator, "text"));
+        } finally {
+            notAnImage.delete();
+            dir.delete();
+        }
+    }
+
+    /**
+     * Creates a 7x5 image with random samples in every band.
+     */
+    private BufferedImage randomImage(int type) {
+        Random random = new Random(type);
+        BufferedImage img = new BufferedImage(7, 5, type);
+
+        for (int y=0; y<img.getHeight(); y++) {
+            for (int x=0; x<img.getWidth(); x++) {
+                for (int b=0; b<img.getRaster().getNumBands(); b++) {
+                    img.getRaster().setSample(x, y, b, random.nextInt(256));
+                }
+            }
+        }
+
+        return img;
+    }
+
+    /**
+     * Checks the bulk read against reading each pixel of the first band with getPixel.
+     */
+    private void assertMatchesPerPixelRead(BufferedImage img) {
+        DoubleMatrix expected = new DoubleMatrix(img.getHeight(), img.getWidth());
+        for (int y=0; y<img.getHeight(); y++) {
+            for (int x=0; x<img.getWidth(); x++) {
+                expected.put(y, x, img.getRaster().getPixel(x, y, new int[4])[0]);
+            }
+        }
+
+        assertEquals("Failure - bulk raster read differs from the per-pixel read for image type " + img.getType() + ".",
+                expected, ImageDecoder.toMatrix(img));
+    }
+}
\ No newline at end of file
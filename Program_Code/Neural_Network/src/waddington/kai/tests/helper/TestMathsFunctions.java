@@ -11,6 +11,9 @@ import org.jblas.*;
 
 import waddington.kai.main.knnf.LayerActivation;
 import waddington.kai.main.knnf.NetworkHelper;
+import waddington.kai.main.knnf.exceptions.InvalidInputSizeException;
+import waddington.kai.main.knnf.layers.neurons.Neuron;
+import waddington.kai.main.knnf.layers.neurons.NeuronFactory;
 
 public class TestMathsFunctions {
 
@@ -117,6 +120,66 @@ public class TestMathsFunctions {
         assertEquals("Failure - creating sub matrix does not work correctly.", expected, sub);
     }
 
+    @Test
+    public void testIm2col() {
+        // DoubleMatrix data is column-major, so each line here is a column
+        DoubleMatrix a = new DoubleMatrix(3,3, 1,2,3,
+                                               4,5,6,
+                                               7,8,9);
+        DoubleMatrix patches = NetworkHelper.im2col(a, 2, 1, null);
+
+        // Each column is the receptive field of one output cell
+        DoubleMatrix expected = new DoubleMatrix(4,4, 1,2,4,5,
+                                                      2,3,5,6,
+                                                      4,5,7,8,
+                                                      5,6,8,9);
+
+        assertEquals("Failure - im2col does not lay out receptive fields correctly.", expected, patches);
+    }
+
+    @Test
+    public void testCorrelate() {
+        DoubleMatrix a = new DoubleMatrix(3,3, 1,2,3,
+                                               4,5,6,
+                                               7,8,9);
+        DoubleMatrix kernel = new DoubleMatrix(2,2, 1,0,
+                                                    0,1);
+        DoubleMatrix returned = NetworkHelper.correlate(a, kernel, 2, 1, null);
+
+        DoubleMatrix expected = new DoubleMatrix(2,2, 6,8,
+                                                      12,14);
+
+        assertEquals("Failure - correlating a matrix with a kernel does not work correctly.", expected, returned);
+    }
+
+    @Test
+    public void testJoinInputVectors() {
+        List<Neuron> neurons = new ArrayList<>();
+        for (int i=0; i<3; i++) {
+            Neuron neuron = NeuronFactory.getInputNeuron(i, new int[] {1, 2, 2}, new int[] {1, 2, 2});
+            neuron.setInputData(DoubleMatrix.linspace((i*4)+1, (i*4)+4, 4).reshape(2, 2));
+            neurons.add(neuron);
+        }
+
+        DoubleMatrix buffer = new DoubleMatrix(1, 12);
+        DoubleMatrix returned = NetworkHelper.joinInputVectors(neurons, buffer);
+        DoubleMatrix expected = DoubleMatrix.linspace(1, 12, 12).reshape(1, 12);
+
+        assertSame("Failure - joining input vectors should reuse a buffer of the right length.", buffer, returned);
+        assertEquals("Failure - joining input vectors does not keep the neuron order.", expected, returned);
+        assertEquals("Failure - joining input vectors without a buffer differs.", expected, NetworkHelper.joinInputVectors(neurons));
+    }
+
+    @Test(expected = InvalidInputSizeException.class)
+    public void testJoinInputVectorsWrongLength() {
+        List<Neuron> neurons = new ArrayList<>();
+        Neuron neuron = NeuronFactory.getInputNeuron(0, new int[] {1, 2, 2}, new int[] {1, 2, 2});
+        neuron.setInputData(DoubleMatrix.linspace(1, 4, 4).reshape(2, 2));
+        neurons.add(neuron);
+
+        NetworkHelper.joinInputVectors(neurons, new DoubleMatrix(1, 6));
+    }
+
     @Test
     public void testMatrixActivationA() {
         DoubleMatrix m = new DoubleMatrix(3,3, 1,2,3,
@@ -236,28 +299,4 @@ public class TestMathsFunctions {
 
         assertEquals("Failure - tanh derivative function incorrect.", expected, returned, 0.000001);
     }
-
-    @Test
-    public void testPoolLocationEncoder() {
-        int y = 3;
-        int x = 5;
-        int inRows = 7;
-        int inCols = 7;
-
-        int expected = 1351;
-        int calculated = NetworkHelper.poolEncodeLocation(y, x, inRows, inCols);
-
-        assertEquals("Failure - pool location encoder incorrect.", expected, calculated);
-    }
-
-    @Test
-    public void testPoolLocationDecoder() {
-        int encoded = 1351;
-        int inRows = 7;
-
-        int[] expected = new int[] {3, 5};
-        int[] calculated = NetworkHelper.poolDecodeLocation(encoded, inRows);
-
-        assertArrayEquals("Failure - pool location decoder incorrect.", expected, calculated);
-    }
 }
\ No newline at end of file
@@ -0,0 +1,81 @@
+package waddington.kai.tests.helper;
+
+import org.junit.*;
+import static org.junit.Assert.*;
+
+import waddington.kai.main.knnf.NetworkContext;
+import waddington.kai.main.knnf.optimisers.*;
+
+public class TestOptimisers {
+
+    @Test
+    public void testSgdMatchesMomentumUpdate() {
+        NetworkContext context = new NetworkContext();
+        context.setLearningRate(0.5f);
+        context.setMomentum(0.5f);
+
+        Optimiser sgd = new SgdOptimiser();
+        OptimiserState state = sgd.createState(1);
+
+        // Delta = 0.5 * 2 = 1, then 0.5 * 2 + 0.5 * 1 = 1.5
+        double param = sgd.update(1, 2, state, context);
+        assertEquals(2, param, 1e-12);
+        param = sgd.update(param, 2, state, context);
+        assertEquals(3.5, param, 1e-12);
+        assertEquals(2, state.getStep());
+    }
+
+    @Test
+    public void testOptimisersReachMinimum() {
+        assertReachesMinimum(new SgdOptimiser(), 0.05f);
+        assertReachesMinimum(new NesterovOptimiser(), 0.05f);
+        assertReachesMinimum(new RMSPropOptimiser(), 0.01f);
+        assertReachesMinimum(new AdamOptimiser(), 0.05f);
+    }
+
+    @Test
+    public void testLearningRateSchedules() {
+        assertEquals(0.1, LearningRateSchedule.constant().getLearningRate(0.1, 500), 1e-12);
+
+        LearningRateSchedule step = LearningRateSchedule.step(10, 0.5);
+        assertEquals(1, step.getLearningRate(1, 10), 1e-12);
+        assertEquals(0.5, step.getLearningRate(1, 11), 1e-12);
+        assertEquals(0.25, step.getLearningRate(1, 21), 1e-12);
+
+        LearningRateSchedule cosine = LearningRateSchedule.cosine(100, 0.1);
+        assertEquals(1, cosine.getLearningRate(1, 1), 1e-12);
+        assertEquals(0.55, cosine.getLearningRate(1, 51), 1e-12);
+        assertEquals(0.1, cosine.getLearningRate(1, 101), 1e-12);
+        assertEquals(0.1, cosine.getLearningRate(1, 500), 1e-12);
+
+        LearningRateSchedule warmup = LearningRateSchedule.warmup(4, step);
+        assertEquals(0.25, warmup.getLearningRate(1, 1), 1e-12);
+        assertEquals(1, warmup.getLearningRate(1, 4), 1e-12);
+        assertEquals(1, warmup.getLearningRate(1, 5), 1e-12);
+        assertEquals(0.5, warmup.getLearningRate(1, 15), 1e-12);
+    }
+
+    /**
+     * Minimises (x - 3)^2 + (y + 2)^2 from (0, 0).
+     */
+    private void assertReachesMinimum(Optimiser optimiser, float learningRate) {
+        NetworkContext context = new NetworkContext();
+        context.setLearningRate(learningRate);
+        context.setMomentum(0.9f);
+
+        double[] target = {3, -2};
+        double[] params = new double[2];
+        double[] gradients = new double[2];
+        OptimiserState state = optimiser.createState(params.length);
+
+        for (int step=0; step<2000; step++) {
+            // The gradient in the direction that reduces the error
+            for (int i=0; i<params.length; i++)
+                gradients[i] = target[i] - params[i];
+
+            optimiser.update(params, gradients, params.length, state, context);
+        }
+
+        assertArrayEquals(optimiser.getClass().getSimpleName(), target, params, 0.05);
+    }
+}
\ No newline at end of file
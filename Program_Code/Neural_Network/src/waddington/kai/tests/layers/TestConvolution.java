@@ -0,0 +1,360 @@
+package waddington.kai.tests.layers;
+
+import org.junit.*;
+import static org.junit.Assert.*;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+import org.jblas.*;
+
+import waddington.kai.main.knnf.ConvolutionMethod;
+import waddington.kai.main.knnf.DataParallelTrainer;
+import waddington.kai.main.knnf.FourierHelper;
+import waddington.kai.main.knnf.LayerActivation;
+import waddington.kai.main.knnf.NetworkContext;
+import waddington.kai.main.knnf.NetworkHelper;
+import waddington.kai.main.knnf.NetworkManager;
+import waddington.kai.main.knnf.layers.Layer;
+import waddington.kai.main.knnf.layers.LayerConvolution;
+import waddington.kai.main.knnf.layers.LayerInput;
+import waddington.kai.main.knnf.layers.neurons.Neuron;
+import waddington.kai.main.knnf.layers.neurons.NeuronConvolution;
+import waddington.kai.main.knnf.layers.neurons.NeuronFactory;
+
+public class TestConvolution {
+    private NetworkContext context;
+    private Random random;
+
+    @Before
+    public void before() {
+        context = new NetworkContext();
+        context.setMaximumInitialWeights(0.1f);
+
+        random = new Random(42);
+    }
+
+    private DoubleMatrix randomMatrix(int rows, int cols) {
+        DoubleMatrix m = new DoubleMatrix(rows, cols);
+        for (int i=0; i<m.length; i++) {
+            m.put(i, random.nextDouble() * 255);
+        }
+
+        return m;
+    }
+
+    private DoubleMatrix convolve(NeuronConvolution neuron, DoubleMatrix input) {
+        neuron.setInputData(input);
+
+        return neuron.getOutputData();
+    }
+
+    @Test
+    public void testIm2colMatchesDirect() {
+        List<DoubleMatrix> image = new ArrayList<>();
+        image.add(randomMatrix(14, 11));
+
+        List<DoubleMatrix> direct = forwardConvLayer(image, "direct", 5, 1, "lrelu", 1);
+        List<DoubleMatrix> im2col = forwardConvLayer(image, "im2col", 5, 1, "lrelu", 1);
+
+        for (int i=0; i<direct.size(); i++) {
+            assertEquals("Failure - im2col output shape differs from direct convolution.", direct.get(i).rows, im2col.get(i).rows);
+            assertEquals("Failure - im2col output shape differs from direct convolution.", direct.get(i).columns, im2col.get(i).columns);
+            assertTrue("Failure - im2col output differs from direct convolution.", direct.get(i).compare(im2col.get(i), 1e-9));
+        }
+    }
+
+    @Test
+    public void testIm2colMatchesDirectWithStride() {
+        List<DoubleMatrix> image = new ArrayList<>();
+        image.add(randomMatrix(15, 15));
+
+        List<DoubleMatrix> direct = forwardConvLayer(image, "direct", 3, 2, "tanh", 1);
+        List<DoubleMatrix> im2col = forwardConvLayer(image, "im2col", 3, 2, "tanh", 1);
+
+        for (int i=0; i<direct.size(); i++) {
+            assertTrue("Failure - im2col output differs from direct convolution with a stride.", direct.get(i).compare(im2col.get(i), 1e-9));
+        }
+    }
+
+    @Test
+    public void testIm2colLayerMatchesDirectLayer() {
+        List<DoubleMatrix> image = new ArrayList<>();
+        image.add(randomMatrix(20, 20));
+
+        List<DoubleMatrix> direct = forwardConvLayer(image, "direct");
+        List<DoubleMatrix> im2col = forwardConvLayer(image, "im2col");
+
+        for (int i=0; i<direct.size(); i++) {
+            assertTrue("Failure - im2col layer output differs from direct layer.", direct.get(i).compare(im2col.get(i), 1e-9));
+        }
+    }
+
+    @Test
+    public void testFFTMatchesDirectWithStride() {
+        DoubleMatrix input = randomMatrix(15, 13);
+        int[] outputSize = NetworkHelper.calculateConvolutionOutputSize(1, 3, 2, new int[] {1, 15, 13});
+        NeuronConvolution neuron = (NeuronConvolution) NeuronFactory.getConvolutionNeuron(context, 0, new int[] {1, 15, 13}, outputSize, 3, 2, LayerActivation.tanh);
+
+        DoubleMatrix direct = convolve(neuron, input).dup();
+        neuron.setInputData(input, FourierHelper.transform(input, 16, 16, null));
+        DoubleMatrix fft = neuron.getOutputData();
+
+        assertEquals("Failure - fft output shape differs from direct convolution.", direct.rows, fft.rows);
+        assertEquals("Failure - fft output shape differs from direct convolution.", direct.columns, fft.columns);
+        assertTrue("Failure - fft output differs from direct convolution with a stride.", direct.compare(fft, 1e-6));
+    }
+
+    @Test
+    public void testFFTLayerMatchesDirectLayer() {
+        List<DoubleMatrix> image = new ArrayList<>();
+        image.add(randomMatrix(20, 20));
+
+        List<DoubleMatrix> direct = forwardConvLayer(image, "direct");
+        List<DoubleMatrix> fft = forwardConvLayer(image, "fft");
+
+        for (int i=0; i<direct.size(); i++) {
+            assertTrue("Failure - fft layer output differs from direct layer.", direct.get(i).compare(fft.get(i), 1e-6));
+        }
+    }
+
+    @Test
+    public void testFFTBackwardMatchesDirect() {
+        for (int stride: new int[] {1, 2}) {
+            List<DoubleMatrix> image = new ArrayList<>();
+            image.add(randomMatrix(19, 19).divi(255));
+
+            LayerConvolution direct = backPropagateConvLayer(image, "direct", stride);
+            LayerConvolution fft = backPropagateConvLayer(image, "fft", stride);
+
+            for (int i=0; i<direct.getNumberOfNeurons(); i++) {
+                NeuronConvolution directNeuron = (NeuronConvolution) direct.getNeuron(i);
+                NeuronConvolution fftNeuron = (NeuronConvolution) fft.getNeuron(i);
+
+                assertTrue("Failure - fft input error differs from direct convolution with stride " + stride + ".", directNeuron.getError().compare(fftNeuron.getError(), 1e-9));
+                assertTrue("Failure - fft filter deltas differ from direct convolution with stride " + stride + ".", directNeuron.getFilter().compare(fftNeuron.getFilter(), 1e-9));
+                assertEquals("Failure - fft bias delta differs from direct convolution with stride " + stride + ".", directNeuron.getBias(), fftNeuron.getBias(), 1e-9);
+            }
+        }
+    }
+
+    @Test
+    public void testFFTFilterSizeThreshold() {
+        NetworkManager network = new NetworkManager();
+        network.addInput(20, 20, 1);
+        network.addConv(2, 5, 1, "lrelu", "im2col");
+        LayerConvolution conv = (LayerConvolution) network.getLayers().get(1);
+
+        network.setFFTFilterSizeThreshold(5);
+        assertEquals("Failure - filter at the threshold should not switch to fft.", ConvolutionMethod.im2col, conv.getActiveConvolutionMethod());
+
+        network.setFFTFilterSizeThreshold(4);
+        assertEquals("Failure - filter above the threshold should switch to fft.", ConvolutionMethod.fft, conv.getActiveConvolutionMethod());
+
+        network.addConv(2, 5, 1, "lrelu", "im2col");
+        LayerConvolution added = (LayerConvolution) network.getLayers().get(2);
+        assertEquals("Failure - layer added after the threshold was set should switch to fft.", ConvolutionMethod.fft, added.getActiveConvolutionMethod());
+    }
+
+    @Test
+    public void testDefaultFFTFilterSizeThreshold() {
+        NetworkManager network = new NetworkManager();
+        network.addInput(40, 40, 1);
+        network.addConv(2, NetworkContext.DEFAULT_FFT_FILTER_SIZE_THRESHOLD, 1, "lrelu", "im2col");
+        network.addConv(2, NetworkContext.DEFAULT_FFT_FILTER_SIZE_THRESHOLD + 2, 1, "lrelu", "im2col");
+
+        assertEquals("Failure - filter at the default threshold should not switch to fft.", ConvolutionMethod.im2col, ((LayerConvolution) network.getLayers().get(1)).getActiveConvolutionMethod());
+        assertEquals("Failure - filter above the default threshold should switch to fft.", ConvolutionMethod.fft, ((LayerConvolution) network.getLayers().get(2)).getActiveConvolutionMethod());
+    }
+
+    @Test
+    public void testFilterGradientCorrelationWithStride() {
+        DoubleMatrix input = randomMatrix(15, 15);
+        int outputSize = NetworkHelper.calculateConvolutionOutputSize(3, 2, 15);
+        DoubleMatrix error = randomMatrix(outputSize, outputSize);
+
+        // Each receptive field weighted by the error of its output cell
+        DoubleMatrix patches = NetworkHelper.im2col(input, 3, 2, null);
+        DoubleMatrix expected = patches.mmul(new DoubleMatrix(error.length, 1, error.data)).reshape(3, 3);
+        DoubleMatrix returned = NetworkHelper.correlate(input, error, 3, 2, null);
+
+        assertTrue("Failure - filter gradient correlation differs from weighted receptive fields.", expected.compare(returned, 1e-6));
+    }
+
+    @Test
+    public void testInputErrorIsTransposeOfConvolution() {
+        DoubleMatrix input = randomMatrix(15, 15);
+        DoubleMatrix filter = randomMatrix(3, 3);
+        int outputSize = NetworkHelper.calculateConvolutionOutputSize(3, 2, 15);
+        DoubleMatrix error = randomMatrix(outputSize, outputSize);
+
+        // <convolveTranspose(error), input> must equal <error, convolution(input)>
+        DoubleMatrix patches = NetworkHelper.im2col(input, 3, 2, null);
+        DoubleMatrix convolved = new DoubleMatrix(1, filter.length, filter.data).mmul(patches);
+        DoubleMatrix inputError = NetworkHelper.convolveTranspose(error, filter, 2, 15, 15, null);
+
+        assertEquals("Failure - input error is not the transpose of the convolution.", convolved.dot(new DoubleMatrix(1, error.length, error.data)), inputError.dot(input), 1e-3);
+    }
+
+    @Test
+    public void testErrorFromConvLeavesUpperErrors() {
+        int[] lowerOutput = NetworkHelper.calculateConvolutionOutputSize(1, 3, 1, new int[] {1, 12, 12});
+        int[] upperOutput = NetworkHelper.calculateConvolutionOutputSize(1, 3, 1, lowerOutput);
+        NeuronConvolution lower = (NeuronConvolution) NeuronFactory.getConvolutionNeuron(context, 0, new int[] {1, 12, 12}, lowerOutput, 3, 1, LayerActivation.lrelu);
+        lower.setInputData(randomMatrix(12, 12));
+
+        List<Neuron> upperNeurons = new ArrayList<>();
+        List<DoubleMatrix> upperErrors = new ArrayList<>();
+        for (int i=0; i<3; i++) {
+            NeuronConvolution upper = (NeuronConvolution) NeuronFactory.getConvolutionNeuron(context, i, lowerOutput, upperOutput, 3, 1, LayerActivation.lrelu);
+            upper.setInputData(lower.getOutputData());
+            upper.setError(randomMatrix(lowerOutput[1], lowerOutput[2]));
+            upperNeurons.add(upper);
+            upperErrors.add(upper.getError().dup());
+        }
+
+        DoubleMatrix first = NetworkHelper.getErrorFromConv(lower, null, upperNeurons);
+        DoubleMatrix second = NetworkHelper.getErrorFromConv(lower, null, upperNeurons);
+
+        for (int i=0; i<3; i++) {
+            assertEquals("Failure - getting the error from a convolution layer modified the upper errors.", upperErrors.get(i), upperNeurons.get(i).getError());
+        }
+        assertEquals("Failure - getting the error from a convolution layer is not repeatable.", first, second);
+    }
+
+    @Test
+    public void testParallelLayerMatchesSequentialLayer() {
+        List<DoubleMatrix> image = new ArrayList<>();
+        image.add(randomMatrix(20, 20));
+
+        for (String method: new String[] {"direct", "im2col", "fft"}) {
+            List<DoubleMatrix> sequential = forwardConvLayer(image, method, 1);
+            List<DoubleMatrix> parallel = forwardConvLayer(image, method, 4);
+
+            for (int i=0; i<sequential.size(); i++) {
+                assertEquals("Failure - parallel layer output differs from sequential layer using " + method + ".", sequential.get(i), parallel.get(i));
+            }
+        }
+    }
+
+    @Test
+    public void testFilterBankPacking() {
+        NetworkManager network = new NetworkManager();
+        network.addInput(20, 20, 1);
+        network.addConv(3, 4, 1, "lrelu", "im2col");
+
+        LayerConvolution conv = (LayerConvolution) network.getLayers().get(1);
+        conv.packFilterBank();
+        DoubleMatrix bank = conv.getFilterBank();
+
+        assertEquals("Failure - filter bank has the wrong number of rows.", 16, bank.rows);
+        assertEquals("Failure - filter bank has the wrong number of columns.", 3, bank.columns);
+
+        for (int f=0; f<3; f++) {
+            DoubleMatrix filter = ((NeuronConvolution) conv.getNeuron(f)).getFilter();
+            assertArrayEquals("Failure - filter bank column does not match the neurons filter.", filter.data, bank.getColumn(f).data, 0.0);
+        }
+    }
+
+    @Test
+    public void testFilterBankRepackedAfterDeltas() {
+        NetworkManager network = new NetworkManager();
+        network.addInput(20, 20, 1);
+        network.addConv(3, 4, 1, "lrelu", "im2col");
+
+        LayerConvolution conv = (LayerConvolution) network.getLayers().get(1);
+        DoubleMatrix filter = ((NeuronConvolution) conv.getNeuron(1)).getFilter();
+        conv.packFilterBank();
+        double packed = conv.getFilterBank().get(0, 1);
+
+        filter.put(0, packed + 1);
+        conv.packFilterBank();
+        assertEquals("Failure - filter bank should not be packed again before the deltas are applied.", packed, conv.getFilterBank().get(0, 1), 0.0);
+
+        conv.applyDeltas();
+        conv.packFilterBank();
+        assertEquals("Failure - filter bank should be packed again after the deltas are applied.", packed + 1, conv.getFilterBank().get(0, 1), 0.0);
+    }
+
+    @Test
+    public void testFilterBankRepackedAfterSetFilter() {
+        NetworkManager network = new NetworkManager();
+        network.setMaximumInitialWeights(0.1f);
+        network.addInput(20, 20, 1);
+        network.addConv(3, 4, 1, "lrelu", "im2col");
+
+        List<Layer> layers = network.getLayers();
+        LayerConvolution conv = (LayerConvolution) layers.get(1);
+        List<DoubleMatrix> image = new ArrayList<>();
+        image.add(randomMatrix(20, 20));
+
+        ((LayerInput) layers.get(0)).setInput(image);
+        conv.setInputData(layers.get(0).getNeurons());
+
+        ((NeuronConvolution) conv.getNeuron(0)).setFilter(randomMatrix(4, 4));
+        ((NeuronConvolution) conv.getNeuron(1)).setBias(0.5);
+        conv.setInputData(layers.get(0).getNeurons());
+
+        List<DoubleMatrix> returned = new ArrayList<>();
+        for (Neuron neuron: conv.getNeurons())
+            returned.add(neuron.getOutputData().dup());
+
+        for (int i=0; i<returned.size(); i++) {
+            DoubleMatrix expected = convolve((NeuronConvolution) conv.getNeuron(i), image.get(0));
+            assertTrue("Failure - output of filter " + i + " does not use the filter and bias that were set.", expected.compare(returned.get(i), 1e-9));
+        }
+    }
+
+    /**
+     * Builds a new network (so the filters are always initialised from the same seed) and runs an image through its convolution layer.
+     */
+    private List<DoubleMatrix> forwardConvLayer(List<DoubleMatrix> image, String method) {
+        return forwardConvLayer(image, method, 1);
+    }
+
+    /**
+     * Builds a new network around a convolution layer, trains it on one image and applies the deltas, so the filters and input errors can be compared between methods.
+     */
+    private LayerConvolution backPropagateConvLayer(List<DoubleMatrix> image, String method, int stride) {
+        NetworkManager network = new NetworkManager();
+        network.setMaximumInitialWeights(0.1f);
+        network.setLearningRate(1f);
+        network.addInput(19, 19, 1);
+        network.addConv(3, 5, stride, "lrelu", method);
+        network.addPool(2, 2, "max");
+        network.addFlatten();
+        network.addFC(4, "tanh");
+        network.addOutput(2);
+        network.networkValidityCheck();
+
+        DataParallelTrainer.trainExample(network.getLayers(), image, 1);
+        LayerConvolution conv = (LayerConvolution) network.getLayers().get(1);
+        conv.applyDeltas();
+
+        return conv;
+    }
+
+    private List<DoubleMatrix> forwardConvLayer(List<DoubleMatrix> image, String method, int parallelism) {
+        return forwardConvLayer(image, method, 5, 1, "lrelu", parallelism);
+    }
+
+    private List<DoubleMatrix> forwardConvLayer(List<DoubleMatrix> image, String method, int filterSize, int stride, String activation, int parallelism) {
+        NetworkManager network = new NetworkManager();
+        network.setParallelism(parallelism);
+        network.addInput(image.get(0).columns, image.get(0).rows, 1);
+        network.addConv(4, filterSize, stride, activation, method);
+
+        LayerInput input = (LayerInput) network.getLayers().get(0);
+        Layer conv = network.getLayers().get(1);
+        input.setInput(image);
+        conv.setInputData(input.getNeurons());
+
+        List<DoubleMatrix> outputs = new ArrayList<>();
+        for (int i=0; i<conv.getNumberOfNeurons(); i++) {
+            outputs.add(conv.getNeuron(i).getOutputData());
+        }
+
+        return outputs;
+    }
+}
\ No newline at end of file
@@ -0,0 +1,98 @@
+package waddington.kai.tests.layers;
+
+import org.junit.*;
+import static org.junit.Assert.*;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import org.jblas.*;
+
+import waddington.kai.main.knnf.NetworkHelper;
+import waddington.kai.main.knnf.NetworkManager;
+import waddington.kai.main.knnf.layers.Layer;
+import waddington.kai.main.knnf.layers.LayerInput;
+import waddington.kai.main.knnf.layers.neurons.Neuron;
+import waddington.kai.main.knnf.layers.neurons.NeuronOutput;
+
+public class TestFlatten {
+    private Layer conv;
+    private Layer flatten;
+    private Layer output;
+
+    @Before
+    public void before() {
+        NetworkManager network = new NetworkManager();
+        network.setMaximumInitialWeights(0.1f);
+        network.addInput(8, 8, 1);
+        network.addConv(2, 3, 1, "lrelu");
+        network.addFlatten();
+        network.addOutput(2);
+
+        List<DoubleMatrix> image = new ArrayList<>();
+        image.add(DoubleMatrix.linspace(1, 64, 64).reshape(8, 8));
+
+        LayerInput input = (LayerInput) network.getLayers().get(0);
+        conv = network.getLayers().get(1);
+        flatten = network.getLayers().get(2);
+        output = network.getLayers().get(3);
+
+        input.setInput(image);
+        conv.setInputData(input.getNeurons());
+        flatten.setInputData(conv.getNeurons());
+        output.setInputData(flatten.getNeurons());
+    }
+
+    @Test
+    public void testOneNeuronPerChannel() {
+        assertEquals("Failure - flattening layer should have one neuron per channel.", 2, flatten.getNumberOfNeurons());
+        assertEquals("Failure - output neurons should have a weight per flattened value.", 72, ((NeuronOutput) output.getNeuron(0)).getWeights().length);
+    }
+
+    @Test
+    public void testFlattenDoesNotCopy() {
+        for (int i=0; i<2; i++) {
+            DoubleMatrix channel = conv.getNeuron(i).getOutputData();
+            DoubleMatrix flat = flatten.getNeuron(i).getOutputData();
+
+            assertSame("Failure - flattened values should be a view of the channel data.", channel.data, flat.data);
+            assertEquals("Failure - flattened channel should be a single row.", 1, flat.rows);
+        }
+    }
+
+    @Test
+    public void testFlattenErrorReshape() {
+        List<Neuron> upperNeurons = output.getNeurons();
+        upperNeurons.get(0).setError(new DoubleMatrix(new double[] {0.5}));
+        upperNeurons.get(1).setError(new DoubleMatrix(new double[] {-2}));
+
+        flatten.calculateDeltas(conv.getNeurons(), upperNeurons);
+
+        // Channel 1 takes the second block of weights, in the column-major order of the channel
+        DoubleMatrix w0 = ((NeuronOutput) upperNeurons.get(0)).getWeights();
+        DoubleMatrix w1 = ((NeuronOutput) upperNeurons.get(1)).getWeights();
+        DoubleMatrix error = NetworkHelper.getErrorFromFlatten(flatten.getNeurons(), 1, 6, 6);
+
+        for (int x=0; x<6; x++) {
+            for (int y=0; y<6; y++) {
+                int index = 36 + (x*6) + y;
+                double expected = (0.5 * w0.get(index)) - (2 * w1.get(index));
+                assertEquals("Failure - flattening error does not reshape to the channel correctly.", expected, error.get(y, x), 1e-12);
+            }
+        }
+    }
+
+    @Test
+    public void testNeuronErrorMatchesLayerError() {
+        List<Neuron> upperNeurons = output.getNeurons();
+        upperNeurons.get(0).setError(new DoubleMatrix(new double[] {1.5}));
+        upperNeurons.get(1).setError(new DoubleMatrix(new double[] {0.25}));
+
+        flatten.calculateDeltas(conv.getNeurons(), upperNeurons);
+        DoubleMatrix layerError = flatten.getNeuron(1).getError().dup();
+
+        flatten.getNeuron(1).calculateDeltas(conv.getNeurons(), upperNeurons);
+
+        assertEquals("Failure - flattening neuron error differs from flattening layer error.", layerError, flatten.getNeuron(1).getError());
+    }
+}
\ No newline at end of file
@@ -0,0 +1,160 @@
+package waddington.kai.tests.layers;
+
+import org.junit.*;
+import static org.junit.Assert.*;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import org.jblas.*;
+
+import waddington.kai.main.knnf.NetworkManager;
+import waddington.kai.main.knnf.layers.Layer;
+import waddington.kai.main.knnf.layers.LayerFullyConnected;
+import waddington.kai.main.knnf.layers.LayerInput;
+import waddington.kai.main.knnf.layers.LayerOutput;
+import waddington.kai.main.knnf.layers.neurons.NeuronFullyConnected;
+import waddington.kai.main.knnf.layers.neurons.NeuronOutput;
+
+public class TestFullyConnected {
+
+    @Test
+    public void testDenseWeightsMatchNeuronWeights() {
+        List<Layer> neuronLayers = trainSteps(false);
+        List<Layer> denseLayers = trainSteps(true);
+
+        LayerFullyConnected neuronFC = (LayerFullyConnected) neuronLayers.get(2);
+        LayerFullyConnected denseFC = (LayerFullyConnected) denseLayers.get(2);
+        for (int i=0; i<neuronFC.getNumberOfNeurons(); i++) {
+            NeuronFullyConnected expected = (NeuronFullyConnected) neuronFC.getNeuron(i);
+            NeuronFullyConnected returned = (NeuronFullyConnected) denseFC.getNeuron(i);
+
+            assertEquals("Failure - dense fully-connected output differs from per-neuron output.", expected.getOutputData().get(0), returned.getOutputData().get(0), 1e-9);
+            assertTrue("Failure - dense fully-connected weights differ from per-neuron weights after training.", expected.getWeights().compare(returned.getWeights(), 1e-9));
+            assertEquals("Failure - dense fully-connected bias differs from per-neuron bias after training.", expected.getBias(), returned.getBias(), 1e-9);
+        }
+
+        LayerOutput neuronOutput = (LayerOutput) neuronLayers.get(3);
+        LayerOutput denseOutput = (LayerOutput) denseLayers.get(3);
+        assertTrue("Failure - dense output layer outputs differ from per-neuron outputs.", neuronOutput.getOutputs().compare(denseOutput.getOutputs(), 1e-9));
+        for (int i=0; i<neuronOutput.getNumberOfNeurons(); i++) {
+            DoubleMatrix expected = ((NeuronOutput) neuronOutput.getNeuron(i)).getWeights();
+            DoubleMatrix returned = ((NeuronOutput) denseOutput.getNeuron(i)).getWeights();
+
+            assertTrue("Failure - dense output weights differ from per-neuron weights after training.", expected.compare(returned, 1e-9));
+        }
+    }
+
+    @Test
+    public void testUnbindingKeepsWeights() {
+        LayerFullyConnected fc = (LayerFullyConnected) trainSteps(true).get(2);
+        DoubleMatrix bound = ((NeuronFullyConnected) fc.getNeuron(3)).getWeights();
+
+        fc.setDenseWeights(false);
+        NeuronFullyConnected neuron = (NeuronFullyConnected) fc.getNeuron(3);
+
+        assertNull("Failure - unbound neuron should not reference the layer weight matrix.", neuron.getWeightMatrix());
+        assertEquals("Failure - unbinding changed the weights of a neuron.", bound, neuron.getWeights());
+    }
+
+    @Test
+    public void testDenseBatchMatchesNeuronBatch() {
+        List<Layer> neuronLayers = createNetwork(false);
+        List<Layer> denseLayers = createNetwork(true);
+
+        for (List<Layer> layers: List.of(neuronLayers, denseLayers)) {
+            for (int step=0; step<3; step++) {
+                forwardBackward(layers, step, step % 3);
+            }
+            applyDeltas(layers);
+        }
+
+        assertSameWeights("Failure - dense weights differ from per-neuron weights after a batch.", neuronLayers, denseLayers);
+    }
+
+    @Test
+    public void testBatchOfRepeatedExampleMatchesSingleExample() {
+        for (boolean dense: new boolean[] {false, true}) {
+            List<Layer> single = createNetwork(dense);
+            forwardBackward(single, 0, 1);
+            applyDeltas(single);
+
+            List<Layer> batch = createNetwork(dense);
+            for (int i=0; i<4; i++) {
+                forwardBackward(batch, 0, 1);
+            }
+            applyDeltas(batch);
+
+            assertSameWeights("Failure - a batch of one repeated example should update the weights as that example would alone.", single, batch);
+        }
+    }
+
+    private void assertSameWeights(String message, List<Layer> expected, List<Layer> returned) {
+        for (int l=2; l<4; l++) {
+            for (int i=0; i<expected.get(l).getNumberOfNeurons(); i++) {
+                DoubleMatrix e = weightsOf(expected.get(l), i);
+                DoubleMatrix r = weightsOf(returned.get(l), i);
+
+                assertTrue(message, e.compare(r, 1e-9));
+            }
+        }
+    }
+
+    private DoubleMatrix weightsOf(Layer layer, int neuron) {
+        if (layer instanceof LayerOutput)
+            return ((NeuronOutput) layer.getNeuron(neuron)).getWeights();
+
+        return ((NeuronFullyConnected) layer.getNeuron(neuron)).getWeights();
+    }
+
+    /**
+     * Builds a new network (so the weights are always initialised from the same seed) and trains it on two images.
+     */
+    private List<Layer> trainSteps(boolean dense) {
+        List<Layer> layers = createNetwork(dense);
+
+        for (int step=0; step<2; step++) {
+            forwardBackward(layers, step, step);
+            applyDeltas(layers);
+        }
+
+        return layers;
+    }
+
+    /**
+     * Builds a new network, so the weights are always initialised from the same seed.
+     */
+    private List<Layer> createNetwork(boolean dense) {
+        NetworkManager network = new NetworkManager();
+        network.setMaximumInitialWeights(0.1f);
+        network.setLearningRate(0.1f);
+        network.setMomentum(0.5f);
+        network.addInput(6, 6, 1);
+        network.addFlatten();
+        network.addFC(8, "tanh");
+        network.addOutput(3);
+        network.setDenseWeights(dense);
+
+        return network.getLayers();
+    }
+
+    private void forwardBackward(List<Layer> layers, int image, int label) {
+        List<DoubleMatrix> input = new ArrayList<>();
+        input.add(DoubleMatrix.linspace(1, 36, 36).reshape(6, 6).muli(0.01 * (image + 1)));
+
+        ((LayerInput) layers.get(0)).setInput(input);
+        for (int j=1; j<layers.size(); j++) {
+            layers.get(j).setInputData(layers.get(j-1).getNeurons());
+        }
+
+        ((LayerOutput) layers.get(3)).getError(label);
+        layers.get(3).calculateDeltas(layers.get(2).getNeurons(), null);
+        layers.get(2).calculateDeltas(layers.get(1).getNeurons(), layers.get(3).getNeurons());
+    }
+
+    private void applyDeltas(List<Layer> layers) {
+        for (int j=layers.size()-1; j>0; j--) {
+            layers.get(j).applyDeltas();
+        }
+    }
+}
\ No newline at end of file
@@ -0,0 +1,101 @@
+package waddington.kai.tests.layers;
+
+import org.junit.*;
+import static org.junit.Assert.*;
+
+import java.util.List;
+
+import org.jblas.*;
+
+import waddington.kai.main.knnf.LayerType;
+import waddington.kai.main.knnf.layers.neurons.Neuron;
+import waddington.kai.main.knnf.layers.neurons.NeuronFactory;
+import waddington.kai.main.knnf.layers.neurons.NeuronPool;
+
+public class TestPooling {
+    // DoubleMatrix data is column-major, so each line here is a column
+    private DoubleMatrix input = new DoubleMatrix(4,4, 1,5,2,0,
+                                                       3,4,9,8,
+                                                       7,6,1,2,
+                                                       0,3,5,4);
+
+    @Test
+    public void testMaxPool() {
+        NeuronPool neuron = (NeuronPool) NeuronFactory.getPoolNeuron(0, new int[] {1, 4, 4}, new int[] {1, 2, 2}, LayerType.maxPool, 2, 2);
+        neuron.setInputData(input);
+
+        DoubleMatrix expected = new DoubleMatrix(2,2, 5,9,
+                                                      7,5);
+
+        assertEquals("Failure - max pooling does not work correctly.", expected, neuron.getOutputData());
+        assertArrayEquals("Failure - max pooling does not record the input locations correctly.", new int[] {1, 6, 8, 14}, neuron.getPoolIndices());
+    }
+
+    @Test
+    public void testMinPool() {
+        NeuronPool neuron = (NeuronPool) NeuronFactory.getPoolNeuron(0, new int[] {1, 4, 4}, new int[] {1, 2, 2}, LayerType.minPool, 2, 2);
+        neuron.setInputData(input);
+
+        DoubleMatrix expected = new DoubleMatrix(2,2, 1,0,
+                                                      0,1);
+
+        assertEquals("Failure - min pooling does not work correctly.", expected, neuron.getOutputData());
+        assertArrayEquals("Failure - min pooling does not record the input locations correctly.", new int[] {0, 3, 12, 10}, neuron.getPoolIndices());
+    }
+
+    @Test
+    public void testMaxPoolBackward() {
+        NeuronPool neuron = (NeuronPool) NeuronFactory.getPoolNeuron(0, new int[] {1, 4, 4}, new int[] {1, 2, 2}, LayerType.maxPool, 2, 2);
+        neuron.setInputData(input);
+
+        // Each error goes to the cell that was the maximum of its field, see testMaxPool
+        DoubleMatrix expected = new DoubleMatrix(4,4,  0,10, 0, 0,
+                                                       0, 0,20, 0,
+                                                      30, 0, 0, 0,
+                                                       0, 0,40, 0);
+
+        assertEquals("Failure - max pooling does not pass the error back to the selected cells only.", expected, backPropagate(neuron));
+    }
+
+    @Test
+    public void testMinPoolBackward() {
+        NeuronPool neuron = (NeuronPool) NeuronFactory.getPoolNeuron(0, new int[] {1, 4, 4}, new int[] {1, 2, 2}, LayerType.minPool, 2, 2);
+        neuron.setInputData(input);
+
+        // Each error goes to the cell that was the minimum of its field, see testMinPool
+        DoubleMatrix expected = new DoubleMatrix(4,4, 10, 0, 0,20,
+                                                       0, 0, 0, 0,
+                                                       0, 0,40, 0,
+                                                      30, 0, 0, 0);
+
+        assertEquals("Failure - min pooling does not pass the error back to the selected cells only.", expected, backPropagate(neuron));
+    }
+
+    @Test
+    public void testOverlappingPoolBackward() {
+        NeuronPool neuron = (NeuronPool) NeuronFactory.getPoolNeuron(0, new int[] {1, 3, 3}, new int[] {1, 2, 2}, LayerType.maxPool, 2, 1);
+        neuron.setInputData(new DoubleMatrix(3,3, 1,2,3,
+                                                  4,9,5,
+                                                  6,7,8));
+
+        // The centre cell is the maximum of every field, so it gets the sum of the errors
+        DoubleMatrix expected = new DoubleMatrix(3,3, 0,  0, 0,
+                                                      0,100, 0,
+                                                      0,  0, 0);
+
+        assertEquals("Failure - overlapping pooling does not add the errors of a cell selected more than once.", expected, backPropagate(neuron));
+    }
+
+    /**
+     * Back-propagates the errors 10, 20, 30 and 40 for the 2x2 output of a pooling neuron from a flattening layer above it.
+     * @return The error the neuron passes to the layer below.
+     */
+    private DoubleMatrix backPropagate(NeuronPool neuron) {
+        Neuron flatten = NeuronFactory.getFlattenNeuron(0, new int[] {1, 2, 2}, new int[] {1, 1, 4});
+        flatten.setError(new DoubleMatrix(new double[] {10, 20, 30, 40}));
+
+        neuron.calculateDeltas(null, List.of(flatten));
+
+        return neuron.getError();
+    }
+}
\ No newline at end of file
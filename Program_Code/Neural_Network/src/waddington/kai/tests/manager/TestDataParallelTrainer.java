@@ -0,0 +1,115 @@
+package waddington.kai.tests.manager;
+
+import org.junit.*;
+import static org.junit.Assert.*;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import org.jblas.*;
+
+import waddington.kai.main.knnf.DataParallelTrainer;
+import waddington.kai.main.knnf.NetworkManager;
+import waddington.kai.main.knnf.layers.Layer;
+import waddington.kai.main.knnf.layers.neurons.NeuronConvolution;
+import waddington.kai.main.knnf.layers.neurons.NeuronFullyConnected;
+import waddington.kai.main.knnf.layers.neurons.NeuronOutput;
+
+public class TestDataParallelTrainer {
+
+    @Test
+    public void testWorkersMatchSingleWorker() {
+        for (boolean dense: new boolean[] {false, true}) {
+            List<Layer> single = train(dense, 1);
+            List<Layer> parallel = train(dense, 3);
+
+            List<DoubleMatrix> expected = parametersOf(single);
+            List<DoubleMatrix> returned = parametersOf(parallel);
+            for (int i=0; i<expected.size(); i++) {
+                assertTrue("Failure - data-parallel training differs from training on one worker.", expected.get(i).compare(returned.get(i), 1e-9));
+            }
+        }
+    }
+
+    @Test
+    public void testStackedMatchesSequential() {
+        for (boolean dense: new boolean[] {false, true}) {
+            List<DoubleMatrix> expected = parametersOf(train(dense, 1, false));
+
+            for (int workers: new int[] {1, 2}) {
+                List<DoubleMatrix> returned = parametersOf(train(dense, workers, true));
+                for (int i=0; i<expected.size(); i++) {
+                    assertTrue("Failure - stacked training on " + workers + " workers differs from training on each example in turn (dense=" + dense + ").", expected.get(i).compare(returned.get(i), 1e-9));
+                }
+            }
+        }
+    }
+
+    @Test
+    public void testWorkersAreDeterministic() {
+        List<DoubleMatrix> first = parametersOf(train(true, 4));
+        List<DoubleMatrix> second = parametersOf(train(true, 4));
+
+        assertEquals("Failure - data-parallel training with the same seed and workers is not repeatable.", first, second);
+    }
+
+    /**
+     * Builds a new network (so the weights are always initialised from the same seed) and trains it on two batches.
+     */
+    private List<Layer> train(boolean dense, int workers) {
+        return train(dense, workers, false);
+    }
+
+    private List<Layer> train(boolean dense, int workers, boolean stacked) {
+        NetworkManager network = new NetworkManager();
+        network.setMaximumInitialWeights(0.1f);
+        network.setLearningRate(0.1f);
+        network.setMomentum(0.5f);
+        network.addInput(8, 8, 1);
+        network.addConv(2, 3, 1, "lrelu", "im2col");
+        network.addFlatten();
+        network.addFC(6, "tanh");
+        network.addOutput(3);
+        network.setDenseWeights(dense);
+
+        List<Layer> layers = network.getLayers();
+        DataParallelTrainer trainer = new DataParallelTrainer(layers, workers, stacked);
+
+        for (int batch=0; batch<2; batch++) {
+            List<List<DoubleMatrix>> inputs = new ArrayList<>();
+            List<Integer> labels = new ArrayList<>();
+            for (int k=0; k<7; k++) {
+                List<DoubleMatrix> input = new ArrayList<>();
+                input.add(DoubleMatrix.linspace(1, 64, 64).reshape(8, 8).muli(0.01 * (batch + k + 1)));
+                inputs.add(input);
+                labels.add(k % 3);
+            }
+
+            trainer.train(inputs, labels);
+            trainer.applyDeltas();
+        }
+
+        trainer.shutdown();
+        return layers;
+    }
+
+    private List<DoubleMatrix> parametersOf(List<Layer> layers) {
+        List<DoubleMatrix> parameters = new ArrayList<>();
+
+        for (int i=0; i<layers.get(1).getNumberOfNeurons(); i++) {
+            NeuronConvolution neuron = (NeuronConvolution) layers.get(1).getNeuron(i);
+            parameters.add(neuron.getFilter().dup());
+            parameters.add(new DoubleMatrix(new double[] {neuron.getBias()}));
+        }
+        for (int i=0; i<layers.get(3).getNumberOfNeurons(); i++) {
+            NeuronFullyConnected neuron = (NeuronFullyConnected) layers.get(3).getNeuron(i);
+            parameters.add(neuron.getWeights());
+            parameters.add(new DoubleMatrix(new double[] {neuron.getBias()}));
+        }
+        for (int i=0; i<layers.get(4).getNumberOfNeurons(); i++) {
+            parameters.add(((NeuronOutput) layers.get(4).getNeuron(i)).getWeights());
+        }
+
+        return parameters;
+    }
+}
\ No newline at end of file
@@ -1,7 +1,14 @@
 package waddington.kai.tests.manager;
 
+import waddington.kai.main.knnf.DataParallelTrainer;
 import waddington.kai.main.knnf.NetworkManager;
+import waddington.kai.main.knnf.layers.Layer;
+import waddington.kai.main.knnf.layers.neurons.NeuronOutput;
 
+import java.util.ArrayList;
+import java.util.List;
+
+import org.jblas.*;
 import org.junit.*;
 import static org.junit.Assert.*;
 import static org.hamcrest.CoreMatchers.*;
@@ -18,21 +25,95 @@ public class TestHyperParameters {
     public void testLearningRate() {
         float toSet = 0.005f;
         manager.setLearningRate(toSet);        
-        assertEquals("Failure - network learning rate not set correctly.", toSet, NetworkManager.LearningRate, 0.0);
+        assertEquals("Failure - network learning rate not set correctly.", toSet, manager.getLearningRate(), 0.0);
     }
 
     @Test
     public void testMomentum() {
         float toSet = 0.005f;
         manager.setMomentum(toSet);
-        assertEquals("Failure - network momentum not set correctly.", toSet, NetworkManager.Momentum, 0.0);
+        assertEquals("Failure - network momentum not set correctly.", toSet, manager.getMomentum(), 0.0);
     }
 
     @Test
     public void testMaxInitialWeights() {
         float toSet = 0.005f;
         manager.setMaximumInitialWeights(toSet);
-        assertEquals("Failure - network maximum initial weights not set correctly.", toSet, NetworkManager.MaximumInitialWeights, 0.0);
+        assertEquals("Failure - network maximum initial weights not set correctly.", toSet, manager.getMaximumInitialWeights(), 0.0);
+    }
+
+    @Test
+    public void testBatchSize() {
+        assertEquals("Failure - network batch size should default to 1.", 1, manager.getBatchSize());
+
+        manager.setBatchSize(16);
+        assertEquals("Failure - network batch size not set correctly.", 16, manager.getBatchSize());
+
+        manager.setBatchSize(0);
+        assertEquals("Failure - network batch size should be at least 1.", 1, manager.getBatchSize());
+    }
+
+    @Test
+    public void testNetworksHaveTheirOwnHyperParameters() {
+        NetworkManager other = new NetworkManager();
+        manager.setLearningRate(0.1f);
+        other.setLearningRate(0.2f);
+        manager.setMomentum(0.3f);
+        other.setMomentum(0.4f);
+
+        assertEquals("Failure - setting the learning rate of one network changed another.", 0.1f, manager.getLearningRate(), 0.0);
+        assertEquals("Failure - setting the momentum of one network changed another.", 0.3f, manager.getMomentum(), 0.0);
+    }
+
+    @Test
+    public void testNetworksTrainConcurrently() throws InterruptedException {
+        DoubleMatrix expectedA = trainNetwork(0.1f);
+        DoubleMatrix expectedB = trainNetwork(0.2f);
+
+        DoubleMatrix[] returned = new DoubleMatrix[2];
+        Thread a = new Thread(() -> returned[0] = trainNetwork(0.1f));
+        Thread b = new Thread(() -> returned[1] = trainNetwork(0.2f));
+        a.start();
+        b.start();
+        a.join();
+        b.join();
+
+        assertEquals("Failure - training a network on another thread changed its weights.", expectedA, returned[0]);
+        assertEquals("Failure - training a network on another thread changed its weights.", expectedB, returned[1]);
+    }
+
+    /**
+     * Builds and trains a small network, returning the weights of its first output neuron.
+     */
+    private DoubleMatrix trainNetwork(float learningRate) {
+        NetworkManager network = new NetworkManager();
+        network.setMaximumInitialWeights(0.1f);
+        network.setLearningRate(learningRate);
+        network.setMomentum(0.5f);
+        network.addInput(8, 8, 1);
+        network.addConv(2, 3, 1, "lrelu", "im2col");
+        network.addFlatten();
+        network.addFC(6, "tanh");
+        network.addOutput(3);
+
+        List<Layer> layers = network.getLayers();
+        DataParallelTrainer trainer = new DataParallelTrainer(layers, 1);
+
+        for (int step=0; step<20; step++) {
+            List<DoubleMatrix> input = new ArrayList<>();
+            input.add(DoubleMatrix.linspace(1, 64, 64).reshape(8, 8).muli(0.01 * (step % 5 + 1)));
+
+            List<List<DoubleMatrix>> inputs = new ArrayList<>();
+            inputs.add(input);
+            List<Integer> labels = new ArrayList<>();
+            labels.add(step % 3);
+
+            trainer.train(inputs, labels);
+            trainer.applyDeltas();
+        }
+
+        trainer.shutdown();
+        return ((NeuronOutput) layers.get(4).getNeuron(0)).getWeights();
     }
 
     @After
@@ -0,0 +1,98 @@
+package waddington.kai.tests.manager;
+
+import org.junit.*;
+import static org.junit.Assert.*;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import org.jblas.*;
+
+import waddington.kai.main.knnf.InferenceNetwork;
+import waddington.kai.main.knnf.NetworkManager;
+import waddington.kai.main.knnf.PredictionEngine;
+import waddington.kai.main.knnf.layers.Layer;
+import waddington.kai.main.knnf.layers.LayerConvolution;
+import waddington.kai.main.knnf.layers.LayerFullyConnected;
+import waddington.kai.main.knnf.layers.LayerOutput;
+import waddington.kai.main.knnf.layers.neurons.Neuron;
+import waddington.kai.main.knnf.layers.neurons.NeuronPool;
+
+public class TestInferenceNetwork {
+
+    @Test
+    public void testPredictionsMatchNetwork() {
+        for (boolean dense: new boolean[] {false, true}) {
+            NetworkManager network = createNetwork(dense);
+            InferenceNetwork inference = network.createInferenceNetwork();
+
+            // Predict twice so the second pass runs after the activations have been released
+            for (int i=1; i<=2; i++) {
+                List<DoubleMatrix> image = createImage(i);
+                DoubleMatrix expected = PredictionEngine.forward(network.getLayers(), image);
+
+                assertTrue("Failure - inference prediction differs from the network (dense=" + dense + ").", expected.compare(inference.predict(image), 1e-12));
+            }
+        }
+    }
+
+    @Test
+    public void testActivationsAreReleased() {
+        InferenceNetwork inference = createNetwork(true).createInferenceNetwork();
+        inference.predict(createImage(1));
+
+        for (Layer layer: inference.getLayers()) {
+            for (Neuron neuron: layer.getNeurons()) {
+                assertNull("Failure - layer " + layer.getId() + " kept its input.", neuron.getInputData());
+                assertNull("Failure - layer " + layer.getId() + " kept its output.", neuron.getOutputData());
+                assertNull("Failure - layer " + layer.getId() + " has an error.", neuron.getError());
+
+                if (neuron instanceof NeuronPool)
+                    assertNull("Failure - pooling layer kept its pool indices.", ((NeuronPool) neuron).getPoolIndices());
+            }
+        }
+    }
+
+    @Test
+    public void testWorkspacesAreReleased() {
+        for (boolean dense: new boolean[] {false, true}) {
+            InferenceNetwork inference = createNetwork(dense).createInferenceNetwork();
+            inference.predict(createImage(1));
+
+            for (Layer layer: inference.getLayers()) {
+                if (layer instanceof LayerConvolution) {
+                    LayerConvolution conv = (LayerConvolution) layer;
+                    assertNotNull("Failure - convolution layer did not use its filter bank.", conv.getFilterBank());
+                    assertNull("Failure - convolution layer kept its receptive fields.", conv.getInputPatches());
+                    assertNull("Failure - convolution layer kept its convolved output.", conv.getConvolved());
+                } else if (layer instanceof LayerFullyConnected) {
+                    assertNull("Failure - fully-connected layer kept its input buffer (dense=" + dense + ").", ((LayerFullyConnected) layer).getInputBuffer());
+                } else if (layer instanceof LayerOutput) {
+                    assertNull("Failure - output layer kept its input buffer (dense=" + dense + ").", ((LayerOutput) layer).getInputBuffer());
+                }
+            }
+        }
+    }
+
+    private NetworkManager createNetwork(boolean dense) {
+        NetworkManager network = new NetworkManager();
+        network.setMaximumInitialWeights(0.1f);
+        network.addInput(8, 8, 1);
+        network.addConv(2, 3, 1, "lrelu", "im2col");
+        network.addPool(2, 2, "max");
+        network.addFlatten();
+        network.addFC(6, "tanh");
+        network.addOutput(3);
+        network.setDenseWeights(dense);
+        network.networkValidityCheck();
+
+        return network;
+    }
+
+    private List<DoubleMatrix> createImage(int scale) {
+        List<DoubleMatrix> image = new ArrayList<>();
+        image.add(DoubleMatrix.linspace(1, 64, 64).reshape(8, 8).muli(0.01 * scale));
+
+        return image;
+    }
+}
\ No newline at end of file
@@ -0,0 +1,90 @@
+package waddington.kai.tests.manager;
+
+import org.junit.*;
+import static org.junit.Assert.*;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import org.jblas.*;
+
+import waddington.kai.main.knnf.NetworkManager;
+import waddington.kai.main.knnf.PredictionEngine;
+import waddington.kai.main.knnf.exceptions.PredictionException;
+import waddington.kai.main.knnf.inference.InferencePlan;
+
+public class TestInferencePlan {
+
+    @Test
+    public void testPlanMatchesNetwork() {
+        for (boolean dense: new boolean[] {false, true}) {
+            // Pooling on the input, convolution above convolution, and convolution fused with max and min pooling
+            NetworkManager network = new NetworkManager();
+            network.setMaximumInitialWeights(0.1f);
+            network.addInput(20, 20, 2);
+            network.addPool(2, 2, "min");
+            network.addConv(3, 3, 1, "lrelu", "im2col");
+            network.addConv(3, 2, 1, "tanh", "direct");
+            network.addPool(2, 2, "max");
+            network.addConv(2, 2, 1, "sigmoid", "fft");
+            network.addPool(2, 1, "min");
+            network.addFlatten();
+            network.addFC(6, "tanh");
+            network.addFC(5, "relu");
+            network.addOutput(3);
+            network.setDenseWeights(dense);
+            network.networkValidityCheck();
+
+            InferencePlan plan = network.compileForInference();
+            InferencePlan.Workspace workspace = plan.createWorkspace();
+
+            // The second image reuses the buffers of the first
+            for (int i=1; i<=2; i++) {
+                List<DoubleMatrix> image = createImage(i, 2, 20);
+                DoubleMatrix expected = PredictionEngine.forward(network.getLayers(), image);
+
+                assertTrue("Failure - compiled prediction differs from the network (dense=" + dense + ").", expected.compare(plan.predict(image, workspace), 1e-9));
+            }
+        }
+    }
+
+    @Test
+    public void testPlanIsACopy() {
+        NetworkManager network = new NetworkManager();
+        network.setMaximumInitialWeights(0.1f);
+        network.addInput(8, 8, 1);
+        network.addConv(2, 3, 1, "lrelu", "im2col");
+        network.addFlatten();
+        network.addOutput(3);
+        network.networkValidityCheck();
+
+        List<DoubleMatrix> image = createImage(1, 1, 8);
+        InferencePlan plan = network.compileForInference();
+        DoubleMatrix before = plan.predict(image);
+
+        network.getLayers().get(3).getNeurons().forEach(neuron -> ((waddington.kai.main.knnf.layers.neurons.NeuronOutput) neuron).setBias(5 * neuron.getId()));
+
+        assertEquals(before, plan.predict(image));
+        assertNotEquals(before, PredictionEngine.forward(network.getLayers(), image));
+    }
+
+    @Test(expected = PredictionException.class)
+    public void testWrongImageShape() {
+        NetworkManager network = new NetworkManager();
+        network.addInput(8, 8, 1);
+        network.addFlatten();
+        network.addOutput(3);
+        network.networkValidityCheck();
+
+        network.compileForInference().predict(createImage(1, 1, 10));
+    }
+
+    private List<DoubleMatrix> createImage(int scale, int channels, int size) {
+        List<DoubleMatrix> image = new ArrayList<>();
+
+        for (int c=0; c<channels; c++)
+            image.add(DoubleMatrix.linspace(1, size*size, size*size).reshape(size, size).muli(0.01 * (scale+c)));
+
+        return image;
+    }
+}
\ No newline at end of file
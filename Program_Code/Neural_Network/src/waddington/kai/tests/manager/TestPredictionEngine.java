@@ -0,0 +1,90 @@
+package waddington.kai.tests.manager;
+
+import org.junit.*;
+import static org.junit.Assert.*;
+
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+
+import org.jblas.*;
+
+import waddington.kai.main.knnf.NetworkManager;
+import waddington.kai.main.knnf.PredictionEngine;
+import waddington.kai.main.knnf.layers.Layer;
+
+public class TestPredictionEngine {
+    private static final int IMAGES = 20;
+    private List<List<DoubleMatrix>> images;
+
+    /**
+     * Images that each give the network a different output.
+     */
+    @Before
+    public void before() {
+        images = new ArrayList<>();
+
+        for (int i=0; i<IMAGES; i++) {
+            List<DoubleMatrix> image = new ArrayList<>();
+            image.add(DoubleMatrix.linspace(1, 64, 64).reshape(8, 8).muli(0.01 * (i+1)));
+            images.add(image);
+        }
+    }
+
+    @Test
+    public void testPredictionsMatchNetworkInOrder() {
+        for (boolean dense: new boolean[] {false, true}) {
+            List<Layer> layers = createNetwork(dense);
+
+            List<DoubleMatrix> expected = new ArrayList<>();
+            for (List<DoubleMatrix> image: images)
+                expected.add(PredictionEngine.forward(layers, image));
+
+            PredictionEngine engine = new PredictionEngine(layers, 3);
+
+            List<DoubleMatrix> returned = engine.predict(images);
+            for (int i=0; i<IMAGES; i++)
+                assertTrue("Failure - batch prediction " + i + " differs from the network (dense=" + dense + ").", expected.get(i).compare(returned.get(i), 1e-12));
+
+            Iterator<List<DoubleMatrix>> source = images.iterator();
+            List<List<DoubleMatrix>> order = new ArrayList<>();
+            List<DoubleMatrix> streamed = new ArrayList<>();
+            engine.predict(() -> source.hasNext() ? source.next() : null, image -> image, (image, outputs) -> {
+                order.add(image);
+                streamed.add(outputs);
+            });
+
+            assertEquals("Failure - streamed predictions are not in the order of the images.", images, order);
+            for (int i=0; i<IMAGES; i++)
+                assertTrue("Failure - streamed prediction " + i + " differs from the network (dense=" + dense + ").", expected.get(i).compare(streamed.get(i), 1e-12));
+
+            engine.shutdown();
+        }
+    }
+
+    @Test
+    public void testMetrics() {
+        PredictionEngine engine = new PredictionEngine(createNetwork(true), 2);
+        engine.predict(images);
+        engine.shutdown();
+
+        assertEquals(IMAGES, engine.getPredictions());
+        assertTrue("Failure - p50 latency is not positive.", engine.getLatencyPercentile(50) > 0);
+        assertTrue("Failure - p99 latency is less than p50.", engine.getLatencyPercentile(99) >= engine.getLatencyPercentile(50));
+        assertTrue("Failure - throughput is not positive.", engine.getThroughput() > 0);
+    }
+
+    private List<Layer> createNetwork(boolean dense) {
+        NetworkManager network = new NetworkManager();
+        network.setMaximumInitialWeights(0.1f);
+        network.addInput(8, 8, 1);
+        network.addConv(2, 3, 1, "lrelu", "im2col");
+        network.addPool(2, 2, "max");
+        network.addFlatten();
+        network.addFC(6, "tanh");
+        network.addOutput(3);
+        network.setDenseWeights(dense);
+
+        return network.getLayers();
+    }
+}
\ No newline at end of file
@@ -0,0 +1,92 @@
+package waddington.kai.tests.manager;
+
+import org.junit.*;
+import static org.junit.Assert.*;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+import org.jblas.*;
+
+import waddington.kai.main.knnf.NetworkManager;
+import waddington.kai.main.knnf.exceptions.PredictionException;
+import waddington.kai.main.knnf.inference.InferencePlan;
+import waddington.kai.main.knnf.inference.QuantisationReport;
+
+public class TestQuantisation {
+
+    @Test
+    public void testQuantisedPlanMatchesPlan() {
+        InferencePlan plan = createNetwork().compileForInference();
+        Random random = new Random(1);
+
+        List<List<DoubleMatrix>> calibration = new ArrayList<>();
+        for (int i=0; i<8; i++)
+            calibration.add(createImage(random));
+
+        InferencePlan quantised = plan.quantise(calibration);
+        assertTrue("Failure - int8 weights should take under a quarter of the bytes.", quantised.getWeightBytes() * 4 < plan.getWeightBytes());
+        assertEquals("Failure - the double plan copies no weights into its workspaces.", 0, plan.getWorkspaceWeightBytes());
+        assertTrue("Failure - the widened int8 filters are not counted.", quantised.getWorkspaceWeightBytes() > 0);
+
+        // Images that were not calibrated with
+        for (int i=0; i<4; i++) {
+            List<DoubleMatrix> image = createImage(random);
+            assertTrue("Failure - quantised prediction differs too much from the plan.", plan.predict(image).compare(quantised.predict(image), 0.01));
+        }
+    }
+
+    @Test
+    public void testReport() {
+        InferencePlan plan = createNetwork().compileForInference();
+        Random random = new Random(2);
+        InferencePlan quantised = plan.quantise(List.of(createImage(random)));
+        QuantisationReport report = new QuantisationReport(plan, quantised, 1);
+
+        // Label every image with the class the plan predicts, except the last which has a class neither predicts
+        for (int i=0; i<4; i++) {
+            List<DoubleMatrix> image = createImage(random);
+            report.evaluate(image, i < 3 ? plan.predict(image).argmax() : 3);
+        }
+
+        assertEquals(4, report.getExamples());
+        assertEquals(75, report.getAccuracy(), 1e-9);
+        assertEquals(report.getQuantisedAccuracy() - 75, report.getAccuracyDelta(), 1e-9);
+        assertTrue(report.getMaxOutputDifference() < 0.01);
+    }
+
+    @Test(expected = PredictionException.class)
+    public void testNoCalibrationImages() {
+        createNetwork().compileForInference().quantise(new ArrayList<>());
+    }
+
+    private NetworkManager createNetwork() {
+        NetworkManager network = new NetworkManager();
+        network.setMaximumInitialWeights(0.1f);
+        network.addInput(16, 16, 2);
+        network.addConv(3, 3, 1, "lrelu", "im2col");
+        network.addPool(2, 2, "max");
+        network.addConv(2, 2, 1, "tanh", "direct");
+        network.addFlatten();
+        network.addFC(20, "tanh");
+        network.addOutput(3);
+        network.setDenseWeights(true);
+        network.networkValidityCheck();
+
+        return network;
+    }
+
+    private List<DoubleMatrix> createImage(Random random) {
+        List<DoubleMatrix> image = new ArrayList<>();
+
+        for (int c=0; c<2; c++) {
+            DoubleMatrix channel = new DoubleMatrix(16, 16);
+            for (int i=0; i<channel.length; i++)
+                channel.data[i] = random.nextInt(256);
+            image.add(channel);
+        }
+
+        return image;
+    }
+}
\ No newline at end of file
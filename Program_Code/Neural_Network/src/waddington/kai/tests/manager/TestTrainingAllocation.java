@@ -0,0 +1,78 @@
+package waddington.kai.tests.manager;
+
+import org.junit.*;
+import static org.junit.Assert.*;
+
+import java.lang.management.ManagementFactory;
+import java.util.ArrayList;
+import java.util.List;
+
+import com.sun.management.ThreadMXBean;
+import org.jblas.*;
+
+import waddington.kai.main.knnf.DataParallelTrainer;
+import waddington.kai.main.knnf.NetworkManager;
+import waddington.kai.main.knnf.layers.Layer;
+
+public class TestTrainingAllocation {
+    private static final int STEPS = 500;
+
+    @Test
+    public void testBackwardPassAndUpdatesDoNotAllocate() {
+        ThreadMXBean threads = (ThreadMXBean) ManagementFactory.getThreadMXBean();
+        Assume.assumeTrue(threads.isThreadAllocatedMemorySupported());
+        threads.setThreadAllocatedMemoryEnabled(true);
+        long thread = Thread.currentThread().getId();
+
+        for (boolean dense: new boolean[] {false, true}) {
+            List<Layer> layers = createNetwork(dense);
+
+            List<DoubleMatrix> input = new ArrayList<>();
+            input.add(DoubleMatrix.linspace(1, 100, 100).reshape(10, 10).muli(0.01));
+            DataParallelTrainer.trainExample(layers, input, 1);
+
+            // The first steps create the buffers and optimiser state, and let the JIT compile the update path
+            for (int i=0; i<STEPS; i++)
+                step(layers);
+
+            long before = threads.getThreadAllocatedBytes(thread);
+            for (int i=0; i<STEPS; i++)
+                step(layers);
+            long bytesPerStep = (threads.getThreadAllocatedBytes(thread) - before) / STEPS;
+
+            // Only the few lambdas each layer hands to its execution policy remain, nothing per neuron
+            assertTrue("Failure - a training step allocated " + bytesPerStep + " bytes (dense=" + dense + ").", bytesPerStep < 512);
+        }
+    }
+
+    /**
+     * A network with every kind of layer the backward pass goes through: convolution above convolution, pooling, flatten, fully-connected and output.
+     */
+    private List<Layer> createNetwork(boolean dense) {
+        NetworkManager network = new NetworkManager();
+        network.setMaximumInitialWeights(0.1f);
+        network.setLearningRate(0.001f);
+        network.setMomentum(0.5f);
+        network.addInput(10, 10, 1);
+        network.addConv(2, 3, 1, "lrelu", "im2col");
+        network.addConv(2, 3, 1, "lrelu", "im2col");
+        network.addPool(2, 2, "max");
+        network.addFlatten();
+        network.addFC(64, "tanh");
+        network.addOutput(3);
+        network.setDenseWeights(dense);
+
+        return network.getLayers();
+    }
+
+    /**
+     * One backward pass and weight update, the part of training an example after the forward pass.
+     */
+    private void step(List<Layer> layers) {
+        DataParallelTrainer.backPropagate(layers);
+
+        for (int j=layers.size()-1; j>0; j--) {
+            layers.get(j).applyDeltas();
+        }
+    }
+}
\ No newline at end of file
@@ -0,0 +1,148 @@
+package waddington.kai.tests.manager;
+
+import org.junit.*;
+import static org.junit.Assert.*;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.apache.commons.io.FileUtils;
+import org.jblas.*;
+
+import waddington.kai.main.knnf.DataParallelTrainer;
+import waddington.kai.main.knnf.NetworkManager;
+import waddington.kai.main.knnf.exceptions.CheckpointException;
+import waddington.kai.main.knnf.layers.Layer;
+import waddington.kai.main.knnf.layers.neurons.NeuronConvolution;
+import waddington.kai.main.knnf.layers.neurons.NeuronFullyConnected;
+import waddington.kai.main.knnf.layers.neurons.NeuronOutput;
+import waddington.kai.main.knnf.serialisation.CheckpointWriter;
+import waddington.kai.main.knnf.serialisation.TrainingCheckpoint;
+
+public class TestTrainingCheckpoint {
+    private File checkpointDir;
+
+    @Before
+    public void before() throws IOException {
+        checkpointDir = Files.createTempDirectory("knnf-checkpoint").toFile();
+    }
+
+    @After
+    public void after() throws IOException {
+        FileUtils.deleteDirectory(checkpointDir);
+    }
+
+    @Test
+    public void testResumedTrainingMatchesUninterruptedTraining() {
+        for (boolean dense: new boolean[] {false, true}) {
+            String checkpointPath = new File(checkpointDir, "Checkpoint-" + dense + TrainingCheckpoint.EXTENSION).getPath();
+
+            // Train for 6 batches, writing a checkpoint in the background after the 3rd
+            NetworkManager original = createNetwork(dense, 6);
+            train(original, 0, 3);
+            CheckpointWriter writer = new CheckpointWriter(checkpointPath);
+            writer.writeAsync(TrainingCheckpoint.capture(original, 0, 21, 1000));
+            train(original, 3, 6);
+            writer.shutdown();
+            assertEquals("Failure - checkpoint was not written.", 1, writer.getCheckpointsWritten());
+
+            // A network that has trained differently, restored from the checkpoint, then trained for the last 3 batches
+            NetworkManager resumed = createNetwork(dense, 6);
+            resumed.setMomentum(0.9f);
+            train(resumed, 3, 5);
+            TrainingCheckpoint checkpoint = TrainingCheckpoint.read(checkpointDir.getPath());
+            checkpoint.restore(resumed);
+            train(resumed, 3, 6);
+
+            assertEquals("Failure - checkpoint did not store the position in the training data.", 21, checkpoint.getNextExample());
+            assertEquals("Failure - checkpoint did not restore the momentum.", 0.5f, resumed.getMomentum(), 0.0);
+            assertEquals("Failure - resumed training differs from uninterrupted training.", parametersOf(original), parametersOf(resumed));
+            assertEquals("Failure - checkpoint did not restore the random number generator.",
+                    original.getContext().getRandom().nextDouble(), resumed.getContext().getRandom().nextDouble(), 0.0);
+        }
+    }
+
+    @Test
+    public void testMismatchedNetworkIsNotChanged() {
+        NetworkManager original = createNetwork(false, 6);
+        train(original, 0, 1);
+        TrainingCheckpoint checkpoint = TrainingCheckpoint.capture(original, 0, 7, 0);
+
+        NetworkManager other = createNetwork(false, 5);
+        List<DoubleMatrix> before = parametersOf(other);
+
+        try {
+            checkpoint.restore(other);
+            fail("Failure - checkpoint was restored into a network with different layers.");
+        } catch (CheckpointException e) {
+            assertEquals("Failure - a checkpoint that does not match changed the network.", before, parametersOf(other));
+        }
+    }
+
+    /**
+     * Builds a new network, so the weights are always initialised from the same seed.
+     */
+    private NetworkManager createNetwork(boolean dense, int fcNeurons) {
+        NetworkManager network = new NetworkManager();
+        network.setMaximumInitialWeights(0.1f);
+        network.setLearningRate(0.1f);
+        network.setMomentum(0.5f);
+        network.addInput(8, 8, 1);
+        network.addConv(2, 3, 1, "lrelu", "im2col");
+        network.addFlatten();
+        network.addFC(fcNeurons, "tanh");
+        network.addOutput(3);
+        network.setDenseWeights(dense);
+
+        return network;
+    }
+
+    /**
+     * Trains a network on batches [first, last) of 7 examples each.
+     */
+    private void train(NetworkManager network, int first, int last) {
+        DataParallelTrainer trainer = new DataParallelTrainer(network.getLayers(), 1);
+
+        for (int batch=first; batch<last; batch++) {
+            List<List<DoubleMatrix>> inputs = new ArrayList<>();
+            List<Integer> labels = new ArrayList<>();
+            for (int k=0; k<7; k++) {
+                List<DoubleMatrix> input = new ArrayList<>();
+                input.add(DoubleMatrix.linspace(1, 64, 64).reshape(8, 8).muli(0.01 * (batch + k + 1)));
+                inputs.add(input);
+                labels.add(k % 3);
+            }
+
+            trainer.train(inputs, labels);
+            trainer.applyDeltas();
+        }
+
+        trainer.shutdown();
+    }
+
+    private List<DoubleMatrix> parametersOf(NetworkManager network) {
+        List<Layer> layers = network.getLayers();
+        List<DoubleMatrix> parameters = new ArrayList<>();
+
+        for (int i=0; i<layers.get(1).getNumberOfNeurons(); i++) {
+            NeuronConvolution neuron = (NeuronConvolution) layers.get(1).getNeuron(i);
+            parameters.add(neuron.getFilter().dup());
+            parameters.add(new DoubleMatrix(new double[] {neuron.getBias(), neuron.getBiasState().getBuffer(0)[0]}));
+        }
+        for (int i=0; i<layers.get(3).getNumberOfNeurons(); i++) {
+            NeuronFullyConnected neuron = (NeuronFullyConnected) layers.get(3).getNeuron(i);
+            parameters.add(neuron.getWeights().dup());
+            parameters.add(new DoubleMatrix(new double[] {neuron.getBias(), neuron.getBiasState().getBuffer(0)[0]}));
+        }
+        for (int i=0; i<layers.get(4).getNumberOfNeurons(); i++) {
+            NeuronOutput neuron = (NeuronOutput) layers.get(4).getNeuron(i);
+            parameters.add(neuron.getWeights().dup());
+            parameters.add(new DoubleMatrix(new double[] {neuron.getBias(), neuron.getBiasState().getBuffer(0)[0]}));
+        }
+
+        return parameters;
+    }
+}
\ No newline at end of file